@@ -33,7 +33,12 @@ def fhirproto_workspace(core_lib = False):
             "org.apache.beam:beam-runners-direct-java:2.9.0",
             "org.apache.beam:beam-runners-google-cloud-dataflow-java:2.9.0",
             "org.apache.beam:beam-sdks-java-core:2.9.0",
+            "org.apache.hadoop:hadoop-common:2.7.3",
+            "org.apache.hadoop:hadoop-mapreduce-client-core:2.7.3",
+            "org.apache.parquet:parquet-column:1.10.1",
+            "org.apache.parquet:parquet-hadoop:1.10.1",
             "org.slf4j:slf4j-simple:1.7.25",
+            "org.tensorflow:proto:1.15.0",
         ],
         repositories = [
             "https://maven.google.com",
@@ -0,0 +1,49 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.beam;
+
+import com.google.fhir.r4.core.ContainedResource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+
+/** A Beam coder for R4 resources, encoding them in the protobuf wire format. */
+public final class ContainedResourceCoder extends AtomicCoder<ContainedResource> {
+
+  private static final ContainedResourceCoder INSTANCE = new ContainedResourceCoder();
+  private static final ByteArrayCoder BYTES = ByteArrayCoder.of();
+
+  private ContainedResourceCoder() {}
+
+  public static ContainedResourceCoder of() {
+    return INSTANCE;
+  }
+
+  @Override
+  public void encode(ContainedResource value, OutputStream output) throws IOException {
+    BYTES.encode(value.toByteArray(), output);
+  }
+
+  @Override
+  public ContainedResource decode(InputStream input) throws IOException {
+    return ContainedResource.parseFrom(BYTES.decode(input));
+  }
+
+  /** FHIR protos have no map fields, so their serialization is deterministic. */
+  @Override
+  public void verifyDeterministic() {}
+}
@@ -0,0 +1,268 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.beam;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.Compression;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.range.OffsetRange;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.splittabledofn.OffsetRangeTracker;
+import org.apache.beam.sdk.values.PBegin;
+import org.apache.beam.sdk.values.PCollection;
+
+/**
+ * Beam transforms for reading FHIR ndjson files. Together with {@link ParseFhir}, {@link
+ * ValidateFhir} and {@link WriteByResourceType}, these make up a pipeline such as
+ *
+ * <pre>
+ *   pipeline
+ *       .apply(FhirIO.readNdjson().from("gs://bucket/export/*.ndjson"))
+ *       .apply(ParseFhir.resources())
+ *       .apply(ValidateFhir.create())
+ *       .get(ValidateFhir.VALID)
+ *       .apply(WriteByResourceType.toBigQuery("project:dataset"));
+ * </pre>
+ */
+public final class FhirIO {
+
+  /** The default size of the byte ranges an input file is initially split into. */
+  public static final long DEFAULT_DESIRED_SPLIT_SIZE = 64L * 1024 * 1024;
+
+  private FhirIO() {}
+
+  /** Returns a transform reading the lines of the ndjson files matching a file pattern. */
+  public static ReadNdjson readNdjson() {
+    return new ReadNdjson(null, DEFAULT_DESIRED_SPLIT_SIZE);
+  }
+
+  /** Returns a transform reading the lines of matched ndjson files. */
+  public static ReadNdjsonFiles readNdjsonFiles() {
+    return new ReadNdjsonFiles(DEFAULT_DESIRED_SPLIT_SIZE);
+  }
+
+  /** A transform reading the lines of the ndjson files matching a file pattern. */
+  public static final class ReadNdjson extends PTransform<PBegin, PCollection<String>> {
+    private final String filepattern;
+    private final long desiredSplitSize;
+
+    private ReadNdjson(String filepattern, long desiredSplitSize) {
+      this.filepattern = filepattern;
+      this.desiredSplitSize = desiredSplitSize;
+    }
+
+    /** Reads the files matching the pattern. */
+    public ReadNdjson from(String filepattern) {
+      return new ReadNdjson(filepattern, desiredSplitSize);
+    }
+
+    /** Sets the size of the byte ranges which uncompressed files are initially split into. */
+    public ReadNdjson withDesiredSplitSize(long desiredSplitSize) {
+      return new ReadNdjson(filepattern, desiredSplitSize);
+    }
+
+    @Override
+    public PCollection<String> expand(PBegin input) {
+      if (filepattern == null) {
+        throw new IllegalStateException("FhirIO.readNdjson() requires a file pattern, see from()");
+      }
+      return input
+          .apply("Match files", FileIO.match().filepattern(filepattern))
+          .apply("Open files", FileIO.readMatches())
+          .apply("Read lines", new ReadNdjsonFiles(desiredSplitSize));
+    }
+  }
+
+  /**
+   * A transform reading the lines of matched ndjson files. Blank lines are skipped.
+   *
+   * <p>Uncompressed files are read with a splittable DoFn, over ranges of byte offsets, so that a
+   * large file can be read by several workers, and its ranges rebalanced while reading. A line
+   * belongs to the range holding its first byte. Compressed files can not be split, and are read by
+   * a single worker.
+   */
+  public static final class ReadNdjsonFiles
+      extends PTransform<PCollection<FileIO.ReadableFile>, PCollection<String>> {
+    private final long desiredSplitSize;
+
+    private ReadNdjsonFiles(long desiredSplitSize) {
+      this.desiredSplitSize = desiredSplitSize;
+    }
+
+    /** Sets the size of the byte ranges which uncompressed files are initially split into. */
+    public ReadNdjsonFiles withDesiredSplitSize(long desiredSplitSize) {
+      return new ReadNdjsonFiles(desiredSplitSize);
+    }
+
+    @Override
+    public PCollection<String> expand(PCollection<FileIO.ReadableFile> input) {
+      return input
+          .apply(ParDo.of(new ReadNdjsonFn(desiredSplitSize)))
+          .setCoder(StringUtf8Coder.of());
+    }
+  }
+
+  /** Reads the lines of a file starting within a range of byte offsets. */
+  static final class ReadNdjsonFn extends DoFn<FileIO.ReadableFile, String> {
+    private final Counter numLines = Metrics.counter(FhirIO.class, "numLines");
+    private final long desiredSplitSize;
+
+    ReadNdjsonFn(long desiredSplitSize) {
+      this.desiredSplitSize = desiredSplitSize;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c, OffsetRangeTracker tracker) throws IOException {
+      FileIO.ReadableFile file = c.element();
+      if (!isSplittable(file)) {
+        // The whole file is read as the single offset of its restriction.
+        if (tracker.tryClaim(0L)) {
+          try (ReadableByteChannel channel = file.open()) {
+            LineReader reader = new LineReader(channel, 0);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+              output(c, line);
+            }
+          }
+        }
+        return;
+      }
+      long start = tracker.currentRestriction().getFrom();
+      try (SeekableByteChannel channel = file.openSeekable()) {
+        LineReader reader;
+        if (start == 0) {
+          reader = new LineReader(channel, 0);
+        } else {
+          // Skip the end of the line which started before the range; if the byte before the range
+          // is a newline, this skips nothing.
+          channel.position(start - 1);
+          reader = new LineReader(channel, start - 1);
+          reader.readLine();
+        }
+        while (tracker.tryClaim(reader.getPosition())) {
+          String line = reader.readLine();
+          if (line == null) {
+            return;
+          }
+          output(c, line);
+        }
+      }
+    }
+
+    private void output(ProcessContext c, String line) {
+      if (!line.trim().isEmpty()) {
+        numLines.inc();
+        c.output(line);
+      }
+    }
+
+    @GetInitialRestriction
+    public OffsetRange getInitialRestriction(FileIO.ReadableFile file) {
+      return new OffsetRange(0, isSplittable(file) ? file.getMetadata().sizeBytes() : 1);
+    }
+
+    @SplitRestriction
+    public void splitRestriction(
+        FileIO.ReadableFile file, OffsetRange range, OutputReceiver<OffsetRange> receiver) {
+      for (long start = range.getFrom(); start < range.getTo(); start += desiredSplitSize) {
+        receiver.output(new OffsetRange(start, Math.min(start + desiredSplitSize, range.getTo())));
+      }
+    }
+
+    @NewTracker
+    public OffsetRangeTracker newTracker(OffsetRange range) {
+      return new OffsetRangeTracker(range);
+    }
+
+    @GetRestrictionCoder
+    public Coder<OffsetRange> getRestrictionCoder() {
+      return SerializableCoder.of(OffsetRange.class);
+    }
+
+    private static boolean isSplittable(FileIO.ReadableFile file) {
+      return file.getCompression() == Compression.UNCOMPRESSED
+          && file.getMetadata().isReadSeekEfficient();
+    }
+  }
+
+  /** Reads UTF-8 lines from a channel, keeping track of the offset of the next line. */
+  private static final class LineReader {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private long position;
+
+    LineReader(ReadableByteChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+      buffer.flip();
+    }
+
+    /** Returns the offset of the next line. */
+    long getPosition() {
+      return position;
+    }
+
+    /** Returns the next line without its line terminator, or null at the end of the input. */
+    String readLine() throws IOException {
+      line.reset();
+      while (true) {
+        if (!buffer.hasRemaining()) {
+          buffer.clear();
+          int read = channel.read(buffer);
+          buffer.flip();
+          if (read == -1) {
+            return line.size() == 0 ? null : toLine();
+          }
+        }
+        byte[] array = buffer.array();
+        int start = buffer.position();
+        int end = buffer.limit();
+        for (int i = start; i < end; i++) {
+          if (array[i] == '\n') {
+            line.write(array, start, i - start);
+            buffer.position(i + 1);
+            position += i + 1 - start;
+            return toLine();
+          }
+        }
+        line.write(array, start, end - start);
+        buffer.position(end);
+        position += end - start;
+      }
+    }
+
+    private String toLine() {
+      byte[] bytes = line.toByteArray();
+      int length = bytes.length;
+      if (length > 0 && bytes[length - 1] == '\r') {
+        length--;
+      }
+      return new String(bytes, 0, length, UTF_8);
+    }
+  }
+}
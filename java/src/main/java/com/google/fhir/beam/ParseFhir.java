@@ -0,0 +1,151 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.beam;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.r4.core.ContainedResource;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.time.ZoneId;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollection;
+
+/**
+ * Beam transforms parsing FHIR json into R4 resources. Each worker creates its parser once, when
+ * its DoFn instance is set up, rather than once per element.
+ */
+public final class ParseFhir {
+
+  private ParseFhir() {}
+
+  /** Returns a transform parsing json resources, such as the lines of ndjson files. */
+  public static Resources resources() {
+    return new Resources(null);
+  }
+
+  /**
+   * Returns a transform parsing the entries of json bundle files. Bundles are parsed with {@link
+   * JsonFormat.Parser#mergeBundleEntries}, one entry at a time, so their size is not limited by the
+   * memory of the worker. References are not resolved, since that takes the complete bundle.
+   */
+  public static Bundles bundles() {
+    return new Bundles(null);
+  }
+
+  /** A transform parsing json resources. */
+  public static final class Resources
+      extends PTransform<PCollection<String>, PCollection<ContainedResource>> {
+    private final String defaultTimeZone;
+
+    private Resources(String defaultTimeZone) {
+      this.defaultTimeZone = defaultTimeZone;
+    }
+
+    /** Sets the time zone of dates and times which do not specify one. */
+    public Resources withDefaultTimeZone(ZoneId defaultTimeZone) {
+      return new Resources(defaultTimeZone.getId());
+    }
+
+    @Override
+    public PCollection<ContainedResource> expand(PCollection<String> input) {
+      return input
+          .apply(ParDo.of(new ParseResourceFn(defaultTimeZone)))
+          .setCoder(ContainedResourceCoder.of());
+    }
+  }
+
+  /** A transform parsing the entries of json bundle files. */
+  public static final class Bundles
+      extends PTransform<PCollection<FileIO.ReadableFile>, PCollection<ContainedResource>> {
+    private final String defaultTimeZone;
+
+    private Bundles(String defaultTimeZone) {
+      this.defaultTimeZone = defaultTimeZone;
+    }
+
+    /** Sets the time zone of dates and times which do not specify one. */
+    public Bundles withDefaultTimeZone(ZoneId defaultTimeZone) {
+      return new Bundles(defaultTimeZone.getId());
+    }
+
+    @Override
+    public PCollection<ContainedResource> expand(PCollection<FileIO.ReadableFile> input) {
+      return input
+          .apply(ParDo.of(new ParseBundleFn(defaultTimeZone)))
+          .setCoder(ContainedResourceCoder.of());
+    }
+  }
+
+  /** A DoFn holding a parser, which is created once for each instance. */
+  private abstract static class ParserFn<InputT> extends DoFn<InputT, ContainedResource> {
+    final Counter numResources = Metrics.counter(ParseFhir.class, "numResources");
+    private final String defaultTimeZone;
+    transient JsonFormat.Parser parser;
+
+    ParserFn(String defaultTimeZone) {
+      this.defaultTimeZone = defaultTimeZone;
+    }
+
+    @Setup
+    public void setUp() {
+      parser =
+          defaultTimeZone == null
+              ? JsonFormat.getParser()
+              : JsonFormat.Parser.withDefaultTimeZone(ZoneId.of(defaultTimeZone));
+    }
+  }
+
+  static final class ParseResourceFn extends ParserFn<String> {
+    ParseResourceFn(String defaultTimeZone) {
+      super(defaultTimeZone);
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      c.output(parser.merge(c.element(), ContainedResource.newBuilder()).build());
+      numResources.inc();
+    }
+  }
+
+  static final class ParseBundleFn extends ParserFn<FileIO.ReadableFile> {
+    private final Counter numBundles = Metrics.counter(ParseFhir.class, "numBundles");
+
+    ParseBundleFn(String defaultTimeZone) {
+      super(defaultTimeZone);
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) throws IOException {
+      try (Reader reader = Channels.newReader(c.element().open(), UTF_8.name())) {
+        parser.mergeBundleEntries(
+            reader,
+            ContainedResource.getDefaultInstance(),
+            resource -> {
+              c.output((ContainedResource) resource);
+              numResources.inc();
+            });
+      }
+      numBundles.inc();
+    }
+  }
+}
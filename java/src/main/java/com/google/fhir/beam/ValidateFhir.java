@@ -0,0 +1,93 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.beam;
+
+import com.google.fhir.common.InvalidFhirException;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.common.ResourceValidator;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.Message;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
+
+/**
+ * A Beam transform validating R4 resources with {@link ResourceValidator}. Valid resources are
+ * output to {@link #VALID}; invalid ones are output to the dead-letter output {@link #INVALID},
+ * along with the validation error, rather than failing the pipeline.
+ */
+public final class ValidateFhir
+    extends PTransform<PCollection<ContainedResource>, PCollectionTuple> {
+
+  /** The output of valid resources. */
+  public static final TupleTag<ContainedResource> VALID = new TupleTag<ContainedResource>() {};
+
+  /** The dead-letter output of invalid resources, keyed by resource, with the error message. */
+  public static final TupleTag<KV<ContainedResource, String>> INVALID =
+      new TupleTag<KV<ContainedResource, String>>() {};
+
+  private ValidateFhir() {}
+
+  public static ValidateFhir create() {
+    return new ValidateFhir();
+  }
+
+  @Override
+  public PCollectionTuple expand(PCollection<ContainedResource> input) {
+    PCollectionTuple output =
+        input.apply(ParDo.of(new ValidateFn()).withOutputTags(VALID, TupleTagList.of(INVALID)));
+    output.get(VALID).setCoder(ContainedResourceCoder.of());
+    output.get(INVALID).setCoder(KvCoder.of(ContainedResourceCoder.of(), StringUtf8Coder.of()));
+    return output;
+  }
+
+  static final class ValidateFn extends DoFn<ContainedResource, ContainedResource> {
+    private final Counter numValid = Metrics.counter(ValidateFhir.class, "numValid");
+    private final Counter numInvalid = Metrics.counter(ValidateFhir.class, "numInvalid");
+    private transient ResourceValidator validator;
+
+    @Setup
+    public void setUp() {
+      validator = new ResourceValidator();
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      ContainedResource resource = c.element();
+      try {
+        Message contained = ResourceUtils.getContainedResource(resource);
+        if (contained == null) {
+          throw new InvalidFhirException("empty-contained-resource");
+        }
+        validator.validateResource(contained);
+      } catch (InvalidFhirException e) {
+        c.output(INVALID, KV.of(resource, e.getMessage()));
+        numInvalid.inc();
+        return;
+      }
+      c.output(resource);
+      numValid.inc();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.beam;
+
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.fhir.common.BigQuerySchema;
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.common.TableRowConverter;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.TextIO;
+import org.apache.beam.sdk.io.WriteFilesResult;
+import org.apache.beam.sdk.io.gcp.bigquery.BigQueryIO;
+import org.apache.beam.sdk.io.gcp.bigquery.DynamicDestinations;
+import org.apache.beam.sdk.io.gcp.bigquery.TableDestination;
+import org.apache.beam.sdk.io.gcp.bigquery.WriteResult;
+import org.apache.beam.sdk.transforms.Contextful;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.ValueInSingleWindow;
+
+/**
+ * Beam transforms writing R4 resources to one destination per resource type, such as one BigQuery
+ * table or one set of ndjson files per type.
+ */
+public final class WriteByResourceType {
+
+  private static final JsonFormat.Printer PRINTER =
+      JsonFormat.getPrinter().omittingInsignificantWhitespace();
+
+  private WriteByResourceType() {}
+
+  /**
+   * Returns a transform appending resources to BigQuery tables named after their resource type in
+   * the given dataset, e.g. "project:dataset". Missing tables are created, with schemas generated
+   * by {@link BigQuerySchema}, and rows converted by {@link TableRowConverter}.
+   */
+  public static ToBigQuery toBigQuery(String dataset) {
+    return new ToBigQuery(dataset);
+  }
+
+  /**
+   * Returns a transform writing resources as FHIR ndjson files in the given directory, named after
+   * their resource type, e.g. Observation-00000-of-00004.ndjson.
+   */
+  public static ToFiles toFiles(String directory) {
+    return new ToFiles(directory);
+  }
+
+  /** A transform appending resources to one BigQuery table per resource type. */
+  public static final class ToBigQuery
+      extends PTransform<PCollection<ContainedResource>, WriteResult> {
+    private final String dataset;
+
+    private ToBigQuery(String dataset) {
+      this.dataset = dataset;
+    }
+
+    @Override
+    public WriteResult expand(PCollection<ContainedResource> input) {
+      return input.apply(
+          BigQueryIO.<ContainedResource>write()
+              .to(new ResourceTypeDestinations(dataset))
+              .withFormatFunction(
+                  resource ->
+                      TableRowConverter.getInstance()
+                          .convert(ResourceUtils.getContainedResource(resource)))
+              .withCreateDisposition(BigQueryIO.Write.CreateDisposition.CREATE_IF_NEEDED)
+              .withWriteDisposition(BigQueryIO.Write.WriteDisposition.WRITE_APPEND));
+    }
+  }
+
+  /** A transform writing one set of ndjson files per resource type. */
+  public static final class ToFiles
+      extends PTransform<PCollection<ContainedResource>, WriteFilesResult<String>> {
+    private final String directory;
+
+    private ToFiles(String directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    public WriteFilesResult<String> expand(PCollection<ContainedResource> input) {
+      return input.apply(
+          FileIO.<String, ContainedResource>writeDynamic()
+              .by(WriteByResourceType::getResourceType)
+              .via(Contextful.fn(WriteByResourceType::print), TextIO.sink())
+              .to(directory)
+              .withNaming(type -> FileIO.Write.defaultNaming(type, ".ndjson"))
+              .withDestinationCoder(StringUtf8Coder.of()));
+    }
+  }
+
+  /** Routes resources to a table per resource type, with schemas from {@link BigQuerySchema}. */
+  static final class ResourceTypeDestinations
+      extends DynamicDestinations<ContainedResource, String> {
+    private final String dataset;
+
+    ResourceTypeDestinations(String dataset) {
+      this.dataset = dataset;
+    }
+
+    @Override
+    public String getDestination(ValueInSingleWindow<ContainedResource> element) {
+      return getResourceType(element.getValue());
+    }
+
+    @Override
+    public Coder<String> getDestinationCoder() {
+      return StringUtf8Coder.of();
+    }
+
+    @Override
+    public TableDestination getTable(String resourceType) {
+      return new TableDestination(dataset + "." + resourceType, "FHIR " + resourceType);
+    }
+
+    @Override
+    public TableSchema getSchema(String resourceType) {
+      return BigQuerySchema.fromDescriptor(getResourceDescriptor(resourceType));
+    }
+  }
+
+  static String getResourceType(ContainedResource resource) {
+    return ResourceUtils.getResourceType(ResourceUtils.getContainedResource(resource));
+  }
+
+  private static Descriptor getResourceDescriptor(String resourceType) {
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      if (field.getMessageType().getName().equals(resourceType)) {
+        return field.getMessageType();
+      }
+    }
+    throw new IllegalArgumentException("Unknown resource type: " + resourceType);
+  }
+
+  private static String print(ContainedResource resource) {
+    try {
+      return PRINTER.print(ResourceUtils.getContainedResource(resource));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,581 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.common.RecursionLimit.Tracker;
+import com.google.fhir.common.RecursionLimit.TypeKey;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.proto.Annotations.FhirVersion;
+import com.google.fhir.wrappers.PrimitiveWrappers;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.protobuf.Any;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Transcodes FHIR JSON directly into analytic JSON, without parsing into protos. The output is
+ * identical to parsing the input with {@link JsonFormat.Parser} and printing it with {@code
+ * JsonFormat.getPrinter().omittingInsignificantWhitespace().forAnalytics()}, using the same default
+ * timezone and maximum recursion depth, but only primitives with a normalized printed form, such as
+ * dates and times, are wrapped along the way.
+ *
+ * <p>The input is read token by token, driven by the field metadata of the proto descriptors,
+ * which is resolved once per message type and cached: choice fields are nested under their choice
+ * field, extensions and contained resources are collapsed to their urls and types, relative
+ * references are flattened to typed ids, and extensions on primitives are dropped. Since the
+ * printer emits fields in the order of their declaration, the fields of each object are buffered
+ * until the end of that object. Unlike the parser, the transcoder does not validate primitive
+ * values, and it prints numbers in plain notation, e.g. 1E-7 as 0.0000001, where the printer may
+ * use scientific notation.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class AnalyticJsonTranscoder {
+
+  // Primitive types whose printed form may differ from their input, and which are therefore
+  // normalized by their wrappers.
+  private static final ImmutableSet<String> NORMALIZED_TYPES =
+      ImmutableSet.of("Base64Binary", "Date", "DateTime", "Instant", "Time");
+
+  private final Descriptor descriptor;
+  private final ZoneId defaultTimeZone;
+  private final int maxRecursionDepth;
+
+  private AnalyticJsonTranscoder(
+      Descriptor descriptor, ZoneId defaultTimeZone, int maxRecursionDepth) {
+    this.descriptor = descriptor;
+    this.defaultTimeZone = defaultTimeZone;
+    this.maxRecursionDepth = maxRecursionDepth;
+  }
+
+  /**
+   * Creates a transcoder for resources of the given type, with the default maximum recursion depth.
+   * If the type is a ContainedResource, resources of any type are accepted, as long as their
+   * resourceType comes first. The default timezone is set to the local system default.
+   */
+  public static AnalyticJsonTranscoder forType(Descriptor descriptor) {
+    return new AnalyticJsonTranscoder(
+        descriptor, ZoneId.systemDefault(), RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH);
+  }
+
+  /**
+   * Create a new transcoder with a default timezone. This must be the default timezone with which
+   * the input would have been parsed.
+   */
+  public AnalyticJsonTranscoder withDefaultTimeZone(ZoneId defaultTimeZone) {
+    return new AnalyticJsonTranscoder(descriptor, defaultTimeZone, maxRecursionDepth);
+  }
+
+  /** Create a new transcoder which drops fields beyond the given maximum recursion depth. */
+  public AnalyticJsonTranscoder withMaxRecursionDepth(int maxRecursionDepth) {
+    return new AnalyticJsonTranscoder(descriptor, defaultTimeZone, maxRecursionDepth);
+  }
+
+  /** Transcodes a single FHIR JSON resource. */
+  public String transcode(CharSequence input) throws IOException {
+    StringBuilder output = new StringBuilder();
+    transcode(new StringReader(input.toString()), output);
+    return output.toString();
+  }
+
+  /** Transcodes a single FHIR JSON resource from {@code input}, appending it to {@code output}. */
+  public void transcode(Reader input, Appendable output) throws IOException {
+    JsonReader reader = new JsonReader(input);
+    reader.setLenient(true);
+    output.append(transcodeResource(reader));
+  }
+
+  /**
+   * Transcodes a stream of UTF-8 FHIR JSON resources, such as ndjson, into analytic ndjson with one
+   * resource per line. The output stream is flushed, but not closed.
+   */
+  public void transcodeNdjson(InputStream input, OutputStream output) throws IOException {
+    JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(input, UTF_8)));
+    // Allow multiple top-level values.
+    reader.setLenient(true);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+    while (reader.peek() != JsonToken.END_DOCUMENT) {
+      writer.write(transcodeResource(reader));
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  private String transcodeResource(JsonReader reader) throws IOException {
+    Descriptor type = descriptor;
+    Tracker tracker = new Tracker(maxRecursionDepth);
+    reader.beginObject();
+    if (isContainedResource(descriptor)) {
+      // We need the resource type before we can interpret any other field.
+      if (!reader.hasNext() || !reader.nextName().equals("resourceType")) {
+        throw new IllegalArgumentException(
+            "The resourceType must be the first field of a resource of unknown type.");
+      }
+      type = getResourceField(descriptor, reader.nextString()).getMessageType();
+    }
+    tracker.tryEnter(RecursionLimit.typeKey(type));
+    return transcodeFields(reader, type, tracker);
+  }
+
+  private enum Kind {
+    PRIMITIVE,
+    NORMALIZED_PRIMITIVE,
+    REFERENCE_URI,
+    EXTENSION,
+    CONTAINED_RESOURCE,
+    ANY,
+    CHOICE,
+    MESSAGE,
+    IGNORED
+  }
+
+  /** How to transcode the input field with a given name. */
+  private static final class FieldPlan {
+    final FieldDescriptor field;
+    final Kind kind;
+    // For choice fields, the plan of the chosen type within the choice field.
+    final FieldPlan choice;
+    // For normalized primitives, an instance of the primitive type to wrap values with.
+    final DynamicMessage primitiveType;
+
+    FieldPlan(FieldDescriptor field, Kind kind, FieldPlan choice) {
+      this.field = field;
+      this.kind = kind;
+      this.choice = choice;
+      this.primitiveType =
+          kind == Kind.NORMALIZED_PRIMITIVE
+              ? DynamicMessage.getDefaultInstance(field.getMessageType())
+              : null;
+    }
+
+    boolean isPrimitive() {
+      return kind == Kind.PRIMITIVE
+          || kind == Kind.NORMALIZED_PRIMITIVE
+          || kind == Kind.REFERENCE_URI;
+    }
+  }
+
+  /** How to transcode an object of a given message type. */
+  private static final class MessagePlan {
+    final ImmutableMap<String, FieldPlan> fields;
+    final boolean isResource;
+
+    MessagePlan(ImmutableMap<String, FieldPlan> fields, boolean isResource) {
+      this.fields = fields;
+      this.isResource = isResource;
+    }
+  }
+
+  private static final ConcurrentMap<Descriptor, MessagePlan> plans = new ConcurrentHashMap<>();
+
+  private static MessagePlan getPlan(Descriptor descriptor) {
+    MessagePlan plan = plans.get(descriptor);
+    if (plan == null) {
+      plan = buildPlan(descriptor);
+      plans.putIfAbsent(descriptor, plan);
+    }
+    return plan;
+  }
+
+  private static MessagePlan buildPlan(Descriptor descriptor) {
+    boolean isReference = AnnotationUtils.isReference(descriptor);
+    ImmutableMap.Builder<String, FieldPlan> fields = ImmutableMap.builder();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+        throw new IllegalArgumentException("Unexpected primitive field: " + field.getFullName());
+      }
+      if (isReferenceId(field.getMessageType())) {
+        // Reference ids are only ever produced from the reference uri.
+        continue;
+      }
+      if (AnnotationUtils.isChoiceType(field)) {
+        for (FieldDescriptor choiceField : field.getMessageType().getFields()) {
+          String name =
+              field.getJsonName()
+                  + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, choiceField.getJsonName());
+          FieldPlan choice = new FieldPlan(choiceField, kindOf(choiceField), null);
+          fields.put(name, new FieldPlan(field, Kind.CHOICE, choice));
+          if (choice.isPrimitive()) {
+            fields.put("_" + name, new FieldPlan(field, Kind.IGNORED, null));
+          }
+        }
+        continue;
+      }
+      Kind kind =
+          isReference && field.getName().equals("uri") ? Kind.REFERENCE_URI : kindOf(field);
+      FieldPlan plan = new FieldPlan(field, kind, null);
+      fields.put(field.getJsonName(), plan);
+      if (plan.isPrimitive()) {
+        // Extensions on primitives are not part of analytic output.
+        fields.put("_" + field.getJsonName(), new FieldPlan(field, Kind.IGNORED, null));
+      }
+    }
+    return new MessagePlan(fields.build(), AnnotationUtils.isResource(descriptor));
+  }
+
+  private static Kind kindOf(FieldDescriptor field) {
+    Descriptor type = field.getMessageType();
+    String name = type.getFullName();
+    if (AnnotationUtils.isPrimitiveType(type)) {
+      return NORMALIZED_TYPES.contains(type.getName())
+              && !type.getOptions().hasExtension(Annotations.fhirValuesetUrl)
+          ? Kind.NORMALIZED_PRIMITIVE
+          : Kind.PRIMITIVE;
+    }
+    if (name.equals(com.google.fhir.r4.core.Extension.getDescriptor().getFullName())
+        || name.equals(com.google.fhir.stu3.proto.Extension.getDescriptor().getFullName())) {
+      return Kind.EXTENSION;
+    }
+    if (isContainedResource(type)) {
+      return Kind.CONTAINED_RESOURCE;
+    }
+    if (name.equals(Any.getDescriptor().getFullName())) {
+      // Only R4 packs contained resources in Any fields.
+      FhirVersion version = AnnotationUtils.getFhirVersion(field.getContainingType());
+      if (version != FhirVersion.R4) {
+        throw new IllegalArgumentException(
+            "Any packing not supported for fhir version: " + version);
+      }
+      return Kind.ANY;
+    }
+    return Kind.MESSAGE;
+  }
+
+  private static boolean isReferenceId(Descriptor type) {
+    String name = type.getFullName();
+    return name.equals(com.google.fhir.r4.core.ReferenceId.getDescriptor().getFullName())
+        || name.equals(com.google.fhir.stu3.proto.ReferenceId.getDescriptor().getFullName());
+  }
+
+  private static boolean isContainedResource(Descriptor type) {
+    String name = type.getFullName();
+    return name.equals(com.google.fhir.r4.core.ContainedResource.getDescriptor().getFullName())
+        || name.equals(com.google.fhir.stu3.proto.ContainedResource.getDescriptor().getFullName());
+  }
+
+  private static final ConcurrentMap<Descriptor, ImmutableMap<String, FieldDescriptor>>
+      resourceFields = new ConcurrentHashMap<>();
+
+  /** Returns the field of a ContainedResource which holds resources of the given type. */
+  private static FieldDescriptor getResourceField(Descriptor containedResource, String type) {
+    ImmutableMap<String, FieldDescriptor> fields = resourceFields.get(containedResource);
+    if (fields == null) {
+      ImmutableMap.Builder<String, FieldDescriptor> builder = ImmutableMap.builder();
+      for (FieldDescriptor field : containedResource.getFields()) {
+        builder.put(field.getMessageType().getName(), field);
+      }
+      fields = builder.build();
+      resourceFields.putIfAbsent(containedResource, fields);
+    }
+    FieldDescriptor field = fields.get(type);
+    if (field == null) {
+      throw new IllegalArgumentException("Unsupported resource type: " + type);
+    }
+    return field;
+  }
+
+  /** Transcodes the remaining fields of an object, returning "null" if none are printed. */
+  private String transcodeFields(JsonReader reader, Descriptor type, Tracker tracker)
+      throws IOException {
+    MessagePlan plan = getPlan(type);
+    TreeMap<Integer, String> fields = new TreeMap<>();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      FieldPlan field = plan.fields.get(name);
+      if (field != null) {
+        transcodeField(reader, field, tracker, fields);
+      } else if (name.equals("resourceType")) {
+        String inputType = reader.nextString();
+        if (!plan.isResource || !inputType.equals(type.getName())) {
+          throw new IllegalArgumentException(
+              "Trying to parse a resource of type "
+                  + inputType
+                  + ", but the target field is of type "
+                  + type.getFullName());
+        }
+      } else {
+        throw new IllegalArgumentException(
+            "Unknown field " + name + " in input of expected type " + type.getFullName());
+      }
+    }
+    reader.endObject();
+    return toJsonObject(fields);
+  }
+
+  private static String toJsonObject(Map<Integer, String> fields) {
+    if (fields.isEmpty()) {
+      return "null";
+    }
+    StringBuilder result = new StringBuilder("{");
+    for (String field : fields.values()) {
+      if (result.length() > 1) {
+        result.append(',');
+      }
+      result.append(field);
+    }
+    return result.append('}').toString();
+  }
+
+  private static void putField(Map<Integer, String> fields, FieldDescriptor field, String value) {
+    String previous = fields.put(field.getIndex(), "\"" + field.getJsonName() + "\":" + value);
+    if (previous != null) {
+      throw new IllegalArgumentException("Field " + field.getFullName() + " has already been set.");
+    }
+  }
+
+  /** Transcodes the value of one field, adding it to {@code fields} unless it is dropped. */
+  private void transcodeField(
+      JsonReader reader, FieldPlan plan, Tracker tracker, Map<Integer, String> fields)
+      throws IOException {
+    FieldDescriptor field = plan.field;
+    if (plan.kind == Kind.IGNORED || reader.peek() == JsonToken.NULL) {
+      reader.skipValue();
+      return;
+    }
+    if (plan.kind == Kind.REFERENCE_URI) {
+      transcodeReference(reader.nextString(), field.getContainingType(), fields);
+      return;
+    }
+    if (plan.isPrimitive()) {
+      String value =
+          field.isRepeated()
+              ? transcodeRepeatedPrimitive(reader, plan)
+              : transcodePrimitive(reader, plan);
+      if (value != null) {
+        putField(fields, field, value);
+      } else if (!field.isRepeated()) {
+        // Objects are only valid as extensions on primitives, which are not printed.
+        reader.skipValue();
+      }
+      return;
+    }
+    // As in the analytic printer, drop fields which recur too deeply within themselves.
+    TypeKey type = RecursionLimit.typeKey(field);
+    if (!tracker.tryEnter(type)) {
+      reader.skipValue();
+      return;
+    }
+    if (field.isRepeated()) {
+      StringBuilder value = new StringBuilder("[");
+      reader.beginArray();
+      while (reader.hasNext()) {
+        if (value.length() > 1) {
+          value.append(',');
+        }
+        value.append(transcodeElement(reader, plan, tracker));
+      }
+      reader.endArray();
+      if (value.length() > 1) {
+        putField(fields, field, value.append(']').toString());
+      }
+    } else {
+      putField(fields, field, transcodeElement(reader, plan, tracker));
+    }
+    tracker.exit(type);
+  }
+
+  /** Transcodes a single value of a non-primitive field. */
+  private String transcodeElement(JsonReader reader, FieldPlan plan, Tracker tracker)
+      throws IOException {
+    switch (plan.kind) {
+      case EXTENSION:
+        // The analytic printer does not escape urls.
+        String url = readStringField(reader, "url");
+        return "\"" + (url == null ? "" : url) + "\"";
+      case CONTAINED_RESOURCE:
+        return getStructureDefinitionUrl(plan.field.getMessageType(), reader);
+      case ANY:
+        return getStructureDefinitionUrl(
+            com.google.fhir.r4.core.ContainedResource.getDescriptor(), reader);
+      case CHOICE:
+        Map<Integer, String> choice = new TreeMap<>();
+        transcodeField(reader, plan.choice, tracker, choice);
+        return toJsonObject(choice);
+      default:
+        reader.beginObject();
+        return transcodeFields(reader, plan.field.getMessageType(), tracker);
+    }
+  }
+
+  private static String getStructureDefinitionUrl(Descriptor containedResource, JsonReader reader)
+      throws IOException {
+    String type = readStringField(reader, "resourceType");
+    if (type == null) {
+      throw new IllegalArgumentException("Contained resource without a resourceType");
+    }
+    return "\""
+        + AnnotationUtils.getStructureDefinitionUrl(
+            getResourceField(containedResource, type).getMessageType())
+        + "\"";
+  }
+
+  /** Reads a whole object, returning the value of one of its string fields, if present. */
+  private static String readStringField(JsonReader reader, String name) throws IOException {
+    String value = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals(name) && reader.peek() == JsonToken.STRING) {
+        value = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return value;
+  }
+
+  /**
+   * Transcodes a repeated primitive. As in the analytic printer, this returns null unless at least
+   * one of the elements has a value.
+   */
+  private String transcodeRepeatedPrimitive(JsonReader reader, FieldPlan plan) throws IOException {
+    StringBuilder value = new StringBuilder("[");
+    boolean hasValue = false;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (value.length() > 1) {
+        value.append(',');
+      }
+      String element = reader.peek() == JsonToken.NULL ? null : transcodePrimitive(reader, plan);
+      if (element == null) {
+        reader.skipValue();
+        value.append("null");
+      } else {
+        value.append(element);
+        hasValue = true;
+      }
+    }
+    reader.endArray();
+    return hasValue ? value.append(']').toString() : null;
+  }
+
+  /** Transcodes a primitive value, or returns null without consuming non-primitive values. */
+  private String transcodePrimitive(JsonReader reader, FieldPlan plan) throws IOException {
+    switch (reader.peek()) {
+      case BOOLEAN:
+        return reader.nextBoolean() ? "true" : "false";
+      case NUMBER:
+        // Numbers are printed in plain notation, keeping their precision.
+        return new BigDecimal(reader.nextString()).toPlainString();
+      case STRING:
+        String value = reader.nextString();
+        if (plan.kind == Kind.NORMALIZED_PRIMITIVE) {
+          return PrimitiveWrappers.parseAndWrap(
+                  new JsonPrimitive(value), plan.primitiveType, defaultTimeZone)
+              .toJson()
+              .toString();
+        }
+        return quote(value);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Transcodes a reference uri, splitting relative references into their typed ids in the same way
+   * as {@link ResourceUtils#splitIfRelativeReference}.
+   */
+  private static void transcodeReference(
+      String uri, Descriptor reference, Map<Integer, String> fields) {
+    if (uri.startsWith("#")) {
+      putField(fields, reference.findFieldByName("fragment"), quote(uri.substring(1)));
+      return;
+    }
+    List<String> parts = Splitter.on('/').splitToList(uri);
+    if (parts.size() == 2 || (parts.size() == 4 && "_history".equals(parts.get(2)))) {
+      String resourceFieldName =
+          CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_UNDERSCORE, parts.get(0)) + "_id";
+      FieldDescriptor field = reference.findFieldByName(resourceFieldName);
+      if (field == null) {
+        throw new IllegalArgumentException(
+            "Invalid resource type in reference: " + resourceFieldName + ":" + parts.get(0));
+      }
+      // The analytic printer does not escape reference ids, and drops their history.
+      putField(fields, field, "\"" + parts.get(1) + "\"");
+      return;
+    }
+    putField(fields, reference.findFieldByName("uri"), quote(uri));
+  }
+
+  /** Quotes a string in the same way as Gson. */
+  private static String quote(String value) {
+    StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          result.append("\\\"");
+          break;
+        case '\\':
+          result.append("\\\\");
+          break;
+        case '\t':
+          result.append("\\t");
+          break;
+        case '\b':
+          result.append("\\b");
+          break;
+        case '\n':
+          result.append("\\n");
+          break;
+        case '\r':
+          result.append("\\r");
+          break;
+        case '\f':
+          result.append("\\f");
+          break;
+        case '\u2028':
+          result.append("\\u2028");
+          break;
+        case '\u2029':
+          result.append("\\u2029");
+          break;
+        default:
+          if (c < 0x20) {
+            result.append(String.format("\\u%04x", (int) c));
+          } else {
+            result.append(c);
+          }
+      }
+    }
+    return result.append('"').toString();
+  }
+}
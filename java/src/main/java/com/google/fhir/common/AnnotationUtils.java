@@ -31,7 +31,10 @@ public final class AnnotationUtils {
   }
 
   public static boolean isResource(Descriptor descriptor) {
-    return isResource(descriptor.toProto());
+    // Reads the options directly, since converting the descriptor to a proto is slow.
+    return descriptor.getOptions().hasExtension(Annotations.structureDefinitionKind)
+        && descriptor.getOptions().getExtension(Annotations.structureDefinitionKind)
+            == StructureDefinitionKindValue.KIND_RESOURCE;
   }
 
   public static boolean isResource(DescriptorProto descriptor) {
@@ -45,7 +48,9 @@ public final class AnnotationUtils {
   }
 
   public static boolean isPrimitiveType(Descriptor descriptor) {
-    return isPrimitiveType(descriptor.toProto());
+    return descriptor.getOptions().hasExtension(Annotations.structureDefinitionKind)
+        && descriptor.getOptions().getExtension(Annotations.structureDefinitionKind)
+            == StructureDefinitionKindValue.KIND_PRIMITIVE_TYPE;
   }
 
   public static boolean isPrimitiveType(DescriptorProto descriptor) {
@@ -68,7 +73,7 @@ public final class AnnotationUtils {
   }
 
   public static boolean isReference(Descriptor descriptor) {
-    return isReference(descriptor.toProto());
+    return descriptor.getOptions().getExtensionCount(Annotations.fhirReferenceType) > 0;
   }
 
   public static boolean isReference(DescriptorProto descriptor) {
@@ -17,23 +17,80 @@ package com.google.fhir.common;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableSchema;
 import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.fhir.common.RecursionLimit.Tracker;
+import com.google.fhir.common.RecursionLimit.TypeKey;
 import com.google.fhir.proto.Annotations;
 import com.google.fhir.r4.core.Decimal;
 import com.google.fhir.r4.core.Extension;
 import com.google.protobuf.Any;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-/** A simple class to infer a BigQuery schema from protocol buffer messages. */
+/**
+ * A simple class to infer a BigQuery schema from protocol buffer messages.
+ *
+ * <p>Types which recur within themselves are included up to the maximum recursion depth defined by
+ * {@link RecursionLimit}, matching the output of {@link JsonFormat.Printer#forAnalytics(int)}.
+ * Without a limit, only fields of the same type as the message holding them are dropped.
+ *
+ * <p>Generated field lists are memoized per message type, reference restriction and relevant
+ * recursion state, so that common datatypes such as Identifier, Reference and CodeableConcept are
+ * only expanded once per process. The returned schemas share these sub-schemas, and must not be
+ * modified.
+ */
 public final class BigQuerySchema {
 
+  /**
+   * The cache key for a sub-schema. Besides the type, the fields depend on how often each type
+   * reachable from it already occurs on the path, since that determines where recursion is cut.
+   */
+  private static final class CacheKey {
+    private final TypeKey type;
+    private final int maxDepth;
+    private final ImmutableMap<TypeKey, Integer> pathCounts;
+
+    CacheKey(TypeKey type, int maxDepth, ImmutableMap<TypeKey, Integer> pathCounts) {
+      this.type = type;
+      this.maxDepth = maxDepth;
+      this.pathCounts = pathCounts;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey that = (CacheKey) other;
+      return type.equals(that.type)
+          && maxDepth == that.maxDepth
+          && pathCounts.equals(that.pathCounts);
+    }
+
+    @Override
+    public int hashCode() {
+      return (type.hashCode() * 31 + maxDepth) * 31 + pathCounts.hashCode();
+    }
+  }
+
+  private static final ConcurrentMap<CacheKey, List<TableFieldSchema>> fieldsCache =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<TypeKey, ImmutableSet<TypeKey>> reachableTypes =
+      new ConcurrentHashMap<>();
+
   /* Generate a schema for a specific FieldDescriptor, with an optional message instance. */
-  private static TableFieldSchema fromFieldDescriptor(FieldDescriptor fieldDescriptor) {
+  private static TableFieldSchema fromFieldDescriptor(
+      FieldDescriptor fieldDescriptor, Tracker tracker) {
     // We directly use the jsonName of the field when generating the schema.
     String fieldName = fieldDescriptor.getJsonName();
     TableFieldSchema field =
@@ -56,39 +113,134 @@ public final class BigQuerySchema {
 
     // We inline extensions and contained resources as simple strings describing the url or type,
     // respectively, to keep a well-structured schema.
-    if (AnnotationUtils.sameFhirType(fieldType, Extension.getDescriptor())
-        || fieldType.getName().equals("ContainedResource")
-        || fieldType.getFullName().equals(Any.getDescriptor().getFullName())) {
+    if (isInlinedAsString(fieldType)) {
       return field.setType("STRING");
     }
-    // We don't include nested types.
-    // TODO: consider allowing a certain level of nesting.
-    if (fieldType.equals(fieldDescriptor.getContainingType())) {
+    // We don't include directly nested types, unless a maximum recursion depth is given.
+    if (tracker.isUnlimited() && fieldType.equals(fieldDescriptor.getContainingType())) {
+      return null;
+    }
+    // Otherwise, nested types are only included up to the maximum recursion depth.
+    TypeKey type = RecursionLimit.typeKey(fieldDescriptor);
+    if (!tracker.tryEnter(type)) {
       return null;
     }
-    field.setType("RECORD");
-    return field.setFields(fromDescriptor(fieldType, fieldDescriptor).getFields());
+    try {
+      field.setType("RECORD");
+      return field.setFields(getFields(type, tracker));
+    } finally {
+      tracker.exit(type);
+    }
+  }
+
+  private static boolean isInlinedAsString(Descriptor fieldType) {
+    return AnnotationUtils.sameFhirType(fieldType, Extension.getDescriptor())
+        || fieldType.getName().equals("ContainedResource")
+        || fieldType.getFullName().equals(Any.getDescriptor().getFullName());
   }
 
   /** Build a BigQuery schema for this message type when serialized to analytic JSON. */
   public static TableSchema fromDescriptor(Descriptor descriptor) {
-    return fromDescriptor(descriptor, null);
+    return fromDescriptor(descriptor, RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH);
+  }
+
+  /**
+   * Build a BigQuery schema for this message type when serialized to analytic JSON by a printer
+   * with the given maximum recursion depth, see {@link JsonFormat.Printer#forAnalytics(int)}.
+   */
+  public static TableSchema fromDescriptor(Descriptor descriptor, int maxRecursionDepth) {
+    return fromType(RecursionLimit.typeKey(descriptor), new Tracker(maxRecursionDepth));
   }
 
   public static TableSchema fromDescriptor(Descriptor descriptor, FieldDescriptor fieldDescriptor) {
-    List<TableFieldSchema> fields = new ArrayList<>();
-    for (FieldDescriptor field : getValidFields(descriptor, fieldDescriptor)) {
-      TableFieldSchema fieldSchema = fromFieldDescriptor(field);
-      if (fieldSchema != null) {
-        fields.add(fieldSchema);
+    TypeKey type =
+        fieldDescriptor == null
+            ? RecursionLimit.typeKey(descriptor)
+            : RecursionLimit.typeKey(fieldDescriptor);
+    return fromType(type, new Tracker(RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH));
+  }
+
+  private static TableSchema fromType(TypeKey type, Tracker tracker) {
+    tracker.tryEnter(type);
+    return new TableSchema().setFields(getFields(type, tracker));
+  }
+
+  /** Returns the fields of a type which has already been entered on the tracker. */
+  private static List<TableFieldSchema> getFields(TypeKey type, Tracker tracker) {
+    // Without a limit, the fields don't depend on the types already on the path.
+    CacheKey key =
+        new CacheKey(
+            type,
+            tracker.getMaxDepth(),
+            tracker.isUnlimited()
+                ? ImmutableMap.of()
+                : tracker.countsOf(getReachableTypes(type)));
+    List<TableFieldSchema> fields = fieldsCache.get(key);
+    if (fields == null) {
+      // Not computeIfAbsent, since generating the fields recursively populates the cache.
+      List<TableFieldSchema> generated = new ArrayList<>();
+      for (FieldDescriptor field : getValidFields(type.descriptor, type.references)) {
+        TableFieldSchema fieldSchema = fromFieldDescriptor(field, tracker);
+        if (fieldSchema != null) {
+          generated.add(fieldSchema);
+        }
+      }
+      fields = fieldsCache.putIfAbsent(key, Collections.unmodifiableList(generated));
+      if (fields == null) {
+        fields = fieldsCache.get(key);
       }
     }
-    return new TableSchema().setFields(fields);
+    return fields;
+  }
+
+  /** Returns the type itself and every record type which can be nested within it. */
+  private static ImmutableSet<TypeKey> getReachableTypes(TypeKey root) {
+    ImmutableSet<TypeKey> result = reachableTypes.get(root);
+    if (result == null) {
+      Set<TypeKey> reachable = new LinkedHashSet<>();
+      ArrayDeque<TypeKey> queue = new ArrayDeque<>();
+      reachable.add(root);
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        TypeKey type = queue.poll();
+        for (FieldDescriptor field : getValidFields(type.descriptor, type.references)) {
+          if (field.getType() == FieldDescriptor.Type.MESSAGE
+              && !AnnotationUtils.isPrimitiveType(field.getMessageType())
+              && !isInlinedAsString(field.getMessageType())) {
+            TypeKey child = RecursionLimit.typeKey(field);
+            if (reachable.add(child)) {
+              queue.add(child);
+            }
+          }
+        }
+      }
+      result = ImmutableSet.copyOf(reachable);
+      reachableTypes.putIfAbsent(root, result);
+    }
+    return result;
+  }
+
+  /**
+   * Build schemas for every resource type in the given ContainedResource message type, keyed by
+   * resource name. Types are generated in parallel, which also warms the cache for later calls to
+   * {@link #fromDescriptor}.
+   */
+  public static ImmutableMap<String, TableSchema> fromContainedResource(
+      Descriptor containedResource) {
+    return containedResource.getFields().parallelStream()
+        .map(FieldDescriptor::getMessageType)
+        .collect(
+            ImmutableMap.toImmutableMap(
+                Descriptor::getName, BigQuerySchema::fromDescriptor, (first, second) -> first));
   }
 
+  /**
+   * Returns the fields of the type to include in the schema. {@code fieldReferences} are the valid
+   * reference types of the field holding a Reference, or null for other types.
+   */
   private static List<FieldDescriptor> getValidFields(
-      Descriptor descriptor, FieldDescriptor fieldDescriptor) {
-    if (fieldDescriptor != null && AnnotationUtils.isReference(descriptor)) {
+      Descriptor descriptor, Set<String> fieldReferences) {
+    if (fieldReferences != null) {
       Set<String> descriptorReferences =
           new HashSet<>(descriptor.getOptions().getExtension(Annotations.fhirReferenceType));
       // We currently only support the full reference type.
@@ -96,8 +248,6 @@ public final class BigQuerySchema {
           || !descriptorReferences.iterator().next().equals("Resource")) {
         throw new IllegalArgumentException("Invalid reference type:" + descriptor.getFullName());
       }
-      Set<String> fieldReferences =
-          new HashSet<>(fieldDescriptor.getOptions().getExtension(Annotations.validReferenceType));
       if (fieldReferences.size() == 1 && fieldReferences.iterator().next().equals("Resource")) {
         return descriptor.getFields();
       }
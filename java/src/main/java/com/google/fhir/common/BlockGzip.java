@@ -0,0 +1,245 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding and decoding of gzip members in the BGZF block format, as used by e.g. BAM files.
+ *
+ * <p>A BGZF file is a concatenation of small gzip members, each holding at most 64KiB of compressed
+ * data, and recording its compressed size in a "BC" extra header field. It is a valid gzip file,
+ * whose blocks can be found by reading their headers only, and decompressed independently.
+ */
+final class BlockGzip {
+
+  /** The maximum compressed size of a block. */
+  static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+  /** The maximum uncompressed size of a block, leaving room for incompressible input. */
+  static final int MAX_INPUT_SIZE = 0xff00;
+
+  /** The size of the header of a BGZF block. */
+  static final int HEADER_SIZE = 18;
+
+  /** The size of the trailer of a gzip member, holding the CRC32 and uncompressed size. */
+  static final int TRAILER_SIZE = 8;
+
+  /** An empty block, which BGZF writers append to mark the end of the file. */
+  static final byte[] EOF_BLOCK = {
+    0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0,
+    0, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private static final int FLAG_HCRC = 2;
+  private static final int FLAG_EXTRA = 4;
+  private static final int FLAG_NAME = 8;
+  private static final int FLAG_COMMENT = 16;
+
+  private BlockGzip() {}
+
+  /**
+   * Compresses data into one or more BGZF blocks. Where possible, blocks are cut after a newline,
+   * so that lines of text do not straddle blocks.
+   */
+  static byte[] compress(byte[] data, int offset, int length) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(length / 4 + EOF_BLOCK.length);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    byte[] buffer = new byte[MAX_BLOCK_SIZE];
+    try {
+      int end = offset + length;
+      while (offset < end) {
+        int blockLength = Math.min(MAX_INPUT_SIZE, end - offset);
+        if (offset + blockLength < end) {
+          int lastNewline = lastIndexOf(data, (byte) '\n', offset, offset + blockLength);
+          if (lastNewline != -1) {
+            blockLength = lastNewline + 1 - offset;
+          }
+        }
+        int blockSize;
+        // Incompressible data may not fit in a block, in which case less is put in the block.
+        while ((blockSize = compressBlock(data, offset, blockLength, deflater, buffer)) == -1) {
+          blockLength /= 2;
+        }
+        output.write(buffer, 0, blockSize);
+        offset += blockLength;
+      }
+    } finally {
+      deflater.end();
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Compresses data into a single block, written to the buffer, and returns its size, or -1 if
+   * the block would be too large.
+   */
+  private static int compressBlock(
+      byte[] data, int offset, int length, Deflater deflater, byte[] buffer) {
+    deflater.reset();
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    int size = HEADER_SIZE;
+    int capacity = MAX_BLOCK_SIZE - TRAILER_SIZE;
+    while (!deflater.finished()) {
+      if (size == capacity) {
+        return -1;
+      }
+      size += deflater.deflate(buffer, size, capacity - size);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    System.arraycopy(EOF_BLOCK, 0, buffer, 0, 16);
+    putShort(buffer, 16, size + TRAILER_SIZE - 1);
+    putInt(buffer, size, (int) crc.getValue());
+    putInt(buffer, size + 4, length);
+    return size + TRAILER_SIZE;
+  }
+
+  /**
+   * Returns the size of the gzip member header at the start of the data, or -1 if the data is too
+   * short to hold all of it.
+   *
+   * @throws IOException if the data does not start with a gzip header
+   */
+  static int headerSize(byte[] data, int length) throws IOException {
+    if (length < 10) {
+      return -1;
+    }
+    if ((data[0] & 0xff) != 0x1f || (data[1] & 0xff) != 0x8b || data[2] != 8) {
+      throw new IOException("Not in gzip format");
+    }
+    int flags = data[3] & 0xff;
+    int size = 10;
+    if ((flags & FLAG_EXTRA) != 0) {
+      if (length < size + 2) {
+        return -1;
+      }
+      size += 2 + getShort(data, size);
+    }
+    if ((flags & FLAG_NAME) != 0) {
+      size = skipZeroTerminated(data, size, length);
+    }
+    if ((flags & FLAG_COMMENT) != 0 && size != -1) {
+      size = skipZeroTerminated(data, size, length);
+    }
+    if ((flags & FLAG_HCRC) != 0 && size != -1) {
+      size += 2;
+    }
+    return size > length ? -1 : size;
+  }
+
+  /**
+   * Returns the total size of the gzip member starting with the given header as recorded in a BGZF
+   * "BC" extra field, or -1 if there is no such field.
+   */
+  static int blockSize(byte[] header) {
+    if ((header[3] & FLAG_EXTRA) == 0) {
+      return -1;
+    }
+    int end = 12 + getShort(header, 10);
+    for (int position = 12; position + 4 <= end; position += 4 + getShort(header, position + 2)) {
+      if (header[position] == 'B'
+          && header[position + 1] == 'C'
+          && getShort(header, position + 2) == 2) {
+        return getShort(header, position + 4) + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Decompresses a complete gzip member, checking it against its trailer.
+   *
+   * @throws IOException if the member is corrupt
+   */
+  static byte[] decompress(byte[] member, int uncompressedSize) throws IOException {
+    int header = headerSize(member, member.length);
+    if (header == -1 || member.length < header + TRAILER_SIZE) {
+      throw new IOException("Truncated gzip member");
+    }
+    byte[] data = new byte[uncompressedSize];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, header, member.length - header - TRAILER_SIZE);
+      int size = 0;
+      while (size < uncompressedSize && !inflater.finished()) {
+        int inflated = inflater.inflate(data, size, uncompressedSize - size);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        size += inflated;
+      }
+      // Check that the compressed data ends where expected, which may take one more empty inflate.
+      if (size == uncompressedSize && !inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+        size++;
+      }
+      if (size != uncompressedSize || !inflater.finished()) {
+        throw new IOException("Gzip member size does not match its trailer");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt gzip member", e);
+    } finally {
+      inflater.end();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    if ((int) crc.getValue() != getInt(member, member.length - TRAILER_SIZE)) {
+      throw new IOException("Gzip member fails its CRC check");
+    }
+    return data;
+  }
+
+  static int getShort(byte[] data, int offset) {
+    return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+  }
+
+  static int getInt(byte[] data, int offset) {
+    return getShort(data, offset) | getShort(data, offset + 2) << 16;
+  }
+
+  private static void putShort(byte[] data, int offset, int value) {
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+  }
+
+  private static void putInt(byte[] data, int offset, int value) {
+    putShort(data, offset, value);
+    putShort(data, offset + 2, value >>> 16);
+  }
+
+  private static int skipZeroTerminated(byte[] data, int offset, int length) {
+    while (offset < length) {
+      if (data[offset++] == 0) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(byte[] data, byte value, int start, int end) {
+    for (int i = end - 1; i >= start; i--) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
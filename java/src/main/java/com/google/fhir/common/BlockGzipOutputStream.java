@@ -0,0 +1,148 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An output stream compressing data in the BGZF format, a gzip file made of small independent
+ * blocks, which {@link BlockGzipReader} can index and decompress in parallel. Blocks end at a
+ * newline where possible, so that the lines of ndjson files rarely straddle blocks.
+ *
+ * <p>Data is compressed in batches of several blocks, optionally on an executor, and written in
+ * order. This class is not thread-safe.
+ */
+public final class BlockGzipOutputStream extends OutputStream {
+
+  // The number of blocks compressed together as one task.
+  private static final int BLOCKS_PER_BATCH = 16;
+
+  private final OutputStream output;
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+  private byte[] buffer = new byte[BLOCKS_PER_BATCH * BlockGzip.MAX_INPUT_SIZE];
+  private int size = 0;
+  private boolean closed = false;
+
+  /** Creates a stream which compresses data on the calling thread. */
+  public BlockGzipOutputStream(OutputStream output) {
+    this(output, null, 0);
+  }
+
+  /**
+   * Creates a stream which compresses data on the executor, keeping at most twice as many batches
+   * in flight as the executor has threads.
+   */
+  public BlockGzipOutputStream(OutputStream output, ExecutorService executor, int threads) {
+    this.output = output;
+    this.executor = executor;
+    this.maxPending = 2 * Math.max(1, threads);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (size == buffer.length) {
+      flushBatch(false);
+    }
+    buffer[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (size == buffer.length) {
+        flushBatch(false);
+      }
+      int count = Math.min(length, buffer.length - size);
+      System.arraycopy(data, offset, buffer, size, count);
+      size += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  /** Compresses and writes all buffered data, which ends the current block. */
+  @Override
+  public void flush() throws IOException {
+    flushBatch(true);
+    while (!pending.isEmpty()) {
+      writeNext();
+    }
+    output.flush();
+  }
+
+  /** Writes all data followed by the BGZF end-of-file marker, and closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+      output.write(BlockGzip.EOF_BLOCK);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Hands off the buffered data for compression. Unless {@code all} is set, data after the last
+   * newline is kept for the next batch.
+   */
+  private void flushBatch(boolean all) throws IOException {
+    int end = size;
+    if (!all) {
+      while (end > 0 && buffer[end - 1] != '\n') {
+        end--;
+      }
+      if (end == 0) {
+        end = size;
+      }
+    }
+    if (end == 0) {
+      return;
+    }
+    byte[] batch = buffer;
+    int length = end;
+    if (executor == null) {
+      output.write(BlockGzip.compress(batch, 0, length));
+    } else {
+      if (pending.size() >= maxPending) {
+        writeNext();
+      }
+      pending.add(
+          CompletableFuture.supplyAsync(() -> BlockGzip.compress(batch, 0, length), executor));
+      buffer = new byte[batch.length];
+    }
+    size -= end;
+    // Keep the rest of the data; when compressing on this thread, the buffer is reused.
+    System.arraycopy(batch, end, buffer, 0, size);
+  }
+
+  private void writeNext() throws IOException {
+    try {
+      output.write(pending.remove().join());
+    } catch (CompletionException e) {
+      throw new IOException("Failed to compress block", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,478 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a gzip file made of many members, such as a BGZF file written by {@link
+ * BlockGzipOutputStream}, decompressing its blocks in parallel.
+ *
+ * <p>On opening, the file is indexed: the offset and size of each block, compressed and
+ * uncompressed, is recorded. For BGZF files this only reads the block headers and trailers. Other
+ * multi-member gzip files, e.g. the concatenation of several gzip files, are indexed by
+ * decompressing each member once, discarding the output. A file with a single gzip member cannot be
+ * read in parallel, but is still read correctly.
+ *
+ * <p>The file can then be read sequentially through {@link #newInputStream}, with blocks
+ * decompressed ahead on a thread pool, or split into chunks of whole blocks with {@link #split}, to
+ * be read independently with {@link #readLines}. Each line of the file is returned by exactly one
+ * chunk, even where lines straddle blocks.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class BlockGzipReader implements Closeable {
+
+  // The number of blocks decompressed ahead of the reader, per thread.
+  private static final int PREFETCH_PER_THREAD = 4;
+
+  private final FileChannel channel;
+  private final List<Block> blocks;
+
+  /** A block of the file, i.e. a gzip member. */
+  public static final class Block {
+    private final long offset;
+    private final int compressedSize;
+    private final long uncompressedOffset;
+    private final int uncompressedSize;
+
+    Block(long offset, int compressedSize, long uncompressedOffset, int uncompressedSize) {
+      this.offset = offset;
+      this.compressedSize = compressedSize;
+      this.uncompressedOffset = uncompressedOffset;
+      this.uncompressedSize = uncompressedSize;
+    }
+
+    /** The offset of the block in the file. */
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getCompressedSize() {
+      return compressedSize;
+    }
+
+    /** The offset of the data of the block in the uncompressed file. */
+    public long getUncompressedOffset() {
+      return uncompressedOffset;
+    }
+
+    public int getUncompressedSize() {
+      return uncompressedSize;
+    }
+  }
+
+  /** A range of consecutive blocks, which can be read independently of other chunks. */
+  public static final class Chunk {
+    private final int firstBlock;
+    private final int endBlock;
+
+    Chunk(int firstBlock, int endBlock) {
+      this.firstBlock = firstBlock;
+      this.endBlock = endBlock;
+    }
+
+    /** The index of the first block of the chunk. */
+    public int getFirstBlock() {
+      return firstBlock;
+    }
+
+    /** The index of the block following the chunk. */
+    public int getEndBlock() {
+      return endBlock;
+    }
+  }
+
+  private BlockGzipReader(FileChannel channel, List<Block> blocks) {
+    this.channel = channel;
+    this.blocks = blocks;
+  }
+
+  /**
+   * Opens and indexes a gzip file.
+   *
+   * @throws IOException if the file can not be read, or is not a valid gzip file, or has a member
+   *     too large to be held in memory
+   */
+  public static BlockGzipReader open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      return new BlockGzipReader(channel, index(channel));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a gzip file for sequential reading. BGZF files are decompressed in parallel on the given
+   * executor; other gzip files, which would first need to be decompressed to be indexed, are read
+   * with a plain {@link GZIPInputStream}.
+   */
+  public static InputStream newInputStream(Path file, ExecutorService executor, int threads)
+      throws IOException {
+    if (isBlockCompressed(file)) {
+      BlockGzipReader reader = open(file);
+      return reader.new ParallelInputStream(executor, threads, true);
+    }
+    return new GZIPInputStream(Files.newInputStream(file), BlockGzip.MAX_BLOCK_SIZE);
+  }
+
+  /** Returns whether the file starts with a BGZF block. */
+  public static boolean isBlockCompressed(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      byte[] header = new byte[BlockGzip.HEADER_SIZE];
+      return read(channel, 0, header) == header.length
+          && BlockGzip.headerSize(header, header.length) != -1
+          && BlockGzip.blockSize(header) != -1;
+    }
+  }
+
+  /** Returns the blocks of the file, in order. */
+  public List<Block> getBlocks() {
+    return Collections.unmodifiableList(blocks);
+  }
+
+  /** Returns the total size of the uncompressed data. */
+  public long getUncompressedSize() {
+    if (blocks.isEmpty()) {
+      return 0;
+    }
+    Block last = blocks.get(blocks.size() - 1);
+    return last.uncompressedOffset + last.uncompressedSize;
+  }
+
+  /**
+   * Splits the file into at most {@code count} chunks of roughly equal uncompressed size. There may
+   * be fewer chunks than requested, as chunks hold whole blocks.
+   */
+  public List<Chunk> split(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("count must be positive");
+    }
+    List<Chunk> chunks = new ArrayList<>();
+    long total = getUncompressedSize();
+    int first = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      Block block = blocks.get(i);
+      long end = block.uncompressedOffset + block.uncompressedSize;
+      // Cut after the block which reaches the next target boundary.
+      if (i == blocks.size() - 1
+          || (chunks.size() < count - 1 && end >= total * (chunks.size() + 1) / count)) {
+        chunks.add(new Chunk(first, i + 1));
+        first = i + 1;
+      }
+    }
+    return chunks;
+  }
+
+  /** Receives lines read from a chunk. */
+  public interface LineConsumer {
+    void accept(String line) throws IOException;
+  }
+
+  /**
+   * Returns the lines which start in the chunk, without their line terminators. A line which
+   * continues past the end of the chunk is completed from the following blocks.
+   */
+  public List<String> readLines(Chunk chunk) throws IOException {
+    List<String> lines = new ArrayList<>();
+    forEachLine(chunk, lines::add);
+    return lines;
+  }
+
+  /**
+   * Passes the lines which start in the chunk to the consumer, as returned by {@link #readLines},
+   * decompressing one block at a time, so that only the current line is held in memory.
+   */
+  public void forEachLine(Chunk chunk, LineConsumer consumer) throws IOException {
+    // Skip the end of a line started in an earlier chunk.
+    boolean skipping = !startsLine(chunk.firstBlock);
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    // Past the end of the chunk, blocks are only read to complete its last line.
+    for (int i = chunk.firstBlock; i < blocks.size() && (i < chunk.endBlock || line.size() > 0);
+        i++) {
+      byte[] data = readBlock(i);
+      int start = 0;
+      while (start < data.length) {
+        int newline = indexOf(data, start, data.length);
+        if (newline == -1) {
+          if (!skipping) {
+            line.write(data, start, data.length - start);
+          }
+          break;
+        }
+        if (skipping) {
+          skipping = false;
+        } else {
+          line.write(data, start, newline - start);
+          consumer.accept(toLine(line));
+          if (i >= chunk.endBlock) {
+            return;
+          }
+        }
+        start = newline + 1;
+      }
+    }
+    if (line.size() > 0) {
+      consumer.accept(toLine(line));
+    }
+  }
+
+  /** Returns the line held by the buffer without a trailing carriage return, and resets it. */
+  private static String toLine(ByteArrayOutputStream line) {
+    byte[] bytes = line.toByteArray();
+    line.reset();
+    int length = bytes.length;
+    if (length > 0 && bytes[length - 1] == '\r') {
+      length--;
+    }
+    return new String(bytes, 0, length, UTF_8);
+  }
+
+  /**
+   * Returns a stream of the uncompressed data, decompressing blocks ahead of the reader on the
+   * executor. Closing the stream does not close this reader.
+   *
+   * @param threads the number of threads of the executor which may be used
+   */
+  public InputStream newInputStream(ExecutorService executor, int threads) {
+    return new ParallelInputStream(executor, threads, false);
+  }
+
+  /** Decompresses a block. */
+  public byte[] readBlock(int index) throws IOException {
+    Block block = blocks.get(index);
+    byte[] member = new byte[block.compressedSize];
+    if (read(channel, block.offset, member) != member.length) {
+      throw new EOFException("Truncated gzip member at offset " + block.offset);
+    }
+    return BlockGzip.decompress(member, block.uncompressedSize);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** Returns whether a line starts at the beginning of the block. */
+  private boolean startsLine(int index) throws IOException {
+    // Find the last byte before the block, skipping empty blocks.
+    for (int i = index - 1; i >= 0; i--) {
+      if (blocks.get(i).uncompressedSize > 0) {
+        byte[] previous = readBlock(i);
+        return previous[previous.length - 1] == '\n';
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] data, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (data[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int read(FileChannel channel, long position, byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        break;
+      }
+    }
+    return buffer.position();
+  }
+
+  private static List<Block> index(FileChannel channel) throws IOException {
+    List<Block> blocks = new ArrayList<>();
+    long size = channel.size();
+    long offset = 0;
+    long uncompressedOffset = 0;
+    byte[] header = new byte[BlockGzip.HEADER_SIZE];
+    byte[] trailer = new byte[BlockGzip.TRAILER_SIZE];
+    while (offset < size) {
+      int headerLength = read(channel, offset, header);
+      int blockSize =
+          BlockGzip.headerSize(header, headerLength) == -1 ? -1 : BlockGzip.blockSize(header);
+      Block block;
+      if (blockSize != -1) {
+        if (read(channel, offset + blockSize - trailer.length, trailer) != trailer.length) {
+          throw new EOFException("Truncated gzip member at offset " + offset);
+        }
+        block =
+            new Block(offset, blockSize, uncompressedOffset, BlockGzip.getInt(trailer, 4));
+      } else {
+        block = scanMember(channel, offset, uncompressedOffset);
+      }
+      blocks.add(block);
+      offset += block.compressedSize;
+      uncompressedOffset += block.uncompressedSize;
+    }
+    return blocks;
+  }
+
+  /** Finds the end of a gzip member without a BGZF header, by decompressing it. */
+  private static Block scanMember(FileChannel channel, long offset, long uncompressedOffset)
+      throws IOException {
+    byte[] buffer = new byte[BlockGzip.MAX_BLOCK_SIZE];
+    int length = read(channel, offset, buffer);
+    int header = BlockGzip.headerSize(buffer, length);
+    if (header == -1) {
+      throw new IOException("Truncated or oversized gzip header at offset " + offset);
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      byte[] output = new byte[BlockGzip.MAX_BLOCK_SIZE];
+      long position = offset + header;
+      inflater.setInput(buffer, header, length - header);
+      position += length - header;
+      while (!inflater.finished()) {
+        if (inflater.inflate(output) == 0 && inflater.needsInput()) {
+          length = read(channel, position, buffer);
+          if (length == 0) {
+            throw new EOFException("Truncated gzip member at offset " + offset);
+          }
+          inflater.setInput(buffer, 0, length);
+          position += length;
+        } else if (inflater.needsDictionary()) {
+          throw new IOException("Unsupported gzip member at offset " + offset);
+        }
+      }
+      long uncompressedSize = inflater.getBytesWritten();
+      long compressedSize = header + inflater.getBytesRead() + BlockGzip.TRAILER_SIZE;
+      if (uncompressedSize > Integer.MAX_VALUE - 8 || compressedSize > Integer.MAX_VALUE - 8) {
+        throw new IOException("Gzip member at offset " + offset + " is too large to index");
+      }
+      return new Block(offset, (int) compressedSize, uncompressedOffset, (int) uncompressedSize);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt gzip member at offset " + offset, e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Reads the blocks in order, while decompressing the following ones on an executor. */
+  private final class ParallelInputStream extends InputStream {
+    private final ExecutorService executor;
+    private final int prefetch;
+    private final boolean closeReader;
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private int nextBlock = 0;
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    ParallelInputStream(ExecutorService executor, int threads, boolean closeReader) {
+      this.executor = executor;
+      this.prefetch = Math.max(1, threads) * PREFETCH_PER_THREAD;
+      this.closeReader = closeReader;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int count = Math.min(length, current.length - position);
+      System.arraycopy(current, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (CompletableFuture<byte[]> block : pending) {
+        block.cancel(false);
+      }
+      pending.clear();
+      nextBlock = blocks.size();
+      if (closeReader) {
+        BlockGzipReader.this.close();
+      }
+    }
+
+    /** Moves to the next non-empty block if needed, and returns whether there is data left. */
+    private boolean fill() throws IOException {
+      while (position == current.length) {
+        while (nextBlock < blocks.size() && pending.size() < prefetch) {
+          int index = nextBlock++;
+          pending.add(
+              CompletableFuture.supplyAsync(
+                  () -> {
+                    try {
+                      return readBlock(index);
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                  },
+                  executor));
+        }
+        if (pending.isEmpty()) {
+          return false;
+        }
+        try {
+          current = pending.remove().join();
+        } catch (CompletionException e) {
+          if (e.getCause() instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e.getCause()).getCause();
+          }
+          throw new IOException("Failed to decompress block", e.getCause());
+        }
+        position = 0;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A manifest of the progress of a long-running job which reads ranges of input files and writes
+ * each range to an output shard, so that an interrupted job can continue where it stopped.
+ *
+ * <p>For each range of an input file, the manifest records the offset up to which the input has
+ * been processed, along with the output shard and its size at that point. On restart, the shard is
+ * truncated to the recorded size, and processing continues from the recorded offset, so the output
+ * is the same as that of an uninterrupted run.
+ *
+ * <p>The manifest is an append-only text file with one tab-separated entry per line, the last entry
+ * for a range replacing earlier ones. Each entry is synced to disk before {@link #record} returns,
+ * and an incomplete last line, left by a crash, is ignored.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CheckpointManifest implements Closeable {
+
+  /** The progress of a range of an input file. */
+  public static final class Entry {
+    private final String input;
+    private final long start;
+    private final long end;
+    private final long position;
+    private final String shard;
+    private final long shardSize;
+
+    /**
+     * Creates an entry for the range [{@code start}, {@code end}) of the input, which has been
+     * processed up to {@code position}, producing {@code shardSize} bytes of the output shard.
+     */
+    public Entry(String input, long start, long end, long position, String shard, long shardSize) {
+      checkName(input);
+      checkName(shard);
+      if (start > position || position > end) {
+        throw new IllegalArgumentException(
+            "Position " + position + " is outside of [" + start + ", " + end + "]");
+      }
+      this.input = input;
+      this.start = start;
+      this.end = end;
+      this.position = position;
+      this.shard = shard;
+      this.shardSize = shardSize;
+    }
+
+    public String getInput() {
+      return input;
+    }
+
+    public long getStart() {
+      return start;
+    }
+
+    public long getEnd() {
+      return end;
+    }
+
+    /** The offset up to which the range has been processed. */
+    public long getPosition() {
+      return position;
+    }
+
+    public String getShard() {
+      return shard;
+    }
+
+    /** The size of the shard once the range was processed up to the position. */
+    public long getShardSize() {
+      return shardSize;
+    }
+
+    /** Returns whether the whole range has been processed. */
+    public boolean isDone() {
+      return position == end;
+    }
+
+    /** Returns an entry for the same range, processed further. */
+    public Entry withProgress(long position, long shardSize) {
+      return new Entry(input, start, end, position, shard, shardSize);
+    }
+
+    private static String key(String input, long start) {
+      return input + '\t' + start;
+    }
+
+    private String toLine() {
+      return String.join(
+              "\t",
+              input,
+              Long.toString(start),
+              Long.toString(end),
+              Long.toString(position),
+              shard,
+              Long.toString(shardSize))
+          + "\n";
+    }
+
+    private static Entry fromLine(String line) {
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 6) {
+        throw new IllegalArgumentException("Malformed manifest entry: " + line);
+      }
+      return new Entry(
+          fields[0],
+          Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]),
+          Long.parseLong(fields[3]),
+          fields[4],
+          Long.parseLong(fields[5]));
+    }
+
+    private static void checkName(String name) {
+      if (name.isEmpty() || name.indexOf('\t') != -1 || name.indexOf('\n') != -1) {
+        throw new IllegalArgumentException("Invalid name in manifest entry: " + name);
+      }
+    }
+  }
+
+  private final FileChannel channel;
+  // The latest entry of each range, by input and start. Guarded by this.
+  private final Map<String, Entry> entries;
+
+  private CheckpointManifest(FileChannel channel, Map<String, Entry> entries) {
+    this.channel = channel;
+    this.entries = entries;
+  }
+
+  /**
+   * Opens a manifest, creating the file if it does not exist, and reads its entries.
+   *
+   * @throws IOException if the file can't be read, or holds a malformed entry
+   */
+  public static CheckpointManifest open(Path file) throws IOException {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    long validSize = 0;
+    if (Files.exists(file)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+        StringBuilder line = new StringBuilder();
+        for (int c = reader.read(); c != -1; c = reader.read()) {
+          if (c != '\n') {
+            line.append((char) c);
+            continue;
+          }
+          try {
+            Entry entry = Entry.fromLine(line.toString());
+            entries.put(Entry.key(entry.input, entry.start), entry);
+          } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt manifest " + file, e);
+          }
+          validSize += line.toString().getBytes(UTF_8).length + 1;
+          line.setLength(0);
+        }
+      }
+    }
+    FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    // Drop an incomplete last entry, so that new entries start on a line of their own.
+    channel.truncate(validSize);
+    channel.position(validSize);
+    return new CheckpointManifest(channel, entries);
+  }
+
+  /** Returns the latest entry for the range of the input starting at {@code start}, or null. */
+  public synchronized Entry get(String input, long start) {
+    return entries.get(Entry.key(input, start));
+  }
+
+  /** Returns the latest entry of each range, in the order the ranges were first recorded. */
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(entries.values());
+  }
+
+  /** Appends an entry, and syncs it to disk. */
+  public synchronized void record(Entry entry) throws IOException {
+    ByteBuffer line = ByteBuffer.wrap(entry.toLine().getBytes(UTF_8));
+    while (line.hasRemaining()) {
+      channel.write(line);
+    }
+    channel.force(false);
+    entries.put(Entry.key(entry.input, entry.start), entry);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,200 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.r4.core.Bundle;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Orders a set of resources so that every resource comes after the resources it references, for
+ * example to write Patients and Practitioners before the Observations that point at them.
+ *
+ * <p>The reference graph is built in a single pass over the typed reference id fields (and
+ * urn:uuid references to bundle fullUrls), and sorted with Kahn's algorithm, so the cost is linear
+ * in the number of resources and references. References to resources outside the set are ignored.
+ * Resources which are on a reference cycle, or which depend on one, can't be ordered; they are
+ * reported by {@link #getCyclic} and emitted last, in input order.
+ */
+public final class DependencyOrder<T> {
+
+  private final ImmutableList<T> ordered;
+  private final ImmutableList<T> cyclic;
+
+  private DependencyOrder(ImmutableList<T> ordered, ImmutableList<T> cyclic) {
+    this.ordered = ordered;
+    this.cyclic = cyclic;
+  }
+
+  /** All of the input items, with referenced resources before the resources referencing them. */
+  public ImmutableList<T> getOrdered() {
+    return ordered;
+  }
+
+  /** The items which are on a reference cycle, or depend on one, in input order. */
+  public ImmutableList<T> getCyclic() {
+    return cyclic;
+  }
+
+  public boolean hasCycles() {
+    return !cyclic.isEmpty();
+  }
+
+  /** Order the entries of a bundle. Entries without a resource have no dependencies. */
+  public static DependencyOrder<Bundle.Entry> of(Bundle bundle) {
+    return of(
+        bundle.getEntryList(),
+        entry -> ResourceUtils.getContainedResource(entry.getResource()),
+        entry -> entry.hasFullUrl() ? entry.getFullUrl().getValue() : null);
+  }
+
+  /** Order a list of resources. */
+  public static DependencyOrder<Message> ofResources(List<? extends Message> resources) {
+    return of(resources, resource -> resource, resource -> null);
+  }
+
+  private static <T> DependencyOrder<T> of(
+      List<? extends T> items,
+      Function<T, Message> getResource,
+      Function<T, String> getFullUrl) {
+    int size = items.size();
+    Message[] resources = new Message[size];
+    // Map from "Type/id" and fullUrl to the index of the item.
+    Map<String, Integer> nodes = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      T item = items.get(i);
+      Message resource = getResource.apply(item);
+      resources[i] = resource;
+      if (resource == null) {
+        continue;
+      }
+      String id = ResourceUtils.getResourceId(resource);
+      if (id != null) {
+        nodes.put(ResourceUtils.getResourceType(resource) + "/" + id, i);
+      }
+      String fullUrl = getFullUrl.apply(item);
+      if (fullUrl != null) {
+        nodes.put(fullUrl, i);
+      }
+    }
+
+    // Collect edges from each referenced resource to the resource referencing it.
+    EdgeList edges = new EdgeList();
+    int[] inDegree = new int[size];
+    for (int i = 0; i < size; i++) {
+      if (resources[i] == null) {
+        continue;
+      }
+      int dependent = i;
+      ResourceUtils.forEachReference(
+          resources[i],
+          reference -> {
+            Integer dependency = nodes.get(getReferenceKey(reference));
+            if (dependency != null && dependency != dependent) {
+              edges.add(dependency, dependent);
+              inDegree[dependent]++;
+            }
+          });
+    }
+    int[][] dependents = edges.toAdjacency(size);
+
+    // Kahn's algorithm, seeded in input order so that the output is deterministic.
+    ArrayDeque<Integer> ready = new ArrayDeque<>();
+    for (int i = 0; i < size; i++) {
+      if (inDegree[i] == 0) {
+        ready.add(i);
+      }
+    }
+    ImmutableList.Builder<T> ordered = ImmutableList.builder();
+    boolean[] emitted = new boolean[size];
+    while (!ready.isEmpty()) {
+      int node = ready.poll();
+      emitted[node] = true;
+      ordered.add(items.get(node));
+      for (int dependent : dependents[node]) {
+        if (--inDegree[dependent] == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+    ImmutableList.Builder<T> cyclic = ImmutableList.builder();
+    for (int i = 0; i < size; i++) {
+      if (!emitted[i]) {
+        ordered.add(items.get(i));
+        cyclic.add(items.get(i));
+      }
+    }
+    return new DependencyOrder<>(ordered.build(), cyclic.build());
+  }
+
+  /**
+   * Returns the key of the resource a reference points at, in the form "Type/id" for typed
+   * references, or the uri for untyped ones. Returns null for fragment and logical references.
+   */
+  private static String getReferenceKey(MessageOrBuilder reference) {
+    FieldDescriptor field =
+        reference.getOneofFieldDescriptor(reference.getDescriptorForType().getOneofs().get(0));
+    if (field == null || field.getName().equals("fragment")) {
+      return null;
+    }
+    String value = ResourceUtils.getValue((Message) reference.getField(field));
+    if (field.getOptions().hasExtension(Annotations.referencedFhirType)) {
+      return field.getOptions().getExtension(Annotations.referencedFhirType) + "/" + value;
+    }
+    return value;
+  }
+
+  /** A growable list of int pairs, converted to per-node adjacency arrays once complete. */
+  private static final class EdgeList {
+    private int[] from = new int[16];
+    private int[] to = new int[16];
+    private int size = 0;
+
+    void add(int source, int target) {
+      if (size == from.length) {
+        from = Arrays.copyOf(from, size * 2);
+        to = Arrays.copyOf(to, size * 2);
+      }
+      from[size] = source;
+      to[size] = target;
+      size++;
+    }
+
+    int[][] toAdjacency(int nodeCount) {
+      int[] counts = new int[nodeCount];
+      for (int i = 0; i < size; i++) {
+        counts[from[i]]++;
+      }
+      int[][] adjacency = new int[nodeCount][];
+      for (int node = 0; node < nodeCount; node++) {
+        adjacency[node] = new int[counts[node]];
+        counts[node] = 0;
+      }
+      for (int i = 0; i < size; i++) {
+        adjacency[from[i]][counts[from[i]]++] = to[i];
+      }
+      return adjacency;
+    }
+  }
+}
@@ -15,7 +15,9 @@
 package com.google.fhir.common;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.base.Splitter;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
 import com.google.fhir.proto.Annotations;
@@ -28,23 +30,40 @@ import com.google.fhir.wrappers.PrimitiveWrapper;
 import com.google.fhir.wrappers.PrimitiveWrappers;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProtoOrBuilder;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.WireFormat;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 /** Parsers for FHIR data encoded as json or xml. */
 public final class JsonFormat {
@@ -67,6 +86,20 @@ public final class JsonFormat {
           .setValueBoolean(com.google.fhir.stu3.proto.Boolean.newBuilder().setValue(true))
           .build();
 
+  // The default instances of the types of message fields, used when printing or parsing the wire
+  // format without building the containing messages.
+  private static final ConcurrentMap<FieldDescriptor, Message> fieldPrototypes =
+      new ConcurrentHashMap<>();
+
+  private static Message getFieldPrototype(Message parent, FieldDescriptor field) {
+    Message prototype = fieldPrototypes.get(field);
+    if (prototype == null) {
+      prototype = parent.newBuilderForType().newBuilderForField(field).getDefaultInstanceForType();
+      fieldPrototypes.putIfAbsent(field, prototype);
+    }
+    return prototype;
+  }
+
   private static boolean isPrimitiveType(FieldDescriptor field) {
     return field.getType() == FieldDescriptor.Type.MESSAGE
         && AnnotationUtils.isPrimitiveType(field.getMessageType());
@@ -78,7 +111,10 @@ public final class JsonFormat {
    */
   public static Printer getPrinter() {
     return new Printer(
-        false /*omittingInsignificantWhitespace*/, ZoneId.systemDefault(), FhirJsonFormat.PURE);
+        false /*omittingInsignificantWhitespace*/,
+        ZoneId.systemDefault(),
+        FhirJsonFormat.PURE,
+        RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH);
   }
 
   /** A Printer converts protobuf message to JSON format. */
@@ -86,14 +122,17 @@ public final class JsonFormat {
     private final boolean omittingInsignificantWhitespace;
     private final ZoneId defaultTimeZone;
     private final FhirJsonFormat jsonFormat;
+    private final int maxRecursionDepth;
 
     private Printer(
         boolean omittingInsignificantWhitespace,
         ZoneId defaultTimeZone,
-        FhirJsonFormat jsonFormat) {
+        FhirJsonFormat jsonFormat,
+        int maxRecursionDepth) {
       this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
       this.defaultTimeZone = defaultTimeZone;
       this.jsonFormat = jsonFormat;
+      this.maxRecursionDepth = maxRecursionDepth;
     }
 
     /**
@@ -114,7 +153,7 @@ public final class JsonFormat {
      * current {@link Printer}.
      */
     public Printer omittingInsignificantWhitespace() {
-      return new Printer(true, defaultTimeZone, jsonFormat);
+      return new Printer(true, defaultTimeZone, jsonFormat, maxRecursionDepth);
     }
 
     /*
@@ -124,16 +163,32 @@ public final class JsonFormat {
      * standard, currently always in the form of a time offset.
      */
     public Printer withDefaultTimeZone(ZoneId defaultTimeZone) {
-      return new Printer(omittingInsignificantWhitespace, defaultTimeZone, jsonFormat);
+      return new Printer(
+          omittingInsignificantWhitespace, defaultTimeZone, jsonFormat, maxRecursionDepth);
     }
 
     /*
      * Create a new {@link Printer} which formats the output in a manner suitable for SQL queries.
      * This follows the in-progress analytics spec defined at
      * https://github.com/rbrush/sql-on-fhir/blob/master/sql-on-fhir.md
+     * Types which recur within themselves are printed in full; use {@link #forAnalytics(int)} to
+     * limit their depth.
      */
     public Printer forAnalytics() {
-      return new Printer(omittingInsignificantWhitespace, defaultTimeZone, FhirJsonFormat.ANALYTIC);
+      return forAnalytics(RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH);
+    }
+
+    /*
+     * Create a new {@link Printer} for analytics, which drops fields nested deeper than
+     * maxRecursionDepth levels within a field of the same type. Schemas for its output can be
+     * generated with {@link BigQuerySchema#fromDescriptor(Descriptor, int)}.
+     */
+    public Printer forAnalytics(int maxRecursionDepth) {
+      return new Printer(
+          omittingInsignificantWhitespace,
+          defaultTimeZone,
+          FhirJsonFormat.ANALYTIC,
+          maxRecursionDepth);
     }
 
     /**
@@ -142,8 +197,13 @@ public final class JsonFormat {
      * @throws IOException if writing to the output fails.
      */
     public void appendTo(MessageOrBuilder message, Appendable output) throws IOException {
-      new PrinterImpl(output, omittingInsignificantWhitespace, defaultTimeZone, jsonFormat)
-          .print(message);
+      new PrinterImpl(
+              output,
+              omittingInsignificantWhitespace,
+              defaultTimeZone,
+              jsonFormat,
+              maxRecursionDepth)
+          .printTopLevel(message);
     }
 
     /** Converts a protobuf message to JSON format. */
@@ -152,6 +212,32 @@ public final class JsonFormat {
       appendTo(message, builder);
       return builder.toString();
     }
+
+    /**
+     * Converts a serialized protobuf message of the same type as {@code prototype} to JSON format.
+     * The output is identical to printing the parsed message, but the message tree is never built:
+     * the wire format is read directly, and only primitives and references are parsed, one at a
+     * time.
+     *
+     * @throws IOException if the input is not a valid message, or writing to the output fails.
+     */
+    public void appendSerializedTo(Message prototype, ByteString serialized, Appendable output)
+        throws IOException {
+      new PrinterImpl(
+              output,
+              omittingInsignificantWhitespace,
+              defaultTimeZone,
+              jsonFormat,
+              maxRecursionDepth)
+          .printSerializedTopLevel(prototype, serialized);
+    }
+
+    /** Converts a serialized protobuf message of the same type as {@code prototype} to JSON. */
+    public String printSerialized(Message prototype, ByteString serialized) throws IOException {
+      StringBuilder builder = new StringBuilder();
+      appendSerializedTo(prototype, serialized, builder);
+      return builder.toString();
+    }
   }
 
   /**
@@ -254,12 +340,15 @@ public final class JsonFormat {
     private final CharSequence blankOrNewLine;
     private final ZoneId defaultTimeZone;
     private final FhirJsonFormat jsonFormat;
+    // Tracks the types on the current path, for analytic output only.
+    private final RecursionLimit.Tracker recursion;
 
     PrinterImpl(
         Appendable jsonOutput,
         boolean omittingInsignificantWhitespace,
         ZoneId defaultTimeZone,
-        FhirJsonFormat jsonFormat) {
+        FhirJsonFormat jsonFormat,
+        int maxRecursionDepth) {
       // json format related properties, determined by printerType
       if (omittingInsignificantWhitespace) {
         this.generator = new CompactTextGenerator(jsonOutput);
@@ -272,6 +361,24 @@ public final class JsonFormat {
       }
       this.defaultTimeZone = defaultTimeZone;
       this.jsonFormat = jsonFormat;
+      this.recursion =
+          jsonFormat == FhirJsonFormat.ANALYTIC && maxRecursionDepth != RecursionLimit.UNLIMITED
+              ? new RecursionLimit.Tracker(maxRecursionDepth)
+              : null;
+    }
+
+    void printTopLevel(MessageOrBuilder message) throws IOException {
+      if (recursion != null) {
+        recursion.tryEnter(RecursionLimit.typeKey(message.getDescriptorForType()));
+      }
+      print(message);
+    }
+
+    void printSerializedTopLevel(Message prototype, ByteString serialized) throws IOException {
+      if (recursion != null) {
+        recursion.tryEnter(RecursionLimit.typeKey(prototype.getDescriptorForType()));
+      }
+      printSerialized(prototype, serialized);
     }
 
     void print(MessageOrBuilder message) throws IOException {
@@ -460,15 +567,29 @@ public final class JsonFormat {
       }
 
       for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+        boolean isPrimitive = isPrimitiveType(entry.getKey());
+        // In analytic output, drop fields which recur too deeply within themselves.
+        RecursionLimit.TypeKey type = null;
+        if (recursion != null
+            && !isPrimitive
+            && entry.getKey().getType() == FieldDescriptor.Type.MESSAGE) {
+          type = RecursionLimit.typeKey(entry.getKey());
+          if (!recursion.tryEnter(type)) {
+            continue;
+          }
+        }
         printedField = maybeStartMessage(printedField);
         String name = entry.getKey().getJsonName();
         if (AnnotationUtils.isChoiceType(entry.getKey()) && jsonFormat == FhirJsonFormat.PURE) {
           printChoiceField(entry.getKey(), entry.getValue());
-        } else if (isPrimitiveType(entry.getKey())) {
+        } else if (isPrimitive) {
           printPrimitiveField(name, entry.getKey(), entry.getValue());
         } else {
           printMessageField(name, entry.getKey(), entry.getValue());
         }
+        if (type != null) {
+          recursion.exit(type);
+        }
       }
 
       if (printedField) {
@@ -584,6 +705,306 @@ public final class JsonFormat {
       generator.outdent();
       generator.print("]");
     }
+
+    // Printing of serialized messages. This mirrors the printing of messages above, but only
+    // parses primitives, references and other leaf types, and streams through everything else.
+
+    private enum WireKind {
+      // Printed as a parsed message.
+      PARSED,
+      CONTAINED_RESOURCE,
+      ANY,
+      EXTENSION,
+      MESSAGE
+    }
+
+    /** How to print serialized messages of a given type. */
+    private static final class WirePlan {
+      final WireKind kind;
+      final boolean isResource;
+      // Indexed by field index.
+      final boolean[] isPrimitive;
+      final boolean[] isChoice;
+
+      WirePlan(Descriptor descriptor) {
+        int count = descriptor.getFields().size();
+        boolean isLeaf =
+            AnnotationUtils.isPrimitiveType(descriptor) || AnnotationUtils.isReference(descriptor);
+        isPrimitive = new boolean[count];
+        isChoice = new boolean[count];
+        for (FieldDescriptor field : descriptor.getFields()) {
+          // Only messages consisting of message fields are streamed.
+          isLeaf = isLeaf || field.getType() != FieldDescriptor.Type.MESSAGE;
+          isPrimitive[field.getIndex()] = isPrimitiveType(field);
+          isChoice[field.getIndex()] = AnnotationUtils.isChoiceType(field);
+        }
+        String name = descriptor.getFullName();
+        if (name.equals(com.google.fhir.stu3.proto.ContainedResource.getDescriptor().getFullName())
+            || name.equals(
+                com.google.fhir.r4.core.ContainedResource.getDescriptor().getFullName())) {
+          kind = WireKind.CONTAINED_RESOURCE;
+        } else if (name.equals(Any.getDescriptor().getFullName())) {
+          kind = WireKind.ANY;
+        } else if (name.equals(com.google.fhir.stu3.proto.Extension.getDescriptor().getFullName())
+            || name.equals(com.google.fhir.r4.core.Extension.getDescriptor().getFullName())) {
+          kind = WireKind.EXTENSION;
+        } else {
+          kind = isLeaf ? WireKind.PARSED : WireKind.MESSAGE;
+        }
+        isResource = AnnotationUtils.isResource(descriptor);
+      }
+    }
+
+    private static final ConcurrentMap<Descriptor, WirePlan> wirePlans = new ConcurrentHashMap<>();
+
+    private static WirePlan getWirePlan(Descriptor descriptor) {
+      WirePlan plan = wirePlans.get(descriptor);
+      if (plan == null) {
+        plan = new WirePlan(descriptor);
+        wirePlans.putIfAbsent(descriptor, plan);
+      }
+      return plan;
+    }
+
+    /**
+     * Reads the fields of a serialized message, returning the serialized values of each field by
+     * field index. As when parsing, repeated occurrences of singular fields are merged, only the
+     * last field of a oneof is kept, and unknown fields are dropped.
+     */
+    private static List<List<ByteString>> readFields(Descriptor descriptor, ByteString serialized)
+        throws IOException {
+      List<List<ByteString>> values = new ArrayList<>();
+      for (int i = 0; i < descriptor.getFields().size(); i++) {
+        values.add(null);
+      }
+      CodedInputStream input = serialized.newCodedInput();
+      input.enableAliasing(true);
+      for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+        FieldDescriptor field = descriptor.findFieldByNumber(WireFormat.getTagFieldNumber(tag));
+        if (field == null
+            || WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+          input.skipField(tag);
+          continue;
+        }
+        if (field.getContainingOneof() != null) {
+          for (FieldDescriptor member : field.getContainingOneof().getFields()) {
+            if (member != field) {
+              values.set(member.getIndex(), null);
+            }
+          }
+        }
+        List<ByteString> value = values.get(field.getIndex());
+        if (value == null) {
+          value = new ArrayList<>(1);
+          values.set(field.getIndex(), value);
+        }
+        value.add(input.readBytes());
+      }
+      return values;
+    }
+
+    private static Message parseValue(Message prototype, List<ByteString> value)
+        throws IOException {
+      return prototype
+          .getParserForType()
+          .parseFrom(value.size() == 1 ? value.get(0) : ByteString.copyFrom(value));
+    }
+
+    /** Prints a serialized message of the same type as {@code prototype}. */
+    private void printSerialized(Message prototype, ByteString serialized) throws IOException {
+      WirePlan plan = getWirePlan(prototype.getDescriptorForType());
+      switch (plan.kind) {
+        case CONTAINED_RESOURCE:
+          printSerializedContainedResource(prototype, serialized);
+          break;
+        case ANY:
+          // Only R4 packs contained resources in Any, and unpackAny rejects any other type.
+          printSerializedContainedResource(
+              com.google.fhir.r4.core.ContainedResource.getDefaultInstance(),
+              unpackAny(serialized));
+          break;
+        case EXTENSION:
+          if (jsonFormat == FhirJsonFormat.ANALYTIC) {
+            print(prototype.getParserForType().parseFrom(serialized));
+          } else {
+            printSerializedMessage(prototype, plan, serialized);
+          }
+          break;
+        case MESSAGE:
+          printSerializedMessage(prototype, plan, serialized);
+          break;
+        default:
+          print(prototype.getParserForType().parseFrom(serialized));
+      }
+    }
+
+    /** Returns the serialized ContainedResource held by a serialized Any. */
+    private static ByteString unpackAny(ByteString serialized) throws IOException {
+      String typeUrl = "";
+      ByteString value = ByteString.EMPTY;
+      CodedInputStream input = serialized.newCodedInput();
+      for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case Any.TYPE_URL_FIELD_NUMBER:
+            typeUrl = input.readString();
+            break;
+          case Any.VALUE_FIELD_NUMBER:
+            value = input.readBytes();
+            break;
+          default:
+            input.skipField(tag);
+        }
+      }
+      String typeName = typeUrl.substring(typeUrl.lastIndexOf('/') + 1);
+      if (!typeName.equals(
+          com.google.fhir.r4.core.ContainedResource.getDescriptor().getFullName())) {
+        throw new InvalidProtocolBufferException(
+            "Any packing not supported for type: " + typeUrl);
+      }
+      return value;
+    }
+
+    /** Prints a serialized contained resource field. */
+    private void printSerializedContainedResource(Message prototype, ByteString serialized)
+        throws IOException {
+      Descriptor descriptor = prototype.getDescriptorForType();
+      List<List<ByteString>> values = readFields(descriptor, serialized);
+      for (FieldDescriptor field : descriptor.getFields()) {
+        List<ByteString> value = values.get(field.getIndex());
+        if (value == null) {
+          continue;
+        }
+        if (jsonFormat == FhirJsonFormat.ANALYTIC) {
+          /* We print only the type of the contained resource here. */
+          generator.print(
+              "\""
+                  + field
+                      .getMessageType()
+                      .getOptions()
+                      .getExtension(Annotations.fhirStructureDefinitionUrl)
+                  + "\"");
+        } else {
+          /* Print the entire contained resource. */
+          printSerialized(getFieldPrototype(prototype, field), ByteString.copyFrom(value));
+        }
+      }
+    }
+
+    /** Prints a regular serialized message. */
+    private void printSerializedMessage(Message prototype, WirePlan plan, ByteString serialized)
+        throws IOException {
+      Descriptor descriptor = prototype.getDescriptorForType();
+      List<List<ByteString>> values = readFields(descriptor, serialized);
+      boolean printedField = false;
+
+      if (plan.isResource && jsonFormat == FhirJsonFormat.PURE) {
+        printedField = maybeStartMessage(printedField);
+        generator.print(
+            "\"resourceType\":" + blankOrSpace + "\"" + descriptor.getName() + "\"");
+      }
+
+      for (FieldDescriptor field : descriptor.getFields()) {
+        List<ByteString> value = values.get(field.getIndex());
+        if (value == null) {
+          continue;
+        }
+        boolean isPrimitive = plan.isPrimitive[field.getIndex()];
+        // In analytic output, drop fields which recur too deeply within themselves.
+        RecursionLimit.TypeKey type = null;
+        if (recursion != null && !isPrimitive) {
+          type = RecursionLimit.typeKey(field);
+          if (!recursion.tryEnter(type)) {
+            continue;
+          }
+        }
+        printedField = maybeStartMessage(printedField);
+        String name = field.getJsonName();
+        Message fieldPrototype = getFieldPrototype(prototype, field);
+        if (plan.isChoice[field.getIndex()] && jsonFormat == FhirJsonFormat.PURE) {
+          printSerializedChoiceField(field, fieldPrototype, value);
+        } else if (isPrimitive) {
+          printPrimitiveField(name, field, parsePrimitiveField(field, fieldPrototype, value));
+        } else {
+          printSerializedMessageField(name, field, fieldPrototype, value);
+        }
+        if (type != null) {
+          recursion.exit(type);
+        }
+      }
+
+      if (printedField) {
+        generator.print(blankOrNewLine);
+        generator.outdent();
+        generator.print("}");
+      } else {
+        generator.print("null");
+      }
+    }
+
+    private static Object parsePrimitiveField(
+        FieldDescriptor field, Message prototype, List<ByteString> value) throws IOException {
+      if (!field.isRepeated()) {
+        return parseValue(prototype, value);
+      }
+      List<Message> result = new ArrayList<>(value.size());
+      for (ByteString element : value) {
+        result.add(prototype.getParserForType().parseFrom(element));
+      }
+      return result;
+    }
+
+    private void printSerializedChoiceField(
+        FieldDescriptor field, Message prototype, List<ByteString> value) throws IOException {
+      ByteString serialized = value.size() == 1 ? value.get(0) : ByteString.copyFrom(value);
+      Descriptor descriptor = prototype.getDescriptorForType();
+      List<List<ByteString>> values = readFields(descriptor, serialized);
+      FieldDescriptor choice = null;
+      int count = 0;
+      for (FieldDescriptor choiceField : descriptor.getFields()) {
+        if (values.get(choiceField.getIndex()) != null) {
+          choice = choiceField;
+          count++;
+        }
+      }
+      if (count != 1) {
+        throw new IllegalArgumentException(
+            "Invalid value for choice field "
+                + field.getName()
+                + ": "
+                + prototype.getParserForType().parseFrom(serialized));
+      }
+      String name =
+          field.getJsonName()
+              + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, choice.getJsonName());
+      Message choicePrototype = getFieldPrototype(prototype, choice);
+      List<ByteString> choiceValue = values.get(choice.getIndex());
+      if (isPrimitiveType(choice)) {
+        printPrimitiveField(
+            name, choice, parsePrimitiveField(choice, choicePrototype, choiceValue));
+      } else {
+        printSerializedMessageField(name, choice, choicePrototype, choiceValue);
+      }
+    }
+
+    private void printSerializedMessageField(
+        String name, FieldDescriptor field, Message prototype, List<ByteString> value)
+        throws IOException {
+      generator.print("\"" + name + "\":" + blankOrSpace);
+      if (field.isRepeated()) {
+        generator.print("[" + blankOrNewLine);
+        generator.indent();
+        boolean printedElement = false;
+        for (ByteString element : value) {
+          printedElement = maybePrintFieldSeparator(printedElement);
+          printSerialized(prototype, element);
+        }
+        generator.print(blankOrNewLine);
+        generator.outdent();
+        generator.print("]");
+      } else {
+        printSerialized(prototype, value.size() == 1 ? value.get(0) : ByteString.copyFrom(value));
+      }
+    }
   }
 
   /**
@@ -622,16 +1043,41 @@ public final class JsonFormat {
     private final JsonParser jsonParser = new JsonParser();
     private final ProtoGenTransformer protoGenTransformer;
     private final ZoneId defaultTimeZone;
+    // The fields to parse for each resource type. Types without an entry are parsed in full.
+    private final ImmutableMap<Descriptor, FieldSelection> fieldSelections;
 
-    private Parser(ZoneId defaultTimeZone, ProtoGenTransformer protoGenTransformer) {
+    private Parser(
+        ZoneId defaultTimeZone,
+        ProtoGenTransformer protoGenTransformer,
+        ImmutableMap<Descriptor, FieldSelection> fieldSelections) {
       this.protoGenTransformer = protoGenTransformer;
       this.defaultTimeZone = defaultTimeZone;
+      this.fieldSelections = fieldSelections;
     }
 
     public static Parser withDefaultTimeZone(ZoneId defaultTimeZone) {
       return Parser.newBuilder().withDefaultTimeZone(defaultTimeZone).build();
     }
 
+    /**
+     * Create a new {@link Parser} which only parses the fields of {@code resourceType} resources
+     * that are selected by {@code mask}, wherever those resources appear in the input, e.g. as
+     * Bundle entries or contained resources. Unselected fields are skipped in the input without
+     * being parsed, so the cost of parsing depends on the size of the selected data rather than
+     * the size of the input. Mask paths use proto field names; choice types are selected by the
+     * name of the choice field, e.g. "value" or "value.quantity". Field masks of other resource
+     * types are retained.
+     */
+    public Parser withFieldMask(Descriptor resourceType, FieldMask mask) {
+      if (!AnnotationUtils.isResource(resourceType)) {
+        throw new IllegalArgumentException(
+            "Field masks are only supported on resources, got " + resourceType.getFullName());
+      }
+      Map<Descriptor, FieldSelection> selections = new HashMap<>(fieldSelections);
+      selections.put(resourceType, FieldSelection.fromMask(resourceType, mask));
+      return new Parser(defaultTimeZone, protoGenTransformer, ImmutableMap.copyOf(selections));
+    }
+
     /** Returns a new instance of {@link Builder} with default parameters. */
     public static Builder newBuilder() {
       return new Builder(ZoneId.systemDefault());
@@ -667,7 +1113,7 @@ public final class JsonFormat {
       }
 
       Parser build() {
-        return new Parser(defaultTimeZone, protoGenTransformer);
+        return new Parser(defaultTimeZone, protoGenTransformer, ImmutableMap.of());
       }
     }
 
@@ -675,8 +1121,7 @@ public final class JsonFormat {
      * Parse a text-format message from {@code input} and merge the contents into {@code builder}.
      */
     public <T extends Message.Builder> T merge(final Reader input, final T builder) {
-      JsonReader reader = new JsonReader(input);
-      JsonElement json = jsonParser.parse(reader);
+      JsonElement json = readJson(input, builder.getDescriptorForType());
       if (json.isJsonObject()) {
         mergeMessage(json.getAsJsonObject(), builder);
       } else {
@@ -693,7 +1138,309 @@ public final class JsonFormat {
       return builder;
     }
 
-    private Map<String, FieldDescriptor> getFieldMap(Descriptor descriptor) {
+    /**
+     * Parse a json-format message of the same type as {@code prototype} from {@code input}, and
+     * write it to {@code output} in the protobuf wire format. The output is identical to merging
+     * the input into a new builder and serializing the result, but only primitives, references and
+     * other leaf types are built as messages: the serialized sizes of all other messages are
+     * computed up front, and their fields are written directly.
+     */
+    public void mergeToWireFormat(Reader input, Message prototype, CodedOutputStream output)
+        throws IOException {
+      Descriptor descriptor = prototype.getDescriptorForType();
+      JsonElement json = readJson(input, descriptor);
+      if (json.isJsonObject()
+          && protoGenTransformer == ProtoGenTransformer.NO_OP
+          && !AnnotationUtils.isPrimitiveType(descriptor)
+          && !AnnotationUtils.isReference(descriptor)) {
+        toWireMessage(json.getAsJsonObject(), prototype).writeTo(output);
+      } else {
+        // Leaf types, and messages which need to be transformed, are built as usual.
+        Message.Builder builder = prototype.newBuilderForType();
+        if (json.isJsonObject()) {
+          mergeMessage(json.getAsJsonObject(), builder);
+        } else {
+          PrimitiveWrappers.parseAndWrap(json, builder, defaultTimeZone).copyInto(builder);
+        }
+        builder.build().writeTo(output);
+      }
+      output.flush();
+    }
+
+    /**
+     * Parse a json-format message of the same type as {@code prototype} from {@code input}, and
+     * return it in the protobuf wire format.
+     */
+    public ByteString mergeToWireFormat(CharSequence input, Message prototype) throws IOException {
+      ByteString.Output bytes = ByteString.newOutput();
+      CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+      mergeToWireFormat(new StringReader(input.toString()), prototype, output);
+      return bytes.toByteString();
+    }
+
+    /**
+     * Parse the resources of the entries of a json-format Bundle from {@code input}, passing each
+     * to {@code consumer} as a message of the same ContainedResource type as {@code
+     * containedResource}. Entries are parsed as they are read, so that only one is held in memory
+     * at a time, however large the bundle. Other fields of the bundle and its entries are skipped.
+     */
+    public void mergeBundleEntries(
+        Reader input, Message containedResource, Consumer<Message> consumer) {
+      Descriptor descriptor = containedResource.getDescriptorForType();
+      JsonReader reader = new JsonReader(input);
+      try {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (!reader.nextName().equals("entry")) {
+            reader.skipValue();
+            continue;
+          }
+          reader.beginArray();
+          while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+              if (!reader.nextName().equals("resource")) {
+                reader.skipValue();
+                continue;
+              }
+              JsonElement json =
+                  fieldSelections.isEmpty()
+                      ? jsonParser.parse(reader)
+                      : readValue(reader, descriptor, getFieldSelection(descriptor));
+              if (!json.isJsonObject()) {
+                throw new IllegalArgumentException("Expected a resource in bundle entry");
+              }
+              Message.Builder builder = containedResource.newBuilderForType();
+              mergeMessage(json.getAsJsonObject(), builder);
+              consumer.accept(builder.build());
+            }
+            reader.endObject();
+          }
+          reader.endArray();
+        }
+        reader.endObject();
+      } catch (MalformedJsonException e) {
+        throw new JsonSyntaxException(e);
+      } catch (IOException e) {
+        throw new JsonIOException(e);
+      }
+    }
+
+    /** Read the json input, skipping any fields which are not selected by a field mask. */
+    private JsonElement readJson(Reader input, Descriptor descriptor) {
+      JsonReader reader = new JsonReader(input);
+      if (fieldSelections.isEmpty()) {
+        return jsonParser.parse(reader);
+      }
+      reader.setLenient(true);
+      try {
+        return readValue(reader, descriptor, getFieldSelection(descriptor));
+      } catch (MalformedJsonException e) {
+        throw new JsonSyntaxException(e);
+      } catch (IOException e) {
+        throw new JsonIOException(e);
+      }
+    }
+
+    private FieldSelection getFieldSelection(Descriptor descriptor) {
+      FieldSelection selection = fieldSelections.get(descriptor);
+      return selection == null ? FieldSelection.ALL : selection;
+    }
+
+    private JsonElement readValue(
+        JsonReader reader, Descriptor descriptor, FieldSelection selection) throws IOException {
+      if (descriptor == null
+          || (selection == FieldSelection.ALL && !mayContainResources(descriptor))) {
+        return jsonParser.parse(reader);
+      }
+      switch (reader.peek()) {
+        case BEGIN_ARRAY:
+          JsonArray array = new JsonArray();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            array.add(readValue(reader, descriptor, selection));
+          }
+          reader.endArray();
+          return array;
+        case BEGIN_OBJECT:
+          return readObject(reader, descriptor, selection);
+        default:
+          return jsonParser.parse(reader);
+      }
+    }
+
+    private JsonObject readObject(
+        JsonReader reader, Descriptor descriptor, FieldSelection selection) throws IOException {
+      JsonObject object = new JsonObject();
+      reader.beginObject();
+      if (descriptor.getName().equals("ContainedResource")) {
+        // The type of a contained resource is given by its resourceType, which by convention is
+        // its first field. If it isn't, the resource is read in full.
+        if (!reader.hasNext()) {
+          reader.endObject();
+          return object;
+        }
+        String name = reader.nextName();
+        if (!name.equals("resourceType") || reader.peek() != JsonToken.STRING) {
+          object.add(name, jsonParser.parse(reader));
+          return readRemainingFields(reader, object);
+        }
+        String resourceType = reader.nextString();
+        object.addProperty(name, resourceType);
+        FieldDescriptor resource =
+            RESOURCE_TYPES.get(AnnotationUtils.getFhirVersion(descriptor), resourceType);
+        if (resource == null) {
+          return readRemainingFields(reader, object);
+        }
+        descriptor = resource.getMessageType();
+        selection =
+            selection == FieldSelection.ALL
+                ? getFieldSelection(descriptor)
+                : selection.select(resource.getName());
+        if (selection == null) {
+          selection = FieldSelection.NONE;
+        }
+      }
+
+      Map<String, FieldDescriptor> nameToDescriptorMap = getFieldMap(descriptor);
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        FieldDescriptor field = nameToDescriptorMap.get(name);
+        if (field == null) {
+          // The resource type and unknown fields are checked when merging.
+          object.add(name, jsonParser.parse(reader));
+          continue;
+        }
+        FieldSelection fieldSelection = selection.select(field.getName());
+        Descriptor fieldType = field.getMessageType();
+        if (fieldSelection != null && AnnotationUtils.isChoiceType(field)) {
+          FieldDescriptor choiceField = getChoiceField(field, name);
+          fieldSelection = fieldSelection.select(choiceField.getName());
+          fieldType = choiceField.getMessageType();
+        } else if (fieldType.getFullName().equals(Any.getDescriptor().getFullName())) {
+          fieldType =
+              AnnotationUtils.getFhirVersion(descriptor) == FhirVersion.R4
+                  ? com.google.fhir.r4.core.ContainedResource.getDescriptor()
+                  : null;
+        }
+        if (fieldSelection == null) {
+          reader.skipValue();
+        } else {
+          object.add(name, readValue(reader, fieldType, fieldSelection));
+        }
+      }
+      reader.endObject();
+      return object;
+    }
+
+    private JsonObject readRemainingFields(JsonReader reader, JsonObject object)
+        throws IOException {
+      while (reader.hasNext()) {
+        object.add(reader.nextName(), jsonParser.parse(reader));
+      }
+      reader.endObject();
+      return object;
+    }
+
+    // Whether each message type may hold resources, which need to be read field by field so that
+    // their field masks can be applied.
+    private static final ConcurrentMap<Descriptor, Boolean> containsResources =
+        new ConcurrentHashMap<>();
+
+    private static boolean mayContainResources(Descriptor descriptor) {
+      Boolean result = containsResources.get(descriptor);
+      if (result == null) {
+        result = reachesResources(descriptor, new HashSet<>());
+        containsResources.putIfAbsent(descriptor, result);
+      }
+      return result;
+    }
+
+    private static boolean reachesResources(Descriptor descriptor, Set<Descriptor> visited) {
+      if (descriptor.getName().equals("ContainedResource")
+          || descriptor.getFullName().equals(Any.getDescriptor().getFullName())) {
+        return true;
+      }
+      if (!visited.add(descriptor)) {
+        return false;
+      }
+      for (FieldDescriptor field : descriptor.getFields()) {
+        if (field.getType() == FieldDescriptor.Type.MESSAGE
+            && reachesResources(field.getMessageType(), visited)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** The fields selected by a field mask, as a tree of proto field names. */
+    private static final class FieldSelection {
+      // Selects all fields, recursively.
+      static final FieldSelection ALL = new FieldSelection(null);
+      // Selects no fields.
+      static final FieldSelection NONE = new FieldSelection(ImmutableMap.of());
+
+      // The selected fields, or null if all fields are selected.
+      private final Map<String, FieldSelection> children;
+
+      private FieldSelection(Map<String, FieldSelection> children) {
+        this.children = children;
+      }
+
+      /** Returns the selection within the named field, or null if it is not selected. */
+      FieldSelection select(String fieldName) {
+        return children == null ? ALL : children.get(fieldName);
+      }
+
+      static FieldSelection fromMask(Descriptor descriptor, FieldMask mask) {
+        FieldSelection root = new FieldSelection(new HashMap<>());
+        for (String path : mask.getPathsList()) {
+          List<String> names = Splitter.on('.').splitToList(path);
+          Descriptor type = descriptor;
+          for (String name : names) {
+            FieldDescriptor field = type == null ? null : type.findFieldByName(name);
+            if (field == null) {
+              throw new IllegalArgumentException(
+                  "Invalid field mask path " + path + " for " + descriptor.getFullName());
+            }
+            type = field.getType() == FieldDescriptor.Type.MESSAGE ? field.getMessageType() : null;
+          }
+          FieldSelection node = root;
+          for (int i = 0; i < names.size() && node != ALL; i++) {
+            if (i == names.size() - 1) {
+              node.children.put(names.get(i), ALL);
+            } else {
+              FieldSelection child = node.children.get(names.get(i));
+              if (child == null) {
+                child = new FieldSelection(new HashMap<>());
+                node.children.put(names.get(i), child);
+              }
+              node = child;
+            }
+          }
+        }
+        return root;
+      }
+    }
+
+    // The json field names of each message type.
+    private static final ConcurrentMap<Descriptor, Map<String, FieldDescriptor>> fieldMaps =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Returns the fields of a message type by their json names, including the names of the
+     * individual types of choice fields and the extension names of primitive fields.
+     */
+    static Map<String, FieldDescriptor> getFieldMap(Descriptor descriptor) {
+      Map<String, FieldDescriptor> nameToDescriptorMap = fieldMaps.get(descriptor);
+      if (nameToDescriptorMap == null) {
+        nameToDescriptorMap = Collections.unmodifiableMap(createFieldMap(descriptor));
+        fieldMaps.putIfAbsent(descriptor, nameToDescriptorMap);
+      }
+      return nameToDescriptorMap;
+    }
+
+    private static Map<String, FieldDescriptor> createFieldMap(Descriptor descriptor) {
       Map<String, FieldDescriptor> nameToDescriptorMap = new HashMap<>();
       for (FieldDescriptor field : descriptor.getFields()) {
         if (AnnotationUtils.isChoiceType(field)) {
@@ -795,6 +1542,19 @@ public final class JsonFormat {
 
     private void mergeChoiceField(
         FieldDescriptor field, String fieldName, JsonElement json, Message.Builder builder) {
+      FieldDescriptor choiceField = getChoiceField(field, fieldName);
+      Message.Builder choiceTypeBuilder;
+      if (builder.hasField(field)) {
+        choiceTypeBuilder = ((Message) builder.getField(field)).toBuilder();
+      } else {
+        choiceTypeBuilder = builder.newBuilderForField(field);
+      }
+      mergeField(choiceField, json, choiceTypeBuilder);
+      builder.setField(field, choiceTypeBuilder.build());
+    }
+
+    /** Returns the field within a choice type which holds the value of a json field. */
+    private static FieldDescriptor getChoiceField(FieldDescriptor field, String fieldName) {
       Descriptor descriptor = field.getMessageType();
       Map<String, FieldDescriptor> nameToDescriptorMap = getFieldMap(descriptor);
       String choiceFieldName;
@@ -818,14 +1578,7 @@ public final class JsonFormat {
                 + " for field "
                 + field.getName());
       }
-      Message.Builder choiceTypeBuilder;
-      if (builder.hasField(field)) {
-        choiceTypeBuilder = ((Message) builder.getField(field)).toBuilder();
-      } else {
-        choiceTypeBuilder = builder.newBuilderForField(field);
-      }
-      mergeField(choiceField, json, choiceTypeBuilder);
-      builder.setField(field, choiceTypeBuilder.build());
+      return choiceField;
     }
 
     private void mergeField(FieldDescriptor field, JsonElement json, Message.Builder builder) {
@@ -943,8 +1696,11 @@ public final class JsonFormat {
             "Error in FHIR proto definition: Field " + field + " is not a message.");
       }
 
-      Message.Builder subBuilder = builder.newBuilderForField(field);
+      return parseFieldValueInto(field, json, builder.newBuilderForField(field));
+    }
 
+    private Message parseFieldValueInto(
+        FieldDescriptor field, JsonElement json, Message.Builder subBuilder) {
       if (isPrimitiveType(field)) {
         if (json.isJsonObject()) {
           // Special-case primitive type extensions
@@ -973,8 +1729,269 @@ public final class JsonFormat {
         return subBuilder.build();
       }
     }
+
+    // Parsing into the wire format. This mirrors mergeMessage and mergeField above, but only
+    // builds leaf messages, and collects the fields of all other messages in a WireMessage.
+
+    private WireMessage toWireMessage(JsonObject json, Message prototype) {
+      Descriptor descriptor = prototype.getDescriptorForType();
+      if (descriptor.getName().equals("ContainedResource")) {
+        String resourceType = json.get("resourceType").getAsString();
+        FieldDescriptor resource =
+            RESOURCE_TYPES.get(AnnotationUtils.getFhirVersion(descriptor), resourceType);
+        if (resource == null) {
+          throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+        }
+        TreeMap<FieldDescriptor, Object> fields = new TreeMap<>();
+        fields.put(resource, toWireMessage(json, getFieldPrototype(prototype, resource)));
+        return new WireMessage(fields);
+      }
+
+      Map<String, FieldDescriptor> nameToDescriptorMap = getFieldMap(descriptor);
+      // The values of the fields, in field number order. Values are leaf messages, WireMessages,
+      // or lists of either.
+      TreeMap<FieldDescriptor, Object> fields = new TreeMap<>();
+      for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+        JsonElement element = entry.getValue();
+        String fieldName = entry.getKey();
+        FieldDescriptor field = nameToDescriptorMap.get(fieldName);
+        if (field != null) {
+          if (field.getMessageType().getFullName().equals(Any.getDescriptor().getFullName())) {
+            Message containedPrototype =
+                getContainedResourceForMessage(prototype).getDefaultInstanceForType();
+            JsonArray array = element.getAsJsonArray();
+            @SuppressWarnings("unchecked")
+            List<Object> values = (List<Object>) fields.get(field);
+            if (values == null) {
+              values = new ArrayList<>();
+              fields.put(field, values);
+            }
+            for (int i = 0; i < array.size(); i++) {
+              values.add(
+                  packAny(toWireMessage(array.get(i).getAsJsonObject(), containedPrototype)));
+            }
+          } else if (AnnotationUtils.isChoiceType(field)) {
+            putChoiceField(field, fieldName, element, prototype, fields);
+          } else {
+            putField(field, element, prototype, fields);
+          }
+        } else if (fieldName.equals("resourceType")) {
+          String inputType = element.getAsString();
+          if (!AnnotationUtils.isResource(descriptor) || !inputType.equals(descriptor.getName())) {
+            throw new IllegalArgumentException(
+                "Trying to parse a resource of type "
+                    + inputType
+                    + ", but the target field is of type "
+                    + descriptor.getFullName());
+          }
+        } else {
+          throw new IllegalArgumentException(
+              "Unknown field "
+                  + fieldName
+                  + " in input of expected type "
+                  + descriptor.getFullName()
+                  + ", known fields: "
+                  + String.join(" ", nameToDescriptorMap.keySet()));
+        }
+      }
+      return new WireMessage(fields);
+    }
+
+    private static WireMessage packAny(WireMessage containedResource) {
+      TreeMap<FieldDescriptor, Object> fields = new TreeMap<>();
+      fields.put(
+          Any.getDescriptor().findFieldByNumber(Any.TYPE_URL_FIELD_NUMBER),
+          ByteString.copyFromUtf8(
+              "type.googleapis.com/"
+                  + com.google.fhir.r4.core.ContainedResource.getDescriptor().getFullName()));
+      fields.put(
+          Any.getDescriptor().findFieldByNumber(Any.VALUE_FIELD_NUMBER), containedResource);
+      return new WireMessage(fields);
+    }
+
+    private void putChoiceField(
+        FieldDescriptor field,
+        String fieldName,
+        JsonElement json,
+        Message prototype,
+        Map<FieldDescriptor, Object> fields) {
+      FieldDescriptor choiceField = getChoiceField(field, fieldName);
+      Message choicePrototype = getFieldPrototype(prototype, field);
+      Object existing = fields.get(field);
+      if (isPrimitiveType(choiceField)
+          || AnnotationUtils.isReference(choiceField.getMessageType())) {
+        // Primitives may be split over two json fields, so we merge them as the parser does.
+        Message.Builder choiceTypeBuilder =
+            existing == null
+                ? choicePrototype.newBuilderForType()
+                : ((Message) existing).toBuilder();
+        mergeField(choiceField, json, choiceTypeBuilder);
+        fields.put(field, choiceTypeBuilder.build());
+        return;
+      }
+      if (existing != null) {
+        FieldDescriptor existingField =
+            existing instanceof WireMessage
+                ? ((WireMessage) existing).fields.keySet().iterator().next()
+                : ((Message) existing).getAllFields().keySet().iterator().next();
+        if (existingField.equals(choiceField)) {
+          throw new IllegalArgumentException(
+              "Field " + choiceField.getFullName() + " has already been set.");
+        }
+        throw new IllegalArgumentException(
+            "Cannot set field "
+                + choiceField.getFullName()
+                + " because another field "
+                + existingField.getFullName()
+                + " belonging to the same oneof has already been set ");
+      }
+      TreeMap<FieldDescriptor, Object> choice = new TreeMap<>();
+      choice.put(
+          choiceField,
+          toWireValue(choiceField, json, getFieldPrototype(choicePrototype, choiceField)));
+      fields.put(field, new WireMessage(choice));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putField(
+        FieldDescriptor field,
+        JsonElement json,
+        Message prototype,
+        Map<FieldDescriptor, Object> fields) {
+      Message fieldPrototype = getFieldPrototype(prototype, field);
+      Object existing = fields.get(field);
+      if (isPrimitiveType(field)) {
+        if (!field.isRepeated()) {
+          Message value = parseFieldValueInto(field, json, fieldPrototype.newBuilderForType());
+          fields.put(
+              field, existing == null ? value : mergePrimitiveField((Message) existing, value));
+          return;
+        }
+        if (!json.isJsonArray()) {
+          throw new IllegalArgumentException(
+              "Expected JsonArray for repeated field: " + field.getFullName());
+        }
+        JsonArray array = json.getAsJsonArray();
+        List<Object> previous = (List<Object>) existing;
+        if (previous != null && !previous.isEmpty() && previous.size() != array.size()) {
+          throw new IllegalArgumentException("Repeated field length mismatch for field: " + field);
+        }
+        List<Object> values = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); ++i) {
+          Message value =
+              parseFieldValueInto(field, array.get(i), fieldPrototype.newBuilderForType());
+          values.add(
+              previous == null || previous.isEmpty()
+                  ? value
+                  : mergePrimitiveField(value, (Message) previous.get(i)));
+        }
+        fields.put(field, values);
+        return;
+      }
+
+      if (existing != null && !(existing instanceof List && ((List<?>) existing).isEmpty())) {
+        throw new IllegalArgumentException(
+            "Field " + field.getFullName() + " has already been set.");
+      }
+      if (field.isRepeated()) {
+        if (!json.isJsonArray()) {
+          throw new IllegalArgumentException(
+              "Expected JsonArray for repeated field: " + field.getFullName());
+        }
+        JsonArray array = json.getAsJsonArray();
+        List<Object> values = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); ++i) {
+          values.add(toWireValue(field, array.get(i), fieldPrototype));
+        }
+        fields.put(field, values);
+      } else {
+        fields.put(field, toWireValue(field, json, fieldPrototype));
+      }
+    }
+
+    /** Converts the value of a non-primitive field, which is a WireMessage unless it is a leaf. */
+    private Object toWireValue(FieldDescriptor field, JsonElement json, Message prototype) {
+      if (AnnotationUtils.isReference(field.getMessageType())) {
+        return parseFieldValueInto(field, json, prototype.newBuilderForType());
+      }
+      if (!json.isJsonObject()) {
+        if (json.isJsonArray() && json.getAsJsonArray().size() == 1) {
+          JsonElement soleElement = json.getAsJsonArray().get(0);
+          if (soleElement.isJsonObject()) {
+            return toWireMessage(soleElement.getAsJsonObject(), prototype);
+          }
+        }
+        throw new IllegalArgumentException("Expected JsonObject for field " + field);
+      }
+      return toWireMessage(json.getAsJsonObject(), prototype);
+    }
   } // End JsonFormat class
 
+  /**
+   * The fields of a message which has not been built, along with its serialized size. Field values
+   * are leaf messages, nested WireMessages, raw bytes, or lists of these.
+   */
+  private static final class WireMessage {
+    private final Map<FieldDescriptor, Object> fields;
+    private final int serializedSize;
+
+    WireMessage(TreeMap<FieldDescriptor, Object> fields) {
+      this.fields = fields;
+      int size = 0;
+      for (Map.Entry<FieldDescriptor, Object> field : fields.entrySet()) {
+        int number = field.getKey().getNumber();
+        if (field.getValue() instanceof List) {
+          for (Object value : (List<?>) field.getValue()) {
+            size += computeFieldSize(number, value);
+          }
+        } else {
+          size += computeFieldSize(number, field.getValue());
+        }
+      }
+      this.serializedSize = size;
+    }
+
+    private static int computeFieldSize(int number, Object value) {
+      if (value instanceof WireMessage) {
+        int size = ((WireMessage) value).serializedSize;
+        return CodedOutputStream.computeTagSize(number)
+            + CodedOutputStream.computeUInt32SizeNoTag(size)
+            + size;
+      }
+      if (value instanceof ByteString) {
+        return CodedOutputStream.computeBytesSize(number, (ByteString) value);
+      }
+      return CodedOutputStream.computeMessageSize(number, (Message) value);
+    }
+
+    void writeTo(CodedOutputStream output) throws IOException {
+      for (Map.Entry<FieldDescriptor, Object> field : fields.entrySet()) {
+        int number = field.getKey().getNumber();
+        if (field.getValue() instanceof List) {
+          for (Object value : (List<?>) field.getValue()) {
+            writeField(output, number, value);
+          }
+        } else {
+          writeField(output, number, field.getValue());
+        }
+      }
+    }
+
+    private static void writeField(CodedOutputStream output, int number, Object value)
+        throws IOException {
+      if (value instanceof WireMessage) {
+        WireMessage message = (WireMessage) value;
+        output.writeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(message.serializedSize);
+        message.writeTo(output);
+      } else if (value instanceof ByteString) {
+        output.writeBytes(number, (ByteString) value);
+      } else {
+        output.writeMessage(number, (Message) value);
+      }
+    }
+  }
+
   private static Message.Builder getContainedResourceForMessage(MessageOrBuilder input) {
     switch (AnnotationUtils.getFhirVersion(input.getDescriptorForType())) {
       case R4:
@@ -0,0 +1,347 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only view of a FHIR resource in json format, which only parses the fields that are read.
+ *
+ * <p>On creation, the raw json is scanned once to find the offsets of the values of its top-level
+ * fields, without decoding any values. Each field is parsed with {@link JsonFormat.Parser} the
+ * first time it is read, so it has exactly the value it would have in a fully parsed resource, and
+ * the result is cached. Jobs which read a few fields of many resources thus cost little more than
+ * the index scan. The full resource can still be parsed with {@link #toMessage}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class LazyResource {
+
+  private final byte[] json;
+  private final Message prototype;
+  private final JsonFormat.Parser parser;
+  // The json names and value offsets of the top-level fields which hold each proto field. A field
+  // may be held by several json fields, e.g. birthDate and _birthDate.
+  private final Map<FieldDescriptor, List<JsonField>> index;
+  private final ConcurrentMap<FieldDescriptor, Object> values = new ConcurrentHashMap<>();
+
+  /** The location of a top-level json field. */
+  private static final class JsonField {
+    final String name;
+    final int valueStart;
+    final int valueEnd;
+
+    JsonField(String name, int valueStart, int valueEnd) {
+      this.name = name;
+      this.valueStart = valueStart;
+      this.valueEnd = valueEnd;
+    }
+  }
+
+  private LazyResource(
+      byte[] json,
+      Message prototype,
+      JsonFormat.Parser parser,
+      Map<FieldDescriptor, List<JsonField>> index) {
+    this.json = json;
+    this.prototype = prototype;
+    this.parser = parser;
+    this.index = index;
+  }
+
+  /**
+   * Create a view of a UTF-8 encoded json resource. The {@code prototype} is the default instance
+   * of the resource type, or of a ContainedResource type, in which case the resource type is taken
+   * from the resourceType field of the input. The json array is not copied, and must not be
+   * modified afterwards.
+   *
+   * @throws JsonSyntaxException if the input is not a json object
+   * @throws IllegalArgumentException if the input has fields which are not defined for the type
+   */
+  public static LazyResource create(byte[] json, Message prototype, JsonFormat.Parser parser) {
+    Map<String, int[]> offsets = new Scanner(json).scanObject();
+    if (prototype.getDescriptorForType().getName().equals("ContainedResource")) {
+      prototype = getResourcePrototype(prototype, resourceType(json, offsets));
+    }
+    Descriptor descriptor = prototype.getDescriptorForType();
+    Map<String, FieldDescriptor> fieldMap = JsonFormat.Parser.getFieldMap(descriptor);
+    Map<FieldDescriptor, List<JsonField>> index = new LinkedHashMap<>();
+    for (Map.Entry<String, int[]> entry : offsets.entrySet()) {
+      String name = entry.getKey();
+      FieldDescriptor field = fieldMap.get(name);
+      if (field == null) {
+        if (name.equals("resourceType")) {
+          continue;
+        }
+        throw new IllegalArgumentException(
+            "Unknown field " + name + " in input of expected type " + descriptor.getFullName());
+      }
+      List<JsonField> fields = index.get(field);
+      if (fields == null) {
+        fields = new ArrayList<>(1);
+        index.put(field, fields);
+      }
+      fields.add(new JsonField(name, entry.getValue()[0], entry.getValue()[1]));
+    }
+    return new LazyResource(json, prototype, parser, index);
+  }
+
+  private static String resourceType(byte[] json, Map<String, int[]> offsets) {
+    int[] value = offsets.get("resourceType");
+    if (value == null) {
+      throw new IllegalArgumentException("Missing resourceType for a contained resource");
+    }
+    return decodeString(json, value[0], value[1]);
+  }
+
+  /** Decodes a json string literal, given the offsets of its quotes. */
+  private static String decodeString(byte[] json, int start, int end) {
+    for (int i = start + 1; i < end - 1; i++) {
+      if (json[i] == '\\') {
+        return new JsonParser().parse(new String(json, start, end - start, UTF_8)).getAsString();
+      }
+    }
+    return new String(json, start + 1, end - start - 2, UTF_8);
+  }
+
+  private static Message getResourcePrototype(Message containedResource, String resourceType) {
+    for (FieldDescriptor field : containedResource.getDescriptorForType().getFields()) {
+      if (field.getMessageType().getName().equals(resourceType)) {
+        return containedResource
+            .newBuilderForType()
+            .newBuilderForField(field)
+            .getDefaultInstanceForType();
+      }
+    }
+    throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+  }
+
+  /** Returns the descriptor of the resource type. */
+  public Descriptor getDescriptorForType() {
+    return prototype.getDescriptorForType();
+  }
+
+  /** Returns whether the resource has a value for the field, without parsing it. */
+  public boolean hasField(FieldDescriptor field) {
+    return index.containsKey(checkField(field));
+  }
+
+  /** Returns the fields which have values, in input order, without parsing them. */
+  public List<FieldDescriptor> getPresentFields() {
+    return Collections.unmodifiableList(new ArrayList<>(index.keySet()));
+  }
+
+  /**
+   * Returns the value of a field, parsing it if this is the first time it is read. As with {@link
+   * Message#getField}, this is a message for singular fields and a list of messages for repeated
+   * fields, with the default value if the field is not present.
+   */
+  public Object getField(FieldDescriptor field) {
+    Object value = values.get(checkField(field));
+    if (value == null) {
+      value = parseField(field);
+      values.putIfAbsent(field, value);
+    }
+    return value;
+  }
+
+  /** Returns the value of the named field, as in {@link #getField(FieldDescriptor)}. */
+  public Object getField(String fieldName) {
+    FieldDescriptor field = getDescriptorForType().findFieldByName(fieldName);
+    if (field == null) {
+      throw new IllegalArgumentException(
+          "Unknown field " + fieldName + " in " + getDescriptorForType().getFullName());
+    }
+    return getField(field);
+  }
+
+  /** Parses the complete resource. */
+  public Message toMessage() {
+    Message.Builder builder = prototype.newBuilderForType();
+    parser.merge(new String(json, UTF_8), builder);
+    return builder.build();
+  }
+
+  /** Returns the raw json of the resource. */
+  public byte[] toByteArray() {
+    return json.clone();
+  }
+
+  private FieldDescriptor checkField(FieldDescriptor field) {
+    if (field.getContainingType() != getDescriptorForType()) {
+      throw new IllegalArgumentException(
+          "Field " + field.getFullName() + " does not belong to " + getDescriptorForType());
+    }
+    return field;
+  }
+
+  private Object parseField(FieldDescriptor field) {
+    Message.Builder builder = prototype.newBuilderForType();
+    List<JsonField> fields = index.get(field);
+    if (fields != null) {
+      // Parse a resource holding only this field, so that it gets the same value as in the full
+      // resource.
+      StringBuilder partial = new StringBuilder("{");
+      for (JsonField jsonField : fields) {
+        if (partial.length() > 1) {
+          partial.append(',');
+        }
+        partial
+            .append(new JsonPrimitive(jsonField.name))
+            .append(':')
+            .append(
+                new String(
+                    json, jsonField.valueStart, jsonField.valueEnd - jsonField.valueStart, UTF_8));
+      }
+      parser.merge(partial.append('}'), builder);
+    }
+    return builder.getField(field);
+  }
+
+  /**
+   * Finds the top-level fields of a json object and the offsets of their values, skipping over
+   * nested values without decoding them.
+   */
+  private static final class Scanner {
+    private final byte[] json;
+    private int position = 0;
+
+    Scanner(byte[] json) {
+      this.json = json;
+    }
+
+    Map<String, int[]> scanObject() {
+      Map<String, int[]> offsets = new LinkedHashMap<>();
+      skipWhitespace();
+      expect('{');
+      skipWhitespace();
+      if (peek() == '}') {
+        position++;
+        return offsets;
+      }
+      while (true) {
+        skipWhitespace();
+        int nameStart = position;
+        skipString();
+        String name = decodeString(json, nameStart, position);
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        int valueStart = position;
+        skipValue();
+        if (offsets.put(name, new int[] {valueStart, position}) != null) {
+          throw error("Duplicate field " + name);
+        }
+        skipWhitespace();
+        if (peek() == '}') {
+          position++;
+          return offsets;
+        }
+        expect(',');
+      }
+    }
+
+    private void skipValue() {
+      byte next = peek();
+      if (next == '"') {
+        skipString();
+      } else if (next == '{' || next == '[') {
+        // Skip the nested value by tracking the depth, skipping strings which may contain brackets.
+        int depth = 0;
+        do {
+          byte current = peek();
+          if (current == '"') {
+            skipString();
+            continue;
+          }
+          if (current == '{' || current == '[') {
+            depth++;
+          } else if (current == '}' || current == ']') {
+            depth--;
+          }
+          position++;
+        } while (depth > 0);
+      } else {
+        // A number, boolean or null.
+        int start = position;
+        while (position < json.length && !isDelimiter(json[position])) {
+          position++;
+        }
+        if (position == start) {
+          throw error("Expected a value");
+        }
+      }
+    }
+
+    private void skipString() {
+      expect('"');
+      while (true) {
+        byte current = peek();
+        position++;
+        if (current == '\\') {
+          position++;
+        } else if (current == '"') {
+          return;
+        }
+      }
+    }
+
+    private void skipWhitespace() {
+      while (position < json.length
+          && (json[position] == ' '
+              || json[position] == '\n'
+              || json[position] == '\r'
+              || json[position] == '\t')) {
+        position++;
+      }
+    }
+
+    private static boolean isDelimiter(byte b) {
+      return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private byte peek() {
+      if (position >= json.length) {
+        throw error("Unexpected end of input");
+      }
+      return json[position];
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw error("Expected '" + c + "'");
+      }
+      position++;
+    }
+
+    private JsonSyntaxException error(String message) {
+      return new JsonSyntaxException(message + " at offset " + position);
+    }
+  }
+}
@@ -0,0 +1,425 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selects lines of FHIR ndjson by simple predicates on the resource type, id, code and subject,
+ * without parsing the lines which do not match. This is meant to run ahead of {@link
+ * JsonFormat.Parser}, when only a small part of a large mixed ndjson input is needed, e.g. the
+ * Observations with a given LOINC code.
+ *
+ * <p>Each line is checked in two stages. First, the raw line is searched for the values the
+ * predicates ask for; a line which contains none of the accepted values of some predicate can not
+ * match. Lines which pass are then tokenized, reading only the resourceType, id, code and subject
+ * fields and skipping over all others, until every predicate has been decided.
+ *
+ * <p>Predicates of different kinds must all hold, and a predicate holds if any of its values
+ * match. A filter without predicates accepts every line. Filters are immutable and thread-safe,
+ * and count the lines they skip and accept.
+ */
+public final class NdJsonFilter {
+
+  private final ImmutableSet<String> resourceTypes;
+  private final ImmutableSet<String> ids;
+  private final ImmutableSet<Coding> codes;
+  private final ImmutableSet<String> subjects;
+
+  // The literal byte sequences which must occur in a matching line, one list of alternatives for
+  // each predicate.
+  private final ImmutableList<List<byte[]>> needles;
+
+  private final AtomicLong skippedByPrecheck = new AtomicLong();
+  private final AtomicLong skippedByScan = new AtomicLong();
+  private final AtomicLong accepted = new AtomicLong();
+
+  /** A code and the system which defines it. */
+  private static final class Coding {
+    final String system;
+    final String code;
+
+    Coding(String system, String code) {
+      this.system = system;
+      this.code = code;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Coding)) {
+        return false;
+      }
+      Coding coding = (Coding) other;
+      return system.equals(coding.system) && code.equals(coding.code);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * system.hashCode() + code.hashCode();
+    }
+  }
+
+  private NdJsonFilter(
+      ImmutableSet<String> resourceTypes,
+      ImmutableSet<String> ids,
+      ImmutableSet<Coding> codes,
+      ImmutableSet<String> subjects) {
+    this.resourceTypes = resourceTypes;
+    this.ids = ids;
+    this.codes = codes;
+    this.subjects = subjects;
+    ImmutableList.Builder<List<byte[]>> needles = ImmutableList.builder();
+    addNeedles(needles, resourceTypes);
+    addNeedles(needles, ids);
+    List<String> codeValues = new ArrayList<>();
+    for (Coding coding : codes) {
+      codeValues.add(coding.code);
+    }
+    addNeedles(needles, codeValues);
+    addNeedles(needles, subjects);
+    this.needles = needles.build();
+  }
+
+  /** Returns a filter which accepts every line. */
+  public static NdJsonFilter acceptingAll() {
+    return new NdJsonFilter(
+        ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of());
+  }
+
+  /** Returns a filter which only accepts resources of one of the given types, e.g. Observation. */
+  public NdJsonFilter withResourceTypes(Iterable<String> resourceTypes) {
+    return new NdJsonFilter(union(this.resourceTypes, resourceTypes), ids, codes, subjects);
+  }
+
+  /** Returns a filter which only accepts resources with one of the given logical ids. */
+  public NdJsonFilter withIds(Iterable<String> ids) {
+    return new NdJsonFilter(resourceTypes, union(this.ids, ids), codes, subjects);
+  }
+
+  /**
+   * Returns a filter which only accepts resources whose code field has a coding with the given
+   * system and code, in addition to any codes accepted so far.
+   */
+  public NdJsonFilter withCode(String system, String code) {
+    return new NdJsonFilter(
+        resourceTypes,
+        ids,
+        union(codes, ImmutableList.of(new Coding(system, code))),
+        subjects);
+  }
+
+  /**
+   * Returns a filter which only accepts resources whose subject refers to one of the given
+   * resources, e.g. Patient/123. References to specific versions of these resources are accepted.
+   */
+  public NdJsonFilter withSubjects(Iterable<String> subjects) {
+    return new NdJsonFilter(resourceTypes, ids, codes, union(this.subjects, subjects));
+  }
+
+  /** Returns whether this filter accepts every line. */
+  public boolean acceptsAll() {
+    return resourceTypes.isEmpty() && ids.isEmpty() && codes.isEmpty() && subjects.isEmpty();
+  }
+
+  /** Returns whether a line of ndjson, holding a single resource, matches this filter. */
+  public boolean matches(String line) {
+    if (acceptsAll()) {
+      accepted.incrementAndGet();
+      return true;
+    }
+    for (List<byte[]> alternatives : needles) {
+      if (!containsAny(line, alternatives)) {
+        skippedByPrecheck.incrementAndGet();
+        return false;
+      }
+    }
+    return scan(line);
+  }
+
+  /**
+   * Returns whether a line of ndjson, holding a single UTF-8 encoded resource, matches this filter.
+   * Lines are only decoded once they pass the byte-level check.
+   */
+  public boolean matches(byte[] line, int offset, int length) {
+    if (acceptsAll()) {
+      accepted.incrementAndGet();
+      return true;
+    }
+    for (List<byte[]> alternatives : needles) {
+      if (!containsAny(line, offset, length, alternatives)) {
+        skippedByPrecheck.incrementAndGet();
+        return false;
+      }
+    }
+    return scan(new String(line, offset, length, UTF_8));
+  }
+
+  /** Returns the number of lines which were skipped by the byte-level check. */
+  public long getSkippedByPrecheckCount() {
+    return skippedByPrecheck.get();
+  }
+
+  /** Returns the number of lines which were skipped after reading their predicate fields. */
+  public long getSkippedByScanCount() {
+    return skippedByScan.get();
+  }
+
+  /** Returns the number of lines which were skipped. */
+  public long getSkippedCount() {
+    return skippedByPrecheck.get() + skippedByScan.get();
+  }
+
+  /** Returns the number of lines which matched, and so need to be parsed. */
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  private boolean scan(String line) {
+    boolean result;
+    try {
+      result = scanResource(new JsonReader(new StringReader(line)));
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new JsonParseException("Malformed resource: " + line, e);
+    }
+    if (result) {
+      accepted.incrementAndGet();
+    } else {
+      skippedByScan.incrementAndGet();
+    }
+    return result;
+  }
+
+  private boolean scanResource(JsonReader reader) throws IOException {
+    boolean typeMatches = resourceTypes.isEmpty();
+    boolean idMatches = ids.isEmpty();
+    boolean codeMatches = codes.isEmpty();
+    boolean subjectMatches = subjects.isEmpty();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (typeMatches && idMatches && codeMatches && subjectMatches) {
+        // There's no need to read the rest of the line.
+        return true;
+      }
+      String name = reader.nextName();
+      if (name.equals("resourceType") && !resourceTypes.isEmpty()) {
+        typeMatches = resourceTypes.contains(nextString(reader));
+        if (!typeMatches) {
+          return false;
+        }
+      } else if (name.equals("id") && !ids.isEmpty()) {
+        idMatches = ids.contains(nextString(reader));
+        if (!idMatches) {
+          return false;
+        }
+      } else if (name.equals("code") && !codes.isEmpty()) {
+        codeMatches = scanCodeableConcept(reader);
+        if (!codeMatches) {
+          return false;
+        }
+      } else if (name.equals("subject") && !subjects.isEmpty()) {
+        subjectMatches = scanReference(reader);
+        if (!subjectMatches) {
+          return false;
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    return typeMatches && idMatches && codeMatches && subjectMatches;
+  }
+
+  private boolean scanCodeableConcept(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return false;
+    }
+    boolean matches = false;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("coding") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          matches |= scanCoding(reader);
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return matches;
+  }
+
+  private boolean scanCoding(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return false;
+    }
+    String system = null;
+    String code = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("system")) {
+        system = nextString(reader);
+      } else if (name.equals("code")) {
+        code = nextString(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return system != null && code != null && codes.contains(new Coding(system, code));
+  }
+
+  private boolean scanReference(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return false;
+    }
+    String reference = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("reference")) {
+        reference = nextString(reader);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (reference == null) {
+      return false;
+    }
+    int history = reference.indexOf("/_history/");
+    return subjects.contains(history == -1 ? reference : reference.substring(0, history));
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.STRING) {
+      reader.skipValue();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  private static <T> ImmutableSet<T> union(ImmutableSet<T> first, Iterable<? extends T> second) {
+    return ImmutableSet.<T>builder().addAll(first).addAll(second).build();
+  }
+
+  /**
+   * Adds the byte sequences which any line matching one of {@code values} must contain. Since json
+   * writers may escape some characters, e.g. "\/" for "/", we only search for the longest part of
+   * each value which is never escaped in practice. If some value has no such part, no line can be
+   * ruled out, so no needles are added for the predicate.
+   */
+  private static void addNeedles(
+      ImmutableList.Builder<List<byte[]>> needles, Iterable<String> values) {
+    List<byte[]> alternatives = new ArrayList<>();
+    for (String value : values) {
+      String needle = longestUnescapedPart(value);
+      if (needle.isEmpty()) {
+        return;
+      }
+      alternatives.add(needle.getBytes(UTF_8));
+    }
+    if (!alternatives.isEmpty()) {
+      needles.add(alternatives);
+    }
+  }
+
+  private static String longestUnescapedPart(String value) {
+    String longest = "";
+    int start = 0;
+    for (int i = 0; i <= value.length(); i++) {
+      if (i == value.length() || !isNeverEscaped(value.charAt(i))) {
+        if (i - start > longest.length()) {
+          longest = value.substring(start, i);
+        }
+        start = i + 1;
+      }
+    }
+    return longest;
+  }
+
+  // Printable ASCII, apart from the characters which are escaped by some writers, e.g. gson's
+  // HTML-safe mode.
+  private static boolean isNeverEscaped(char c) {
+    return c >= 0x20 && c < 0x7f && "\"\\/<>&='".indexOf(c) == -1;
+  }
+
+  private static boolean containsAny(String line, List<byte[]> alternatives) {
+    for (byte[] needle : alternatives) {
+      if (indexOf(line, needle) != -1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Needles are ASCII, so they can be compared to the chars of the line one by one.
+  private static int indexOf(String line, byte[] needle) {
+    char first = (char) needle[0];
+    int last = line.length() - needle.length;
+    for (int i = line.indexOf(first); i != -1 && i <= last; i = line.indexOf(first, i + 1)) {
+      int j = 1;
+      while (j < needle.length && line.charAt(i + j) == needle[j]) {
+        j++;
+      }
+      if (j == needle.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean containsAny(
+      byte[] line, int offset, int length, List<byte[]> alternatives) {
+    for (byte[] needle : alternatives) {
+      if (indexOf(line, offset, length, needle) != -1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOf(byte[] line, int offset, int length, byte[] needle) {
+    byte first = needle[0];
+    int last = offset + length - needle.length;
+    for (int i = offset; i <= last; i++) {
+      if (line[i] != first) {
+        continue;
+      }
+      int j = 1;
+      while (j < needle.length && line[i + j] == needle[j]) {
+        j++;
+      }
+      if (j == needle.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,516 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Joins two sets of json objects, one per line, on the id of a referenced resource, inlining the
+ * referenced object into each row which refers to it. This is meant for analytic json, where
+ * references are typed ids, e.g. joining Observations with their Encounters on {@code
+ * encounter.encounterId} = {@code id}, giving each Observation an {@code encounter} object which
+ * holds selected fields of its Encounter.
+ *
+ * <p>The smaller, build side is read into a hash table, keeping only the selected fields of each
+ * row, and the larger, probe side is streamed through it, so rows are output in probe order. If
+ * the build side takes more than a given amount of memory, both sides are split by the hash of
+ * their keys into partitions on disk, and each pair of partitions is joined in turn, partitioning
+ * it further if needed (a grace hash join). Output is then ordered by partition.
+ *
+ * <p>Instead of reading a build side, the build row of each key can be looked up, e.g. in a {@link
+ * ResourceArchive} through a {@link ResourceCache}; the probe side is then streamed once, and
+ * nothing is spilled.
+ *
+ * <p>Keys are dot-separated paths of fields holding strings or numbers, or objects holding them
+ * as {@code value}, such as the ids printed by the protobuf JsonFormat; rows without a key, and
+ * rows with no matching build row, are output unchanged unless this is an inner join. If several
+ * build rows have the same key, the last one is used.
+ *
+ * <p>This class is thread-safe, as long as each join uses its own inputs and output.
+ */
+public final class NdJsonHashJoin {
+
+  public static final long DEFAULT_MAX_BUILD_BYTES = 256L * 1024 * 1024;
+  public static final int DEFAULT_PARTITIONS = 32;
+
+  // Beyond this depth of partitioning, partitions are joined in memory, which bounds the recursion
+  // when many build rows share a key.
+  private static final int MAX_DEPTH = 4;
+  // The estimated memory used by a hash table entry, besides the chars of its key and value.
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final List<String> buildKey;
+  private final List<String> probeKey;
+  private final String targetField;
+  private final Set<String> fields;
+  private final long maxBuildBytes;
+  private final int partitions;
+  private final Path tempDirectory;
+  private final boolean innerJoin;
+
+  private NdJsonHashJoin(Builder builder) {
+    this.buildKey = Splitter.on('.').splitToList(builder.buildKey);
+    this.probeKey = Splitter.on('.').splitToList(builder.probeKey);
+    this.targetField = builder.targetField;
+    this.fields = builder.fields;
+    this.maxBuildBytes = builder.maxBuildBytes;
+    this.partitions = builder.partitions;
+    this.tempDirectory = builder.tempDirectory;
+    this.innerJoin = builder.innerJoin;
+  }
+
+  /**
+   * Returns a builder for a join of probe rows whose {@code probeKey} equals the {@code buildKey}
+   * of a build row, e.g. "subject.patientId" and "id", inlining the build row into the probe row as
+   * {@code targetField}.
+   */
+  public static Builder newBuilder(String buildKey, String probeKey, String targetField) {
+    return new Builder(buildKey, probeKey, targetField);
+  }
+
+  /** Builder that can be used to obtain new instances of {@link NdJsonHashJoin}. */
+  public static final class Builder {
+    private final String buildKey;
+    private final String probeKey;
+    private final String targetField;
+    private final Set<String> fields = new LinkedHashSet<>();
+    private long maxBuildBytes = DEFAULT_MAX_BUILD_BYTES;
+    private int partitions = DEFAULT_PARTITIONS;
+    private Path tempDirectory = null;
+    private boolean innerJoin = false;
+
+    private Builder(String buildKey, String probeKey, String targetField) {
+      this.buildKey = buildKey;
+      this.probeKey = probeKey;
+      this.targetField = targetField;
+    }
+
+    /** Only inlines the given top-level fields of build rows, rather than all of them. */
+    public Builder withFields(Iterable<String> fields) {
+      for (String field : fields) {
+        this.fields.add(field);
+      }
+      return this;
+    }
+
+    /** Partitions the inputs on disk once the build rows take about this much memory. */
+    public Builder withMaxBuildBytes(long maxBuildBytes) {
+      this.maxBuildBytes = maxBuildBytes;
+      return this;
+    }
+
+    /** Sets the number of partitions the inputs are split into, when they don't fit in memory. */
+    public Builder withPartitions(int partitions) {
+      if (partitions < 2) {
+        throw new IllegalArgumentException("There must be at least 2 partitions");
+      }
+      this.partitions = partitions;
+      return this;
+    }
+
+    /** Sets the directory of partition files, which is the default temporary directory if unset. */
+    public Builder withTempDirectory(Path tempDirectory) {
+      this.tempDirectory = tempDirectory;
+      return this;
+    }
+
+    /** Drops probe rows without a matching build row, rather than outputting them unchanged. */
+    public Builder withInnerJoin(boolean innerJoin) {
+      this.innerJoin = innerJoin;
+      return this;
+    }
+
+    public NdJsonHashJoin build() {
+      return new NdJsonHashJoin(this);
+    }
+  }
+
+  /** Looks up the build row of a key, for joins without a build side. */
+  public interface Lookup {
+    /** Returns the build row of the key, or null if there is none. */
+    String lookup(String key) throws IOException;
+  }
+
+  /** The number of rows read and written by a join. */
+  public static final class Result {
+    private long buildRows = 0;
+    private long probeRows = 0;
+    private long probeRowsWithoutKey = 0;
+    private long matchedRows = 0;
+    private long outputRows = 0;
+    private long spilledPartitions = 0;
+
+    /** Returns the number of build rows read, or looked up and found. */
+    public long getBuildRows() {
+      return buildRows;
+    }
+
+    public long getProbeRows() {
+      return probeRows;
+    }
+
+    /** Returns the number of probe rows which have no key, and so can't match a build row. */
+    public long getProbeRowsWithoutKey() {
+      return probeRowsWithoutKey;
+    }
+
+    /** Returns the number of probe rows into which a build row was inlined. */
+    public long getMatchedRows() {
+      return matchedRows;
+    }
+
+    public long getOutputRows() {
+      return outputRows;
+    }
+
+    /** Returns the number of partitions written to disk, at all depths. */
+    public long getSpilledPartitions() {
+      return spilledPartitions;
+    }
+  }
+
+  /**
+   * Joins the build and probe rows, writing the output rows to {@code output}, each followed by a
+   * newline. Blank lines are skipped.
+   *
+   * @throws com.google.gson.JsonSyntaxException if a row is not a json object
+   * @throws IllegalArgumentException if a probe row already has the target field
+   */
+  public Result join(Iterator<String> buildRows, Iterator<String> probeRows, Writer output)
+      throws IOException {
+    Result result = new Result();
+    Iterator<Map.Entry<String, String>> build =
+        new Iterator<Map.Entry<String, String>>() {
+          private Map.Entry<String, String> next = null;
+
+          @Override
+          public boolean hasNext() {
+            while (next == null && buildRows.hasNext()) {
+              String line = buildRows.next();
+              if (line.trim().isEmpty()) {
+                continue;
+              }
+              result.buildRows++;
+              next = project(line);
+            }
+            return next != null;
+          }
+
+          @Override
+          public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = null;
+            return entry;
+          }
+        };
+    join(build, probeRows, output, 0, result);
+    return result;
+  }
+
+  /**
+   * Joins the probe rows with the build rows looked up by their keys, writing the output rows to
+   * {@code output} as in {@link #join(Iterator, Iterator, Writer)}. Each probe row takes one
+   * lookup, so lookups should be cached.
+   */
+  public Result join(Lookup lookup, Iterator<String> probeRows, Writer output)
+      throws IOException {
+    Result result = new Result();
+    while (probeRows.hasNext()) {
+      String line = probeRows.next();
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      JsonObject row = new JsonParser().parse(line).getAsJsonObject();
+      String key = getKey(row, probeKey);
+      result.probeRows++;
+      String match = null;
+      if (key == null) {
+        result.probeRowsWithoutKey++;
+      } else {
+        String buildRow = lookup.lookup(key);
+        if (buildRow != null) {
+          result.buildRows++;
+          match = project(buildRow, new JsonParser().parse(buildRow).getAsJsonObject());
+        }
+      }
+      emit(line, row, match, output, result);
+    }
+    return result;
+  }
+
+  /** Returns the key and the selected fields of a build row, or null if it has no key. */
+  private Map.Entry<String, String> project(String line) {
+    JsonObject row = new JsonParser().parse(line).getAsJsonObject();
+    String key = getKey(row, buildKey);
+    if (key == null) {
+      return null;
+    }
+    return new AbstractMap.SimpleImmutableEntry<>(key, project(line, row));
+  }
+
+  /** Returns the selected fields of a build row. */
+  private String project(String line, JsonObject row) {
+    if (fields.isEmpty()) {
+      return line.trim();
+    }
+    JsonObject projected = new JsonObject();
+    for (String field : fields) {
+      JsonElement value = row.get(field);
+      if (value != null) {
+        projected.add(field, value);
+      }
+    }
+    return projected.toString();
+  }
+
+  private static String getKey(JsonObject row, List<String> path) {
+    JsonElement value = row;
+    for (String field : path) {
+      if (!value.isJsonObject()) {
+        return null;
+      }
+      value = value.getAsJsonObject().get(field);
+      if (value == null) {
+        return null;
+      }
+    }
+    if (value.isJsonObject() && value.getAsJsonObject().has("value")) {
+      value = value.getAsJsonObject().get("value");
+    }
+    return value.isJsonPrimitive() ? value.getAsString() : null;
+  }
+
+  private void join(
+      Iterator<Map.Entry<String, String>> build,
+      Iterator<String> probe,
+      Writer output,
+      int depth,
+      Result result)
+      throws IOException {
+    Map<String, String> table = new HashMap<>();
+    long tableBytes = 0;
+    Partitions spill = null;
+    while (build.hasNext()) {
+      Map.Entry<String, String> entry = build.next();
+      if (spill != null) {
+        spill.writeBuild(entry.getKey(), entry.getValue());
+        continue;
+      }
+      String old = table.put(entry.getKey(), entry.getValue());
+      tableBytes += 2L * (entry.getKey().length() + entry.getValue().length()) + ENTRY_OVERHEAD;
+      if (old != null) {
+        tableBytes -= 2L * (entry.getKey().length() + old.length()) + ENTRY_OVERHEAD;
+      }
+      if (tableBytes > maxBuildBytes && depth < MAX_DEPTH) {
+        spill = new Partitions(depth, result);
+        for (Map.Entry<String, String> held : table.entrySet()) {
+          spill.writeBuild(held.getKey(), held.getValue());
+        }
+        table = null;
+      }
+    }
+
+    if (spill == null) {
+      while (probe.hasNext()) {
+        String line = probe.next();
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        JsonObject row = new JsonParser().parse(line).getAsJsonObject();
+        String key = getKey(row, probeKey);
+        if (depth == 0) {
+          result.probeRows++;
+          if (key == null) {
+            result.probeRowsWithoutKey++;
+          }
+        }
+        emit(line, row, key == null ? null : table.get(key), output, result);
+      }
+      return;
+    }
+
+    try {
+      while (probe.hasNext()) {
+        String line = probe.next();
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        JsonObject row = new JsonParser().parse(line).getAsJsonObject();
+        String key = getKey(row, probeKey);
+        if (depth == 0) {
+          result.probeRows++;
+          if (key == null) {
+            result.probeRowsWithoutKey++;
+          }
+        }
+        if (key == null) {
+          emit(line, row, null, output, result);
+        } else {
+          spill.writeProbe(key, line);
+        }
+      }
+      spill.closeWriters();
+      for (int i = 0; i < partitions; i++) {
+        try (BufferedReader buildPartition = Files.newBufferedReader(spill.getBuildFile(i), UTF_8);
+            BufferedReader probePartition = Files.newBufferedReader(spill.getProbeFile(i), UTF_8)) {
+          join(
+              buildPartition.lines().map(NdJsonHashJoin::decodeEntry).iterator(),
+              probePartition.lines().iterator(),
+              output,
+              depth + 1,
+              result);
+        }
+        Files.delete(spill.getBuildFile(i));
+        Files.delete(spill.getProbeFile(i));
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      spill.delete();
+    }
+  }
+
+  /** Writes a probe row, with the build row inlined if there is one. */
+  private void emit(String line, JsonObject row, String match, Writer output, Result result)
+      throws IOException {
+    if (match == null) {
+      if (!innerJoin) {
+        output.write(line.trim());
+        output.write('\n');
+        result.outputRows++;
+      }
+      return;
+    }
+    if (row.has(targetField)) {
+      throw new IllegalArgumentException("Probe row already has a field " + targetField);
+    }
+    // Append the field to the row as it is, rather than printing the parsed row.
+    String trimmed = line.trim();
+    output.write(trimmed, 0, trimmed.length() - 1);
+    if (row.size() > 0) {
+      output.write(',');
+    }
+    output.write(new JsonPrimitive(targetField).toString());
+    output.write(':');
+    output.write(match);
+    output.write("}\n");
+    result.matchedRows++;
+    result.outputRows++;
+  }
+
+  // Build rows are written to partitions as their json-quoted key, a tab and their value. Since
+  // json strings can't hold a raw tab, the first tab ends the key.
+  private static String encodeEntry(String key, String value) {
+    return new JsonPrimitive(key) + "\t" + value;
+  }
+
+  private static Map.Entry<String, String> decodeEntry(String line) {
+    int tab = line.indexOf('\t');
+    return new AbstractMap.SimpleImmutableEntry<>(
+        new JsonParser().parse(line.substring(0, tab)).getAsString(), line.substring(tab + 1));
+  }
+
+  /** The partition files of one level of partitioning. */
+  private final class Partitions {
+    private final int depth;
+    private final Path directory;
+    private final List<BufferedWriter> buildWriters = new ArrayList<>();
+    private final List<BufferedWriter> probeWriters = new ArrayList<>();
+
+    Partitions(int depth, Result result) throws IOException {
+      this.depth = depth;
+      this.directory =
+          tempDirectory == null
+              ? Files.createTempDirectory("hash-join")
+              : Files.createTempDirectory(tempDirectory, "hash-join");
+      for (int i = 0; i < partitions; i++) {
+        buildWriters.add(Files.newBufferedWriter(getBuildFile(i), UTF_8));
+        probeWriters.add(Files.newBufferedWriter(getProbeFile(i), UTF_8));
+      }
+      result.spilledPartitions += partitions;
+    }
+
+    Path getBuildFile(int partition) {
+      return directory.resolve("build-" + partition);
+    }
+
+    Path getProbeFile(int partition) {
+      return directory.resolve("probe-" + partition);
+    }
+
+    void writeBuild(String key, String value) throws IOException {
+      BufferedWriter writer = buildWriters.get(getPartition(key));
+      writer.write(encodeEntry(key, value));
+      writer.write('\n');
+    }
+
+    void writeProbe(String key, String line) throws IOException {
+      BufferedWriter writer = probeWriters.get(getPartition(key));
+      writer.write(line.trim());
+      writer.write('\n');
+    }
+
+    /** Returns the partition of a key, which is hashed differently at each depth. */
+    private int getPartition(String key) {
+      int hash = key.hashCode() ^ (depth * 0x9e3779b9);
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      return Math.floorMod(hash, partitions);
+    }
+
+    void closeWriters() throws IOException {
+      for (BufferedWriter writer : buildWriters) {
+        writer.close();
+      }
+      for (BufferedWriter writer : probeWriters) {
+        writer.close();
+      }
+    }
+
+    void delete() throws IOException {
+      closeWriters();
+      for (int i = 0; i < partitions; i++) {
+        Files.deleteIfExists(getBuildFile(i));
+        Files.deleteIfExists(getProbeFile(i));
+      }
+      Files.deleteIfExists(directory);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.proto.Annotations;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The maximum recursive depth of analytic FHIR JSON, shared by {@link
+ * JsonFormat.Printer#forAnalytics} and {@link BigQuerySchema} so that printed data always fits the
+ * generated schema.
+ *
+ * <p>The recursion depth of a field is the number of times its type already occurs on the path from
+ * the root message to the field. Fields deeper than the limit are dropped, so with a depth of zero,
+ * Composition.section.section and QuestionnaireResponse.item.answer.item are not included.
+ * References are distinguished by their allowed target types, so that e.g. a
+ * Reference(Organization) under the identifier of a Reference(Resource) is not considered
+ * recursive.
+ *
+ * <p>By default there is no limit: printers keep all nested fields, and {@link BigQuerySchema} only
+ * drops fields of the same type as the message holding them, such as Composition.section.section.
+ */
+public final class RecursionLimit {
+
+  /** A maximum recursion depth which puts no limit on nesting. */
+  public static final int UNLIMITED = Integer.MAX_VALUE;
+
+  /** The maximum recursion depth used when none is specified. */
+  public static final int DEFAULT_MAX_RECURSION_DEPTH = UNLIMITED;
+
+  private RecursionLimit() {}
+
+  /**
+   * The type of a message-valued field, for the purposes of recursion counting. For references
+   * this includes the valid reference types of the field; for all other messages {@code
+   * references} is null.
+   */
+  static final class TypeKey {
+    final Descriptor descriptor;
+    final ImmutableSet<String> references;
+
+    private TypeKey(Descriptor descriptor, ImmutableSet<String> references) {
+      this.descriptor = descriptor;
+      this.references = references;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof TypeKey)) {
+        return false;
+      }
+      TypeKey that = (TypeKey) other;
+      return descriptor == that.descriptor && Objects.equals(references, that.references);
+    }
+
+    @Override
+    public int hashCode() {
+      return descriptor.hashCode() * 31 + Objects.hashCode(references);
+    }
+  }
+
+  private static final ConcurrentMap<FieldDescriptor, TypeKey> fieldKeys =
+      new ConcurrentHashMap<>();
+
+  /** Returns the key of a top-level message type. */
+  static TypeKey typeKey(Descriptor descriptor) {
+    return new TypeKey(descriptor, null);
+  }
+
+  /** Returns the key of the type of a message-valued field. */
+  static TypeKey typeKey(FieldDescriptor field) {
+    TypeKey key = fieldKeys.get(field);
+    if (key == null) {
+      Descriptor type = field.getMessageType();
+      if (!AnnotationUtils.isReference(type)) {
+        key = new TypeKey(type, null);
+      } else {
+        List<String> references = field.getOptions().getExtension(Annotations.validReferenceType);
+        key = new TypeKey(type, ImmutableSet.copyOf(references));
+      }
+      fieldKeys.putIfAbsent(field, key);
+    }
+    return key;
+  }
+
+  /** Counts the types on the current path. Not thread-safe. */
+  static final class Tracker {
+    private final int maxDepth;
+    private final Map<TypeKey, Integer> counts = new HashMap<>();
+
+    Tracker(int maxDepth) {
+      if (maxDepth < 0) {
+        throw new IllegalArgumentException("Invalid max recursion depth: " + maxDepth);
+      }
+      this.maxDepth = maxDepth;
+    }
+
+    int getMaxDepth() {
+      return maxDepth;
+    }
+
+    boolean isUnlimited() {
+      return maxDepth == UNLIMITED;
+    }
+
+    /**
+     * Enters a field of the given type, returning false without entering if that would exceed the
+     * maximum depth. Every successful call must be matched by a call to {@link #exit}.
+     */
+    boolean tryEnter(TypeKey key) {
+      Integer count = counts.get(key);
+      if (count == null) {
+        counts.put(key, 1);
+        return true;
+      }
+      if (count > maxDepth) {
+        return false;
+      }
+      counts.put(key, count + 1);
+      return true;
+    }
+
+    void exit(TypeKey key) {
+      int count = counts.get(key);
+      if (count == 1) {
+        counts.remove(key);
+      } else {
+        counts.put(key, count - 1);
+      }
+    }
+
+    /** Returns the current counts of the given types, omitting types not on the path. */
+    ImmutableMap<TypeKey, Integer> countsOf(Iterable<TypeKey> keys) {
+      ImmutableMap.Builder<TypeKey, Integer> result = ImmutableMap.builder();
+      for (TypeKey key : keys) {
+        Integer count = counts.get(key);
+        if (count != null) {
+          result.put(key, count);
+        }
+      }
+      return result.build();
+    }
+  }
+}
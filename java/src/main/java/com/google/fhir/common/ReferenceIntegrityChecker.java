@@ -0,0 +1,276 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.Any;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks that the relative, urn:uuid/urn:oid and fragment references held by a set of resources
+ * resolve to resources present in that set.
+ *
+ * <p>All resources are indexed once by type/id and by fullUrl, and references are then checked in
+ * parallel. Relative references are looked up through the typed reference id fields produced by
+ * {@link ResourceUtils#splitIfRelativeReference}. References whose relative uri was not split,
+ * e.g. because they were built directly as protos, are split during the check. Absolute urls other
+ * than urn:uuid and urn:oid are assumed to be external, and are not checked.
+ */
+public final class ReferenceIntegrityChecker {
+
+  /** A reference which does not resolve to any resource in the checked set. */
+  public static final class UnresolvedReference {
+    public final String resourceType;
+    public final String resourceId;
+    public final String reference;
+
+    UnresolvedReference(String resourceType, String resourceId, String reference) {
+      this.resourceType = resourceType;
+      this.resourceId = resourceId;
+      this.reference = reference;
+    }
+
+    @Override
+    public String toString() {
+      return resourceType + "/" + resourceId + " -> " + reference;
+    }
+  }
+
+  private final ResourceIndex index;
+  private final List<Message> resources;
+
+  private ReferenceIntegrityChecker(List<Message> resources, List<String> fullUrls) {
+    this.resources = resources;
+    this.index = new ResourceIndex(resources.size() + fullUrls.size());
+    for (Message resource : resources) {
+      String id = ResourceUtils.getResourceId(resource);
+      if (id != null) {
+        index.add(ResourceUtils.getResourceType(resource), id);
+      }
+    }
+    for (String fullUrl : fullUrls) {
+      index.add(FULL_URL, fullUrl);
+    }
+  }
+
+  /** Check all references held by the resources in the bundle. */
+  public static ImmutableList<UnresolvedReference> check(Bundle bundle) {
+    List<Message> resources = new ArrayList<>();
+    List<String> fullUrls = new ArrayList<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      Message resource = ResourceUtils.getContainedResource(entry.getResource());
+      if (resource == null) {
+        continue;
+      }
+      resources.add(resource);
+      if (entry.hasFullUrl()) {
+        fullUrls.add(entry.getFullUrl().getValue());
+      }
+    }
+    return new ReferenceIntegrityChecker(resources, fullUrls).check();
+  }
+
+  /**
+   * Check all references held by the resources in the given ndjson files, each containing one FHIR
+   * resource per line.
+   */
+  public static ImmutableList<UnresolvedReference> checkNdJson(
+      List<Path> files, JsonFormat.Parser parser) throws IOException {
+    List<Message> resources = new ArrayList<>();
+    for (Path file : files) {
+      try (Stream<String> lines = Files.lines(file, UTF_8)) {
+        resources.addAll(
+            lines
+                .parallel()
+                .filter(line -> !line.trim().isEmpty())
+                .map(
+                    line ->
+                        ResourceUtils.getContainedResource(
+                            parser.merge(line, ContainedResource.newBuilder()).build()))
+                .collect(Collectors.toList()));
+      }
+    }
+    return new ReferenceIntegrityChecker(resources, ImmutableList.of()).check();
+  }
+
+  private ImmutableList<UnresolvedReference> check() {
+    return resources.parallelStream()
+        .flatMap(resource -> checkResource(resource).stream())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private List<UnresolvedReference> checkResource(Message resource) {
+    Set<String> containedIds = getContainedIds(resource);
+    List<UnresolvedReference> unresolved = new ArrayList<>();
+    ResourceUtils.forEachReference(
+        resource,
+        reference -> {
+          String target = findUnresolvedTarget(reference, containedIds);
+          if (target != null) {
+            unresolved.add(
+                new UnresolvedReference(
+                    ResourceUtils.getResourceType(resource),
+                    ResourceUtils.getResourceId(resource),
+                    target));
+          }
+        });
+    return unresolved;
+  }
+
+  /** Returns the printed reference if it does not resolve, or null if it does. */
+  private String findUnresolvedTarget(MessageOrBuilder reference, Set<String> containedIds) {
+    OneofDescriptor oneof = reference.getDescriptorForType().getOneofs().get(0);
+    FieldDescriptor field = reference.getOneofFieldDescriptor(oneof);
+    if (field == null) {
+      // Logical references (identifier or display only) are not checked.
+      return null;
+    }
+    Message value = (Message) reference.getField(field);
+    String stringValue = ResourceUtils.getValue(value);
+    if (field.getOptions().hasExtension(Annotations.referencedFhirType)) {
+      String type = field.getOptions().getExtension(Annotations.referencedFhirType);
+      // Untyped "Resource" references can't be checked without a type.
+      if (type.equals("Resource") || index.contains(type, stringValue)) {
+        return null;
+      }
+      return type + "/" + stringValue;
+    }
+    if (field.getName().equals("fragment")) {
+      // An empty fragment refers to the containing resource itself.
+      if (stringValue.isEmpty() || containedIds.contains(stringValue)) {
+        return null;
+      }
+      return "#" + stringValue;
+    }
+    if (stringValue.startsWith("urn:uuid:") || stringValue.startsWith("urn:oid:")) {
+      return index.contains(FULL_URL, stringValue) ? null : stringValue;
+    }
+    // Split relative uris, and check their typed id or fragment instead.
+    Message.Builder builder =
+        reference instanceof Message
+            ? ((Message) reference).toBuilder()
+            : ((Message.Builder) reference).clone();
+    Message split;
+    try {
+      split = ResourceUtils.splitIfRelativeReference(builder);
+    } catch (IllegalArgumentException e) {
+      // A relative reference to an unknown resource type can't resolve.
+      return stringValue;
+    }
+    if (split.getOneofFieldDescriptor(oneof).getName().equals("uri")) {
+      return null;
+    }
+    return findUnresolvedTarget(split, containedIds);
+  }
+
+  private static Set<String> getContainedIds(Message resource) {
+    FieldDescriptor containedField = resource.getDescriptorForType().findFieldByName("contained");
+    if (containedField == null || resource.getRepeatedFieldCount(containedField) == 0) {
+      return ImmutableSet.of();
+    }
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < resource.getRepeatedFieldCount(containedField); i++) {
+      Object contained = resource.getRepeatedField(containedField, i);
+      Message containedResource;
+      if (contained instanceof Any) {
+        try {
+          containedResource =
+              ResourceUtils.getContainedResource(
+                  ((Any) contained).unpack(ContainedResource.class));
+        } catch (InvalidProtocolBufferException e) {
+          throw new IllegalArgumentException("Unable to unpack contained resource", e);
+        }
+      } else {
+        containedResource =
+            ResourceUtils.getContainedResource(
+                (com.google.fhir.stu3.proto.ContainedResource) contained);
+      }
+      String id = containedResource == null ? null : ResourceUtils.getResourceId(containedResource);
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  // Key space used for fullUrls in the index, which can not collide with a resource type.
+  private static final String FULL_URL = "";
+
+  /**
+   * An insert-only open-addressing hash set of (type, id) pairs, using linear probing. Keeping the
+   * pair as two parallel arrays avoids building a combined key string for every lookup.
+   */
+  private static final class ResourceIndex {
+    private final String[] types;
+    private final String[] ids;
+    private final int mask;
+
+    ResourceIndex(int expectedSize) {
+      // Keep the load factor at or below one half.
+      int capacity = Integer.highestOneBit(Math.max(expectedSize, 1) * 2 - 1) << 1;
+      types = new String[capacity];
+      ids = new String[capacity];
+      mask = capacity - 1;
+    }
+
+    private static int hash(String type, String id) {
+      int h = type.hashCode() * 31 + id.hashCode();
+      // Spread the high bits, since the table size is a power of two.
+      return h ^ (h >>> 16);
+    }
+
+    void add(String type, String id) {
+      int slot = hash(type, id) & mask;
+      while (ids[slot] != null) {
+        if (ids[slot].equals(id) && types[slot].equals(type)) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      types[slot] = type;
+      ids[slot] = id;
+    }
+
+    boolean contains(String type, String id) {
+      int slot = hash(type, id) & mask;
+      while (ids[slot] != null) {
+        if (ids[slot].equals(id) && types[slot].equals(type)) {
+          return true;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return false;
+    }
+  }
+}
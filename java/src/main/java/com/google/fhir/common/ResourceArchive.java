@@ -0,0 +1,400 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads an archive of ContainedResource records written by {@link ResourceArchiveWriter}, giving
+ * random access to records by resource type and id without parsing or copying them.
+ *
+ * <p>The file is memory-mapped, and records are returned as {@link ByteString} slices of the
+ * mapping. A lookup by id hashes the id into the slot table of the resource type, and compares the
+ * ids of the slot entries, so it reads a few bytes of the index and allocates nothing but the
+ * result. Records can also be streamed, in parallel, with {@link #spliterator}.
+ *
+ * <p>The archive layout, with all integers big-endian, is:
+ *
+ * <ul>
+ *   <li>the magic bytes "FHIRARC1";
+ *   <li>the records, grouped by resource type in field number order, each preceded by its size as
+ *       a varint, so that this part of the file can also be read with {@link
+ *       Message.Builder#mergeDelimitedFrom};
+ *   <li>the ids of the records, concatenated in UTF-8;
+ *   <li>one entry per record: the offset and size of the record, and the offset and size of its
+ *       id;
+ *   <li>one entry per resource type: its ContainedResource field number, its first entry and
+ *       number of entries, the offset range of its records, and the offset and size of its slot
+ *       table, which holds the entry number plus one of each id, or zero;
+ *   <li>the slot tables;
+ *   <li>a footer holding the offset and number of the record entries and type entries, followed
+ *       by the magic bytes.
+ * </ul>
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ResourceArchive implements Closeable {
+
+  static final byte[] MAGIC = "FHIRARC1".getBytes(UTF_8);
+  static final int ENTRY_SIZE = 8 + 4 + 8 + 4;
+  static final int TYPE_SIZE = 4 + 8 + 8 + 8 + 8 + 8 + 4;
+  static final int FOOTER_SIZE = 8 + 8 + 8 + 4 + 4 + MAGIC.length;
+
+  // Files are mapped in overlapping segments, so that values which cross the start of the next
+  // segment can still be read from a single one; only records larger than the overlap are copied.
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final long SEGMENT_OVERLAP = 1L << 26;
+
+  /** The index entry of a resource type. */
+  private static final class Type {
+    final String name;
+    final long firstEntry;
+    final long entryCount;
+    final long slotsOffset;
+    final int slotCount;
+
+    Type(String name, long firstEntry, long entryCount, long slotsOffset, int slotCount) {
+      this.name = name;
+      this.firstEntry = firstEntry;
+      this.entryCount = entryCount;
+      this.slotsOffset = slotsOffset;
+      this.slotCount = slotCount;
+    }
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final long segmentSize;
+  private final long entriesOffset;
+  private final long entryCount;
+  private final Map<String, Type> types;
+
+  private ResourceArchive(
+      FileChannel channel,
+      MappedByteBuffer[] segments,
+      long segmentSize,
+      long entriesOffset,
+      long entryCount,
+      Map<String, Type> types) {
+    this.channel = channel;
+    this.segments = segments;
+    this.segmentSize = segmentSize;
+    this.entriesOffset = entriesOffset;
+    this.entryCount = entryCount;
+    this.types = types;
+  }
+
+  /**
+   * Opens an archive. The {@code containedResource} is the default instance of the
+   * ContainedResource type the archive was written with, which names the resource types.
+   *
+   * @throws IOException if the file can't be read, or is not an archive
+   */
+  public static ResourceArchive open(Path file, Message containedResource) throws IOException {
+    return open(file, containedResource, SEGMENT_SIZE, SEGMENT_OVERLAP);
+  }
+
+  /**
+   * Opens an archive, mapping it in segments of the given size, each extended by the overlap. The
+   * overlap must hold the largest fixed-size value, so that entries are read from one segment.
+   */
+  static ResourceArchive open(
+      Path file, Message containedResource, long segmentSize, long segmentOverlap)
+      throws IOException {
+    if (segmentSize < 1
+        || segmentOverlap < Long.BYTES
+        || segmentSize + segmentOverlap > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Invalid segment size " + segmentSize + " or overlap " + segmentOverlap);
+    }
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < MAGIC.length + FOOTER_SIZE) {
+        throw new IOException("Not a resource archive: " + file);
+      }
+      MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size - 1) / segmentSize + 1)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * segmentSize;
+        segments[i] =
+            channel.map(
+                FileChannel.MapMode.READ_ONLY,
+                start,
+                Math.min(size - start, segmentSize + segmentOverlap));
+      }
+      ByteBuffer footer = read(segments, segmentSize, size - FOOTER_SIZE, FOOTER_SIZE);
+      byte[] magic = new byte[MAGIC.length];
+      footer.position(FOOTER_SIZE - MAGIC.length);
+      footer.get(magic);
+      byte[] header = new byte[MAGIC.length];
+      read(segments, segmentSize, 0, MAGIC.length).get(header);
+      if (!Arrays.equals(magic, MAGIC) || !Arrays.equals(header, MAGIC)) {
+        throw new IOException("Not a resource archive: " + file);
+      }
+      long entriesOffset = footer.getLong(0);
+      long entryCount = footer.getLong(8);
+      long typesOffset = footer.getLong(16);
+      int typeCount = footer.getInt(24);
+
+      Descriptor descriptor = containedResource.getDescriptorForType();
+      Map<String, Type> types = new LinkedHashMap<>();
+      for (int i = 0; i < typeCount; i++) {
+        ByteBuffer entry =
+            read(segments, segmentSize, typesOffset + (long) i * TYPE_SIZE, TYPE_SIZE);
+        int fieldNumber = entry.getInt(0);
+        FieldDescriptor field = descriptor.findFieldByNumber(fieldNumber);
+        if (field == null || field.getType() != FieldDescriptor.Type.MESSAGE) {
+          throw new IOException(
+              "Unknown resource field " + fieldNumber + " of " + descriptor.getFullName());
+        }
+        String name = field.getMessageType().getName();
+        types.put(
+            name,
+            new Type(
+                name, entry.getLong(4), entry.getLong(12), entry.getLong(36), entry.getInt(44)));
+      }
+      return new ResourceArchive(
+          channel, segments, segmentSize, entriesOffset, entryCount, types);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Returns the resource types of the archive, in the order of their records. */
+  public List<String> getResourceTypes() {
+    return Collections.unmodifiableList(new ArrayList<>(types.keySet()));
+  }
+
+  /** Returns the number of records. */
+  public long getRecordCount() {
+    return entryCount;
+  }
+
+  /** Returns the number of records of a resource type, which is zero for absent types. */
+  public long getRecordCount(String resourceType) {
+    Type type = types.get(resourceType);
+    return type == null ? 0 : type.entryCount;
+  }
+
+  /** Returns a serialized ContainedResource, by its position in the archive. */
+  public ByteString getRecord(long index) {
+    if (index < 0 || index >= entryCount) {
+      throw new IndexOutOfBoundsException("No record " + index + " of " + entryCount);
+    }
+    long entry = entriesOffset + index * ENTRY_SIZE;
+    return slice(getLong(entry), getInt(entry + 8));
+  }
+
+  /**
+   * Returns the serialized ContainedResource of the given type and id, or null if there is none.
+   * If several records have the same type and id, the last one written is returned.
+   */
+  public ByteString get(String resourceType, String id) {
+    Type type = types.get(resourceType);
+    if (type == null || type.slotCount == 0) {
+      return null;
+    }
+    byte[] idBytes = id.getBytes(UTF_8);
+    int mask = type.slotCount - 1;
+    for (int slot = hash(idBytes) & mask; ; slot = (slot + 1) & mask) {
+      long value = getLong(type.slotsOffset + 8L * slot);
+      if (value == 0) {
+        return null;
+      }
+      long entry = entriesOffset + (value - 1) * ENTRY_SIZE;
+      if (idEquals(getLong(entry + 12), getInt(entry + 20), idBytes)) {
+        return slice(getLong(entry), getInt(entry + 8));
+      }
+    }
+  }
+
+  /** Returns a spliterator over all records, in archive order, which splits for parallel use. */
+  public Spliterator<ByteString> spliterator() {
+    return new RecordSpliterator(0, entryCount);
+  }
+
+  /** Returns a spliterator over the records of a resource type. */
+  public Spliterator<ByteString> spliterator(String resourceType) {
+    Type type = types.get(resourceType);
+    return type == null
+        ? new RecordSpliterator(0, 0)
+        : new RecordSpliterator(type.firstEntry, type.firstEntry + type.entryCount);
+  }
+
+  /** Returns a stream of all records, which is parallel if requested. */
+  public Stream<ByteString> stream(boolean parallel) {
+    return StreamSupport.stream(spliterator(), parallel);
+  }
+
+  /**
+   * Closes the file. Mapped memory is released once the records returned by this archive are no
+   * longer referenced.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** The hash of an id, which is the same for the writer and reader. FNV-1a, for speed. */
+  static int hash(byte[] id) {
+    int hash = 0x811c9dc5;
+    for (byte b : id) {
+      hash ^= b & 0xff;
+      hash *= 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  private boolean idEquals(long offset, int length, byte[] id) {
+    if (length != id.length) {
+      return false;
+    }
+    MappedByteBuffer segment = segments[(int) (offset / segmentSize)];
+    int position = (int) (offset % segmentSize);
+    if (position + length > segment.limit()) {
+      // An id which is larger than the overlap of the segments is copied.
+      return slice(offset, length).equals(ByteString.copyFrom(id));
+    }
+    for (int i = 0; i < length; i++) {
+      if (segment.get(position + i) != id[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long getLong(long offset) {
+    return segments[(int) (offset / segmentSize)].getLong((int) (offset % segmentSize));
+  }
+
+  private int getInt(long offset) {
+    return segments[(int) (offset / segmentSize)].getInt((int) (offset % segmentSize));
+  }
+
+  private ByteString slice(long offset, int length) {
+    MappedByteBuffer segment = segments[(int) (offset / segmentSize)];
+    int position = (int) (offset % segmentSize);
+    if (position + length <= segment.limit()) {
+      ByteBuffer slice = segment.duplicate();
+      slice.position(position).limit(position + length);
+      return UnsafeByteOperations.unsafeWrap(slice.slice());
+    }
+    // A record which is larger than the overlap of the segments is copied.
+    try {
+      return ByteString.copyFrom(read(segments, segmentSize, offset, length));
+    } catch (EOFException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Copies bytes from the segments, which may span several segments. */
+  private static ByteBuffer read(
+      MappedByteBuffer[] segments, long segmentSize, long offset, int length) throws EOFException {
+    ByteBuffer result = ByteBuffer.allocate(length);
+    while (result.hasRemaining()) {
+      int index = (int) (offset / segmentSize);
+      if (index >= segments.length) {
+        throw new EOFException("Truncated resource archive");
+      }
+      ByteBuffer segment = segments[index].duplicate();
+      int position = (int) (offset % segmentSize);
+      // Only read up to the start of the next segment, which holds the rest.
+      long available = Math.min(segmentSize, segment.limit()) - position;
+      int count = (int) Math.min(result.remaining(), available);
+      if (count <= 0) {
+        throw new EOFException("Truncated resource archive");
+      }
+      segment.position(position).limit(position + count);
+      result.put(segment);
+      offset += count;
+    }
+    result.flip();
+    return result;
+  }
+
+  /** A spliterator over a range of record entries. */
+  private final class RecordSpliterator implements Spliterator<ByteString> {
+    private long next;
+    private final long end;
+
+    RecordSpliterator(long next, long end) {
+      this.next = next;
+      this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ByteString> action) {
+      if (next >= end) {
+        return false;
+      }
+      action.accept(getRecord(next++));
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super ByteString> action) {
+      while (next < end) {
+        action.accept(getRecord(next++));
+      }
+    }
+
+    @Override
+    public Spliterator<ByteString> trySplit() {
+      long middle = (next + end) >>> 1;
+      if (middle <= next) {
+        return null;
+      }
+      Spliterator<ByteString> prefix = new RecordSpliterator(next, middle);
+      next = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return end - next;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+  }
+}
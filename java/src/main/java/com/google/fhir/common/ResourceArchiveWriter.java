@@ -0,0 +1,354 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes an archive of ContainedResource records, indexed by resource type and id, which can be
+ * read with {@link ResourceArchive}; see there for the format.
+ *
+ * <p>Records are grouped by resource type, so that the records of a type can be read as one range
+ * of the file. Until the archive is closed, the records, ids and index entries of each type are
+ * written to temporary files next to the archive, so that only a few counters per type are kept in
+ * memory. On closing, the temporary files are concatenated into the archive, followed by the
+ * index. The slot tables are built one type at a time, reading the ids back from their temporary
+ * file, and take up to 32 bytes of memory per record of the type.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ResourceArchiveWriter implements Closeable {
+
+  // The slot table of a larger type would need 2^31 slots, more than an int can count.
+  private static final int MAX_RECORDS_PER_TYPE = 1 << 29;
+
+  private final Path file;
+  private final Path tempDirectory;
+  // The records of each resource type, by ContainedResource field number.
+  private final Map<Integer, TypeRecords> types = new TreeMap<>();
+  private boolean closed = false;
+
+  /**
+   * The records of one resource type, held in a temporary file, along with their ids and their
+   * index entries, whose offsets are relative to the start of the records and ids of the type.
+   */
+  private static final class TypeRecords {
+    final Path file;
+    final Path idsFile;
+    final Path entriesFile;
+    final OutputStream output;
+    final OutputStream ids;
+    final DataOutputStream entries;
+    long size = 0;
+    long idsSize = 0;
+    int count = 0;
+    int withIds = 0;
+
+    TypeRecords(Path file) throws IOException {
+      this.file = file;
+      this.idsFile = file.resolveSibling(file.getFileName() + ".ids");
+      this.entriesFile = file.resolveSibling(file.getFileName() + ".entries");
+      this.output = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+      this.ids = new BufferedOutputStream(Files.newOutputStream(idsFile), 1 << 16);
+      this.entries =
+          new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(entriesFile), 1 << 16));
+    }
+
+    void add(long offset, int size, byte[] id) throws IOException {
+      entries.writeLong(offset);
+      entries.writeInt(size);
+      entries.writeLong(idsSize);
+      entries.writeInt(id.length);
+      ids.write(id);
+      idsSize += id.length;
+      if (id.length > 0) {
+        withIds++;
+      }
+      count++;
+    }
+
+    void closeOutputs() throws IOException {
+      output.close();
+      ids.close();
+      entries.close();
+    }
+
+    void delete() throws IOException {
+      closeOutputs();
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(idsFile);
+      Files.deleteIfExists(entriesFile);
+    }
+  }
+
+  /** Creates a writer for an archive, replacing the file if it exists. */
+  public ResourceArchiveWriter(Path file) throws IOException {
+    this.file = file;
+    Path directory = file.toAbsolutePath().getParent();
+    this.tempDirectory = Files.createTempDirectory(directory, file.getFileName() + ".");
+  }
+
+  /**
+   * Appends a ContainedResource, which is indexed by the id of its resource, if it has one.
+   *
+   * @throws IllegalArgumentException if the ContainedResource does not hold exactly one resource
+   */
+  public synchronized void append(Message containedResource) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("The archive is closed");
+    }
+    Map<FieldDescriptor, Object> fields = containedResource.getAllFields();
+    if (fields.size() != 1) {
+      throw new IllegalArgumentException("Expected a single resource, got " + fields.keySet());
+    }
+    FieldDescriptor field = fields.keySet().iterator().next();
+    TypeRecords records = getTypeRecords(field.getNumber(), field.getMessageType().getName());
+    int size = containedResource.getSerializedSize();
+    long offset = records.size + CodedOutputStream.computeUInt32SizeNoTag(size);
+    containedResource.writeDelimitedTo(records.output);
+    records.size = offset + size;
+    records.add(offset, size, getId((Message) fields.get(field)).getBytes(UTF_8));
+  }
+
+  /**
+   * Appends a serialized ContainedResource, given its header as read by {@link
+   * ResourceHeaderScanner}, without parsing it.
+   */
+  public synchronized void append(ByteString containedResource, ResourceHeaderScanner.Header header)
+      throws IOException {
+    if (closed) {
+      throw new IllegalStateException("The archive is closed");
+    }
+    TypeRecords records = getTypeRecords(header.getFieldNumber(), header.getResourceType());
+    int size = containedResource.size();
+    byte[] sizeBytes = new byte[CodedOutputStream.computeUInt32SizeNoTag(size)];
+    CodedOutputStream.newInstance(sizeBytes).writeUInt32NoTag(size);
+    records.output.write(sizeBytes);
+    containedResource.writeTo(records.output);
+    long offset = records.size + sizeBytes.length;
+    records.size = offset + size;
+    records.add(offset, size, header.getId().getBytes(UTF_8));
+  }
+
+  private TypeRecords getTypeRecords(int fieldNumber, String resourceType) throws IOException {
+    TypeRecords records = types.get(fieldNumber);
+    if (records == null) {
+      records = new TypeRecords(tempDirectory.resolve(resourceType));
+      types.put(fieldNumber, records);
+    }
+    if (records.count == MAX_RECORDS_PER_TYPE) {
+      throw new IllegalStateException("Too many records of type " + resourceType);
+    }
+    return records;
+  }
+
+  private static String getId(Message resource) {
+    FieldDescriptor idField = resource.getDescriptorForType().findFieldByName("id");
+    if (idField == null || !resource.hasField(idField)) {
+      return "";
+    }
+    Message id = (Message) resource.getField(idField);
+    return (String) id.getField(id.getDescriptorForType().findFieldByName("value"));
+  }
+
+  /** Writes the records and the index to the archive, and removes the temporary files. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer header = ByteBuffer.wrap(ResourceArchive.MAGIC);
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      // Copy the records of each type, and then their ids, noting where they start.
+      Map<Integer, Long> rangeStarts = new TreeMap<>();
+      for (Map.Entry<Integer, TypeRecords> type : types.entrySet()) {
+        TypeRecords records = type.getValue();
+        records.closeOutputs();
+        rangeStarts.put(type.getKey(), channel.position());
+        copy(records.file, records.size, channel);
+      }
+      Map<Integer, Long> idStarts = new TreeMap<>();
+      for (Map.Entry<Integer, TypeRecords> type : types.entrySet()) {
+        idStarts.put(type.getKey(), channel.position());
+        copy(type.getValue().idsFile, type.getValue().idsSize, channel);
+      }
+      long entriesOffset = channel.position();
+      DataOutputStream output =
+          new DataOutputStream(
+              new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+      // The record entries, with their offsets made relative to the archive.
+      long entryCount = 0;
+      for (Map.Entry<Integer, TypeRecords> type : types.entrySet()) {
+        TypeRecords records = type.getValue();
+        long rangeStart = rangeStarts.get(type.getKey());
+        long idStart = idStarts.get(type.getKey());
+        try (DataInputStream entries = openData(records.entriesFile)) {
+          for (int i = 0; i < records.count; i++) {
+            output.writeLong(rangeStart + entries.readLong());
+            output.writeInt(entries.readInt());
+            output.writeLong(idStart + entries.readLong());
+            output.writeInt(entries.readInt());
+          }
+        }
+        entryCount += records.count;
+      }
+
+      // The type entries, followed by their slot tables, which are built one at a time.
+      long typesOffset = entriesOffset + entryCount * ResourceArchive.ENTRY_SIZE;
+      long slotsOffset = typesOffset + (long) types.size() * ResourceArchive.TYPE_SIZE;
+      long firstEntry = 0;
+      for (Map.Entry<Integer, TypeRecords> type : types.entrySet()) {
+        TypeRecords records = type.getValue();
+        int slotCount = getSlotCount(records.withIds);
+        long rangeStart = rangeStarts.get(type.getKey());
+        output.writeInt(type.getKey());
+        output.writeLong(firstEntry);
+        output.writeLong(records.count);
+        output.writeLong(rangeStart);
+        output.writeLong(rangeStart + records.size);
+        output.writeLong(slotsOffset);
+        output.writeInt(slotCount);
+        slotsOffset += 8L * slotCount;
+        firstEntry += records.count;
+      }
+      firstEntry = 0;
+      for (TypeRecords records : types.values()) {
+        for (long slot : buildSlots(records, firstEntry)) {
+          output.writeLong(slot);
+        }
+        firstEntry += records.count;
+      }
+
+      output.writeLong(entriesOffset);
+      output.writeLong(entryCount);
+      output.writeLong(typesOffset);
+      output.writeInt(types.size());
+      output.writeInt(0);
+      output.write(ResourceArchive.MAGIC);
+      output.flush();
+    } finally {
+      for (TypeRecords records : types.values()) {
+        records.delete();
+      }
+      Files.deleteIfExists(tempDirectory);
+    }
+  }
+
+  private static void copy(Path from, long size, FileChannel to) throws IOException {
+    try (FileChannel input = FileChannel.open(from, StandardOpenOption.READ)) {
+      long copied = 0;
+      while (copied < size) {
+        copied += input.transferTo(copied, size - copied, to);
+      }
+    }
+  }
+
+  private static DataInputStream openData(Path file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+  }
+
+  /** Returns the size of the slot table of a type. Slot tables are at most half full. */
+  private static int getSlotCount(int withIds) {
+    return withIds == 0 ? 0 : Integer.highestOneBit(2 * withIds - 1) << 1;
+  }
+
+  /**
+   * Builds the open-addressing hash table of the ids of a type, holding the entry number plus one
+   * of each id. Where ids are repeated, the last record wins. The ids are streamed from the
+   * temporary files of the type, and only read at random on collisions.
+   */
+  private static long[] buildSlots(TypeRecords records, long firstEntry) throws IOException {
+    long[] slots = new long[getSlotCount(records.withIds)];
+    if (slots.length == 0) {
+      return slots;
+    }
+    int mask = slots.length - 1;
+    try (DataInputStream entries = openData(records.entriesFile);
+        DataInputStream ids = openData(records.idsFile);
+        FileChannel entryChannel = FileChannel.open(records.entriesFile, StandardOpenOption.READ);
+        FileChannel idChannel = FileChannel.open(records.idsFile, StandardOpenOption.READ)) {
+      ByteBuffer entry = ByteBuffer.allocate(ResourceArchive.ENTRY_SIZE);
+      for (int i = 0; i < records.count; i++) {
+        entries.skipBytes(8 + 4 + 8);
+        byte[] id = new byte[entries.readInt()];
+        ids.readFully(id);
+        if (id.length == 0) {
+          continue;
+        }
+        int slot = ResourceArchive.hash(id) & mask;
+        while (slots[slot] != 0) {
+          // Compare with the id of the entry in the slot, reading its size first.
+          entry.clear();
+          long entryNumber = slots[slot] - 1 - firstEntry;
+          readFully(entryChannel, entry, entryNumber * ResourceArchive.ENTRY_SIZE);
+          if (entry.getInt(20) == id.length) {
+            ByteBuffer other = ByteBuffer.allocate(id.length);
+            readFully(idChannel, other, entry.getLong(12));
+            if (Arrays.equals(other.array(), id)) {
+              break;
+            }
+          }
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = firstEntry + i + 1;
+      }
+    }
+    return slots;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of " + channel);
+      }
+      position += read;
+    }
+  }
+}
@@ -0,0 +1,407 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded cache of serialized ContainedResources keyed by resource type and id, held
+ * outside the Java heap, for jobs which repeatedly look up the targets of references, such as the
+ * Patient or Encounter of each Observation.
+ *
+ * <p>Resources are stored serialized in direct memory, so a cache of many gigabytes adds nothing
+ * to garbage collection but its index. A resource is only parsed when it is read, and every read
+ * parses a new copy, so callers may keep the result.
+ *
+ * <p>The cache is split into stripes, chosen by the hash of the key, each guarded by its own lock
+ * and holding an equal share of the capacity. The memory of a stripe is divided into fixed-size
+ * blocks, and a resource takes a chain of blocks, so memory never needs to be compacted. When a
+ * stripe is full, its least recently used resources are evicted.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ResourceCache {
+
+  public static final long DEFAULT_CAPACITY_BYTES = 256L * 1024 * 1024;
+  public static final int DEFAULT_STRIPES = 16;
+  public static final int DEFAULT_BLOCK_SIZE = 512;
+
+  // The types of typed reference ids which no resource has as its own type.
+  private static final ImmutableSet<String> ABSTRACT_TYPES =
+      ImmutableSet.of("Resource", "DomainResource", "MetadataResource");
+
+  /** Loads a serialized ContainedResource on a cache miss, e.g. {@code ResourceArchive::get}. */
+  public interface Loader {
+    /** Returns the serialized ContainedResource, or null if there is none. */
+    ByteString load(String resourceType, String id) throws IOException;
+  }
+
+  private final Message containedResource;
+  private final ResourceHeaderScanner scanner;
+  private final Stripe[] stripes;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private ResourceCache(Builder builder) {
+    this.containedResource = builder.containedResource;
+    this.scanner = new ResourceHeaderScanner(builder.containedResource);
+    this.stripes = new Stripe[builder.stripes];
+    int blocksPerStripe = (int) (builder.capacityBytes / builder.stripes / builder.blockSize);
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(blocksPerStripe, builder.blockSize);
+    }
+  }
+
+  /**
+   * Returns a builder for a cache. The {@code containedResource} is the default instance of the
+   * ContainedResource type of the cached resources.
+   */
+  public static Builder newBuilder(Message containedResource) {
+    return new Builder(containedResource);
+  }
+
+  /** Builder that can be used to obtain new instances of {@link ResourceCache}. */
+  public static final class Builder {
+    private final Message containedResource;
+    private long capacityBytes = DEFAULT_CAPACITY_BYTES;
+    private int stripes = DEFAULT_STRIPES;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private Builder(Message containedResource) {
+      this.containedResource = containedResource;
+    }
+
+    /** Sets the amount of direct memory holding resources, which is allocated up front. */
+    public Builder withCapacityBytes(long capacityBytes) {
+      if (capacityBytes < 1) {
+        throw new IllegalArgumentException("capacityBytes must be positive");
+      }
+      this.capacityBytes = capacityBytes;
+      return this;
+    }
+
+    /** Sets the number of independently locked parts of the cache. */
+    public Builder withStripes(int stripes) {
+      if (stripes < 1) {
+        throw new IllegalArgumentException("stripes must be positive");
+      }
+      this.stripes = stripes;
+      return this;
+    }
+
+    /**
+     * Sets the unit of allocation within a stripe. Smaller blocks waste less memory on the last
+     * block of each resource, at the cost of more copying and bookkeeping.
+     */
+    public Builder withBlockSize(int blockSize) {
+      if (blockSize < 1) {
+        throw new IllegalArgumentException("blockSize must be positive");
+      }
+      this.blockSize = blockSize;
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a stripe would hold less than one block, or more than
+     *     fits in a direct buffer
+     */
+    public ResourceCache build() {
+      long stripeBytes = capacityBytes / stripes;
+      if (stripeBytes < blockSize || stripeBytes > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            "Each stripe must hold between one block and 2GB, got " + stripeBytes + " bytes");
+      }
+      return new ResourceCache(this);
+    }
+  }
+
+  /** One independently locked part of the cache. All fields are guarded by the stripe. */
+  private static final class Stripe {
+    final ByteBuffer memory;
+    final int blockSize;
+    // The next block of each block, in the chain of a resource or in the free list, or -1.
+    final int[] nextBlock;
+    int freeBlock;
+    int freeCount;
+    // The cached resources, least recently used first.
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    Stripe(int blockCount, int blockSize) {
+      this.memory = ByteBuffer.allocateDirect(blockCount * blockSize);
+      this.blockSize = blockSize;
+      this.nextBlock = new int[blockCount];
+      for (int i = 0; i < blockCount; i++) {
+        nextBlock[i] = i + 1 < blockCount ? i + 1 : -1;
+      }
+      this.freeBlock = blockCount > 0 ? 0 : -1;
+      this.freeCount = blockCount;
+    }
+  }
+
+  /** The location of a cached resource: its first block, and its size. */
+  private static final class Entry {
+    final int firstBlock;
+    final int size;
+
+    Entry(int firstBlock, int size) {
+      this.firstBlock = firstBlock;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Adds a serialized ContainedResource, replacing any resource with the same type and id.
+   * Resources without an id, or too large for a stripe, are not cached.
+   *
+   * @throws InvalidProtocolBufferException if the type and id can't be read from the resource
+   */
+  public void put(ByteString containedResource) throws InvalidProtocolBufferException {
+    ResourceHeaderScanner.Header header = scanner.scan(containedResource);
+    if (!header.getId().isEmpty()) {
+      put(getKey(header.getResourceType(), header.getId()), containedResource);
+    }
+  }
+
+  /** Adds a ContainedResource, as in {@link #put(ByteString)}. */
+  public void put(Message containedResource) {
+    try {
+      put(containedResource.toByteString());
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException("Invalid ContainedResource", e);
+    }
+  }
+
+  /**
+   * Returns the parsed ContainedResource of the given type and id, or null if it is not cached.
+   *
+   * @throws InvalidProtocolBufferException if the cached resource can't be parsed
+   */
+  public Message get(String resourceType, String id) throws InvalidProtocolBufferException {
+    ByteString bytes = getSerialized(resourceType, id);
+    return bytes == null ? null : parse(bytes);
+  }
+
+  /**
+   * Returns the parsed ContainedResource of the given type and id, loading and caching it on a
+   * miss. Returns null if the loader has no such resource.
+   */
+  public Message get(String resourceType, String id, Loader loader) throws IOException {
+    ByteString bytes = getSerialized(resourceType, id);
+    if (bytes == null) {
+      bytes = loader.load(resourceType, id);
+      if (bytes == null) {
+        return null;
+      }
+      put(getKey(resourceType, id), bytes);
+    }
+    return parse(bytes);
+  }
+
+  /**
+   * Returns the target of a reference holding a typed id, such as Reference.patient_id as set by
+   * {@code ResourceUtils.splitIfRelativeReference}, loading it on a miss. Ids of abstract types,
+   * such as resource_id, are resolved through the type of the reference, where it has one. Returns
+   * null if the reference has no typed id, or the loader has no such resource.
+   */
+  public Message getReferenced(MessageOrBuilder reference, Loader loader) throws IOException {
+    for (Map.Entry<FieldDescriptor, Object> field : reference.getAllFields().entrySet()) {
+      FieldDescriptor descriptor = field.getKey();
+      if (descriptor.getType() == FieldDescriptor.Type.MESSAGE
+          && descriptor.getMessageType().getName().equals("ReferenceId")
+          && descriptor.getName().endsWith("_id")) {
+        String name = descriptor.getName();
+        String resourceType =
+            CaseFormat.LOWER_UNDERSCORE.to(
+                CaseFormat.UPPER_CAMEL, name.substring(0, name.length() - "_id".length()));
+        if (ABSTRACT_TYPES.contains(resourceType)) {
+          // Resources are cached by their own type, which only the reference type can tell.
+          resourceType = getReferenceType(reference);
+          if (resourceType == null) {
+            return null;
+          }
+        }
+        Message referenceId = (Message) field.getValue();
+        String id =
+            (String)
+                referenceId.getField(referenceId.getDescriptorForType().findFieldByName("value"));
+        return get(resourceType, id, loader);
+      }
+    }
+    return null;
+  }
+
+  /** Returns the value of the type field of a reference, or null if it has none. */
+  private static String getReferenceType(MessageOrBuilder reference) {
+    FieldDescriptor typeField = reference.getDescriptorForType().findFieldByName("type");
+    if (typeField == null || !reference.hasField(typeField)) {
+      return null;
+    }
+    Message type = (Message) reference.getField(typeField);
+    String value = (String) type.getField(type.getDescriptorForType().findFieldByName("value"));
+    return value.isEmpty() ? null : value;
+  }
+
+  /** Returns a copy of the serialized ContainedResource of the given type and id, or null. */
+  public ByteString getSerialized(String resourceType, String id) {
+    String key = getKey(resourceType, id);
+    Stripe stripe = getStripe(key);
+    byte[] bytes;
+    synchronized (stripe) {
+      Entry entry = stripe.entries.get(key);
+      if (entry == null) {
+        misses.increment();
+        return null;
+      }
+      bytes = read(stripe, entry);
+    }
+    hits.increment();
+    // The bytes were copied out of the stripe, and are not shared.
+    return UnsafeByteOperations.unsafeWrap(bytes);
+  }
+
+  /** Removes a resource from the cache, if it is there. */
+  public void invalidate(String resourceType, String id) {
+    String key = getKey(resourceType, id);
+    Stripe stripe = getStripe(key);
+    synchronized (stripe) {
+      Entry entry = stripe.entries.remove(key);
+      if (entry != null) {
+        free(stripe, entry);
+      }
+    }
+  }
+
+  /** Returns the number of lookups which found a cached resource. */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** Returns the number of lookups which found no cached resource. */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /** Returns the number of resources which were evicted to make room for others. */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Returns the number of cached resources. */
+  public long getEntryCount() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.entries.size();
+      }
+    }
+    return count;
+  }
+
+  private static String getKey(String resourceType, String id) {
+    return resourceType + "/" + id;
+  }
+
+  private Stripe getStripe(String key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return stripes[Math.floorMod(hash, stripes.length)];
+  }
+
+  private Message parse(ByteString bytes) throws InvalidProtocolBufferException {
+    return containedResource.getParserForType().parseFrom(bytes);
+  }
+
+  private void put(String key, ByteString bytes) {
+    Stripe stripe = getStripe(key);
+    int blocks = (bytes.size() + stripe.blockSize - 1) / stripe.blockSize;
+    if (blocks == 0 || blocks > stripe.nextBlock.length) {
+      return;
+    }
+    synchronized (stripe) {
+      Entry old = stripe.entries.remove(key);
+      if (old != null) {
+        free(stripe, old);
+      }
+      Iterator<Entry> leastRecentlyUsed = stripe.entries.values().iterator();
+      while (stripe.freeCount < blocks) {
+        Entry evicted = leastRecentlyUsed.next();
+        leastRecentlyUsed.remove();
+        free(stripe, evicted);
+        evictions.increment();
+      }
+      stripe.entries.put(key, new Entry(write(stripe, bytes, blocks), bytes.size()));
+    }
+  }
+
+  /** Copies the bytes into a chain of free blocks, and returns its first block. */
+  private static int write(Stripe stripe, ByteString bytes, int blocks) {
+    int first = stripe.freeBlock;
+    int block = first;
+    for (int i = 0; i < blocks; i++) {
+      int offset = i * stripe.blockSize;
+      int length = Math.min(stripe.blockSize, bytes.size() - offset);
+      ByteBuffer target = stripe.memory.duplicate();
+      target.position(block * stripe.blockSize);
+      bytes.substring(offset, offset + length).copyTo(target);
+      if (i + 1 < blocks) {
+        block = stripe.nextBlock[block];
+      }
+    }
+    // Detach the chain from the free list.
+    stripe.freeBlock = stripe.nextBlock[block];
+    stripe.nextBlock[block] = -1;
+    stripe.freeCount -= blocks;
+    return first;
+  }
+
+  private static byte[] read(Stripe stripe, Entry entry) {
+    byte[] bytes = new byte[entry.size];
+    ByteBuffer source = stripe.memory.duplicate();
+    int block = entry.firstBlock;
+    for (int offset = 0; offset < entry.size; offset += stripe.blockSize) {
+      source.position(block * stripe.blockSize);
+      source.get(bytes, offset, Math.min(stripe.blockSize, entry.size - offset));
+      block = stripe.nextBlock[block];
+    }
+    return bytes;
+  }
+
+  /** Returns the blocks of an entry to the free list. */
+  private static void free(Stripe stripe, Entry entry) {
+    int last = entry.firstBlock;
+    int count = 1;
+    while (stripe.nextBlock[last] != -1) {
+      last = stripe.nextBlock[last];
+      count++;
+    }
+    stripe.nextBlock[last] = stripe.freeBlock;
+    stripe.freeBlock = entry.firstBlock;
+    stripe.freeCount += count;
+  }
+}
@@ -0,0 +1,317 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.protobuf.Message;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Detects repeated copies of the same resource in a stream of resources, as produced for example
+ * by Synthea or bulk exports which repeat the same Practitioner and Organization in every bundle.
+ *
+ * <p>Resources are keyed by type/id, and compared by a fingerprint of their serialized content. An
+ * in-memory Bloom filter answers the common "never seen this key" case without touching disk.
+ * Possible repeats are confirmed against an exact set of (key, fingerprint) pairs, which is
+ * hash-partitioned into files in a spill directory; only a bounded number of partitions are held
+ * in memory at a time.
+ *
+ * <p>This class is thread-safe. Each partition has its own lock, so that resources of different
+ * partitions are added concurrently.
+ */
+public final class ResourceDeduplicator implements Closeable {
+
+  /** The outcome of adding a resource. */
+  public enum Outcome {
+    /** The resource has not been seen before, or has no id. */
+    NEW,
+    /** An identical copy of the resource has been seen before. */
+    DUPLICATE,
+    /** A resource with the same type and id, but different content, has been seen before. */
+    CONFLICTING_VERSION
+  }
+
+  private static final int PARTITION_COUNT = 256;
+  private static final int MAX_PENDING_PER_PARTITION = 4096;
+
+  // Guava Bloom filters are thread-safe; a key is only checked and added under its partition lock.
+  private final BloomFilter<CharSequence> seenKeys;
+  private final Path spillDirectory;
+  private final Partition[] partitions = new Partition[PARTITION_COUNT];
+  // Partitions currently held in memory, in least-recently-used order, guarded by itself.
+  private final LinkedHashMap<Partition, Boolean> residentPartitions =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private final int maxResidentPartitions;
+  private final int maxPendingPerPartition;
+  // Guarded by itself.
+  private final Map<String, long[]> countsByType = new TreeMap<>();
+
+  private static final int DUPLICATES = 0;
+  private static final int CONFLICTS = 1;
+
+  /**
+   * Create a deduplicator which spills to files in {@code spillDirectory}. {@code
+   * expectedResources} sizes the Bloom filter, and {@code maxResidentPartitions} (out of 256)
+   * bounds how much of the exact set is held in memory.
+   */
+  public ResourceDeduplicator(
+      Path spillDirectory, long expectedResources, int maxResidentPartitions) throws IOException {
+    this(spillDirectory, expectedResources, maxResidentPartitions, MAX_PENDING_PER_PARTITION);
+  }
+
+  /**
+   * As above, with {@code maxPendingPerPartition} new entries buffered per partition before they
+   * are appended to its file.
+   */
+  ResourceDeduplicator(
+      Path spillDirectory,
+      long expectedResources,
+      int maxResidentPartitions,
+      int maxPendingPerPartition)
+      throws IOException {
+    checkArgument(maxResidentPartitions >= 1, "maxResidentPartitions must be positive");
+    checkArgument(maxPendingPerPartition >= 1, "maxPendingPerPartition must be positive");
+    this.spillDirectory = Files.createDirectories(spillDirectory);
+    this.seenKeys =
+        BloomFilter.create(Funnels.stringFunnel(UTF_8), Math.max(expectedResources, 1), 0.01);
+    this.maxResidentPartitions = maxResidentPartitions;
+    this.maxPendingPerPartition = maxPendingPerPartition;
+    for (int i = 0; i < PARTITION_COUNT; i++) {
+      partitions[i] = new Partition(spillDirectory.resolve("partition-" + i));
+    }
+  }
+
+  /** Create a deduplicator which spills to a new temporary directory. */
+  public static ResourceDeduplicator createWithTempDirectory(long expectedResources)
+      throws IOException {
+    return new ResourceDeduplicator(
+        Files.createTempDirectory("fhir-dedup"), expectedResources, PARTITION_COUNT / 4);
+  }
+
+  /** Record a resource, returning whether it has been seen before. */
+  public Outcome add(Message resource) {
+    String id = ResourceUtils.getResourceId(resource);
+    if (id == null) {
+      return Outcome.NEW;
+    }
+    String type = ResourceUtils.getResourceType(resource);
+    String key = type + "/" + id;
+    long fingerprint = Hashing.farmHashFingerprint64().hashBytes(resource.toByteArray()).asLong();
+    Partition partition = partitions[(key.hashCode() & 0x7fffffff) % PARTITION_COUNT];
+
+    Outcome outcome;
+    synchronized (partition) {
+      outcome = partition.add(key, fingerprint);
+    }
+    if (outcome != Outcome.NEW) {
+      synchronized (countsByType) {
+        long[] counts = countsByType.computeIfAbsent(type, t -> new long[2]);
+        counts[outcome == Outcome.DUPLICATE ? DUPLICATES : CONFLICTS]++;
+      }
+    }
+    return outcome;
+  }
+
+  /** The number of identical copies skipped, per resource type. */
+  public ImmutableMap<String, Long> getDuplicateCounts() {
+    return getCounts(DUPLICATES);
+  }
+
+  /** The number of resources with a previously seen type/id but different content, per type. */
+  public ImmutableMap<String, Long> getConflictingVersionCounts() {
+    return getCounts(CONFLICTS);
+  }
+
+  private ImmutableMap<String, Long> getCounts(int index) {
+    ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+    synchronized (countsByType) {
+      for (Map.Entry<String, long[]> entry : countsByType.entrySet()) {
+        if (entry.getValue()[index] > 0) {
+          result.put(entry.getKey(), entry.getValue()[index]);
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /** Delete the spill files. Resources must no longer be added. */
+  @Override
+  public void close() throws IOException {
+    synchronized (residentPartitions) {
+      residentPartitions.clear();
+    }
+    MoreFiles.deleteRecursively(spillDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  /**
+   * One hash partition of the exact set. New entries are buffered and appended to the partition
+   * file in batches; the full partition is only read back when a possible repeat needs confirming.
+   * All methods must be called while holding the lock of the partition.
+   */
+  private final class Partition {
+    private final Path file;
+    private final List<String> pendingKeys = new ArrayList<>();
+    private long[] pendingFingerprints = new long[16];
+    // All fingerprints per key, or null if the partition is not resident. Eviction, which may run
+    // on a thread holding another partition's lock, only clears the field, so readers take a copy
+    // of the reference and use it.
+    private volatile Map<String, long[]> resident = null;
+
+    Partition(Path file) {
+      this.file = file;
+    }
+
+    /** Records a key and fingerprint, returning whether they have been seen before. */
+    Outcome add(String key, long fingerprint) {
+      if (!seenKeys.mightContain(key)) {
+        seenKeys.put(key);
+        record(key, fingerprint);
+        return Outcome.NEW;
+      }
+      long[] seen = lookup(key);
+      if (seen == null) {
+        // A Bloom filter false positive.
+        record(key, fingerprint);
+        return Outcome.NEW;
+      }
+      for (long seenFingerprint : seen) {
+        if (seenFingerprint == fingerprint) {
+          return Outcome.DUPLICATE;
+        }
+      }
+      record(key, fingerprint);
+      return Outcome.CONFLICTING_VERSION;
+    }
+
+    private void record(String key, long fingerprint) {
+      Map<String, long[]> entries = resident;
+      if (entries != null) {
+        addTo(entries, key, fingerprint);
+      }
+      if (pendingKeys.size() == pendingFingerprints.length) {
+        pendingFingerprints = Arrays.copyOf(pendingFingerprints, pendingKeys.size() * 2);
+      }
+      pendingFingerprints[pendingKeys.size()] = fingerprint;
+      pendingKeys.add(key);
+      if (pendingKeys.size() >= maxPendingPerPartition) {
+        flush();
+      }
+    }
+
+    private long[] lookup(String key) {
+      Map<String, long[]> entries = resident;
+      if (entries == null) {
+        entries = load();
+      }
+      evictIfNeeded(this);
+      return entries.get(key);
+    }
+
+    private Map<String, long[]> load() {
+      Map<String, long[]> entries = new HashMap<>();
+      if (Files.exists(file)) {
+        try (DataInputStream input =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+          while (true) {
+            String key;
+            try {
+              key = input.readUTF();
+            } catch (EOFException e) {
+              break;
+            }
+            addTo(entries, key, input.readLong());
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException("Unable to read spill file " + file, e);
+        }
+      }
+      for (int i = 0; i < pendingKeys.size(); i++) {
+        addTo(entries, pendingKeys.get(i), pendingFingerprints[i]);
+      }
+      resident = entries;
+      return entries;
+    }
+
+    private void flush() {
+      try (DataOutputStream output =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  Files.newOutputStream(
+                      file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+        for (int i = 0; i < pendingKeys.size(); i++) {
+          output.writeUTF(pendingKeys.get(i));
+          output.writeLong(pendingFingerprints[i]);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to write spill file " + file, e);
+      }
+      pendingKeys.clear();
+    }
+
+    private void unload() {
+      resident = null;
+    }
+  }
+
+  /** Marks a partition as the most recently used, and unloads the least recently used ones. */
+  private void evictIfNeeded(Partition used) {
+    synchronized (residentPartitions) {
+      residentPartitions.put(used, Boolean.TRUE);
+      Iterator<Partition> iterator = residentPartitions.keySet().iterator();
+      while (residentPartitions.size() > maxResidentPartitions && iterator.hasNext()) {
+        Partition eldest = iterator.next();
+        iterator.remove();
+        eldest.unload();
+      }
+    }
+  }
+
+  private static void addTo(Map<String, long[]> entries, String key, long fingerprint) {
+    long[] existing = entries.get(key);
+    if (existing == null) {
+      entries.put(key, new long[] {fingerprint});
+    } else {
+      long[] updated = Arrays.copyOf(existing, existing.length + 1);
+      updated[existing.length] = fingerprint;
+      entries.put(key, updated);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Reads the resource type, id and meta.lastUpdated of serialized ContainedResource records, without
+ * parsing them.
+ *
+ * <p>Only the tags on the path to these fields are decoded: the ContainedResource field holding the
+ * resource, the id and meta fields of the resource, and the value of the Id and of the lastUpdated
+ * Instant. All other fields are skipped over by their size, as is the rest of the resource once
+ * both the id and meta have been read, so that routing, sharding or counting records costs little
+ * more than reading them. All resources have their id and meta as fields 1 and 2.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ResourceHeaderScanner {
+
+  // The tags of the fields which are read: the id and meta of a resource, the value of an Id, the
+  // lastUpdated of a Meta, and the value and timezone of an Instant.
+  private static final int RESOURCE_ID_TAG = lengthDelimitedTag(1);
+  private static final int RESOURCE_META_TAG = lengthDelimitedTag(2);
+  private static final int ID_VALUE_TAG = lengthDelimitedTag(1);
+  private static final int META_LAST_UPDATED_TAG = lengthDelimitedTag(4);
+  private static final int INSTANT_VALUE_US_TAG = 1 << 3 | WireFormat.WIRETYPE_VARINT;
+  private static final int INSTANT_TIMEZONE_TAG = lengthDelimitedTag(2);
+
+  // The resource type names, by ContainedResource field number.
+  private final String[] resourceTypes;
+
+  /** The type, id and last update time of a resource. */
+  public static final class Header {
+    private final int fieldNumber;
+    private final String resourceType;
+    private final String id;
+    private final boolean hasLastUpdated;
+    private final long lastUpdatedMicros;
+    private final String lastUpdatedTimezone;
+
+    private Header(
+        int fieldNumber,
+        String resourceType,
+        String id,
+        boolean hasLastUpdated,
+        long lastUpdatedMicros,
+        String lastUpdatedTimezone) {
+      this.fieldNumber = fieldNumber;
+      this.resourceType = resourceType;
+      this.id = id;
+      this.hasLastUpdated = hasLastUpdated;
+      this.lastUpdatedMicros = lastUpdatedMicros;
+      this.lastUpdatedTimezone = lastUpdatedTimezone;
+    }
+
+    /** Returns the ContainedResource field number of the resource. */
+    public int getFieldNumber() {
+      return fieldNumber;
+    }
+
+    /** Returns the resource type, e.g. "Patient". */
+    public String getResourceType() {
+      return resourceType;
+    }
+
+    /** Returns the id of the resource, or an empty string if it has none. */
+    public String getId() {
+      return id;
+    }
+
+    public boolean hasLastUpdated() {
+      return hasLastUpdated;
+    }
+
+    /** Returns meta.lastUpdated in microseconds since the epoch, or zero if it is not set. */
+    public long getLastUpdatedMicros() {
+      return lastUpdatedMicros;
+    }
+
+    /** Returns the timezone of meta.lastUpdated, or an empty string if it is not set. */
+    public String getLastUpdatedTimezone() {
+      return lastUpdatedTimezone;
+    }
+  }
+
+  /**
+   * Creates a scanner. The {@code containedResource} is the default instance of the
+   * ContainedResource type of the records, which names the resource types.
+   */
+  public ResourceHeaderScanner(Message containedResource) {
+    int maxFieldNumber = 0;
+    for (FieldDescriptor field : containedResource.getDescriptorForType().getFields()) {
+      maxFieldNumber = Math.max(maxFieldNumber, field.getNumber());
+    }
+    resourceTypes = new String[maxFieldNumber + 1];
+    for (FieldDescriptor field : containedResource.getDescriptorForType().getFields()) {
+      if (field.getType() == FieldDescriptor.Type.MESSAGE) {
+        resourceTypes[field.getNumber()] = field.getMessageType().getName();
+      }
+    }
+  }
+
+  /**
+   * Scans a serialized ContainedResource.
+   *
+   * @throws InvalidProtocolBufferException if the record is malformed, holds no resource, or a
+   *     resource of an unknown type
+   */
+  public Header scan(ByteString containedResource) throws InvalidProtocolBufferException {
+    try {
+      return scan(containedResource.newCodedInput());
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException("Reading a ByteString failed", e);
+    }
+  }
+
+  /**
+   * Scans a serialized ContainedResource, up to the end of the input or its current limit, as set
+   * with {@link CodedInputStream#pushLimit}.
+   *
+   * @throws InvalidProtocolBufferException if the record is malformed, holds no resource, or a
+   *     resource of an unknown type
+   */
+  public Header scan(CodedInputStream input) throws IOException {
+    Header header = null;
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      int fieldNumber = WireFormat.getTagFieldNumber(tag);
+      if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        input.skipField(tag);
+        continue;
+      }
+      if (fieldNumber >= resourceTypes.length || resourceTypes[fieldNumber] == null) {
+        throw new InvalidProtocolBufferException("Unknown resource field " + fieldNumber);
+      }
+      // If the record holds several resources, the last one is the one which would be parsed.
+      int limit = input.pushLimit(input.readRawVarint32());
+      header = scanResource(input, fieldNumber);
+      popLimit(input, limit);
+    }
+    if (header == null) {
+      throw new InvalidProtocolBufferException("ContainedResource holds no resource");
+    }
+    return header;
+  }
+
+  /**
+   * Scans a stream of length-delimited ContainedResource records, as written by {@link
+   * com.google.protobuf.MessageLite#writeDelimitedTo}, passing the header of each to the consumer.
+   * Returns the number of records.
+   *
+   * @throws InvalidProtocolBufferException if a record is malformed or truncated
+   */
+  public long scanDelimited(InputStream input, Consumer<Header> consumer) throws IOException {
+    CodedInputStream codedInput = CodedInputStream.newInstance(input, 1 << 16);
+    long count = 0;
+    while (!codedInput.isAtEnd()) {
+      // The size limit applies to the whole stream, so it is reset for each record.
+      codedInput.resetSizeCounter();
+      int limit = codedInput.pushLimit(codedInput.readRawVarint32());
+      Header header = scan(codedInput);
+      popLimit(codedInput, limit);
+      consumer.accept(header);
+      count++;
+    }
+    return count;
+  }
+
+  private Header scanResource(CodedInputStream input, int fieldNumber) throws IOException {
+    String id = "";
+    boolean hasMeta = false;
+    boolean hasLastUpdated = false;
+    long lastUpdatedMicros = 0;
+    String lastUpdatedTimezone = "";
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      if (tag == RESOURCE_ID_TAG) {
+        int limit = input.pushLimit(input.readRawVarint32());
+        id = readIdValue(input);
+        popLimit(input, limit);
+      } else if (tag == RESOURCE_META_TAG) {
+        int limit = input.pushLimit(input.readRawVarint32());
+        hasMeta = true;
+        while ((tag = input.readTag()) != 0) {
+          if (tag != META_LAST_UPDATED_TAG) {
+            input.skipField(tag);
+            continue;
+          }
+          int instantLimit = input.pushLimit(input.readRawVarint32());
+          hasLastUpdated = true;
+          while ((tag = input.readTag()) != 0) {
+            if (tag == INSTANT_VALUE_US_TAG) {
+              lastUpdatedMicros = input.readInt64();
+            } else if (tag == INSTANT_TIMEZONE_TAG) {
+              lastUpdatedTimezone = input.readStringRequireUtf8();
+            } else {
+              input.skipField(tag);
+            }
+          }
+          popLimit(input, instantLimit);
+        }
+        popLimit(input, limit);
+      } else {
+        input.skipField(tag);
+      }
+      if (!id.isEmpty() && hasMeta) {
+        // Skip the rest of the resource, assuming the id and meta are not repeated.
+        input.skipRawBytes(input.getBytesUntilLimit());
+        break;
+      }
+    }
+    return new Header(
+        fieldNumber,
+        resourceTypes[fieldNumber],
+        id,
+        hasLastUpdated,
+        lastUpdatedMicros,
+        lastUpdatedTimezone);
+  }
+
+  private static String readIdValue(CodedInputStream input) throws IOException {
+    String value = "";
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      if (tag == ID_VALUE_TAG) {
+        value = input.readStringRequireUtf8();
+      } else {
+        input.skipField(tag);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Checks that a nested message was read up to its end, which it is not if the input ended early,
+   * and restores the enclosing limit.
+   */
+  private static void popLimit(CodedInputStream input, int limit)
+      throws InvalidProtocolBufferException {
+    if (input.getBytesUntilLimit() > 0) {
+      throw new InvalidProtocolBufferException("Truncated ContainedResource");
+    }
+    input.popLimit(limit);
+  }
+
+  private static int lengthDelimitedTag(int fieldNumber) {
+    return fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  }
+}
@@ -20,14 +20,18 @@ import com.google.fhir.r4.core.Bundle;
 import com.google.fhir.r4.core.Id;
 import com.google.fhir.r4.core.ReferenceId;
 import com.google.fhir.wrappers.IdWrapper;
+import com.google.protobuf.Any;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /** Helper methods for handling FHIR resource protos. */
 public final class ResourceUtils {
@@ -194,4 +198,49 @@ public final class ResourceUtils {
     // Keep the uri field.
     return builder.build();
   }
+
+  /**
+   * Calls the consumer with every Reference message found in the provided message, including
+   * references held by contained resources. Primitives are never descended into.
+   */
+  public static void forEachReference(
+      MessageOrBuilder message, Consumer<MessageOrBuilder> consumer) {
+    for (Map.Entry<FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+      FieldDescriptor descriptor = field.getKey();
+      if (descriptor.getType() != FieldDescriptor.Type.MESSAGE
+          || AnnotationUtils.isPrimitiveType(descriptor.getMessageType())) {
+        continue;
+      }
+      if (descriptor.isRepeated()) {
+        for (Object value : (List<?>) field.getValue()) {
+          visitReferences((MessageOrBuilder) value, consumer);
+        }
+      } else {
+        visitReferences((MessageOrBuilder) field.getValue(), consumer);
+      }
+    }
+  }
+
+  private static void visitReferences(
+      MessageOrBuilder message, Consumer<MessageOrBuilder> consumer) {
+    if (AnnotationUtils.isReference(message.getDescriptorForType())) {
+      consumer.accept(message);
+    } else if (message instanceof Any) {
+      Any any = (Any) message;
+      try {
+        if (any.is(com.google.fhir.r4.core.ContainedResource.class)) {
+          forEachReference(any.unpack(com.google.fhir.r4.core.ContainedResource.class), consumer);
+        } else if (any.is(com.google.fhir.stu3.proto.ContainedResource.class)) {
+          forEachReference(
+              any.unpack(com.google.fhir.stu3.proto.ContainedResource.class), consumer);
+        } else {
+          throw new IllegalArgumentException("Unexpected contained resource: " + any.getTypeUrl());
+        }
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalArgumentException("Unable to unpack contained resource", e);
+      }
+    } else {
+      forEachReference(message, consumer);
+    }
+  }
 }
@@ -0,0 +1,357 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes records to a set of named output files, such as one ndjson file per resource type.
+ *
+ * <p>Records appended to each named stream are collected in blocks, which are compressed and
+ * written on a thread pool, so the caller only pays for copying the record. With gzip compression,
+ * files are written in the BGZF format, so they can be read back in parallel with {@link
+ * BlockGzipReader}. Files are appended to without being synced to disk.
+ *
+ * <p>A stream may be split over several files, rolling over to the next file once the current one
+ * holds a given number of records, or of uncompressed bytes. Files are then named e.g.
+ * Observation-00000.ndjson.gz, Observation-00001.ndjson.gz; without a limit, the file is simply
+ * Observation.ndjson.gz. Since there may be many streams, at most a fixed number of files are held
+ * open, closing the least recently used one when needed and reopening it for appending later.
+ *
+ * <p>This class is thread-safe. Records appended to the same stream are written in order.
+ */
+public final class RollingFileSink implements Closeable {
+
+  /** The compression of output files. */
+  public enum Compression {
+    NONE(""),
+    GZIP(".gz");
+
+    private final String extension;
+
+    Compression(String extension) {
+      this.extension = extension;
+    }
+  }
+
+  public static final int DEFAULT_MAX_OPEN_FILES = 64;
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  private final Path directory;
+  private final String extension;
+  private final Compression compression;
+  private final int maxOpenFiles;
+  private final long maxBytesPerFile;
+  private final long maxRecordsPerFile;
+  private final int blockSize;
+  private final ExecutorService executor;
+  // Bounds the number of blocks waiting to be written, and so the memory they use.
+  private final Semaphore pendingBlocks;
+  private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<>();
+  // The open files, least recently used first. All file operations are guarded by this map.
+  private final LinkedHashMap<Path, OutputStream> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+  // The files which were created by this sink, and so are appended to when reopened.
+  private final Set<Path> createdFiles = new HashSet<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /** The state of one named stream. Guarded by itself. */
+  private static final class Stream {
+    final String name;
+    int fileIndex = 0;
+    long bytesInFile = 0;
+    long recordsInFile = 0;
+    final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    // Completes once all blocks handed off so far have been written.
+    CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+
+    Stream(String name) {
+      this.name = name;
+    }
+  }
+
+  private RollingFileSink(Builder builder) {
+    this.directory = builder.directory;
+    this.extension = builder.extension;
+    this.compression = builder.compression;
+    this.maxOpenFiles = builder.maxOpenFiles;
+    this.maxBytesPerFile = builder.maxBytesPerFile;
+    this.maxRecordsPerFile = builder.maxRecordsPerFile;
+    this.blockSize = builder.blockSize;
+    this.executor = Executors.newFixedThreadPool(builder.threads);
+    this.pendingBlocks = new Semaphore(2 * builder.threads);
+  }
+
+  /**
+   * Returns a builder for a sink writing to files in {@code directory}, named after their stream
+   * and ending with {@code extension}, e.g. ".ndjson".
+   */
+  public static Builder newBuilder(Path directory, String extension) {
+    return new Builder(directory, extension);
+  }
+
+  /** Builder that can be used to obtain new instances of {@link RollingFileSink}. */
+  public static final class Builder {
+    private final Path directory;
+    private final String extension;
+    private Compression compression = Compression.NONE;
+    private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    private long maxBytesPerFile = Long.MAX_VALUE;
+    private long maxRecordsPerFile = Long.MAX_VALUE;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private Builder(Path directory, String extension) {
+      this.directory = directory;
+      this.extension = extension;
+    }
+
+    public Builder withCompression(Compression compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /** Limits the number of open files, which must be positive. */
+    public Builder withMaxOpenFiles(int maxOpenFiles) {
+      if (maxOpenFiles < 1) {
+        throw new IllegalArgumentException("maxOpenFiles must be positive");
+      }
+      this.maxOpenFiles = maxOpenFiles;
+      return this;
+    }
+
+    /** Rolls over to a new file before a file exceeds this number of uncompressed bytes. */
+    public Builder withMaxBytesPerFile(long maxBytesPerFile) {
+      this.maxBytesPerFile = maxBytesPerFile;
+      return this;
+    }
+
+    /** Rolls over to a new file once a file holds this number of records. */
+    public Builder withMaxRecordsPerFile(long maxRecordsPerFile) {
+      this.maxRecordsPerFile = maxRecordsPerFile;
+      return this;
+    }
+
+    /** Sets the number of uncompressed bytes of each stream which are compressed together. */
+    public Builder withBlockSize(int blockSize) {
+      this.blockSize = blockSize;
+      return this;
+    }
+
+    /** Sets the number of threads compressing and writing blocks. */
+    public Builder withThreads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    public RollingFileSink build() {
+      return new RollingFileSink(this);
+    }
+  }
+
+  /**
+   * Appends a record, such as a line of ndjson including its line separator, to the named stream.
+   *
+   * @throws IOException if writing any earlier record failed
+   */
+  public void append(String name, CharSequence record) throws IOException {
+    checkFailure();
+    byte[] bytes = record.toString().getBytes(UTF_8);
+    Stream stream = streams.computeIfAbsent(name, Stream::new);
+    synchronized (stream) {
+      if (stream.recordsInFile > 0
+          && (stream.recordsInFile >= maxRecordsPerFile
+              || stream.bytesInFile + bytes.length > maxBytesPerFile)) {
+        roll(stream);
+      }
+      stream.block.write(bytes, 0, bytes.length);
+      stream.bytesInFile += bytes.length;
+      stream.recordsInFile++;
+      if (stream.block.size() >= blockSize) {
+        handOff(stream);
+      }
+    }
+  }
+
+  /** Writes all appended records, and closes all files. */
+  @Override
+  public void close() throws IOException {
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+    for (Stream stream : streams.values()) {
+      synchronized (stream) {
+        handOff(stream);
+        writes.add(stream.writes);
+      }
+    }
+    try {
+      for (CompletableFuture<Void> write : writes) {
+        try {
+          write.join();
+        } catch (CompletionException e) {
+          failure.compareAndSet(null, e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdown();
+      synchronized (openFiles) {
+        for (OutputStream output : openFiles.values()) {
+          try {
+            output.close();
+          } catch (IOException e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+        openFiles.clear();
+        if (compression == Compression.GZIP) {
+          // Mark the end of each BGZF file.
+          for (Path file : createdFiles) {
+            try {
+              Files.write(file, BlockGzip.EOF_BLOCK, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        }
+      }
+    }
+    checkFailure();
+  }
+
+  private Path getFile(Stream stream) {
+    String suffix = extension + compression.extension;
+    if (maxBytesPerFile == Long.MAX_VALUE && maxRecordsPerFile == Long.MAX_VALUE) {
+      return directory.resolve(stream.name + suffix);
+    }
+    return directory.resolve(String.format("%s-%05d%s", stream.name, stream.fileIndex, suffix));
+  }
+
+  private void roll(Stream stream) {
+    handOff(stream);
+    Path file = getFile(stream);
+    stream.writes = stream.writes.thenRun(() -> closeFile(file));
+    stream.fileIndex++;
+    stream.bytesInFile = 0;
+    stream.recordsInFile = 0;
+  }
+
+  /** Compresses and writes the current block of the stream in the background. */
+  private void handOff(Stream stream) {
+    if (stream.block.size() == 0) {
+      return;
+    }
+    byte[] data = stream.block.toByteArray();
+    stream.block.reset();
+    Path file = getFile(stream);
+    pendingBlocks.acquireUninterruptibly();
+    CompletableFuture<byte[]> compressed =
+        compression == Compression.NONE
+            ? CompletableFuture.completedFuture(data)
+            : CompletableFuture.supplyAsync(
+                () -> BlockGzip.compress(data, 0, data.length), executor);
+    stream.writes =
+        stream
+            .writes
+            .thenCombineAsync(
+                compressed,
+                (ignored, bytes) -> {
+                  write(file, bytes);
+                  return (Void) null;
+                },
+                executor)
+            .whenComplete(
+                (ignored, e) -> {
+                  pendingBlocks.release();
+                  if (e != null) {
+                    failure.compareAndSet(null, e.getCause() != null ? e.getCause() : e);
+                  }
+                });
+  }
+
+  private void write(Path file, byte[] bytes) {
+    synchronized (openFiles) {
+      try {
+        OutputStream output = openFiles.get(file);
+        if (output == null) {
+          if (openFiles.size() >= maxOpenFiles) {
+            Iterator<Map.Entry<Path, OutputStream>> leastRecentlyUsed =
+                openFiles.entrySet().iterator();
+            OutputStream evicted = leastRecentlyUsed.next().getValue();
+            leastRecentlyUsed.remove();
+            evicted.close();
+          }
+          // Files are truncated when first opened, and appended to when reopened.
+          output =
+              createdFiles.add(file)
+                  ? Files.newOutputStream(file)
+                  : Files.newOutputStream(file, StandardOpenOption.APPEND);
+          openFiles.put(file, output);
+        }
+        output.write(bytes);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void closeFile(Path file) {
+    synchronized (openFiles) {
+      OutputStream output = openFiles.remove(file);
+      if (output != null) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable e = failure.get();
+    if (e == null) {
+      return;
+    }
+    if (e instanceof UncheckedIOException) {
+      throw ((UncheckedIOException) e).getCause();
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    throw new IOException("Failed to write output", e);
+  }
+}
@@ -0,0 +1,300 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.common.RecursionLimit.Tracker;
+import com.google.fhir.common.RecursionLimit.TypeKey;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.r4.core.Decimal;
+import com.google.fhir.wrappers.PrimitiveWrapper;
+import com.google.fhir.wrappers.PrimitiveWrappers;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.Any;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converts FHIR protos directly into BigQuery {@link TableRow}s, without printing and re-parsing
+ * analytic JSON. The rows match the schema generated by {@link BigQuerySchema} for the same maximum
+ * recursion depth: keys are json names, primitives are converted by their wrappers, extensions and
+ * contained resources are collapsed to their urls and types, reference ids are flattened to their
+ * values, and ids are only kept on resources. By default there is no recursion limit, as for {@link
+ * JsonFormat.Printer#forAnalytics()}, so types nested within themselves are kept at any depth.
+ *
+ * <p>The fields to convert are resolved once per message type and cached. This class is
+ * thread-safe.
+ */
+public final class TableRowConverter {
+
+  private final ZoneId defaultTimeZone;
+  private final int maxRecursionDepth;
+
+  private TableRowConverter(ZoneId defaultTimeZone, int maxRecursionDepth) {
+    this.defaultTimeZone = defaultTimeZone;
+    this.maxRecursionDepth = maxRecursionDepth;
+  }
+
+  /**
+   * Creates a converter with the default maximum recursion depth. The default timezone is set to
+   * the local system default.
+   */
+  public static TableRowConverter getInstance() {
+    return new TableRowConverter(
+        ZoneId.systemDefault(), RecursionLimit.DEFAULT_MAX_RECURSION_DEPTH);
+  }
+
+  /**
+   * Create a new converter with a default timezone. Any Dates and DateTimes in this timezone are
+   * converted without timezone qualifiers, as by {@link JsonFormat.Printer#withDefaultTimeZone}.
+   */
+  public TableRowConverter withDefaultTimeZone(ZoneId defaultTimeZone) {
+    return new TableRowConverter(defaultTimeZone, maxRecursionDepth);
+  }
+
+  /** Create a new converter which drops fields beyond the given maximum recursion depth. */
+  public TableRowConverter withMaxRecursionDepth(int maxRecursionDepth) {
+    return new TableRowConverter(defaultTimeZone, maxRecursionDepth);
+  }
+
+  /** Returns the maximum recursion depth, which the schema of the rows must be generated with. */
+  public int getMaxRecursionDepth() {
+    return maxRecursionDepth;
+  }
+
+  /** Converts a FHIR message, usually a resource, into a row. */
+  public TableRow convert(MessageOrBuilder message) {
+    Tracker tracker = new Tracker(maxRecursionDepth);
+    tracker.tryEnter(RecursionLimit.typeKey(message.getDescriptorForType()));
+    return convertMessage(message, tracker);
+  }
+
+  private enum Kind {
+    PRIMITIVE,
+    DECIMAL,
+    REFERENCE_ID,
+    EXTENSION,
+    CONTAINED_RESOURCE,
+    ANY,
+    MESSAGE
+  }
+
+  /** How to convert one field of a message type. */
+  private static final class FieldPlan {
+    final FieldDescriptor field;
+    final String name;
+    final Kind kind;
+
+    FieldPlan(FieldDescriptor field, Kind kind) {
+      this.field = field;
+      this.name = field.getJsonName();
+      this.kind = kind;
+    }
+  }
+
+  private static final ConcurrentMap<Descriptor, ImmutableList<FieldPlan>> plans =
+      new ConcurrentHashMap<>();
+
+  private static ImmutableList<FieldPlan> getPlan(Descriptor descriptor) {
+    ImmutableList<FieldPlan> plan = plans.get(descriptor);
+    if (plan == null) {
+      plan = buildPlan(descriptor);
+      plans.putIfAbsent(descriptor, plan);
+    }
+    return plan;
+  }
+
+  private static ImmutableList<FieldPlan> buildPlan(Descriptor descriptor) {
+    boolean isResource = AnnotationUtils.isResource(descriptor);
+    ImmutableList.Builder<FieldPlan> plan = ImmutableList.builder();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+        throw new IllegalArgumentException("Unexpected primitive field: " + field.getFullName());
+      }
+      // We don't include the "id" except for resources.
+      if (field.getJsonName().equals("id") && !isResource) {
+        continue;
+      }
+      plan.add(new FieldPlan(field, kindOf(field.getMessageType())));
+    }
+    return plan.build();
+  }
+
+  private static Kind kindOf(Descriptor type) {
+    String name = type.getFullName();
+    if (name.equals(com.google.fhir.r4.core.ReferenceId.getDescriptor().getFullName())
+        || name.equals(com.google.fhir.stu3.proto.ReferenceId.getDescriptor().getFullName())) {
+      return Kind.REFERENCE_ID;
+    }
+    if (AnnotationUtils.isPrimitiveType(type)) {
+      return AnnotationUtils.sameFhirType(type, Decimal.getDescriptor())
+          ? Kind.DECIMAL
+          : Kind.PRIMITIVE;
+    }
+    if (AnnotationUtils.sameFhirType(type, com.google.fhir.r4.core.Extension.getDescriptor())) {
+      return Kind.EXTENSION;
+    }
+    if (type.getName().equals("ContainedResource")) {
+      return Kind.CONTAINED_RESOURCE;
+    }
+    if (name.equals(Any.getDescriptor().getFullName())) {
+      return Kind.ANY;
+    }
+    return Kind.MESSAGE;
+  }
+
+  private TableRow convertMessage(MessageOrBuilder message, Tracker tracker) {
+    TableRow row = new TableRow();
+    for (FieldPlan plan : getPlan(message.getDescriptorForType())) {
+      FieldDescriptor field = plan.field;
+      if (field.isRepeated()) {
+        int count = message.getRepeatedFieldCount(field);
+        if (count > 0) {
+          Object value = convertRepeated(plan, message, count, tracker);
+          if (value != null) {
+            row.set(plan.name, value);
+          }
+        }
+      } else if (message.hasField(field)) {
+        Object value = convertValue(plan, (MessageOrBuilder) message.getField(field), tracker);
+        if (value != null) {
+          row.set(plan.name, value);
+        }
+      }
+    }
+    return row;
+  }
+
+  private Object convertRepeated(
+      FieldPlan plan, MessageOrBuilder message, int count, Tracker tracker) {
+    FieldDescriptor field = plan.field;
+    if (plan.kind == Kind.PRIMITIVE || plan.kind == Kind.DECIMAL) {
+      // As in the analytic printer, repeated primitives are only included if at least one of them
+      // has a value.
+      boolean hasValue = false;
+      for (int i = 0; i < count; i++) {
+        MessageOrBuilder element = (MessageOrBuilder) message.getRepeatedField(field, i);
+        hasValue |= PrimitiveWrapper.hasValue(element);
+      }
+      if (!hasValue) {
+        return null;
+      }
+      List<Object> values = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        values.add(
+            convertPrimitive(plan, (MessageOrBuilder) message.getRepeatedField(field, i), true));
+      }
+      return values;
+    }
+    TypeKey type = null;
+    if (plan.kind == Kind.MESSAGE) {
+      type = RecursionLimit.typeKey(field);
+      if (!tracker.tryEnter(type)) {
+        return null;
+      }
+    }
+    List<Object> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Object value =
+          convertElement(plan, (MessageOrBuilder) message.getRepeatedField(field, i), tracker);
+      values.add(value == null ? new TableRow() : value);
+    }
+    if (type != null) {
+      tracker.exit(type);
+    }
+    return values;
+  }
+
+  private Object convertValue(FieldPlan plan, MessageOrBuilder value, Tracker tracker) {
+    switch (plan.kind) {
+      case PRIMITIVE:
+      case DECIMAL:
+        return convertPrimitive(plan, value, false);
+      case REFERENCE_ID:
+        return value.getField(value.getDescriptorForType().findFieldByName("value"));
+      case MESSAGE:
+        TypeKey type = RecursionLimit.typeKey(plan.field);
+        if (!tracker.tryEnter(type)) {
+          return null;
+        }
+        Object result = convertElement(plan, value, tracker);
+        tracker.exit(type);
+        return result;
+      default:
+        return convertElement(plan, value, tracker);
+    }
+  }
+
+  /** Converts a non-primitive value, returning null for messages with no fields. */
+  private Object convertElement(FieldPlan plan, MessageOrBuilder value, Tracker tracker) {
+    switch (plan.kind) {
+      case EXTENSION:
+        FieldDescriptor urlField = value.getDescriptorForType().findFieldByName("url");
+        if (urlField == null) {
+          // Profiled extensions carry their url as an annotation.
+          return AnnotationUtils.getStructureDefinitionUrl(value.getDescriptorForType());
+        }
+        return ResourceUtils.getValue((Message) value.getField(urlField));
+      case CONTAINED_RESOURCE:
+        return getContainedType(value);
+      case ANY:
+        try {
+          return getContainedType(
+              ((Any) value).unpack(com.google.fhir.r4.core.ContainedResource.class));
+        } catch (InvalidProtocolBufferException e) {
+          throw new IllegalArgumentException("Unable to unpack contained resource", e);
+        }
+      case REFERENCE_ID:
+        return value.getField(value.getDescriptorForType().findFieldByName("value"));
+      default:
+        TableRow row = convertMessage(value, tracker);
+        return row.isEmpty() ? null : row;
+    }
+  }
+
+  private Object convertPrimitive(FieldPlan plan, MessageOrBuilder value, boolean inList) {
+    PrimitiveWrapper<?> wrapper = PrimitiveWrappers.primitiveWrapperOf(value, defaultTimeZone);
+    if (!inList && !wrapper.hasValue()) {
+      return null;
+    }
+    JsonPrimitive json = wrapper.toJson();
+    if (json.isBoolean()) {
+      return json.getAsBoolean();
+    }
+    if (json.isNumber()) {
+      return plan.kind == Kind.DECIMAL ? json.getAsBigDecimal() : (Object) json.getAsLong();
+    }
+    return json.getAsString();
+  }
+
+  private static String getContainedType(MessageOrBuilder containedResource) {
+    for (Object resource : containedResource.getAllFields().values()) {
+      return ((Message) resource)
+          .getDescriptorForType()
+          .getOptions()
+          .getExtension(Annotations.fhirStructureDefinitionUrl);
+    }
+    return null;
+  }
+}
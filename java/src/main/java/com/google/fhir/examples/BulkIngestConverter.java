@@ -0,0 +1,503 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.CountingInputStream;
+import com.google.fhir.common.BlockGzipReader;
+import com.google.fhir.common.CheckpointManifest;
+import com.google.fhir.common.JsonFormat.Parser;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.WireFormat;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts ranges of ndjson files into shards of length-delimited ContainedResource protos, for
+ * {@link BulkIngestMain}, recording the progress of each range in a {@link CheckpointManifest}.
+ *
+ * <p>Uncompressed files are split into ranges of about the chunk size, and checkpointed every
+ * checkpoint interval. BGZF files are split at block boundaries, and only checkpointed at the end
+ * of each range. Other gzip files can't be split without decompressing them, so each forms a single
+ * range, streamed through a {@link GZIPInputStream} and checkpointed once it is done.
+ *
+ * <p>Converting ranges is thread-safe.
+ */
+final class BulkIngestConverter implements Closeable {
+
+  static final String MANIFEST_NAME = "ingest.manifest";
+  private static final String SHARD_SUFFIX = ".pb";
+
+  /** How a range is read. */
+  private enum Kind {
+    PLAIN,
+    BLOCK_GZIP,
+    GZIP
+  }
+
+  /** A range of an input file, which is converted into one output shard. */
+  static final class Range {
+    private final Path file;
+    private final long start;
+    private final long end;
+    private final String shard;
+    private final Kind kind;
+    // The reader and blocks of the range, only set for BGZF files.
+    private final BlockGzipReader reader;
+    private final BlockGzipReader.Chunk chunk;
+
+    private Range(
+        Path file,
+        long start,
+        long end,
+        String shard,
+        Kind kind,
+        BlockGzipReader reader,
+        BlockGzipReader.Chunk chunk) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.shard = shard;
+      this.kind = kind;
+      this.reader = reader;
+      this.chunk = chunk;
+    }
+
+    String getInput() {
+      return file.getFileName().toString();
+    }
+
+    /** Returns the name of the output shard, in the output directory. */
+    String getShard() {
+      return shard;
+    }
+  }
+
+  private final Path outputDirectory;
+  private final long chunkSize;
+  private final long checkpointInterval;
+  private final Parser fhirParser;
+  private final CheckpointManifest manifest;
+  private final List<BlockGzipReader> readers = new ArrayList<>();
+  // The number of converted resources, and of errors, of each resource type.
+  private final ConcurrentMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+  // The resource types for which an error was printed, which is only done for the first one.
+  private final Set<String> reportedErrors = ConcurrentHashMap.newKeySet();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder resourcesWritten = new LongAdder();
+  private final LongAdder rangesSkipped = new LongAdder();
+
+  /**
+   * Creates a converter writing to the output directory, which continues the run recorded by its
+   * manifest, unless {@code restart} is set.
+   */
+  BulkIngestConverter(
+      Path outputDirectory,
+      long chunkSize,
+      long checkpointInterval,
+      Parser fhirParser,
+      boolean restart)
+      throws IOException {
+    this.outputDirectory = outputDirectory;
+    this.chunkSize = chunkSize;
+    this.checkpointInterval = checkpointInterval;
+    this.fhirParser = fhirParser;
+    Files.createDirectories(outputDirectory);
+    Path manifestPath = outputDirectory.resolve(MANIFEST_NAME);
+    if (restart) {
+      Files.deleteIfExists(manifestPath);
+    }
+    this.manifest = CheckpointManifest.open(manifestPath);
+  }
+
+  /** Returns the name of a file without its extension, e.g. "Observation-1". */
+  private static String getStem(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.lastIndexOf(".ndjson"));
+  }
+
+  /** Returns the resource type named by an input file, e.g. "Observation" for Observation-1. */
+  private static String getFileResourceType(Path file) {
+    return getStem(file).split("[-.]", 2)[0];
+  }
+
+  private static long ceilDiv(long dividend, long divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  /**
+   * Splits the inputs into ranges. The split only depends on the input files and the chunk size,
+   * so that it is the same when the job is resumed.
+   */
+  List<Range> split(List<Path> inputs) throws IOException {
+    List<Range> ranges = new ArrayList<>();
+    Set<String> stems = new HashSet<>();
+    for (Path file : inputs) {
+      String stem = getStem(file);
+      if (!stems.add(stem)) {
+        throw new IOException("Several input files would be written to the shards of " + stem);
+      }
+      long size = Files.size(file);
+      if (file.toString().endsWith(".gz") && BlockGzipReader.isBlockCompressed(file)) {
+        BlockGzipReader reader = BlockGzipReader.open(file);
+        readers.add(reader);
+        List<BlockGzipReader.Block> blocks = reader.getBlocks();
+        long count = Math.max(1, ceilDiv(reader.getUncompressedSize(), chunkSize));
+        List<BlockGzipReader.Chunk> chunks = reader.split((int) Math.min(count, Integer.MAX_VALUE));
+        for (int i = 0; i < chunks.size(); i++) {
+          BlockGzipReader.Chunk chunk = chunks.get(i);
+          long start = blocks.get(chunk.getFirstBlock()).getOffset();
+          long end =
+              chunk.getEndBlock() < blocks.size()
+                  ? blocks.get(chunk.getEndBlock()).getOffset()
+                  : size;
+          ranges.add(
+              new Range(
+                  file, start, end, getShardName(stem, i), Kind.BLOCK_GZIP, reader, chunk));
+        }
+      } else if (file.toString().endsWith(".gz")) {
+        ranges.add(new Range(file, 0, size, getShardName(stem, 0), Kind.GZIP, null, null));
+      } else {
+        long count = Math.max(1, ceilDiv(size, chunkSize));
+        for (int i = 0; i < count; i++) {
+          long start = size * i / count;
+          long end = size * (i + 1) / count;
+          ranges.add(new Range(file, start, end, getShardName(stem, i), Kind.PLAIN, null, null));
+        }
+      }
+    }
+    return ranges;
+  }
+
+  private static String getShardName(String stem, int index) {
+    return String.format("%s-%05d%s", stem, index, SHARD_SUFFIX);
+  }
+
+  /** Checks that the ranges recorded by an earlier run are the same as the current ones. */
+  void checkManifest(List<Range> ranges) throws IOException {
+    Set<String> expected = new HashSet<>();
+    for (Range range : ranges) {
+      expected.add(getRangeKey(range.getInput(), range.start, range.end, range.shard));
+    }
+    for (CheckpointManifest.Entry entry : manifest.getEntries()) {
+      if (!expected.contains(
+          getRangeKey(entry.getInput(), entry.getStart(), entry.getEnd(), entry.getShard()))) {
+        throw new IOException(
+            "The manifest was written for different inputs or a different --chunk_size_mb, "
+                + "rerun with --restart to convert all inputs again");
+      }
+    }
+  }
+
+  private static String getRangeKey(String input, long start, long end, String shard) {
+    return input + "\t" + start + "\t" + end + "\t" + shard;
+  }
+
+  /** Converts a range, continuing from the last checkpoint if there is one. */
+  void convert(Range range) throws IOException {
+    CheckpointManifest.Entry entry = manifest.get(range.getInput(), range.start);
+    if (entry != null && entry.isDone()) {
+      rangesSkipped.increment();
+      return;
+    }
+    if (entry == null) {
+      entry =
+          new CheckpointManifest.Entry(
+              range.getInput(), range.start, range.end, range.start, range.shard, 0);
+    }
+    try (FileChannel shard =
+        FileChannel.open(
+            outputDirectory.resolve(range.shard),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE)) {
+      if (shard.size() < entry.getShardSize()) {
+        throw new IOException("Shard " + range.shard + " is shorter than recorded in the manifest");
+      }
+      // Drop the output written after the last checkpoint.
+      shard.truncate(entry.getShardSize());
+      shard.position(entry.getShardSize());
+      CodedOutputStream output = CodedOutputStream.newInstance(Channels.newOutputStream(shard));
+      String fileResourceType = getFileResourceType(range.file);
+      switch (range.kind) {
+        case BLOCK_GZIP:
+          range.reader.forEachLine(
+              range.chunk, line -> convertLine(line, output, fileResourceType, range));
+          for (int i = range.chunk.getFirstBlock(); i < range.chunk.getEndBlock(); i++) {
+            bytesRead.add(range.reader.getBlocks().get(i).getUncompressedSize());
+          }
+          break;
+        case GZIP:
+          convertGzip(range, output, fileResourceType);
+          break;
+        case PLAIN:
+          entry = convertPlain(range, entry, output, shard, fileResourceType);
+          break;
+      }
+      checkpoint(entry, range.end, output, shard);
+    }
+  }
+
+  /** Converts a whole gzip file, which is decompressed as it is read. */
+  private void convertGzip(Range range, CodedOutputStream output, String fileResourceType)
+      throws IOException {
+    if (range.end == 0) {
+      // An empty file has no gzip header, and is converted as holding no lines.
+      return;
+    }
+    try (CountingInputStream input =
+            new CountingInputStream(
+                new GZIPInputStream(Files.newInputStream(range.file), 1 << 16));
+        BufferedReader lines =
+            new BufferedReader(new InputStreamReader(input, UTF_8), 1 << 16)) {
+      long counted = 0;
+      String line;
+      while ((line = lines.readLine()) != null) {
+        bytesRead.add(input.getCount() - counted);
+        counted = input.getCount();
+        convertLine(line, output, fileResourceType, range);
+      }
+      bytesRead.add(input.getCount() - counted);
+    }
+  }
+
+  /**
+   * Converts the lines which start in a range of an uncompressed file, from the position of the
+   * entry, recording a checkpoint every checkpoint interval. Returns the last entry recorded.
+   */
+  private CheckpointManifest.Entry convertPlain(
+      Range range,
+      CheckpointManifest.Entry entry,
+      CodedOutputStream output,
+      FileChannel shard,
+      String fileResourceType)
+      throws IOException {
+    try (FileChannel input = FileChannel.open(range.file)) {
+      LineReader lines = new LineReader(input, entry.getPosition());
+      if (entry.getPosition() == range.start) {
+        // Skip the end of a line which started in the previous range.
+        lines.skipPartialLine();
+      }
+      long lastCheckpoint = lines.getPosition();
+      while (lines.getPosition() < range.end) {
+        long lineStart = lines.getPosition();
+        if (!lines.readLine()) {
+          break;
+        }
+        bytesRead.add(lines.getPosition() - lineStart);
+        convertLine(lines.getLine(), output, fileResourceType, range);
+        if (lines.getPosition() - lastCheckpoint >= checkpointInterval
+            && lines.getPosition() < range.end) {
+          entry = checkpoint(entry, lines.getPosition(), output, shard);
+          lastCheckpoint = lines.getPosition();
+        }
+      }
+    }
+    return entry;
+  }
+
+  /** Syncs the shard, and records that the range has been converted up to the position. */
+  private CheckpointManifest.Entry checkpoint(
+      CheckpointManifest.Entry entry, long position, CodedOutputStream output, FileChannel shard)
+      throws IOException {
+    output.flush();
+    shard.force(false);
+    CheckpointManifest.Entry progress = entry.withProgress(position, shard.position());
+    manifest.record(progress);
+    return progress;
+  }
+
+  private void convertLine(
+      String line, CodedOutputStream output, String fileResourceType, Range range)
+      throws IOException {
+    if (line.trim().isEmpty()) {
+      return;
+    }
+    ByteString resource;
+    String resourceType;
+    try {
+      resource = fhirParser.mergeToWireFormat(line, ContainedResource.getDefaultInstance());
+      resourceType = getResourceType(resource);
+    } catch (RuntimeException e) {
+      // The parser reports invalid input with unchecked exceptions.
+      errors.computeIfAbsent(fileResourceType, unused -> new LongAdder()).increment();
+      if (reportedErrors.add(fileResourceType)) {
+        System.err.println(
+            "Failed to parse a " + fileResourceType + " in " + range.getInput() + ": " + e);
+      }
+      return;
+    }
+    output.writeBytesNoTag(resource);
+    counts.computeIfAbsent(resourceType, unused -> new LongAdder()).increment();
+    resourcesWritten.increment();
+  }
+
+  /**
+   * Returns the type of a serialized ContainedResource, from the number of its only field.
+   *
+   * @throws IllegalArgumentException if no resource is set, e.g. for a line holding "{}"
+   */
+  private static String getResourceType(ByteString containedResource) throws IOException {
+    int tag = containedResource.newCodedInput().readTag();
+    FieldDescriptor field =
+        ContainedResource.getDescriptor().findFieldByNumber(WireFormat.getTagFieldNumber(tag));
+    if (tag == 0 || field == null) {
+      throw new IllegalArgumentException("No resource in line");
+    }
+    return field.getMessageType().getName();
+  }
+
+  /** Returns the number of resources converted of each type, sorted by type. */
+  Map<String, Long> getCounts() {
+    return sum(counts);
+  }
+
+  /** Returns the number of lines of each file resource type which could not be converted. */
+  Map<String, Long> getErrors() {
+    return sum(errors);
+  }
+
+  private static Map<String, Long> sum(Map<String, LongAdder> adders) {
+    Map<String, Long> sums = new TreeMap<>();
+    adders.forEach((type, adder) -> sums.put(type, adder.sum()));
+    return sums;
+  }
+
+  /** Returns the number of uncompressed bytes read. */
+  long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  long getResourcesWritten() {
+    return resourcesWritten.sum();
+  }
+
+  /** Returns the number of ranges skipped because an earlier run had converted them. */
+  long getRangesSkipped() {
+    return rangesSkipped.sum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (BlockGzipReader reader : readers) {
+      reader.close();
+    }
+    manifest.close();
+  }
+
+  /** Reads lines from a file channel, keeping track of the offset of the next line. */
+  private static final class LineReader {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    // The offset in the file of the next byte to read into the buffer.
+    private long readOffset;
+    // The offset in the file of the next byte of the buffer.
+    private long position;
+    private byte[] line = new byte[1 << 12];
+    private int lineLength = 0;
+
+    LineReader(FileChannel channel, long position) {
+      this.channel = channel;
+      this.readOffset = position;
+      this.position = position;
+      buffer.limit(0);
+    }
+
+    long getPosition() {
+      return position;
+    }
+
+    /** Skips to the start of the next line, unless the current position is at a line start. */
+    void skipPartialLine() throws IOException {
+      if (position == 0) {
+        return;
+      }
+      position--;
+      readOffset = position;
+      buffer.limit(0);
+      readLine();
+    }
+
+    /** Reads the next line, returning false at the end of the file. */
+    boolean readLine() throws IOException {
+      lineLength = 0;
+      while (true) {
+        if (!buffer.hasRemaining()) {
+          buffer.clear();
+          int read = channel.read(buffer, readOffset);
+          buffer.flip();
+          if (read <= 0) {
+            return lineLength > 0;
+          }
+          readOffset += read;
+        }
+        byte[] data = buffer.array();
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && data[end] != '\n') {
+          end++;
+        }
+        boolean complete = end < buffer.limit();
+        append(data, start, end - start);
+        int consumed = end - start + (complete ? 1 : 0);
+        buffer.position(start + consumed);
+        position += consumed;
+        if (complete) {
+          return true;
+        }
+      }
+    }
+
+    /** Returns the last line read, without its line terminator. */
+    String getLine() {
+      int length = lineLength;
+      if (length > 0 && line[length - 1] == '\r') {
+        length--;
+      }
+      return new String(line, 0, length, UTF_8);
+    }
+
+    private void append(byte[] data, int offset, int length) {
+      if (lineLength + length > line.length) {
+        line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + length));
+      }
+      System.arraycopy(data, offset, line, lineLength, length);
+      lineLength += length;
+    }
+  }
+}
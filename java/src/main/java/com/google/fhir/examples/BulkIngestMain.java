@@ -0,0 +1,291 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.fhir.common.CheckpointManifest;
+import com.google.fhir.common.JsonFormat.Parser;
+import com.google.fhir.common.ResourceArchiveWriter;
+import com.google.fhir.common.ResourceHeaderScanner;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * This example converts the ndjson files of a FHIR bulk data export, such as those downloaded by
+ * examples/bulkdata/bulkload.py, into length-delimited ContainedResource protos. The only argument
+ * is the directory holding the .ndjson files, which may be gzipped.
+ *
+ * <p>Each input file is split into ranges of about --chunk_size_mb, which are converted on
+ * --threads threads, each range into an output shard of its own, e.g. Observation-00003.pb. A shard
+ * holds the resources of its range in input order, each preceded by its size as a varint, as
+ * written by {@link com.google.protobuf.MessageLite#writeDelimitedTo}.
+ *
+ * <p>Progress is recorded in a {@link CheckpointManifest} in the output directory, after every
+ * --checkpoint_interval_mb of input and at the end of each range, so that an interrupted run
+ * continues where it stopped when started again with the same arguments. Block-compressed (BGZF)
+ * inputs are split at block boundaries, and only checkpointed at the end of each range. Other gzip
+ * files can't be split without decompressing them, so each is streamed as a single range, which is
+ * only checkpointed once the whole file is converted.
+ *
+ * <p>Lines which can't be parsed are skipped, and counted as errors of the resource type named by
+ * the input file. Throughput is reported every few seconds, and the number of resources and errors
+ * of each type at the end; these only cover the ranges converted by this run.
+ *
+ * <p>With --archive, the shards are finally packed into a single {@link
+ * com.google.fhir.common.ResourceArchive}, which can be memory-mapped to look up resources by type
+ * and id, or to stream them in parallel.
+ */
+public class BulkIngestMain {
+
+  private static final long MEGABYTE = 1024 * 1024;
+  private static final int REPORT_INTERVAL_SECONDS = 10;
+
+  /** Command-line arguments. */
+  static class Args {
+    @Parameter(
+      names = {"--output_directory"},
+      description = "Directory where the output shards and the manifest are saved",
+      required = true
+    )
+    private String outputDirectory;
+
+    @Parameter(
+      names = {"--threads"},
+      description = "Number of threads converting ranges of the input files"
+    )
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+      names = {"--chunk_size_mb"},
+      description = "Approximate uncompressed size of the ranges input files are split into"
+    )
+    private long chunkSizeMb = 256;
+
+    @Parameter(
+      names = {"--checkpoint_interval_mb"},
+      description = "Amount of uncompressed input converted between checkpoints"
+    )
+    private long checkpointIntervalMb = 16;
+
+    @Parameter(
+      names = {"--default_timezone"},
+      description = "Default timezone for the json parser"
+    )
+    private String defaultTimezone = "UTC";
+
+    @Parameter(
+      names = {"--restart"},
+      description = "Ignore the manifest of an earlier run, and convert all inputs again"
+    )
+    private boolean restart = false;
+
+    @Parameter(
+      names = {"--archive"},
+      description = "Path of an indexed archive of all resources, packed from the shards"
+    )
+    private String archive = null;
+
+    @Parameter(description = "Input directory")
+    private List<String> inputDirectory = new ArrayList<>();
+
+    Args(String[] argv) {
+      JCommander jcommander = new JCommander(this);
+      try {
+        jcommander.parse(argv);
+        if (inputDirectory.size() != 1) {
+          throw new ParameterException("Expected a single input directory");
+        }
+        if (threads < 1 || chunkSizeMb < 1 || checkpointIntervalMb < 1) {
+          throw new ParameterException(
+              "--threads, --chunk_size_mb and --checkpoint_interval_mb must be positive");
+        }
+      } catch (ParameterException exception) {
+        System.err.printf("Invalid usage: %s\n", exception.getMessage());
+        jcommander.usage();
+        System.exit(1);
+      }
+    }
+  }
+
+  private final BulkIngestConverter converter;
+  private final Path outputDirectory;
+  private final Path archive;
+
+  private BulkIngestMain(Args args) throws IOException {
+    this.outputDirectory = Paths.get(args.outputDirectory);
+    this.archive = args.archive == null ? null : Paths.get(args.archive);
+    this.converter =
+        new BulkIngestConverter(
+            outputDirectory,
+            args.chunkSizeMb * MEGABYTE,
+            args.checkpointIntervalMb * MEGABYTE,
+            Parser.withDefaultTimeZone(ZoneId.of(args.defaultTimezone)),
+            args.restart);
+  }
+
+  /** Returns the ndjson files of the directory, sorted by name. */
+  private static List<Path> listInputs(Path directory) throws IOException {
+    List<Path> inputs = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files
+          .filter(
+              file ->
+                  file.toString().endsWith(".ndjson") || file.toString().endsWith(".ndjson.gz"))
+          .sorted()
+          .forEach(inputs::add);
+    }
+    return inputs;
+  }
+
+  private void run(Path inputDirectory, int threads) throws IOException, InterruptedException {
+    List<BulkIngestConverter.Range> ranges = converter.split(listInputs(inputDirectory));
+    converter.checkManifest(ranges);
+    System.out.println(
+        "Converting " + ranges.size() + " ranges of files in " + inputDirectory + "...");
+
+    long startTime = System.nanoTime();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(
+        () -> printThroughput(startTime),
+        REPORT_INTERVAL_SECONDS,
+        REPORT_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (BulkIngestConverter.Range range : ranges) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  converter.convert(range);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          for (Future<?> other : futures) {
+            other.cancel(true);
+          }
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException("Failed to convert input", e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      reporter.shutdownNow();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+    printThroughput(startTime);
+    printSummary();
+    if (archive != null) {
+      writeArchive(ranges);
+    }
+  }
+
+  /**
+   * Packs the shards of all ranges, in input order, into an indexed archive. Records are copied
+   * as they are, reading only their type and id.
+   */
+  private void writeArchive(List<BulkIngestConverter.Range> ranges) throws IOException {
+    System.out.println("Writing archive " + archive + "...");
+    ResourceHeaderScanner scanner =
+        new ResourceHeaderScanner(ContainedResource.getDefaultInstance());
+    long count = 0;
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(archive)) {
+      for (BulkIngestConverter.Range range : ranges) {
+        try (InputStream input = Files.newInputStream(outputDirectory.resolve(range.getShard()))) {
+          CodedInputStream codedInput = CodedInputStream.newInstance(input, 1 << 16);
+          while (!codedInput.isAtEnd()) {
+            codedInput.resetSizeCounter();
+            ByteString resource = codedInput.readBytes();
+            writer.append(resource, scanner.scan(resource));
+            count++;
+          }
+        }
+      }
+    }
+    System.out.println("Wrote " + count + " resources to " + archive);
+  }
+
+  private void printThroughput(long startTime) {
+    double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+    long megabytes = converter.getBytesRead() / MEGABYTE;
+    long resources = converter.getResourcesWritten();
+    System.out.printf(
+        "Read %d MB (%.1f MB/s), wrote %d resources (%.0f/s) in %.0f seconds\n",
+        megabytes, megabytes / seconds, resources, resources / seconds, seconds);
+  }
+
+  private void printSummary() {
+    if (converter.getRangesSkipped() > 0) {
+      System.out.println(
+          "Skipped "
+              + converter.getRangesSkipped()
+              + " ranges which were converted by an earlier run.");
+    }
+    System.out.println("Number of resources, and of errors, of each type:");
+    Map<String, Long> counts = converter.getCounts();
+    Map<String, Long> errors = converter.getErrors();
+    Set<String> types = new TreeSet<>(counts.keySet());
+    types.addAll(errors.keySet());
+    for (String type : types) {
+      System.out.println(
+          type
+              + ": "
+              + counts.getOrDefault(type, 0L)
+              + ", errors: "
+              + errors.getOrDefault(type, 0L));
+    }
+  }
+
+  private void close() throws IOException {
+    converter.close();
+  }
+
+  public static void main(String[] argv) throws IOException, InterruptedException {
+    Args args = new Args(argv);
+    BulkIngestMain ingest = new BulkIngestMain(args);
+    try {
+      ingest.run(Paths.get(args.inputDirectory.get(0)), args.threads);
+    } finally {
+      ingest.close();
+    }
+  }
+}
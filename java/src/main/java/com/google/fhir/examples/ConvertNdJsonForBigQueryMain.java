@@ -18,22 +18,39 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.base.Throwables;
 import com.google.fhir.common.BigQuerySchema;
+import com.google.fhir.common.BlockGzipReader;
 import com.google.fhir.common.JsonFormat.Parser;
+import com.google.fhir.common.NdJsonFilter;
+import com.google.fhir.common.ResourceDeduplicator;
 import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.common.RollingFileSink;
 import com.google.fhir.r4.core.ContainedResource;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
 import com.google.protobuf.util.JsonFormat.Printer;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This example reads FHIR resources in standard ndjson format, containing one message per line, and
@@ -41,54 +58,198 @@ import java.util.Map;
  * like BigQuery. At a high level, the main difference between the input and output formats is that
  * proto-json can be mapped to a standard db schema unchanged, whereas FHIR json can not. For a more
  * detailed explanation of the differences, see the main FHIR protobuf documentation.
+ *
+ * <p>Lines are parsed on as many threads as there are processors, so resources are not
+ * necessarily written in input order. Inputs ending with .gz are decompressed; block-compressed
+ * (BGZF) inputs are split into chunks of blocks, which are decompressed and parsed in parallel.
+ *
+ * <p>With --field_mask, only the selected fields of a resource type are parsed and written; the
+ * other fields are skipped in the input without being parsed.
  */
 public class ConvertNdJsonForBigQueryMain {
 
-  public static void main(String[] argv) throws IOException {
-    JsonParserArgs args = new JsonParserArgs(argv);
-    Parser fhirParser = Parser.withDefaultTimeZone(args.getDefaultTimezone());
+  // Used to size the duplicate detection Bloom filter.
+  private static final long EXPECTED_RESOURCES = 10_000_000;
+  // The number of chunks each thread gets, on average, so that threads finish at about the same
+  // time even if chunks take different times to parse.
+  private static final int CHUNKS_PER_THREAD = 4;
+  // The number of lines of other inputs parsed as one task.
+  private static final int LINES_PER_BATCH = 1000;
+
+  /**
+   * Opens an input file, which is decompressed if it ends with .gz. Block-compressed (BGZF) files,
+   * such as those written with --compress_output, are decompressed in parallel.
+   */
+  static BufferedReader openInput(Path file, ExecutorService executor, int threads)
+      throws IOException {
+    if (!file.toString().endsWith(".gz")) {
+      return Files.newBufferedReader(file, UTF_8);
+    }
+    return new BufferedReader(
+        new InputStreamReader(BlockGzipReader.newInputStream(file, executor, threads), UTF_8));
+  }
+
+  /** Waits for the tasks, and rethrows the first failure. */
+  private static void await(List<Future<?>> tasks) throws IOException, InterruptedException {
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (ExecutionException e) {
+      for (Future<?> task : tasks) {
+        task.cancel(true);
+      }
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException("Failed to convert input", e.getCause());
+    }
+  }
+
+  /**
+   * Converts the lines of an input on the workers. BGZF files are split into chunks of blocks,
+   * which are decompressed and parsed independently. The lines of other files are read on this
+   * thread, and parsed in batches.
+   */
+  private static void convert(
+      Path file, BlockGzipReader.LineConsumer converter, ExecutorService workers, int threads)
+      throws IOException, InterruptedException {
+    List<Future<?>> tasks = new ArrayList<>();
+    if (file.toString().endsWith(".gz") && BlockGzipReader.isBlockCompressed(file)) {
+      try (BlockGzipReader reader = BlockGzipReader.open(file)) {
+        for (BlockGzipReader.Chunk chunk : reader.split(threads * CHUNKS_PER_THREAD)) {
+          tasks.add(
+              workers.submit(
+                  () -> {
+                    reader.forEachLine(chunk, converter);
+                    return null;
+                  }));
+        }
+        await(tasks);
+      }
+      return;
+    }
+    try (BufferedReader input = openInput(file, workers, threads)) {
+      List<String> batch = new ArrayList<>();
+      for (String line = input.readLine(); line != null; line = input.readLine()) {
+        batch.add(line);
+        if (batch.size() == LINES_PER_BATCH) {
+          tasks.add(submitBatch(batch, converter, workers));
+          batch = new ArrayList<>();
+          // Bound the number of lines held in memory by waiting for the oldest batches.
+          if (tasks.size() == 2 * threads) {
+            List<Future<?>> oldest = tasks.subList(0, threads);
+            await(oldest);
+            oldest.clear();
+          }
+        }
+      }
+      tasks.add(submitBatch(batch, converter, workers));
+      await(tasks);
+    }
+  }
+
+  private static Future<?> submitBatch(
+      List<String> lines, BlockGzipReader.LineConsumer converter, ExecutorService workers) {
+    return workers.submit(
+        () -> {
+          for (String line : lines) {
+            converter.accept(line);
+          }
+          return null;
+        });
+  }
+
+  public static void main(String[] argv) throws IOException, InterruptedException {
+    ResourceSelectionArgs selection = new ResourceSelectionArgs();
+    JsonParserArgs args = new JsonParserArgs(argv, selection);
+    Parser fhirParser =
+        selection.applyFieldMasks(Parser.withDefaultTimeZone(args.getDefaultTimezone()));
     Printer protoPrinter = JsonFormat.printer().omittingInsignificantWhitespace();
     GsonFactory gsonFactory = new GsonFactory();
+    NdJsonFilter filter = selection.getNdJsonFilter();
+    ResourceDeduplicator deduplicator =
+        selection.getDeduplicate()
+            ? ResourceDeduplicator.createWithTempDirectory(EXPECTED_RESOURCES)
+            : null;
+
+    RollingFileSink output = args.createOutputSink();
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    String newLine = System.lineSeparator();
 
     // Process the input files one by one, and count the number of processed resources.
-    Map<String, Integer> counts = new HashMap<>();
-    for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
-      System.out.println("Processing " + entry.input + "...");
-      BufferedReader input = Files.newBufferedReader(Paths.get(entry.input.toString()), UTF_8);
-      BufferedWriter output = Files.newBufferedWriter(Paths.get(entry.output.toString()), UTF_8);
-      TableSchema schema = null;
-      for (String line = input.readLine(); line != null; line = input.readLine()) {
-        // We parse as a ContainedResource, because we don't know what type of resource this is.
-        ContainedResource.Builder builder = ContainedResource.newBuilder();
-        fhirParser.merge(line, builder);
-        // Extract and print the (one) parsed resource.
-        Message parsed = ResourceUtils.getContainedResource(builder.build());
-        if (schema == null) {
-          // Generate a schema for this file. Note that we do this purely based on a single message,
-          // which could potentially cause issues with extensions.
-          schema = BigQuerySchema.fromDescriptor(parsed.getDescriptorForType());
+    ConcurrentMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+    try {
+      for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
+        System.out.println("Processing " + entry.input + "...");
+        AtomicReference<TableSchema> schema = new AtomicReference<>();
+        BlockGzipReader.LineConsumer converter =
+            line -> {
+              if (!filter.matches(line)) {
+                return;
+              }
+              // We parse as a ContainedResource, because we don't know what type of resource
+              // this is.
+              ContainedResource.Builder builder = ContainedResource.newBuilder();
+              fhirParser.merge(line, builder);
+              // Extract and print the (one) parsed resource.
+              Message parsed = ResourceUtils.getContainedResource(builder.build());
+              if (deduplicator != null
+                  && deduplicator.add(parsed) == ResourceDeduplicator.Outcome.DUPLICATE) {
+                return;
+              }
+              if (schema.get() == null) {
+                // Generate a schema for this file. Note that we do this purely based on a single
+                // message, which could potentially cause issues with extensions.
+                schema.compareAndSet(
+                    null, BigQuerySchema.fromDescriptor(parsed.getDescriptorForType()));
+              }
+              output.append(entry.outputName, protoPrinter.print(parsed) + newLine);
+              // Count the number of parsed resources.
+              counts
+                  .computeIfAbsent(
+                      parsed.getDescriptorForType().getName(), type -> new LongAdder())
+                  .increment();
+            };
+        convert(entry.input.toPath(), converter, workers, threads);
+        if (schema.get() != null) {
+          String filename = Paths.get(entry.output.toString() + ".schema.json").toString();
+          System.out.println("Writing schema to " + filename + "...");
+          com.google.common.io.Files.asCharSink(new File(filename), StandardCharsets.UTF_8)
+              .write(gsonFactory.toPrettyString(schema.get().getFields()));
         }
-        protoPrinter.appendTo(parsed, output);
-        output.newLine();
-        // Count the number of parsed resources.
-        String resourceType = parsed.getDescriptorForType().getName();
-        int count = counts.containsKey(resourceType) ? counts.get(resourceType) : 0;
-        counts.put(resourceType, count + 1);
       }
-      output.close();
-      if (schema != null) {
-        String filename = Paths.get(entry.output.toString() + ".schema.json").toString();
-        System.out.println("Writing schema to " + filename + "...");
-        com.google.common.io.Files.asCharSink(new File(filename), StandardCharsets.UTF_8)
-            .write(gsonFactory.toPrettyString(schema.getFields()));
+    } finally {
+      // Stop the workers, and flush and close the output, even if parsing fails.
+      workers.shutdownNow();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      try {
+        output.close();
+      } finally {
+        if (deduplicator != null) {
+          deduplicator.close();
+        }
       }
     }
     System.out.println(
         "Processed "
             + args.getInputOutputFilePairs().size()
             + " input files. Total number of resources:");
-    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+    for (Map.Entry<String, LongAdder> count : new TreeMap<>(counts).entrySet()) {
       System.out.println(count.getKey() + ": " + count.getValue());
     }
+    if (!filter.acceptsAll()) {
+      System.out.println(
+          "Parsed "
+              + filter.getAcceptedCount()
+              + " matching lines, skipped "
+              + filter.getSkippedCount()
+              + " ("
+              + filter.getSkippedByPrecheckCount()
+              + " without tokenizing).");
+    }
+    if (deduplicator != null) {
+      SplitBundleMain.printDeduplicationSummary(deduplicator);
+    }
   }
 }
@@ -0,0 +1,329 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.fhir.common.AnalyticJsonTranscoder;
+import com.google.fhir.common.BlockGzipOutputStream;
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.common.JsonFormat.Printer;
+import com.google.fhir.common.NdJsonHashJoin;
+import com.google.fhir.common.ResourceArchive;
+import com.google.fhir.common.ResourceCache;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.Message;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * This example joins two ndjson files of analytic json resources, such as the analytic output of
+ * SplitBundle, on a reference, inlining selected fields of the referenced resources. Keys printed
+ * as objects, such as {@code {"value":"p1"}} by ConvertNdJsonForBigQuery, are unwrapped. For
+ * example, to give each Observation the gender and birth date of its Patient:
+ *
+ * <pre>
+ *   DenormalizeNdJson --build Patient.ndjson --probe Observation.ndjson \
+ *       --probe_key subject.patientId --target_field patient --field gender --field birthDate \
+ *       --output Observation-with-patient.ndjson
+ * </pre>
+ *
+ * <p>The build file, which should be the smaller one, is held in memory, up to --max_memory_mb;
+ * beyond that, both files are partitioned on disk, see {@link NdJsonHashJoin}. Chains of
+ * references, such as Observation to Encounter to Patient, are joined by first joining Encounters
+ * with their Patients, and then Observations with the result. With --fhir_input, the inputs are
+ * standard FHIR ndjson, which is transcoded into analytic json on the fly. Inputs ending with .gz
+ * are decompressed, and an output ending with .gz is block-compressed.
+ *
+ * <p>Instead of a build file, the referenced resources can be looked up in a {@link
+ * ResourceArchive}, such as the one written by BulkIngest with --archive, by their type and id:
+ * pass --build_archive and --build_type, and a --probe_key holding ids of that type. Looked up
+ * resources are kept in a {@link ResourceCache} of --cache_mb, outside the Java heap, so that
+ * resources referenced by many others, such as Patients, are only read and parsed once.
+ */
+public class DenormalizeNdJsonMain {
+
+  private static final long MEGABYTE = 1024 * 1024;
+
+  /** Command-line arguments. */
+  static class Args {
+    @Parameter(
+      names = {"--build"},
+      description = "The ndjson file of referenced resources, e.g. Patients"
+    )
+    private String build = null;
+
+    @Parameter(
+      names = {"--build_archive"},
+      description = "Resource archive to look up referenced resources in, instead of --build"
+    )
+    private String buildArchive = null;
+
+    @Parameter(
+      names = {"--build_type"},
+      description = "The type of the resources looked up in --build_archive, e.g. Patient"
+    )
+    private String buildType = null;
+
+    @Parameter(
+      names = {"--cache_mb"},
+      description = "Memory for caching resources looked up in --build_archive"
+    )
+    private long cacheMb = ResourceCache.DEFAULT_CAPACITY_BYTES / MEGABYTE;
+
+    @Parameter(
+      names = {"--probe"},
+      description = "The ndjson file of referring resources, e.g. Observations",
+      required = true
+    )
+    private String probe;
+
+    @Parameter(
+      names = {"--build_key"},
+      description = "Dot-separated path of the key of the referenced resources"
+    )
+    private String buildKey = "id";
+
+    @Parameter(
+      names = {"--probe_key"},
+      description = "Dot-separated path of the reference, e.g. subject.patientId",
+      required = true
+    )
+    private String probeKey;
+
+    @Parameter(
+      names = {"--target_field"},
+      description = "Name of the field holding the referenced resource in the output",
+      required = true
+    )
+    private String targetField;
+
+    @Parameter(
+      names = {"--field"},
+      description = "Field of the referenced resources to inline; may be repeated, default all"
+    )
+    private List<String> fields = new ArrayList<>();
+
+    @Parameter(
+      names = {"--output"},
+      description = "The output ndjson file",
+      required = true
+    )
+    private String output;
+
+    @Parameter(
+      names = {"--inner_join"},
+      description = "Drop resources whose reference does not match a referenced resource"
+    )
+    private boolean innerJoin = false;
+
+    @Parameter(
+      names = {"--max_memory_mb"},
+      description = "Approximate memory for referenced resources, beyond which inputs are spilled"
+    )
+    private long maxMemoryMb = NdJsonHashJoin.DEFAULT_MAX_BUILD_BYTES / MEGABYTE;
+
+    @Parameter(
+      names = {"--partitions"},
+      description = "Number of partitions the inputs are split into when spilling to disk"
+    )
+    private int partitions = NdJsonHashJoin.DEFAULT_PARTITIONS;
+
+    @Parameter(
+      names = {"--temp_directory"},
+      description = "Directory for the partitions of spilled inputs"
+    )
+    private String tempDirectory = null;
+
+    @Parameter(
+      names = {"--fhir_input"},
+      description = "The inputs are standard FHIR ndjson rather than analytic json"
+    )
+    private boolean fhirInput = false;
+
+    @Parameter(
+      names = {"--default_timezone"},
+      description = "Default timezone for transcoding FHIR ndjson"
+    )
+    private String defaultTimezone = "UTC";
+
+    Args(String[] argv) {
+      JCommander jcommander = new JCommander(this);
+      try {
+        jcommander.parse(argv);
+        if ((build == null) == (buildArchive == null)) {
+          throw new ParameterException("Expected exactly one of --build and --build_archive");
+        }
+        if (buildArchive != null && buildType == null) {
+          throw new ParameterException("--build_archive requires --build_type");
+        }
+        if (cacheMb < 1) {
+          throw new ParameterException("--cache_mb must be positive");
+        }
+        if (maxMemoryMb < 1 || partitions < 2) {
+          throw new ParameterException(
+              "--max_memory_mb must be positive, and --partitions at least 2");
+        }
+      } catch (ParameterException exception) {
+        System.err.printf("Invalid usage: %s\n", exception.getMessage());
+        jcommander.usage();
+        System.exit(1);
+      }
+    }
+  }
+
+  /** Returns the lines of a reader, transcoded into analytic json if the transcoder is set. */
+  private static Iterator<String> lines(
+      BufferedReader reader, AnalyticJsonTranscoder transcoder) {
+    Stream<String> lines = reader.lines();
+    if (transcoder != null) {
+      lines =
+          lines
+              .filter(line -> !line.trim().isEmpty())
+              .map(
+                  line -> {
+                    try {
+                      return transcoder.transcode(line);
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                  });
+    }
+    return lines.iterator();
+  }
+
+  private static Writer openOutput(Path file) throws IOException {
+    OutputStream output = Files.newOutputStream(file);
+    if (file.toString().endsWith(".gz")) {
+      output = new BlockGzipOutputStream(output);
+    }
+    return new BufferedWriter(new OutputStreamWriter(output, UTF_8), 1 << 16);
+  }
+
+  /**
+   * Joins the probe rows with the resources of --build_type looked up in --build_archive, through
+   * a cache of their serialized form.
+   */
+  private static NdJsonHashJoin.Result joinWithArchive(
+      Args args, NdJsonHashJoin join, Iterator<String> probe, Writer output) throws IOException {
+    ResourceCache cache =
+        ResourceCache.newBuilder(ContainedResource.getDefaultInstance())
+            .withCapacityBytes(args.cacheMb * MEGABYTE)
+            .build();
+    Printer analyticPrinter =
+        JsonFormat.getPrinter().omittingInsignificantWhitespace().forAnalytics();
+    Path file = Paths.get(args.buildArchive);
+    NdJsonHashJoin.Result result;
+    try (ResourceArchive archive =
+        ResourceArchive.open(file, ContainedResource.getDefaultInstance())) {
+      result =
+          join.join(
+              key -> {
+                Message resource = cache.get(args.buildType, key, archive::get);
+                return resource == null
+                    ? null
+                    : analyticPrinter.print(
+                        ResourceUtils.getContainedResource((ContainedResource) resource));
+              },
+              probe,
+              output);
+    }
+    System.out.printf(
+        "Looked up referenced resources with %d cache hits and %d misses\n",
+        cache.getHitCount(), cache.getMissCount());
+    return result;
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Args args = new Args(argv);
+    NdJsonHashJoin.Builder builder =
+        NdJsonHashJoin.newBuilder(args.buildKey, args.probeKey, args.targetField)
+            .withFields(args.fields)
+            .withMaxBuildBytes(args.maxMemoryMb * MEGABYTE)
+            .withPartitions(args.partitions)
+            .withInnerJoin(args.innerJoin);
+    if (args.tempDirectory != null) {
+      builder.withTempDirectory(Paths.get(args.tempDirectory));
+    }
+    NdJsonHashJoin join = builder.build();
+    AnalyticJsonTranscoder transcoder =
+        args.fhirInput
+            ? AnalyticJsonTranscoder.forType(ContainedResource.getDescriptor())
+                .withDefaultTimeZone(ZoneId.of(args.defaultTimezone))
+            : null;
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService decompressors = Executors.newFixedThreadPool(threads);
+    long startTime = System.nanoTime();
+    NdJsonHashJoin.Result result;
+    try (BufferedReader probe =
+            ConvertNdJsonForBigQueryMain.openInput(Paths.get(args.probe), decompressors, threads);
+        Writer output = openOutput(Paths.get(args.output))) {
+      if (args.buildArchive != null) {
+        result = joinWithArchive(args, join, lines(probe, transcoder), output);
+      } else {
+        try (BufferedReader build =
+            ConvertNdJsonForBigQueryMain.openInput(
+                Paths.get(args.build), decompressors, threads)) {
+          result = join.join(lines(build, transcoder), lines(probe, transcoder), output);
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      decompressors.shutdown();
+    }
+    System.out.printf(
+        "Joined %d resources to %d referenced ones in %.1f seconds, %d matched, %d written\n",
+        result.getProbeRows(),
+        result.getBuildRows(),
+        (System.nanoTime() - startTime) / 1e9,
+        result.getMatchedRows(),
+        result.getOutputRows());
+    if (result.getProbeRows() > 0 && result.getProbeRowsWithoutKey() == result.getProbeRows()) {
+      System.err.println(
+          "Warning: none of the resources of "
+              + args.probe
+              + " has a --probe_key "
+              + args.probeKey
+              + ", so none was joined; check the path of the key.");
+    }
+    if (result.getSpilledPartitions() > 0) {
+      System.out.println(
+          "The inputs did not fit in memory, and were split into "
+              + result.getSpilledPartitions()
+              + " partitions on disk.");
+    }
+  }
+}
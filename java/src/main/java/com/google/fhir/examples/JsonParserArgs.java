@@ -17,7 +17,10 @@ package com.google.fhir.examples;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.fhir.common.RollingFileSink;
 import java.io.File;
+import java.nio.file.Paths;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.List;
@@ -49,15 +52,32 @@ public class JsonParserArgs {
   )
   private String defaultTimezone = "Australia/Sydney";
 
+  @ParametersDelegate private OutputSinkArgs outputSinkArgs = new OutputSinkArgs();
+
   // Each non-flag argument is assumed to be an input file.
   @Parameter(description = "List of input files")
   private List<String> inputFiles = new ArrayList<>();
 
   /** Create a JsonParserArgs, initialized from command-line arguments. */
   public JsonParserArgs(String[] argv) {
+    this(argv, null);
+  }
+
+  /**
+   * Create a JsonParserArgs, initialized from command-line arguments which may also include the
+   * given resource selection flags. Without them, those flags are rejected.
+   */
+  public JsonParserArgs(String[] argv, ResourceSelectionArgs resourceSelectionArgs) {
     JCommander jcommander = new JCommander(this);
+    if (resourceSelectionArgs != null) {
+      jcommander.addObject(resourceSelectionArgs);
+    }
     try {
       jcommander.parse(argv);
+      outputSinkArgs.validate();
+      if (resourceSelectionArgs != null) {
+        resourceSelectionArgs.validate();
+      }
     } catch (ParameterException exception) {
       System.err.printf("Invalid usage: %s\n", exception.getMessage());
       jcommander.usage();
@@ -68,10 +88,13 @@ public class JsonParserArgs {
   static class InputOutputFilePair {
     public final File input;
     public final File output;
+    // The output filename, without the output suffix.
+    public final String outputName;
 
-    public InputOutputFilePair(File input, File output) {
+    public InputOutputFilePair(File input, File output, String outputName) {
       this.input = input;
       this.output = output;
+      this.outputName = outputName;
     }
   }
 
@@ -81,17 +104,29 @@ public class JsonParserArgs {
     for (String file : inputFiles) {
       File inputFile = new File(file);
       String outputFilename = inputFile.getName();
+      // Compressed inputs are read transparently, so their extension is not part of the name,
+      // unless it is part of the given suffix.
+      if (outputFilename.endsWith(".gz") && !outputFilename.endsWith(inputFilenameSuffix)) {
+        outputFilename = outputFilename.substring(0, outputFilename.length() - ".gz".length());
+      }
       if (outputFilename.endsWith(inputFilenameSuffix)) {
         outputFilename =
             outputFilename.substring(0, outputFilename.lastIndexOf(inputFilenameSuffix));
       }
-      outputFilename = outputFilename + outputFilenameSuffix;
-      File outputFile = new File(outputDirectory, outputFilename);
-      values.add(new InputOutputFilePair(inputFile, outputFile));
+      File outputFile = new File(outputDirectory, outputFilename + outputFilenameSuffix);
+      values.add(new InputOutputFilePair(inputFile, outputFile, outputFilename));
     }
     return values;
   }
 
+  /**
+   * Create a sink for the output files. Records are written to the stream named after the output
+   * file without its suffix, as given by {@link InputOutputFilePair#outputName}.
+   */
+  public RollingFileSink createOutputSink() {
+    return outputSinkArgs.createSink(Paths.get(outputDirectory), outputFilenameSuffix);
+  }
+
   public ZoneId getDefaultTimezone() {
     return ZoneId.of(defaultTimezone);
   }
@@ -16,34 +16,54 @@ package com.google.fhir.examples;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 import com.google.fhir.common.JsonFormat.Parser;
 import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.common.RollingFileSink;
 import com.google.fhir.r4.core.ContainedResource;
 import com.google.protobuf.Message;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This example reads FHIR resources in json format, one message per file, and emits corresponding
- * .prototxt files. It is mainly used to generate testdata for JsonFormatTest.
+ * .prototxt files. Inputs ending with .gz are decompressed. It is mainly used to generate testdata
+ * for JsonFormatTest.
  */
 public class JsonToProtoMain {
 
+  /** Reads a file, which is decompressed if it ends with .gz. */
+  private static String read(File file) throws IOException {
+    if (!file.getName().endsWith(".gz")) {
+      return Files.asCharSource(file, UTF_8).read();
+    }
+    try (Reader reader =
+        new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), UTF_8)) {
+      return CharStreams.toString(reader);
+    }
+  }
+
   public static void main(String[] argv) throws IOException {
     JsonParserArgs args = new JsonParserArgs(argv);
     Parser fhirParser = Parser.withDefaultTimeZone(args.getDefaultTimezone());
+    try (RollingFileSink output = args.createOutputSink()) {
+      // Process the input files one by one.
+      for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
+        // We parse as a ContainedResource, because we don't know what type of resource this is.
+        System.out.println("Processing " + entry.input + "...");
+        ContainedResource.Builder builder = ContainedResource.newBuilder();
+        String input = read(entry.input);
+        fhirParser.merge(input, builder);
 
-    // Process the input files one by one.
-    for (JsonParserArgs.InputOutputFilePair entry : args.getInputOutputFilePairs()) {
-      // We parse as a ContainedResource, because we don't know what type of resource this is.
-      System.out.println("Processing " + entry.input + "...");
-      ContainedResource.Builder builder = ContainedResource.newBuilder();
-      String input = Files.asCharSource(entry.input, UTF_8).read();
-      fhirParser.merge(input, builder);
-
-      // Extract and print the parsed resource.
-      Message parsed = ResourceUtils.getContainedResource(builder.build());
-      Files.asCharSink(entry.output, UTF_8).write(parsed.toString());
+        // Extract and print the parsed resource.
+        Message parsed = ResourceUtils.getContainedResource(builder.build());
+        output.append(entry.outputName, parsed.toString());
+      }
     }
   }
 }
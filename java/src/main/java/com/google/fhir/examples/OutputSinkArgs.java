@@ -0,0 +1,72 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.fhir.common.RollingFileSink;
+import java.nio.file.Path;
+
+/** Common arguments for the output files of examples, see {@link RollingFileSink}. */
+public class OutputSinkArgs {
+
+  @Parameter(
+    names = {"--compress_output"},
+    description = "Compress output files with block gzip (BGZF), readable by any gzip reader"
+  )
+  private boolean compressOutput = false;
+
+  @Parameter(
+    names = {"--max_records_per_file"},
+    description = "Roll over to a new numbered output file after this many records"
+  )
+  private long maxRecordsPerFile = Long.MAX_VALUE;
+
+  @Parameter(
+    names = {"--max_bytes_per_file"},
+    description = "Roll over to a new numbered output file before exceeding this many bytes"
+  )
+  private long maxBytesPerFile = Long.MAX_VALUE;
+
+  @Parameter(
+    names = {"--max_open_files"},
+    description = "Maximum number of output files held open at the same time"
+  )
+  private int maxOpenFiles = RollingFileSink.DEFAULT_MAX_OPEN_FILES;
+
+  /** Check the values of these flags, once they have been parsed. */
+  void validate() {
+    if (maxRecordsPerFile < 1) {
+      throw new ParameterException("--max_records_per_file must be positive");
+    }
+    if (maxBytesPerFile < 1) {
+      throw new ParameterException("--max_bytes_per_file must be positive");
+    }
+    if (maxOpenFiles < 1) {
+      throw new ParameterException("--max_open_files must be positive");
+    }
+  }
+
+  /** Create a sink writing files with the given extension to the given directory. */
+  public RollingFileSink createSink(Path directory, String extension) {
+    return RollingFileSink.newBuilder(directory, extension)
+        .withCompression(
+            compressOutput ? RollingFileSink.Compression.GZIP : RollingFileSink.Compression.NONE)
+        .withMaxRecordsPerFile(maxRecordsPerFile)
+        .withMaxBytesPerFile(maxBytesPerFile)
+        .withMaxOpenFiles(maxOpenFiles)
+        .build();
+  }
+}
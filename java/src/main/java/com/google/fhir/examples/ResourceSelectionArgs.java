@@ -0,0 +1,138 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.base.Splitter;
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.common.JsonFormat.Parser;
+import com.google.fhir.common.NdJsonFilter;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments selecting which resources of ndjson inputs are converted, and which of their fields
+ * are parsed, for the examples reading ndjson files line by line.
+ */
+public class ResourceSelectionArgs {
+
+  @Parameter(
+    names = {"--deduplicate"},
+    description = "Skip resources which are identical copies of a previously seen resource"
+  )
+  private boolean deduplicate = false;
+
+  @Parameter(
+    names = {"--resource_type"},
+    description = "Only process resources of this type; may be repeated"
+  )
+  private List<String> resourceTypes = new ArrayList<>();
+
+  @Parameter(
+    names = {"--id"},
+    description = "Only process resources with this id; may be repeated"
+  )
+  private List<String> ids = new ArrayList<>();
+
+  @Parameter(
+    names = {"--code"},
+    description = "Only process resources with this code, given as system|code; may be repeated"
+  )
+  private List<String> codes = new ArrayList<>();
+
+  @Parameter(
+    names = {"--subject"},
+    description = "Only process resources with this subject, e.g. Patient/123; may be repeated"
+  )
+  private List<String> subjects = new ArrayList<>();
+
+  @Parameter(
+    names = {"--field_mask"},
+    description =
+        "Only parse these fields of a resource type, as Type=path,path, e.g."
+            + " Observation=code,subject,value.quantity; may be repeated"
+  )
+  private List<String> fieldMasks = new ArrayList<>();
+
+  /** Check the values of these flags, once they have been parsed. */
+  void validate() {
+    for (String code : codes) {
+      if (code.indexOf('|') == -1) {
+        throw new ParameterException("Expected --code as system|code, got " + code);
+      }
+    }
+    for (String fieldMask : fieldMasks) {
+      try {
+        JsonFormat.getParser()
+            .withFieldMask(getResourceDescriptor(fieldMask), getFieldMask(fieldMask));
+      } catch (IllegalArgumentException e) {
+        throw new ParameterException("Invalid --field_mask " + fieldMask + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /** Returns the descriptor of the resource type of a --field_mask. */
+  private static Descriptor getResourceDescriptor(String fieldMask) {
+    int separator = fieldMask.indexOf('=');
+    if (separator == -1) {
+      throw new ParameterException("Expected --field_mask as Type=path,path, got " + fieldMask);
+    }
+    String resourceType = fieldMask.substring(0, separator);
+    for (FieldDescriptor field : ContainedResource.getDescriptor().getFields()) {
+      if (field.getMessageType().getName().equals(resourceType)) {
+        return field.getMessageType();
+      }
+    }
+    throw new ParameterException("Unknown resource type in --field_mask " + fieldMask);
+  }
+
+  private static FieldMask getFieldMask(String fieldMask) {
+    String paths = fieldMask.substring(fieldMask.indexOf('=') + 1);
+    return FieldMask.newBuilder()
+        .addAllPaths(Splitter.on(',').trimResults().omitEmptyStrings().split(paths))
+        .build();
+  }
+
+  /** Return the parser, restricted to the fields selected by --field_mask. */
+  public Parser applyFieldMasks(Parser parser) {
+    for (String fieldMask : fieldMasks) {
+      parser = parser.withFieldMask(getResourceDescriptor(fieldMask), getFieldMask(fieldMask));
+    }
+    return parser;
+  }
+
+  public boolean getDeduplicate() {
+    return deduplicate;
+  }
+
+  /** Return a filter for ndjson input lines, built from the resource selection flags. */
+  public NdJsonFilter getNdJsonFilter() {
+    NdJsonFilter filter =
+        NdJsonFilter.acceptingAll()
+            .withResourceTypes(resourceTypes)
+            .withIds(ids)
+            .withSubjects(subjects);
+    for (String code : codes) {
+      int separator = code.indexOf('|');
+      filter = filter.withCode(code.substring(0, separator), code.substring(separator + 1));
+    }
+    return filter;
+  }
+}
@@ -16,106 +16,467 @@ package com.google.fhir.examples;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.base.Throwables;
 import com.google.fhir.common.BigQuerySchema;
+import com.google.fhir.common.DependencyOrder;
 import com.google.fhir.common.JsonFormat;
 import com.google.fhir.common.JsonFormat.Parser;
 import com.google.fhir.common.JsonFormat.Printer;
+import com.google.fhir.common.ParquetAnalyticWriter;
+import com.google.fhir.common.ReferenceIntegrityChecker;
+import com.google.fhir.common.ResourceDeduplicator;
 import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.common.RollingFileSink;
+import com.google.fhir.common.TableRowConverter;
 import com.google.fhir.r4.core.Bundle;
 import com.google.protobuf.Message;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This example splits a set of FHIR bundles into individual resources, saved as ndjson files. The
  * first argument is assumed to be the target output directory, and each subsequent argument is an
  * input file.
+ *
+ * <p>The analytic output is written as ndjson by default, or with --analytic_format=parquet as one
+ * set of Parquet files per resource type. Each resource type buffers a row group of up to
+ * --parquet_row_group_mb in memory.
+ *
+ * <p>With --deduplicate, resources which appear in more than one bundle, such as the Practitioners
+ * and Organizations repeated in every Synthea bundle, are only written once. Copies with the same
+ * type and id but different content are kept, and reported as conflicting versions. Set
+ * --expected_resources to roughly the number of distinct resources, to size the duplicate filter.
+ *
+ * <p>With --threads=N, N workers parse, resolve and print bundles concurrently, and hand the
+ * printed resources to a {@link RollingFileSink}, which compresses and writes them on its own
+ * threads. The output files can be gzipped, and rolled over to numbered files by size, see {@link
+ * OutputSinkArgs}. By default resources are written in the order in which workers finish their
+ * bundles; with --deterministic, they are written in input order, so the output is the same as with
+ * one thread.
+ *
+ * <p>With --dependency_order, the resources of each bundle are written after the resources they
+ * reference, see {@link DependencyOrder}.
+ *
+ * <p>With --check_references, the references of each bundle are checked with {@link
+ * ReferenceIntegrityChecker}, and bundles holding references which resolve to none of their
+ * resources are reported.
  */
 public class SplitBundleMain {
 
-  public static void main(String[] args) throws IOException {
-    Parser fhirParser = com.google.fhir.common.JsonFormat.getParser();
-    Printer fhirPrinter = JsonFormat.getPrinter().omittingInsignificantWhitespace();
-    Printer analyticPrinter =
-        JsonFormat.getPrinter().omittingInsignificantWhitespace().forAnalytics();
+  // The number of batches which may wait for the Parquet writer, before the workers block.
+  private static final int MAX_PENDING_BATCHES = 256;
 
-    // Process the input files one by one, and count the number of processed resources.
-    Map<String, Integer> counts = new HashMap<>();
-    // We create one file per output resource type.
-    Map<String, BufferedWriter> fhirOutput = new HashMap<>();
-    Map<String, BufferedWriter> analyticOutput = new HashMap<>();
-    // We create one schema per output resource type.
-    Map<String, TableSchema> schema = new HashMap<>();
+  /** Command-line arguments. */
+  static class Args {
+    @Parameter(
+      names = {"--analytic_format"},
+      description = "Format of the analytic output, either ndjson or parquet"
+    )
+    private String analyticFormat = "ndjson";
 
-    String outputDir = args[0];
-    for (int i = 1; i < args.length; i++) {
-      String file = args[i];
-      System.out.println("Processing " + file + "...");
-      String input = new String(Files.readAllBytes(Paths.get(file)), UTF_8);
-
-      // Parse the input bundle.
-      Bundle.Builder builder = Bundle.newBuilder();
-      fhirParser.merge(input, builder);
-
-      // Some FHIR implementations use absolute urls for references, such as urn:uuid:<identifier>,
-      // we'd like to resolve them to for example Patient/<identifier> instead. Here we do it in an
-      // ad-hoc way, creating a map of full url to relative reference, and then apply that mapping
-      // directly to the input string. It's fragile and slow, but enough for an example application.
-      // For more details on resolving references in bundles, see
-      // https://www.hl7.org/fhir/bundle.html#references
-      Bundle bundle = ResourceUtils.resolveBundleReferences(builder.build());
-
-      // Split the bundle.
-      for (Bundle.Entry entry : bundle.getEntryList()) {
-        Message resource = ResourceUtils.getContainedResource(entry.getResource());
-        String resourceType = ResourceUtils.getResourceType(resource);
-        int count = counts.containsKey(resourceType) ? counts.get(resourceType) : 0;
-        counts.put(resourceType, count + 1);
-        if (!fhirOutput.containsKey(resourceType)) {
-          fhirOutput.put(
-              resourceType,
-              Files.newBufferedWriter(Paths.get(outputDir, resourceType + ".fhir.ndjson"), UTF_8));
-          analyticOutput.put(
-              resourceType,
-              Files.newBufferedWriter(
-                  Paths.get(outputDir, resourceType + ".analytic.ndjson"), UTF_8));
+    @Parameter(
+      names = {"--parquet_row_group_mb"},
+      description = "Size of the Parquet row groups, which are buffered in memory per resource type"
+    )
+    private int parquetRowGroupMb = ParquetAnalyticWriter.DEFAULT_ROW_GROUP_SIZE / (1024 * 1024);
+
+    @Parameter(
+      names = {"--threads"},
+      description = "Number of threads parsing, resolving and printing bundles"
+    )
+    private int threads = 1;
+
+    @Parameter(
+      names = {"--deterministic"},
+      description = "Write resources in input order, as with a single thread"
+    )
+    private boolean deterministic = false;
+
+    @Parameter(
+      names = {"--dependency_order"},
+      description = "Write the resources of each bundle after the resources they reference"
+    )
+    private boolean dependencyOrder = false;
+
+    @Parameter(
+      names = {"--check_references"},
+      description = "Report references which don't resolve to a resource of their bundle"
+    )
+    private boolean checkReferences = false;
+
+    @Parameter(
+      names = {"--deduplicate"},
+      description = "Skip resources which are identical copies of a previously seen resource"
+    )
+    private boolean deduplicate = false;
+
+    @Parameter(
+      names = {"--expected_resources"},
+      description = "Approximate number of distinct resources, used to size --deduplicate"
+    )
+    private long expectedResources = 10_000_000;
+
+    @ParametersDelegate private OutputSinkArgs outputSinkArgs = new OutputSinkArgs();
+
+    // The first non-flag argument is the output directory, and the rest are input files.
+    @Parameter(description = "Output directory, followed by the list of input files")
+    private List<String> outputAndInputFiles = new ArrayList<>();
+
+    Args(String[] argv) {
+      JCommander jcommander = new JCommander(this);
+      try {
+        jcommander.parse(argv);
+        if (outputAndInputFiles.isEmpty()) {
+          throw new ParameterException("Missing output directory");
+        }
+        if (!analyticFormat.equals("ndjson") && !analyticFormat.equals("parquet")) {
+          throw new ParameterException("Unknown analytic format " + analyticFormat);
+        }
+        if (threads < 1) {
+          throw new ParameterException("--threads must be positive");
         }
-        if (!schema.containsKey(resourceType)) {
-          // Generate a schema for this type.
-          schema.put(resourceType, BigQuerySchema.fromDescriptor(resource.getDescriptorForType()));
+        if (parquetRowGroupMb < 1 || parquetRowGroupMb > 1024) {
+          throw new ParameterException("--parquet_row_group_mb must be between 1 and 1024");
         }
-        BufferedWriter resourceOutput = fhirOutput.get(resourceType);
-        fhirPrinter.appendTo(resource, resourceOutput);
-        resourceOutput.newLine();
+        if (expectedResources < 1) {
+          throw new ParameterException("--expected_resources must be positive");
+        }
+        outputSinkArgs.validate();
+      } catch (ParameterException exception) {
+        System.err.printf("Invalid usage: %s\n", exception.getMessage());
+        jcommander.usage();
+        System.exit(1);
+      }
+    }
+  }
+
+  /** A resource split from a bundle, along with its printed forms. */
+  private static final class SplitResource {
+    final Message resource;
+    final String resourceType;
+    final String fhirJson;
+    final String analyticJson;
+
+    SplitResource(Message resource, String fhirJson, String analyticJson) {
+      this.resource = resource;
+      this.resourceType = ResourceUtils.getResourceType(resource);
+      this.fhirJson = fhirJson;
+      this.analyticJson = analyticJson;
+    }
+  }
+
+  /** A thread which runs write tasks in the order they are submitted. */
+  private static final class WriterThread {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+    private final AtomicReference<IOException> failure;
+
+    WriterThread(AtomicReference<IOException> failure) {
+      this.failure = failure;
+    }
+
+    void submit(IoTask task) {
+      pendingBatches.acquireUninterruptibly();
+      executor.execute(
+          () -> {
+            try {
+              if (failure.get() == null) {
+                task.run();
+              }
+            } catch (IOException e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              pendingBatches.release();
+            }
+          });
+    }
+
+    /** Wait for all tasks to complete. */
+    void close() throws InterruptedException {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+  }
+
+  /** A write task, run on a writer thread. */
+  private interface IoTask {
+    void run() throws IOException;
+  }
+
+  private final boolean writeParquet;
+  private final boolean dependencyOrder;
+  private final boolean checkReferences;
+  private final Parser fhirParser = JsonFormat.getParser();
+  private final Printer fhirPrinter = JsonFormat.getPrinter().omittingInsignificantWhitespace();
+  private final Printer analyticPrinter =
+      JsonFormat.getPrinter().omittingInsignificantWhitespace().forAnalytics();
+  private final ResourceDeduplicator deduplicator;
+  private final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+  // The ndjson output, with one stream per resource type and format.
+  private final RollingFileSink output;
+  // The Parquet writer is not thread-safe, so it gets a writer thread of its own.
+  private final ParquetAnalyticWriter parquetOutput;
+  private final WriterThread parquetWriter;
+  // The number of processed resources, and the schema, of each resource type.
+  private final ConcurrentMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, TableSchema> schema = new ConcurrentHashMap<>();
+  // The number of unresolved references, with --check_references.
+  private final LongAdder unresolvedReferences = new LongAdder();
+
+  private SplitBundleMain(
+      String outputDir,
+      boolean writeParquet,
+      int parquetRowGroupSize,
+      boolean dependencyOrder,
+      boolean checkReferences,
+      RollingFileSink output,
+      ResourceDeduplicator deduplicator) {
+    this.writeParquet = writeParquet;
+    this.dependencyOrder = dependencyOrder;
+    this.checkReferences = checkReferences;
+    this.output = output;
+    this.deduplicator = deduplicator;
+    this.parquetOutput =
+        writeParquet
+            ? new ParquetAnalyticWriter(
+                Paths.get(outputDir),
+                TableRowConverter.getInstance(),
+                ParquetAnalyticWriter.DEFAULT_COMPRESSION,
+                parquetRowGroupSize,
+                ParquetAnalyticWriter.DEFAULT_MAX_ROWS_PER_FILE)
+            : null;
+    this.parquetWriter = writeParquet ? new WriterThread(writeFailure) : null;
+  }
+
+  /**
+   * Parse a bundle, resolve its references, and print its resources. If {@code deduplicate} is
+   * set and there is a deduplicator, resources which have been seen before are dropped here, before
+   * they are printed.
+   */
+  private List<SplitResource> split(String file, boolean deduplicate) throws IOException {
+    System.out.println("Processing " + file + "...");
+    String input = new String(Files.readAllBytes(Paths.get(file)), UTF_8);
+
+    // Parse the input bundle.
+    Bundle.Builder builder = Bundle.newBuilder();
+    fhirParser.merge(input, builder);
 
-        BufferedWriter analyticResourceOutput = analyticOutput.get(resourceType);
-        analyticPrinter.appendTo(resource, analyticResourceOutput);
-        analyticResourceOutput.newLine();
+    // Some FHIR implementations use absolute urls for references, such as urn:uuid:<identifier>,
+    // we'd like to resolve them to for example Patient/<identifier> instead. Here we do it in an
+    // ad-hoc way, creating a map of full url to relative reference, and then apply that mapping
+    // directly to the input string. It's fragile and slow, but enough for an example application.
+    // For more details on resolving references in bundles, see
+    // https://www.hl7.org/fhir/bundle.html#references
+    Bundle bundle = ResourceUtils.resolveBundleReferences(builder.build());
+    if (checkReferences) {
+      List<ReferenceIntegrityChecker.UnresolvedReference> unresolved =
+          ReferenceIntegrityChecker.check(bundle);
+      if (!unresolved.isEmpty()) {
+        System.out.println(
+            file
+                + " holds "
+                + unresolved.size()
+                + " unresolved references, e.g. "
+                + unresolved.get(0));
+        unresolvedReferences.add(unresolved.size());
       }
     }
-    for (BufferedWriter writer : fhirOutput.values()) {
-      writer.close();
+
+    // Split the bundle. With --dependency_order, entries are emitted in dependency order, so that
+    // loaders reading the output see referenced resources before the resources that reference them.
+    List<SplitResource> resources = new ArrayList<>();
+    List<Bundle.Entry> entries =
+        dependencyOrder ? DependencyOrder.of(bundle).getOrdered() : bundle.getEntryList();
+    for (Bundle.Entry entry : entries) {
+      Message resource = ResourceUtils.getContainedResource(entry.getResource());
+      if (deduplicate
+          && deduplicator != null
+          && deduplicator.add(resource) == ResourceDeduplicator.Outcome.DUPLICATE) {
+        continue;
+      }
+      resources.add(
+          new SplitResource(
+              resource,
+              fhirPrinter.print(resource),
+              writeParquet ? null : analyticPrinter.print(resource)));
     }
-    for (BufferedWriter writer : analyticOutput.values()) {
-      writer.close();
+    return resources;
+  }
+
+  /**
+   * Count the resources of a bundle and write them out. If {@code deduplicate} is set and there is
+   * a deduplicator, resources which have been seen before are dropped first.
+   */
+  private void emit(List<SplitResource> resources, boolean deduplicate) throws IOException {
+    List<SplitResource> kept = new ArrayList<>();
+    String newLine = System.lineSeparator();
+    for (SplitResource resource : resources) {
+      if (deduplicate
+          && deduplicator != null
+          && deduplicator.add(resource.resource) == ResourceDeduplicator.Outcome.DUPLICATE) {
+        continue;
+      }
+      kept.add(resource);
+      counts.computeIfAbsent(resource.resourceType, type -> new LongAdder()).increment();
+      // Generate a schema for this type.
+      schema.computeIfAbsent(
+          resource.resourceType,
+          type -> BigQuerySchema.fromDescriptor(resource.resource.getDescriptorForType()));
+      output.append(resource.resourceType + ".fhir", resource.fhirJson + newLine);
+      if (!writeParquet) {
+        output.append(resource.resourceType + ".analytic", resource.analyticJson + newLine);
+      }
+    }
+    if (writeParquet) {
+      parquetWriter.submit(
+          () -> {
+            for (SplitResource resource : kept) {
+              parquetOutput.write(resource.resource);
+            }
+          });
+    }
+  }
+
+  /** Wait for all writes to complete, and close the output. */
+  private void close() throws IOException, InterruptedException {
+    output.close();
+    if (parquetWriter != null) {
+      parquetWriter.submit(parquetOutput::close);
+      parquetWriter.close();
+    }
+    if (writeFailure.get() != null) {
+      throw writeFailure.get();
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    Args parsedArgs = new Args(argv);
+    String[] args = parsedArgs.outputAndInputFiles.toArray(new String[0]);
+    String outputDir = args[0];
+    boolean deterministic = parsedArgs.deterministic;
+    ResourceDeduplicator deduplicator =
+        parsedArgs.deduplicate
+            ? ResourceDeduplicator.createWithTempDirectory(parsedArgs.expectedResources)
+            : null;
+    SplitBundleMain splitter =
+        new SplitBundleMain(
+            outputDir,
+            parsedArgs.analyticFormat.equals("parquet"),
+            parsedArgs.parquetRowGroupMb * 1024 * 1024,
+            parsedArgs.dependencyOrder,
+            parsedArgs.checkReferences,
+            parsedArgs.outputSinkArgs.createSink(Paths.get(outputDir), ".ndjson"),
+            deduplicator);
+
+    // Workers split the bundles. Without --deterministic, they also deduplicate and queue their
+    // resources for writing. Otherwise this is done here, in input order, since whichever copy of
+    // a resource comes first is the one which is kept. At most a few bundles per worker are in
+    // flight at any time, to bound the memory used when one bundle is slow.
+    ExecutorService workers = Executors.newFixedThreadPool(parsedArgs.threads);
+    Deque<Future<List<SplitResource>>> inFlight = new ArrayDeque<>();
+    try {
+      for (int i = 1; i < args.length; i++) {
+        String file = args[i];
+        inFlight.add(
+            workers.submit(
+                () -> {
+                  List<SplitResource> resources = splitter.split(file, !deterministic);
+                  if (!deterministic) {
+                    splitter.emit(resources, false);
+                  }
+                  return resources;
+                }));
+        if (inFlight.size() > 2 * parsedArgs.threads) {
+          finish(splitter, inFlight.remove(), deterministic);
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        finish(splitter, inFlight.remove(), deterministic);
+      }
+    } finally {
+      // On failure, stop the remaining workers, and wait for them to stop appending before still
+      // closing the output and its threads.
+      workers.shutdownNow();
+      try {
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      } finally {
+        try {
+          splitter.close();
+        } finally {
+          if (deduplicator != null) {
+            deduplicator.close();
+          }
+        }
+      }
     }
+
     // Write the schemas to disk.
     GsonFactory gsonFactory = new GsonFactory();
-    for (String resourceType : schema.keySet()) {
-      String filename = Paths.get(outputDir, resourceType + ".schema.json").toString();
+    for (Map.Entry<String, TableSchema> entry : splitter.schema.entrySet()) {
+      String filename = Paths.get(outputDir, entry.getKey() + ".schema.json").toString();
       com.google.common.io.Files.asCharSink(new File(filename), StandardCharsets.UTF_8)
-          .write(gsonFactory.toPrettyString(schema.get(resourceType).getFields()));
+          .write(gsonFactory.toPrettyString(entry.getValue().getFields()));
     }
     System.out.println("Processed " + args.length + " input files. Total number of resources:");
-    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+    for (Map.Entry<String, LongAdder> count : new TreeMap<>(splitter.counts).entrySet()) {
+      System.out.println(count.getKey() + ": " + count.getValue());
+    }
+    if (parsedArgs.checkReferences) {
+      System.out.println("Unresolved references: " + splitter.unresolvedReferences);
+    }
+    if (deduplicator != null) {
+      printDeduplicationSummary(deduplicator);
+    }
+  }
+
+  private static void finish(
+      SplitBundleMain splitter, Future<List<SplitResource>> bundle, boolean deterministic)
+      throws IOException, InterruptedException {
+    List<SplitResource> resources;
+    try {
+      resources = bundle.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+    if (deterministic) {
+      splitter.emit(resources, true);
+    }
+  }
+
+  static void printDeduplicationSummary(ResourceDeduplicator deduplicator) {
+    System.out.println("Skipped duplicate resources:");
+    for (Map.Entry<String, Long> count : deduplicator.getDuplicateCounts().entrySet()) {
+      System.out.println(count.getKey() + ": " + count.getValue());
+    }
+    System.out.println("Conflicting versions (same id, different content):");
+    for (Map.Entry<String, Long> count : deduplicator.getConflictingVersionCounts().entrySet()) {
       System.out.println(count.getKey() + ": " + count.getValue());
     }
   }
@@ -14,9 +14,26 @@
 
 package com.google.fhir.examples;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.fhir.common.JsonFormat.Parser;
 import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.proto.VersionConfigOuterClass.VersionConfig;
 import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.google.EventLabel;
+import com.google.fhir.seqex.BundleToSeqexConverter;
+import com.google.fhir.seqex.TriggerLabelsPair;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.TextFormat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.PipelineResult;
 import org.apache.beam.sdk.io.FileIO;
@@ -37,11 +54,22 @@ import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SimpleFunction;
+import org.apache.beam.sdk.transforms.View;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.tensorflow.example.SequenceExample;
 
 /**
  * This utility reads bundles generated by Synthea, formats the references in ways expected by the
  * downstream TensorFlow pipeline, and then emits them in TFRecord format. It is implemented as an
  * Apache Beam pipeline.
+ *
+ * <p>Optionally, each bundle is also converted into TensorFlow SequenceExamples, one per trigger
+ * recorded in the bundle, right after it is parsed, so that no separate pass over the bundles is
+ * needed. Since Synthea does not record triggers, labels computed separately can be given with
+ * --labels instead; they are looked up by patient id, with one trigger at each label time. The
+ * labels are held in memory by each worker, as a side input.
  */
 public class SyntheaToTFRecordsMain {
 
@@ -56,10 +84,16 @@ public class SyntheaToTFRecordsMain {
   }
 
   static class ParseBundleFn extends DoFn<String, Bundle> {
+    private transient Parser fhirParser;
+
+    @Setup
+    public void setUp() {
+      // The parser is created once per DoFn instance, rather than for each bundle.
+      fhirParser = com.google.fhir.common.JsonFormat.getParser();
+    }
+
     @ProcessElement
     public void processElement(ProcessContext c) throws Exception {
-      Parser fhirParser = com.google.fhir.common.JsonFormat.getParser();
-
       // Parse the input bundle.
       Bundle.Builder builder = Bundle.newBuilder();
       fhirParser.merge(c.element(), builder);
@@ -75,6 +109,127 @@ public class SyntheaToTFRecordsMain {
     }
   }
 
+  /** Converts bundles to SequenceExamples, for the given triggers and labels of each bundle. */
+  abstract static class SeqexFn<InputT> extends DoFn<InputT, byte[]> {
+    private final Counter numExamples = Metrics.counter(SeqexFn.class, "numExamples");
+    private final Counter numBundlesWithoutExamples =
+        Metrics.counter(SeqexFn.class, "numBundlesWithoutExamples");
+    private final VersionConfig versionConfig;
+    private final int maxSequenceLength;
+    private final List<String> redactedFeatures;
+    private transient BundleToSeqexConverter converter;
+
+    SeqexFn(VersionConfig versionConfig, int maxSequenceLength, List<String> redactedFeatures) {
+      this.versionConfig = versionConfig;
+      this.maxSequenceLength = maxSequenceLength;
+      this.redactedFeatures = redactedFeatures;
+    }
+
+    @Setup
+    public void setUp() {
+      // The converter is thread-safe, and is created once per DoFn instance.
+      converter =
+          BundleToSeqexConverter.newBuilder(versionConfig)
+              .withMaxSequenceLength(maxSequenceLength)
+              .withTriggerTimeRedactedFeatures(redactedFeatures)
+              .build();
+    }
+
+    void convert(Bundle bundle, List<TriggerLabelsPair> triggerLabelsPairs, ProcessContext c) {
+      if (triggerLabelsPairs.isEmpty()) {
+        numBundlesWithoutExamples.inc();
+        return;
+      }
+      for (SequenceExample example : converter.convert(bundle, triggerLabelsPairs).values()) {
+        numExamples.inc();
+        c.output(example.toByteArray());
+      }
+    }
+  }
+
+  /** Generates examples for the triggers and labels recorded as extensions in each bundle. */
+  static class BundleToSeqexFn extends SeqexFn<Bundle> {
+    private final Set<String> labelNames;
+    private final String triggerEventName;
+
+    BundleToSeqexFn(
+        VersionConfig versionConfig,
+        Set<String> labelNames,
+        String triggerEventName,
+        int maxSequenceLength,
+        List<String> redactedFeatures) {
+      super(versionConfig, maxSequenceLength, redactedFeatures);
+      this.labelNames = labelNames;
+      this.triggerEventName = triggerEventName;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      Bundle bundle = c.element();
+      convert(bundle, TriggerLabelsPair.fromBundle(bundle, labelNames, triggerEventName), c);
+    }
+  }
+
+  /**
+   * Generates examples for the separately supplied labels of each patient, with one trigger at each
+   * label time, see {@link TriggerLabelsPair#fromInputLabels}. The labels, which are small, are a
+   * side input keyed by patient id, so that the conversion stays fused with parsing.
+   */
+  static class LabeledBundleToSeqexFn extends SeqexFn<Bundle> {
+    private final Counter numBundlesWithoutPatient =
+        Metrics.counter(SeqexFn.class, "numBundlesWithoutPatient");
+    private final PCollectionView<Map<String, Iterable<byte[]>>> labelsView;
+
+    LabeledBundleToSeqexFn(
+        VersionConfig versionConfig,
+        int maxSequenceLength,
+        List<String> redactedFeatures,
+        PCollectionView<Map<String, Iterable<byte[]>>> labelsView) {
+      super(versionConfig, maxSequenceLength, redactedFeatures);
+      this.labelsView = labelsView;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) throws InvalidProtocolBufferException {
+      Bundle bundle = c.element();
+      String patientId = getPatientId(bundle);
+      if (patientId == null) {
+        numBundlesWithoutPatient.inc();
+        return;
+      }
+      List<EventLabel> labels = new ArrayList<>();
+      Iterable<byte[]> serializedLabels = c.sideInput(labelsView).get(patientId);
+      if (serializedLabels != null) {
+        for (byte[] label : serializedLabels) {
+          labels.add(EventLabel.parseFrom(label));
+        }
+      }
+      convert(
+          bundle,
+          labels.isEmpty() ? new ArrayList<>() : TriggerLabelsPair.fromInputLabels(labels),
+          c);
+    }
+
+    /** Returns the id of the Patient of a bundle, or null if there is none. */
+    private static String getPatientId(Bundle bundle) {
+      for (Bundle.Entry entry : bundle.getEntryList()) {
+        if (entry.getResource().hasPatient()) {
+          return entry.getResource().getPatient().getId().getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Keys serialized EventLabels by the id of their patient. */
+  static class KeyLabelByPatientFn extends DoFn<byte[], KV<String, byte[]>> {
+    @ProcessElement
+    public void processElement(ProcessContext c) throws InvalidProtocolBufferException {
+      EventLabel label = EventLabel.parseFrom(c.element());
+      c.output(KV.of(label.getPatient().getPatientId().getValue(), c.element()));
+    }
+  }
+
   static class BundleToByteArrayFn extends SimpleFunction<Bundle, byte[]> {
     @Override
     public byte[] apply(Bundle input) {
@@ -104,18 +259,78 @@ public class SyntheaToTFRecordsMain {
     Integer getNumOutputShards();
 
     void setNumOutputShards(Integer value);
+
+    /** This option enables the SequenceExample output, and specifies its location. */
+    @Description("Output path for SequenceExamples, which are only written if set")
+    String getSeqexOutput();
+
+    void setSeqexOutput(String value);
+
+    /** This option specifies how resources are placed on the patient timeline. */
+    @Description("Path to a VersionConfig in text format, required for SequenceExamples")
+    String getVersionConfig();
+
+    void setVersionConfig(String value);
+
+    /** This option specifies labels to use instead of the triggers and labels in the bundles. */
+    @Description(
+        "Path to TFRecords of serialized EventLabels, used as the triggers and labels of the"
+            + " SequenceExamples instead of EventTrigger and EventLabel extensions in the bundles")
+    String getLabels();
+
+    void setLabels(String value);
+
+    /** This option specifies the triggers for which SequenceExamples are generated. */
+    @Description("Name of the EventTrigger for which SequenceExamples are generated")
+    @Default.String("at_discharge")
+    String getTriggerEventName();
+
+    void setTriggerEventName(String value);
+
+    /** This option specifies the labels included in the SequenceExamples. */
+    @Description("Comma-separated names of the EventLabels to include in SequenceExamples")
+    @Default.String("")
+    String getLabelNames();
+
+    void setLabelNames(String value);
+
+    /** This option specifies the maximum number of events in a SequenceExample. */
+    @Description("Maximum number of events in a SequenceExample, keeping the most recent ones")
+    @Default.Integer(BundleToSeqexConverter.DEFAULT_MAX_SEQUENCE_LENGTH)
+    Integer getMaxSequenceLength();
+
+    void setMaxSequenceLength(Integer value);
+
+    /** This option specifies features to drop from events at the trigger time. */
+    @Description("Comma-separated features, or prefixes, which are redacted at the trigger time")
+    @Default.String("")
+    String getTriggerTimeRedactedFeatures();
+
+    void setTriggerTimeRedactedFeatures(String value);
+  }
+
+  private static List<String> splitList(String value) {
+    return value.isEmpty() ? Arrays.asList() : Arrays.asList(value.split(","));
   }
 
-  public static void main(String[] args) {
+  private static VersionConfig readVersionConfig(String path) throws IOException {
+    VersionConfig.Builder builder = VersionConfig.newBuilder();
+    TextFormat.merge(new String(Files.readAllBytes(Paths.get(path)), UTF_8), builder);
+    return builder.build();
+  }
+
+  public static void main(String[] args) throws IOException {
     // This Apache Beam pipeline runs with the DirectRunner by default.
     Options options = PipelineOptionsFactory.fromArgs(args).withValidation().as(Options.class);
     Pipeline p = Pipeline.create(options);
 
     // Construct the pipeline
-    p.apply("Define input files", FileIO.match().filepattern(options.getInput()))
-        .apply("Open input files", FileIO.readMatches())
-        .apply("Read input files", ParDo.of(new ReadJsonFilesFn()))
-        .apply("Parse into bundles", ParDo.of(new ParseBundleFn()))
+    PCollection<Bundle> bundles =
+        p.apply("Define input files", FileIO.match().filepattern(options.getInput()))
+            .apply("Open input files", FileIO.readMatches())
+            .apply("Read input files", ParDo.of(new ReadJsonFilesFn()))
+            .apply("Parse into bundles", ParDo.of(new ParseBundleFn()));
+    bundles
         .apply("Convert to byte array", MapElements.via(new BundleToByteArrayFn()))
         .apply(
             "Write as TFRecord",
@@ -123,6 +338,50 @@ public class SyntheaToTFRecordsMain {
                 .to(options.getOutput())
                 .withSuffix(".tfrecords")
                 .withNumShards(options.getNumOutputShards()));
+    if (options.getSeqexOutput() != null) {
+      if (options.getVersionConfig() == null) {
+        throw new IllegalArgumentException("--versionConfig is required with --seqexOutput");
+      }
+      VersionConfig versionConfig = readVersionConfig(options.getVersionConfig());
+      List<String> redactedFeatures = splitList(options.getTriggerTimeRedactedFeatures());
+      PCollection<byte[]> examples;
+      if (options.getLabels() == null) {
+        // The conversion runs right after parsing, and is fused with it by the runner.
+        examples =
+            bundles.apply(
+                "Convert to SequenceExamples",
+                ParDo.of(
+                    new BundleToSeqexFn(
+                        versionConfig,
+                        new HashSet<>(splitList(options.getLabelNames())),
+                        options.getTriggerEventName(),
+                        options.getMaxSequenceLength(),
+                        redactedFeatures)));
+      } else {
+        // The labels are looked up by patient id in a side input, rather than joined with the
+        // bundles, which would shuffle the parsed bundles.
+        PCollectionView<Map<String, Iterable<byte[]>>> labels =
+            p.apply("Read labels", TFRecordIO.read().from(options.getLabels()))
+                .apply("Key labels by patient", ParDo.of(new KeyLabelByPatientFn()))
+                .apply("View labels by patient", View.asMultimap());
+        examples =
+            bundles.apply(
+                "Convert labeled bundles to SequenceExamples",
+                ParDo.of(
+                        new LabeledBundleToSeqexFn(
+                            versionConfig,
+                            options.getMaxSequenceLength(),
+                            redactedFeatures,
+                            labels))
+                    .withSideInputs(labels));
+      }
+      examples.apply(
+          "Write SequenceExamples as TFRecord",
+          TFRecordIO.write()
+              .to(options.getSeqexOutput())
+              .withSuffix(".tfrecords")
+              .withNumShards(options.getNumOutputShards()));
+    }
 
     // Run and print counters.
     PipelineResult result = p.run();
@@ -132,6 +391,7 @@ public class SyntheaToTFRecordsMain {
         metrics.queryMetrics(
             MetricsFilter.builder()
                 .addNameFilter(MetricNameFilter.inNamespace(ReadJsonFilesFn.class))
+                .addNameFilter(MetricNameFilter.inNamespace(SeqexFn.class))
                 .build());
     for (MetricResult<Long> c : metricResults.getCounters()) {
       System.out.println(c);
@@ -0,0 +1,534 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.proto.VersionConfigOuterClass.VersionConfig;
+import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.core.Encounter;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Patient;
+import com.google.fhir.r4.core.Reference;
+import com.google.fhir.r4.core.ReferenceId;
+import com.google.fhir.r4.google.EventLabel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.tensorflow.example.BytesList;
+import org.tensorflow.example.Feature;
+import org.tensorflow.example.FeatureList;
+import org.tensorflow.example.Features;
+import org.tensorflow.example.FloatList;
+import org.tensorflow.example.Int64List;
+import org.tensorflow.example.SequenceExample;
+
+/**
+ * Converts the bundle of a patient into TensorFlow SequenceExamples, one per trigger, following
+ * the C++ seqex::BundleToSeqexConverter.
+ *
+ * <p>Resources are split into versions on the patient's timeline by a {@link VersionConfig}, and
+ * each version is flattened into one step of the sequence, sorted by time and resource. Every step
+ * also holds its time as the eventId feature, and the start of the inpatient encounter it falls
+ * in as the encounterId feature; overlapping inpatient encounters are merged, and events before
+ * the first one use the time of the earliest event. The context holds the features of the
+ * patient, the trigger time, the current encounter, the sequence length and the labels.
+ *
+ * <p>The example for a trigger holds the events up to and including the trigger time, keeping the
+ * most recent ones if there are more than the maximum sequence length. Features whose name
+ * matches a redacted prefix are dropped from events at the trigger time exactly, and so are
+ * events which have nothing else, since labels are often derived from such features.
+ *
+ * <p>This class is thread-safe, so a single converter can be shared by all workers.
+ */
+public final class BundleToSeqexConverter {
+
+  public static final String ENCOUNTER_ID_FEATURE_KEY = "encounterId";
+  public static final String EVENT_ID_FEATURE_KEY = "eventId";
+  public static final String LABEL_ENCOUNTER_ID_FEATURE_KEY = "currentEncounterId";
+  public static final String LABEL_TIMESTAMP_FEATURE_KEY = "timestamp";
+  public static final String PATIENT_ID_FEATURE_KEY = "patientId";
+  public static final String RESOURCE_ID_FEATURE_KEY = "resourceId";
+  public static final String SEQUENCE_LENGTH_FEATURE_KEY = "sequenceLength";
+
+  public static final int DEFAULT_MAX_SEQUENCE_LENGTH = 1000000;
+
+  // From http://hl7.org/fhir/v3/ActCode
+  private static final String CLASS_INPATIENT = "IMP";
+
+  private final ResourceVersioner versioner;
+  private final ResourceToExample resourceToExample;
+  private final int maxSequenceLength;
+  private final ImmutableSet<String> redactedFeatures;
+  private final boolean enableAttribution;
+
+  private BundleToSeqexConverter(Builder builder) {
+    this.versioner = new ResourceVersioner(builder.versionConfig);
+    this.resourceToExample =
+        new ResourceToExample(
+            builder.tokenizer,
+            builder.tokenizeFeatures,
+            builder.addTokenizeFeatures,
+            builder.tokenizeCodeText,
+            builder.enableAttribution);
+    this.maxSequenceLength = builder.maxSequenceLength;
+    this.redactedFeatures = ImmutableSet.copyOf(builder.redactedFeatures);
+    this.enableAttribution = builder.enableAttribution;
+  }
+
+  /** Returns a builder for a converter placing resources on the timeline with the config. */
+  public static Builder newBuilder(VersionConfig versionConfig) {
+    return new Builder(versionConfig);
+  }
+
+  /** Builder that can be used to obtain new instances of {@link BundleToSeqexConverter}. */
+  public static final class Builder {
+    private final VersionConfig versionConfig;
+    private TextTokenizer tokenizer = TextTokenizer.simpleWordTokenizer();
+    private Set<String> tokenizeFeatures = ResourceToExample.DEFAULT_TOKENIZE_FEATURES;
+    private Set<String> addTokenizeFeatures = ImmutableSet.of();
+    private boolean tokenizeCodeText = true;
+    private boolean enableAttribution = false;
+    private int maxSequenceLength = DEFAULT_MAX_SEQUENCE_LENGTH;
+    private Collection<String> redactedFeatures = ImmutableSet.of();
+
+    private Builder(VersionConfig versionConfig) {
+      this.versionConfig = versionConfig;
+    }
+
+    public Builder withTokenizer(TextTokenizer tokenizer) {
+      this.tokenizer = tokenizer;
+      return this;
+    }
+
+    /**
+     * Sets the features whose string values are replaced by their tokens, by default
+     * Composition.section.text.div.
+     */
+    public Builder withTokenizeFeatures(Set<String> tokenizeFeatures) {
+      this.tokenizeFeatures = tokenizeFeatures;
+      return this;
+    }
+
+    /** Sets the features whose string values are tokenized, keeping the original value too. */
+    public Builder withAddTokenizeFeatures(Set<String> addTokenizeFeatures) {
+      this.addTokenizeFeatures = addTokenizeFeatures;
+      return this;
+    }
+
+    /** Sets whether CodeableConcept.text and Coding.display values are tokenized, by default. */
+    public Builder withTokenizeCodeText(boolean tokenizeCodeText) {
+      this.tokenizeCodeText = tokenizeCodeText;
+      return this;
+    }
+
+    /** Adds the resource id to each event, and the character offsets of each token. */
+    public Builder withEnableAttribution(boolean enableAttribution) {
+      this.enableAttribution = enableAttribution;
+      return this;
+    }
+
+    /** Limits the number of events in each example, keeping the most recent ones. */
+    public Builder withMaxSequenceLength(int maxSequenceLength) {
+      if (maxSequenceLength < 1) {
+        throw new IllegalArgumentException("maxSequenceLength must be positive");
+      }
+      this.maxSequenceLength = maxSequenceLength;
+      return this;
+    }
+
+    /**
+     * Sets the features which are dropped from events at the trigger time, by prefix. A feature is
+     * redacted if its name, or its name with trailing ".x" segments removed, is in the collection.
+     */
+    public Builder withTriggerTimeRedactedFeatures(Collection<String> redactedFeatures) {
+      this.redactedFeatures = redactedFeatures;
+      return this;
+    }
+
+    public BundleToSeqexConverter build() {
+      return new BundleToSeqexConverter(this);
+    }
+  }
+
+  /** An event on the patient timeline. */
+  private static final class Event {
+    final long timeMicros;
+    final String resourceId;
+    final Map<String, Feature> features;
+
+    Event(long timeMicros, String resourceId, Map<String, Feature> features) {
+      this.timeMicros = timeMicros;
+      this.resourceId = resourceId;
+      this.features = features;
+    }
+  }
+
+  private static final Comparator<Event> EVENT_ORDER =
+      Comparator.comparingLong((Event event) -> event.timeMicros)
+          .thenComparing(event -> event.resourceId);
+
+  /**
+   * Converts the bundle of a single patient into one example per distinct trigger, in key order.
+   * The result is empty if there are no triggers, or no resources on the timeline.
+   *
+   * @throws IllegalArgumentException if the bundle has no patient
+   */
+  public Map<ExampleKey, SequenceExample> convert(
+      Bundle bundle, List<TriggerLabelsPair> triggerLabelsPairs) {
+    Patient patient = getPatient(bundle);
+    String patientId = "Patient/" + patient.getId().getValue();
+    Map<ExampleKey, Map<String, Feature>> labels = new TreeMap<>();
+    for (TriggerLabelsPair pair : triggerLabelsPairs) {
+      if (!pair.getTrigger().hasEventTime()) {
+        throw new IllegalArgumentException("Trigger without time: " + pair.getTrigger());
+      }
+      ExampleKey key =
+          new ExampleKey(
+              patientId,
+              pair.getTrigger().getEventTime().getValueUs(),
+              pair.getTrigger().hasSource() ? referenceToString(pair.getTrigger().getSource()) : "",
+              -1,
+              -1);
+      labels.putIfAbsent(key, getLabelFeatures(pair.getLabels()));
+    }
+    Map<ExampleKey, SequenceExample> result = new LinkedHashMap<>();
+    if (labels.isEmpty()) {
+      return result;
+    }
+    List<Event> events = getEvents(bundle);
+    if (events.isEmpty()) {
+      return result;
+    }
+    long[] encounterStartTimes = getEncounterStartTimes(bundle, events.get(0).timeMicros);
+    for (Event event : events) {
+      // The event id is the time of the event, and the encounter id is the start of the encounter
+      // it falls in, or the earliest event time for events before the first encounter.
+      long encounterStart =
+          encounterStartTimes[upperBound(encounterStartTimes, event.timeMicros) - 1];
+      event.features.put(
+          EVENT_ID_FEATURE_KEY, int64Feature(ResourceToExample.toSeconds(event.timeMicros)));
+      event.features.put(
+          ENCOUNTER_ID_FEATURE_KEY, int64Feature(ResourceToExample.toSeconds(encounterStart)));
+    }
+
+    // Get a list of all feature types, with an empty value of the right kind for events which
+    // don't have them, and the set of redacted features.
+    Map<String, Feature> featureTypes = new TreeMap<>();
+    Set<String> redacted = new HashSet<>();
+    for (Event event : events) {
+      for (Map.Entry<String, Feature> feature : event.features.entrySet()) {
+        if (featureTypes.containsKey(feature.getKey())) {
+          continue;
+        }
+        featureTypes.put(feature.getKey(), emptyFeature(feature.getValue()));
+        if (isRedacted(feature.getKey())) {
+          redacted.add(feature.getKey());
+        }
+      }
+    }
+
+    long[] eventTimes = new long[events.size()];
+    for (int i = 0; i < eventTimes.length; i++) {
+      eventTimes[i] = events.get(i).timeMicros;
+    }
+    Map<String, Feature> patientFeatures = getPatientFeatures(patient, patientId);
+    for (Map.Entry<ExampleKey, Map<String, Feature>> label : labels.entrySet()) {
+      long triggerTime = label.getKey().getTriggerTimeMicros();
+      // Events are sorted, so all events up to the first one after the trigger are included.
+      int end = upperBound(eventTimes, triggerTime);
+      int offset = Math.max(0, end - maxSequenceLength);
+
+      SequenceExample.Builder example = SequenceExample.newBuilder();
+      Features.Builder context = example.getContextBuilder().putAllFeature(patientFeatures);
+      context.putFeature(
+          LABEL_TIMESTAMP_FEATURE_KEY, int64Feature(ResourceToExample.toSeconds(triggerTime)));
+      int encounterIndex = upperBound(encounterStartTimes, triggerTime);
+      long currentEncounter =
+          encounterIndex == 0 ? triggerTime : encounterStartTimes[encounterIndex - 1];
+      context.putFeature(
+          LABEL_ENCOUNTER_ID_FEATURE_KEY,
+          int64Feature(ResourceToExample.toSeconds(currentEncounter)));
+      context.putAllFeature(label.getValue());
+
+      Map<String, FeatureList.Builder> featureLists = new LinkedHashMap<>();
+      for (String name : featureTypes.keySet()) {
+        featureLists.put(name, FeatureList.newBuilder());
+      }
+      int sequenceLength = 0;
+      for (Event event : events.subList(offset, end)) {
+        boolean atTrigger = (triggerTime - event.timeMicros) / 1_000_000L == 0;
+        if (atTrigger && isFullyRedacted(event.features.keySet(), redacted)) {
+          // Nothing is left of this event.
+          continue;
+        }
+        sequenceLength++;
+        for (Map.Entry<String, Feature> type : featureTypes.entrySet()) {
+          Feature value = event.features.get(type.getKey());
+          if (value == null || (atTrigger && redacted.contains(type.getKey()))) {
+            value = type.getValue();
+          }
+          featureLists.get(type.getKey()).addFeature(value);
+        }
+      }
+      context.putFeature(SEQUENCE_LENGTH_FEATURE_KEY, int64Feature(sequenceLength));
+      for (Map.Entry<String, FeatureList.Builder> featureList : featureLists.entrySet()) {
+        example
+            .getFeatureListsBuilder()
+            .putFeatureList(featureList.getKey(), featureList.getValue().build());
+      }
+      result.put(label.getKey().withRange(offset, end), example.build());
+    }
+    return result;
+  }
+
+  private static Patient getPatient(Bundle bundle) {
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      if (entry.getResource().hasPatient()) {
+        return entry.getResource().getPatient();
+      }
+    }
+    throw new IllegalArgumentException("Bundle has no patient");
+  }
+
+  /** Returns the patient features for the context, without data which may only be known later. */
+  private Map<String, Feature> getPatientFeatures(Patient patient, String patientId) {
+    Map<String, Feature> features =
+        new TreeMap<>(
+            resourceToExample.convert(patient.toBuilder().clearMeta().clearDeceased().build()));
+    features.put(PATIENT_ID_FEATURE_KEY, bytesFeature(patientId));
+    return features;
+  }
+
+  /** Returns the versions of all resources on the timeline, as events sorted by time. */
+  private List<Event> getEvents(Bundle bundle) {
+    List<Event> events = new ArrayList<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      if (!entry.hasResource() || entry.getResource().hasPatient()) {
+        continue;
+      }
+      Message resource = ResourceUtils.getContainedResource(entry.getResource());
+      if (resource == null || !versioner.isVersioned(resource.getDescriptorForType().getName())) {
+        continue;
+      }
+      // The id is read directly, since checking the resource annotations is slow.
+      Id id = (Id) resource.getField(resource.getDescriptorForType().findFieldByName("id"));
+      String resourceId = resource.getDescriptorForType().getName() + "/" + id.getValue();
+      for (ResourceVersioner.Version version : versioner.split(resource)) {
+        Map<String, Feature> features = resourceToExample.convert(version.resource);
+        if (enableAttribution) {
+          features.put(RESOURCE_ID_FEATURE_KEY, bytesFeature(resourceId));
+        }
+        events.add(new Event(version.timeMicros, resourceId, features));
+      }
+    }
+    // Sort deterministically, so that runs can be compared.
+    events.sort(EVENT_ORDER);
+    return events;
+  }
+
+  /**
+   * Returns the sorted times which split the patient timeline: the earliest event, unless an
+   * inpatient encounter starts at or before it, followed by the start of each inpatient encounter,
+   * after merging encounters which overlap.
+   */
+  private static long[] getEncounterStartTimes(Bundle bundle, long earliestEvent) {
+    TreeMap<Long, Long> inpatientEncounters = new TreeMap<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      if (!entry.getResource().hasEncounter()) {
+        continue;
+      }
+      Encounter encounter = entry.getResource().getEncounter();
+      if (encounter.getClassValue().getCode().getValue().equals(CLASS_INPATIENT)
+          && encounter.getPeriod().hasStart()
+          && encounter.getPeriod().hasEnd()) {
+        inpatientEncounters.put(
+            encounter.getPeriod().getStart().getValueUs(),
+            encounter.getPeriod().getEnd().getValueUs());
+      }
+    }
+    long[] startTimes = new long[inpatientEncounters.size() + 1];
+    int count = 0;
+    // Encounters aren't versioned, so one may start before the earliest event.
+    if (inpatientEncounters.isEmpty() || earliestEvent < inpatientEncounters.firstKey()) {
+      startTimes[count++] = earliestEvent;
+    }
+    long currentEnd = Long.MIN_VALUE;
+    for (Map.Entry<Long, Long> encounter : inpatientEncounters.entrySet()) {
+      if (currentEnd > encounter.getKey()) {
+        // Merge with the previous encounter.
+        currentEnd = Math.max(currentEnd, encounter.getValue());
+      } else {
+        startTimes[count++] = encounter.getKey();
+        currentEnd = encounter.getValue();
+      }
+    }
+    return Arrays.copyOf(startTimes, count);
+  }
+
+  /** Returns the index of the first time after the given one. */
+  private static int upperBound(long[] times, long time) {
+    int low = 0;
+    int high = times.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (times[middle] <= time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /** Returns whether all features of an event, other than its ids, are redacted. */
+  private static boolean isFullyRedacted(Set<String> features, Set<String> redacted) {
+    for (String name : features) {
+      if (!redacted.contains(name)
+          && !name.equals(EVENT_ID_FEATURE_KEY)
+          && !name.equals(ENCOUNTER_ID_FEATURE_KEY)
+          && !name.equals(RESOURCE_ID_FEATURE_KEY)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isRedacted(String feature) {
+    String name = feature;
+    while (!redactedFeatures.contains(name) && name.lastIndexOf('.') != -1) {
+      name = name.substring(0, name.lastIndexOf('.'));
+    }
+    return redactedFeatures.contains(name);
+  }
+
+  /** Returns the label features for the context, named after the type of each label. */
+  private static Map<String, Feature> getLabelFeatures(List<EventLabel> eventLabels) {
+    Map<String, Feature> result = new TreeMap<>();
+    for (EventLabel eventLabel : eventLabels) {
+      BytesList.Builder classNames = BytesList.newBuilder();
+      Int64List.Builder integers = Int64List.newBuilder();
+      FloatList.Builder floats = FloatList.newBuilder();
+      Int64List.Builder booleans = Int64List.newBuilder();
+      Int64List.Builder dateTimes = Int64List.newBuilder();
+      boolean hasClassName = false;
+      for (EventLabel.Label label : eventLabel.getLabelList()) {
+        if (label.getClassName().hasCode()) {
+          hasClassName = true;
+          if (!label.getClassName().getCode().getValue().isEmpty()) {
+            classNames.addValue(
+                ByteString.copyFromUtf8(label.getClassName().getCode().getValue()));
+          }
+        }
+        EventLabel.Label.ClassValueX value = label.getClassValue();
+        if (value.hasInteger()) {
+          integers.addValue(value.getInteger().getValue());
+        }
+        if (value.hasDecimal()) {
+          floats.addValue(Float.parseFloat(value.getDecimal().getValue()));
+        }
+        if (value.hasBoolean()) {
+          booleans.addValue(value.getBoolean().getValue() ? 1 : 0);
+        }
+        if (value.hasDateTime()) {
+          dateTimes.addValue(ResourceToExample.toSeconds(value.getDateTime().getValueUs()));
+        }
+        if (value.hasStringValue()) {
+          throw new IllegalArgumentException("String label values are not supported");
+        }
+      }
+      String prefix = "label." + eventLabel.getType().getCode().getValue();
+      // The class feature is present even if no label has a class name, but then has no value.
+      result.put(
+          prefix + ".class",
+          hasClassName
+              ? Feature.newBuilder().setBytesList(classNames).build()
+              : Feature.getDefaultInstance());
+      result.put(
+          prefix + ".timestamp_secs",
+          int64Feature(ResourceToExample.toSeconds(eventLabel.getEventTime().getValueUs())));
+      if (integers.getValueCount() > 0) {
+        result.put(prefix + ".value_integer", Feature.newBuilder().setInt64List(integers).build());
+      }
+      if (floats.getValueCount() > 0) {
+        result.put(prefix + ".value_float", Feature.newBuilder().setFloatList(floats).build());
+      }
+      if (booleans.getValueCount() > 0) {
+        result.put(prefix + ".value_boolean", Feature.newBuilder().setInt64List(booleans).build());
+      }
+      if (dateTimes.getValueCount() > 0) {
+        result.put(
+            prefix + ".value_datetime_secs", Feature.newBuilder().setInt64List(dateTimes).build());
+      }
+    }
+    return result;
+  }
+
+  /** Formats a reference as e.g. "Encounter/1". */
+  static String referenceToString(Reference reference) {
+    for (Map.Entry<FieldDescriptor, Object> field : reference.getAllFields().entrySet()) {
+      String name = field.getKey().getName();
+      if (name.equals("uri")) {
+        return reference.getUri().getValue();
+      }
+      if (name.equals("fragment")) {
+        return "#" + reference.getFragment().getValue();
+      }
+      if (name.endsWith("_id")) {
+        String id = ((ReferenceId) field.getValue()).getValue();
+        if (name.equals("resource_id")) {
+          return id;
+        }
+        String type = name.substring(0, name.length() - "_id".length());
+        return CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, type) + "/" + id;
+      }
+    }
+    return "";
+  }
+
+  private static Feature emptyFeature(Feature feature) {
+    switch (feature.getKindCase()) {
+      case BYTES_LIST:
+        return Feature.newBuilder().setBytesList(BytesList.getDefaultInstance()).build();
+      case INT64_LIST:
+        return Feature.newBuilder().setInt64List(Int64List.getDefaultInstance()).build();
+      case FLOAT_LIST:
+        return Feature.newBuilder().setFloatList(FloatList.getDefaultInstance()).build();
+      default:
+        throw new IllegalArgumentException("Invalid feature " + feature);
+    }
+  }
+
+  private static Feature int64Feature(long value) {
+    return Feature.newBuilder().setInt64List(Int64List.newBuilder().addValue(value)).build();
+  }
+
+  private static Feature bytesFeature(String value) {
+    return Feature.newBuilder()
+        .setBytesList(BytesList.newBuilder().addValue(ByteString.copyFromUtf8(value)))
+        .build();
+  }
+}
@@ -0,0 +1,107 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * Identifies a sequence example: the patient, the trigger time of its label, and the range of
+ * events of the patient's timeline it holds. Its string form, e.g.
+ * "Patient/123:0-2@-957312000:Encounter/1", is the key of the example in the output.
+ */
+public final class ExampleKey implements Comparable<ExampleKey> {
+
+  private static final Comparator<ExampleKey> ORDER =
+      Comparator.comparing((ExampleKey key) -> key.patientId)
+          .thenComparingLong(key -> key.triggerTimeMicros)
+          .thenComparing(key -> key.source)
+          .thenComparingInt(key -> key.start)
+          .thenComparingInt(key -> key.end);
+
+  private final String patientId;
+  private final long triggerTimeMicros;
+  private final String source;
+  private final int start;
+  private final int end;
+
+  ExampleKey(String patientId, long triggerTimeMicros, String source, int start, int end) {
+    this.patientId = patientId;
+    this.triggerTimeMicros = triggerTimeMicros;
+    this.source = source;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** The reference to the patient, e.g. "Patient/123". */
+  public String getPatientId() {
+    return patientId;
+  }
+
+  public long getTriggerTimeMicros() {
+    return triggerTimeMicros;
+  }
+
+  /** The reference to the resource the trigger came from, or the empty string. */
+  public String getSource() {
+    return source;
+  }
+
+  /** The index of the first event of the patient's timeline in the example. */
+  public int getStart() {
+    return start;
+  }
+
+  /** The index after the last event of the patient's timeline in the example. */
+  public int getEnd() {
+    return end;
+  }
+
+  ExampleKey withRange(int start, int end) {
+    return new ExampleKey(patientId, triggerTimeMicros, source, start, end);
+  }
+
+  /** Formats the key as {@code <patient_id>:<start>-<end>@<timestamp>[:<source>]}. */
+  @Override
+  public String toString() {
+    StringBuilder result =
+        new StringBuilder(patientId)
+            .append(':')
+            .append(start)
+            .append('-')
+            .append(end)
+            .append('@')
+            .append(Math.floorDiv(triggerTimeMicros, 1_000_000L));
+    if (!source.isEmpty()) {
+      result.append(':').append(source);
+    }
+    return result.toString();
+  }
+
+  @Override
+  public int compareTo(ExampleKey other) {
+    return ORDER.compare(this, other);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof ExampleKey && compareTo((ExampleKey) other) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(patientId, triggerTimeMicros, source, start, end);
+  }
+}
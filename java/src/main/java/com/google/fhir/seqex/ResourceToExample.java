@@ -0,0 +1,306 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.common.AnnotationUtils;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.r4.core.CodeableConcept;
+import com.google.fhir.r4.core.Coding;
+import com.google.fhir.wrappers.CodeWrapper;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.tensorflow.example.Feature;
+
+/**
+ * Flattens a FHIR resource into features, named by the json path of each value, e.g.
+ * "Observation.code.text.tokenized" or "Encounter.period.start".
+ *
+ * <p>Codes and strings become bytes, dates and times become int64 seconds since the epoch, and
+ * decimals become floats. Codings are named after their system; CodeableConcept.text and, when
+ * requested, other strings are split into tokens. Extensions, identifiers, references, uris and
+ * binary data are left out. Repeated fields are flattened into a single feature.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ResourceToExample {
+
+  /** The features which are tokenized by default, without keeping the original value. */
+  static final ImmutableSet<String> DEFAULT_TOKENIZE_FEATURES =
+      ImmutableSet.of("Composition.section.text.div");
+
+  private final TextTokenizer tokenizer;
+  private final Set<String> tokenizeFeatures;
+  private final Set<String> addTokenizeFeatures;
+  private final boolean tokenizeCodeText;
+  private final boolean enableAttribution;
+
+  /**
+   * Creates a converter. Features in {@code tokenizeFeatures} are replaced by their tokens, while
+   * features in {@code addTokenizeFeatures} are kept as well as tokenized; a feature can't be in
+   * both. If {@code tokenizeCodeText} is set, all CodeableConcept.text and Coding.display values
+   * within a CodeableConcept are tokenized. If {@code enableAttribution} is set, tokens come with
+   * features holding their character offsets.
+   */
+  ResourceToExample(
+      TextTokenizer tokenizer,
+      Set<String> tokenizeFeatures,
+      Set<String> addTokenizeFeatures,
+      boolean tokenizeCodeText,
+      boolean enableAttribution) {
+    for (String feature : tokenizeFeatures) {
+      if (addTokenizeFeatures.contains(feature)) {
+        throw new IllegalArgumentException(
+            "Feature can't be both tokenized and tokenized in addition: " + feature);
+      }
+    }
+    this.tokenizer = tokenizer;
+    this.tokenizeFeatures = ImmutableSet.copyOf(tokenizeFeatures);
+    this.addTokenizeFeatures = ImmutableSet.copyOf(addTokenizeFeatures);
+    this.tokenizeCodeText = tokenizeCodeText;
+    this.enableAttribution = enableAttribution;
+  }
+
+  /** Returns the features of a resource, sorted by name. */
+  Map<String, Feature> convert(Message resource) {
+    Map<String, Feature.Builder> features = new TreeMap<>();
+    addMessage(resource, resource.getDescriptorForType().getName(), features);
+    Map<String, Feature> result = new TreeMap<>();
+    for (Map.Entry<String, Feature.Builder> feature : features.entrySet()) {
+      result.put(feature.getKey(), feature.getValue().build());
+    }
+    return result;
+  }
+
+  private void addMessage(Message message, String prefix, Map<String, Feature.Builder> features) {
+    for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+      FieldDescriptor field = entry.getKey();
+      if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+        continue;
+      }
+      String name = prefix + "." + field.getJsonName();
+      if (field.isRepeated()) {
+        for (Object value : (List<?>) entry.getValue()) {
+          addField(message, field, (Message) value, prefix, name, features);
+        }
+      } else {
+        addField(message, field, (Message) entry.getValue(), prefix, name, features);
+      }
+    }
+  }
+
+  private void addField(
+      Message parent,
+      FieldDescriptor field,
+      Message value,
+      String prefix,
+      String name,
+      Map<String, Feature.Builder> features) {
+    Descriptor type = value.getDescriptorForType();
+    if (isCode(type)) {
+      // Codes are emitted as-is, without tokenization.
+      addBytes(features, name, getCode(value));
+      return;
+    }
+    switch (type.getFullName()) {
+      case "google.fhir.r4.core.Date":
+      case "google.fhir.r4.core.DateTime":
+      case "google.fhir.r4.core.Instant":
+      case "google.fhir.r4.core.Time":
+        addInt64(features, name, toSeconds((Long) getValue(value, "value_us")));
+        return;
+      case "google.fhir.r4.core.String":
+        String text = (String) getValue(value, "value");
+        if (tokenizeCodeText && field.getName().equals("text") && isCodeableConcept(parent)) {
+          addTokens(features, name, text);
+        } else {
+          addValueAndOrTokens(features, name, text);
+        }
+        return;
+      case "google.fhir.r4.core.Xhtml":
+        addValueAndOrTokens(features, name, (String) getValue(value, "value"));
+        return;
+      case "google.fhir.r4.core.Boolean":
+        addBytes(features, name, (Boolean) getValue(value, "value") ? "true" : "false");
+        return;
+      case "google.fhir.r4.core.Integer":
+        addInt64(features, name, (Integer) getValue(value, "value"));
+        return;
+      case "google.fhir.r4.core.PositiveInt":
+        addInt64(features, name, Integer.toUnsignedLong((Integer) getValue(value, "value")));
+        return;
+      case "google.fhir.r4.core.Decimal":
+        addFloat(features, name, Float.parseFloat((String) getValue(value, "value")));
+        return;
+      case "google.fhir.r4.core.Extension":
+        // Extensions are not emitted. To include data encoded in extensions, use profiled
+        // resources as input.
+      case "google.fhir.r4.core.Identifier":
+      case "google.fhir.r4.core.Id":
+      case "google.fhir.r4.core.Base64Binary":
+      case "google.fhir.r4.core.Reference":
+      case "google.fhir.r4.core.Uri":
+      case "google.fhir.r4.core.Url":
+      case "google.fhir.r4.core.Canonical":
+      case "google.fhir.r4.core.Oid":
+      case "google.fhir.r4.core.Uuid":
+      case "google.protobuf.Any":
+        return;
+      default:
+        break;
+    }
+    if (isCoding(type)) {
+      addCoding(parent, field, value, prefix, name, features);
+    } else if (type.getOptions().getExtensionCount(Annotations.fhirReferenceType) == 0) {
+      // Other messages, including choice types and backbone elements, are flattened.
+      addMessage(value, name, features);
+    }
+  }
+
+  /**
+   * Adds a coding. Within a CodeableConcept, the feature is named after the CodeableConcept and
+   * the system, and holds the code; otherwise it is named after the field, and holds both.
+   */
+  private void addCoding(
+      Message parent,
+      FieldDescriptor field,
+      Message coding,
+      String prefix,
+      String name,
+      Map<String, Feature.Builder> features) {
+    Descriptor type = coding.getDescriptorForType();
+    FieldDescriptor systemField = type.findFieldByName("system");
+    FieldDescriptor codeField = type.findFieldByName("code");
+    FieldDescriptor displayField = type.findFieldByName("display");
+    String system;
+    boolean appendSystem;
+    if (systemField == null) {
+      // A profiled coding with a fixed system, which is recorded on the field.
+      system = field.getOptions().getExtension(Annotations.fhirInlinedCodingSystem);
+      name = prefix;
+      appendSystem = true;
+    } else {
+      system =
+          coding.hasField(systemField)
+              ? (String) getValue((Message) coding.getField(systemField), "value")
+              : "";
+      appendSystem = isCodeableConcept(parent);
+      if (appendSystem) {
+        name = prefix;
+      }
+    }
+    if (system.isEmpty() || codeField == null || !coding.hasField(codeField)) {
+      // Codings without a system or code can't be told apart, so they are left out.
+      return;
+    }
+    system = system.replace("://", "-").replace(':', '-').replace('/', '-').replace('.', '-');
+    String code = getCode((Message) coding.getField(codeField));
+    if (appendSystem) {
+      addBytes(features, name + "." + system, code);
+    } else {
+      addBytes(features, name, system + ":" + code);
+    }
+    if (displayField != null && coding.hasField(displayField)) {
+      String displayName = name + "." + system + ".display";
+      String display = (String) getValue((Message) coding.getField(displayField), "value");
+      if (tokenizeCodeText && appendSystem) {
+        addTokens(features, displayName, display);
+      } else {
+        addValueAndOrTokens(features, displayName, display);
+      }
+    }
+  }
+
+  private void addValueAndOrTokens(
+      Map<String, Feature.Builder> features, String name, String value) {
+    if (tokenizeFeatures.contains(name)) {
+      addTokens(features, name, value);
+      return;
+    }
+    if (addTokenizeFeatures.contains(name)) {
+      addTokens(features, name, value);
+    }
+    addBytes(features, name, value);
+  }
+
+  private void addTokens(Map<String, Feature.Builder> features, String name, String value) {
+    List<TextTokenizer.Token> tokens = tokenizer.tokenize(value);
+    Feature.Builder tokenized = getFeature(features, name + ".tokenized");
+    for (TextTokenizer.Token token : tokens) {
+      tokenized.getBytesListBuilder().addValue(ByteString.copyFromUtf8(token.getText()));
+    }
+    if (enableAttribution) {
+      Feature.Builder starts = getFeature(features, name + ".token_start");
+      Feature.Builder ends = getFeature(features, name + ".token_end");
+      for (TextTokenizer.Token token : tokens) {
+        starts.getInt64ListBuilder().addValue(token.getCharStart());
+        ends.getInt64ListBuilder().addValue(token.getCharEnd());
+      }
+    }
+  }
+
+  private static boolean isCode(Descriptor type) {
+    return type.getOptions().hasExtension(Annotations.fhirValuesetUrl)
+        || type.getFullName().equals("google.fhir.r4.core.Code");
+  }
+
+  private static String getCode(Message code) {
+    if (code.getDescriptorForType().getOptions().hasExtension(Annotations.fhirValuesetUrl)) {
+      return CodeWrapper.of(code).getWrapped().getValue();
+    }
+    return (String) getValue(code, "value");
+  }
+
+  private static boolean isCoding(Descriptor type) {
+    return type == Coding.getDescriptor()
+        || AnnotationUtils.isProfileOf(Coding.getDescriptor(), type);
+  }
+
+  private static boolean isCodeableConcept(Message message) {
+    Descriptor type = message.getDescriptorForType();
+    return type == CodeableConcept.getDescriptor()
+        || AnnotationUtils.isProfileOf(CodeableConcept.getDescriptor(), type);
+  }
+
+  private static Object getValue(Message primitive, String fieldName) {
+    return primitive.getField(primitive.getDescriptorForType().findFieldByName(fieldName));
+  }
+
+  static long toSeconds(long micros) {
+    return Math.floorDiv(micros, 1_000_000L);
+  }
+
+  static Feature.Builder getFeature(Map<String, Feature.Builder> features, String name) {
+    return features.computeIfAbsent(name, unused -> Feature.newBuilder());
+  }
+
+  static void addBytes(Map<String, Feature.Builder> features, String name, String value) {
+    getFeature(features, name).getBytesListBuilder().addValue(ByteString.copyFromUtf8(value));
+  }
+
+  static void addInt64(Map<String, Feature.Builder> features, String name, long value) {
+    getFeature(features, name).getInt64ListBuilder().addValue(value);
+  }
+
+  static void addFloat(Map<String, Feature.Builder> features, String name, float value) {
+    getFeature(features, name).getFloatListBuilder().addValue(value);
+  }
+}
@@ -0,0 +1,378 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import com.google.fhir.proto.VersionConfigOuterClass.ResourceConfig;
+import com.google.fhir.proto.VersionConfigOuterClass.ResourceConfig.TimestampOverride;
+import com.google.fhir.proto.VersionConfigOuterClass.VersionConfig;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Instant;
+import com.google.fhir.r4.core.Meta;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits resources into versions on the patient timeline, as configured by a {@link
+ * VersionConfig}, so that no data is used before the time it would have been known.
+ *
+ * <p>A resource is entered at the time of the first of its default timestamp fields which is
+ * present. Fields with a timestamp override are left out of that version, and added back in a
+ * later version at the time of their override field, e.g. the discharge disposition of an
+ * Encounter is only known at Encounter.period.end. Each version is stamped with its version id
+ * and time in meta.lastUpdated. Times of day, month or year precision are taken to be the last
+ * second of the period, so that versions are never early.
+ *
+ * <p>Field paths are made of json field names, starting with the resource type, e.g.
+ * "Encounter.period.end". A single repeated field may be marked with "[]", e.g.
+ * "Composition.attester[].time", in which case each element is added at its own time.
+ *
+ * <p>This class is thread-safe.
+ */
+final class ResourceVersioner {
+
+  /** A version of a resource, and the time at which it was known, in microseconds. */
+  static final class Version {
+    final Message resource;
+    final long timeMicros;
+
+    Version(Message resource, long timeMicros) {
+      this.resource = resource;
+      this.timeMicros = timeMicros;
+    }
+  }
+
+  private final VersionConfig config;
+
+  ResourceVersioner(VersionConfig config) {
+    this.config = config;
+  }
+
+  /** Returns whether the resource type is configured, and so placed on the timeline. */
+  boolean isVersioned(String resourceType) {
+    return config.getResourceConfigMap().containsKey(resourceType);
+  }
+
+  /**
+   * Returns the versions of the resource, earliest first, which is empty if the resource type is
+   * not configured or the resource has none of its default timestamp fields.
+   */
+  List<Version> split(Message resource) {
+    ResourceConfig resourceConfig =
+        config.getResourceConfigMap().get(resource.getDescriptorForType().getName());
+    if (resourceConfig == null) {
+      return Collections.emptyList();
+    }
+    Message defaultTime = null;
+    for (String path : resourceConfig.getDefaultTimestampFieldsList()) {
+      defaultTime = getByPath(resource, path);
+      if (defaultTime != null) {
+        break;
+      }
+    }
+    if (defaultTime == null) {
+      return Collections.emptyList();
+    }
+    List<Version> versions = new ArrayList<>();
+    if (resourceConfig.getTimestampOverrideCount() == 0) {
+      versions.add(stamp(resource.toBuilder(), defaultTime, 0));
+      return versions;
+    }
+
+    // Group the fields with overrides by the time they are added, skipping overrides whose time is
+    // not present; those fields are never added.
+    Map<Message, List<String>> fieldsByTime = new LinkedHashMap<>();
+    Set<String> fieldsWithOverride = new HashSet<>();
+    for (TimestampOverride timestampOverride : resourceConfig.getTimestampOverrideList()) {
+      for (TimestampOverride expanded : expand(timestampOverride, resource)) {
+        Message time = getByPath(resource, expanded.getTimestampField());
+        if (time == null) {
+          continue;
+        }
+        for (String field : expanded.getResourceFieldList()) {
+          if (!fieldsWithOverride.add(field)) {
+            throw new IllegalArgumentException("Duplicate timestamp overrides for field " + field);
+          }
+          fieldsByTime.computeIfAbsent(time, unused -> new ArrayList<>()).add(field);
+        }
+      }
+    }
+    List<Map.Entry<Message, List<String>>> overrides = new ArrayList<>(fieldsByTime.entrySet());
+    overrides.sort(Comparator.comparingLong(entry -> getValueUs(entry.getKey())));
+
+    // The base version has none of the fields with overrides, and each later version adds those of
+    // one override time.
+    Message.Builder current = resource.toBuilder();
+    for (TimestampOverride timestampOverride : resourceConfig.getTimestampOverrideList()) {
+      for (String path : timestampOverride.getResourceFieldList()) {
+        clearByPath(current, path.replace("[]", ""));
+      }
+    }
+    int version = 0;
+    versions.add(stamp(current.clone(), defaultTime, version++));
+    for (Map.Entry<Message, List<String>> entry : overrides) {
+      for (String path : entry.getValue()) {
+        copyByPath(resource, current, path);
+      }
+      versions.add(stamp(current.clone(), entry.getKey(), version++));
+    }
+    return versions;
+  }
+
+  /**
+   * Expands an override of a repeated field into one override per element, e.g.
+   * "Composition.attester[].time" into "Composition.attester[0].time", and so on.
+   */
+  private static List<TimestampOverride> expand(
+      TimestampOverride timestampOverride, Message resource) {
+    String timestampPath = timestampOverride.getTimestampField();
+    int brackets = timestampPath.indexOf("[]");
+    if (brackets == -1) {
+      return Collections.singletonList(timestampOverride);
+    }
+    if (timestampPath.indexOf("[]", brackets + 2) != -1) {
+      throw new IllegalArgumentException(
+          "Only one level of branching is supported, found " + timestampPath);
+    }
+    String repeatedPath = timestampPath.substring(0, brackets + 2);
+    for (String field : timestampOverride.getResourceFieldList()) {
+      if (!field.startsWith(repeatedPath)) {
+        throw new IllegalArgumentException(
+            "Field " + field + " does not start with " + repeatedPath);
+      }
+    }
+    int dot = timestampPath.lastIndexOf('.', brackets);
+    Message parent = getByPath(resource, timestampPath.substring(0, dot));
+    if (parent == null) {
+      return Collections.emptyList();
+    }
+    FieldDescriptor field =
+        findField(parent.getDescriptorForType(), timestampPath.substring(dot + 1, brackets));
+    List<TimestampOverride> result = new ArrayList<>();
+    for (int i = 0; i < parent.getRepeatedFieldCount(field); i++) {
+      String index = "[" + i + "]";
+      TimestampOverride.Builder indexed =
+          TimestampOverride.newBuilder()
+              .setTimestampField(timestampPath.replace("[]", index));
+      for (String resourceField : timestampOverride.getResourceFieldList()) {
+        indexed.addResourceField(resourceField.replace("[]", index));
+      }
+      result.add(indexed.build());
+    }
+    return result;
+  }
+
+  /** A step of a field path: a json field name, and an optional index into a repeated field. */
+  private static final class Step {
+    final String name;
+    final int index;
+
+    Step(String segment) {
+      int bracket = segment.indexOf('[');
+      if (bracket == -1) {
+        name = segment;
+        index = -1;
+      } else {
+        name = segment.substring(0, bracket);
+        index = Integer.parseInt(segment.substring(bracket + 1, segment.length() - 1));
+      }
+    }
+  }
+
+  private static List<Step> parsePath(Message resource, String path) {
+    String[] segments = path.split("\\.");
+    if (!segments[0].equals(resource.getDescriptorForType().getName())) {
+      throw new IllegalArgumentException(
+          "Path " + path + " does not apply to " + resource.getDescriptorForType().getName());
+    }
+    List<Step> steps = new ArrayList<>(segments.length - 1);
+    for (int i = 1; i < segments.length; i++) {
+      steps.add(new Step(segments[i]));
+    }
+    return steps;
+  }
+
+  /** Returns the message at the path, or null if it is not present. */
+  static Message getByPath(Message resource, String path) {
+    Message current = resource;
+    for (Step step : parsePath(resource, path)) {
+      FieldDescriptor field = findField(current.getDescriptorForType(), step.name);
+      if (field.isRepeated()) {
+        if (step.index == -1 || step.index >= current.getRepeatedFieldCount(field)) {
+          return null;
+        }
+        current = (Message) current.getRepeatedField(field, step.index);
+      } else {
+        if (!current.hasField(field)) {
+          return null;
+        }
+        current = (Message) current.getField(field);
+      }
+    }
+    return current;
+  }
+
+  /** Clears the field at the path, if its parent is present. */
+  private static void clearByPath(Message.Builder resource, String path) {
+    List<Step> steps = parsePath(resource.getDefaultInstanceForType(), path);
+    Message.Builder parent = getParentBuilder(resource, steps);
+    if (parent != null) {
+      parent.clearField(findField(parent.getDescriptorForType(), steps.get(steps.size() - 1).name));
+    }
+  }
+
+  /**
+   * Copies the field at the path from the original resource. A path to an element of a repeated
+   * field appends that element.
+   */
+  private static void copyByPath(Message original, Message.Builder resource, String path) {
+    List<Step> steps = parsePath(original, path);
+    Step last = steps.get(steps.size() - 1);
+    String parentPath = path.substring(0, path.lastIndexOf('.'));
+    Message originalParent = steps.size() == 1 ? original : getByPath(original, parentPath);
+    if (originalParent == null) {
+      return;
+    }
+    FieldDescriptor field = findField(originalParent.getDescriptorForType(), last.name);
+    if (!field.isRepeated()) {
+      if (originalParent.hasField(field)) {
+        getOrCreateParentBuilder(resource, steps).setField(field, originalParent.getField(field));
+      }
+    } else if (last.index == -1) {
+      if (originalParent.getRepeatedFieldCount(field) > 0) {
+        getOrCreateParentBuilder(resource, steps).setField(field, originalParent.getField(field));
+      }
+    } else if (last.index < originalParent.getRepeatedFieldCount(field)) {
+      getOrCreateParentBuilder(resource, steps)
+          .addRepeatedField(field, originalParent.getRepeatedField(field, last.index));
+    }
+  }
+
+  private static Message.Builder getParentBuilder(Message.Builder resource, List<Step> steps) {
+    Message.Builder current = resource;
+    for (Step step : steps.subList(0, steps.size() - 1)) {
+      FieldDescriptor field = findField(current.getDescriptorForType(), step.name);
+      if (field.isRepeated()) {
+        if (step.index == -1 || step.index >= current.getRepeatedFieldCount(field)) {
+          return null;
+        }
+        current = current.getRepeatedFieldBuilder(field, step.index);
+      } else {
+        if (!current.hasField(field)) {
+          return null;
+        }
+        current = current.getFieldBuilder(field);
+      }
+    }
+    return current;
+  }
+
+  private static Message.Builder getOrCreateParentBuilder(
+      Message.Builder resource, List<Step> steps) {
+    Message.Builder current = resource;
+    for (Step step : steps.subList(0, steps.size() - 1)) {
+      FieldDescriptor field = findField(current.getDescriptorForType(), step.name);
+      current =
+          field.isRepeated()
+              ? current.getRepeatedFieldBuilder(field, step.index)
+              : current.getFieldBuilder(field);
+    }
+    return current;
+  }
+
+  private static FieldDescriptor findField(Descriptor descriptor, String jsonName) {
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.getJsonName().equals(jsonName)) {
+        return field;
+      }
+    }
+    throw new IllegalArgumentException(
+        "Unknown field " + jsonName + " in " + descriptor.getFullName());
+  }
+
+  /** Sets the version id and time of the resource, and builds it. */
+  private static Version stamp(Message.Builder resource, Message time, int versionId) {
+    long timeMicros = getVersionTimeMicros(time);
+    FieldDescriptor metaField = resource.getDescriptorForType().findFieldByName("meta");
+    Meta meta =
+        ((Meta) resource.getField(metaField))
+            .toBuilder()
+            .setVersionId(Id.newBuilder().setValue(Integer.toString(versionId)))
+            .setLastUpdated(
+                Instant.newBuilder()
+                    .setValueUs(timeMicros)
+                    .setTimezone(getTimezone(time))
+                    .setPrecision(Instant.Precision.SECOND))
+            .build();
+    return new Version(resource.setField(metaField, meta).build(), timeMicros);
+  }
+
+  /**
+   * Returns the time of a Date, DateTime or Instant. Times of day, month or year precision are
+   * rounded up to the last second of the period.
+   */
+  static long getVersionTimeMicros(Message time) {
+    long valueUs = getValueUs(time);
+    FieldDescriptor precisionField = time.getDescriptorForType().findFieldByName("precision");
+    String precision = ((EnumValueDescriptor) time.getField(precisionField)).getName();
+    ZonedDateTime start;
+    switch (precision) {
+      case "YEAR":
+        start = toLocalDate(valueUs, time).withDayOfYear(1).plusYears(1).atStartOfDay(zone(time));
+        break;
+      case "MONTH":
+        start = toLocalDate(valueUs, time).withDayOfMonth(1).plusMonths(1).atStartOfDay(zone(time));
+        break;
+      case "DAY":
+        start = toLocalDate(valueUs, time).plusDays(1).atStartOfDay(zone(time));
+        break;
+      default:
+        return valueUs;
+    }
+    return (start.toEpochSecond() - 1) * 1_000_000L;
+  }
+
+  private static LocalDate toLocalDate(long valueUs, Message time) {
+    return java.time.Instant.ofEpochSecond(Math.floorDiv(valueUs, 1_000_000L))
+        .atZone(zone(time))
+        .toLocalDate();
+  }
+
+  private static ZoneId zone(Message time) {
+    String timezone = getTimezone(time);
+    return timezone.isEmpty() ? ZoneOffset.UTC : ZoneId.of(timezone);
+  }
+
+  private static String getTimezone(Message time) {
+    return (String) time.getField(time.getDescriptorForType().findFieldByName("timezone"));
+  }
+
+  private static long getValueUs(Message time) {
+    return (Long) time.getField(time.getDescriptorForType().findFieldByName("value_us"));
+  }
+}
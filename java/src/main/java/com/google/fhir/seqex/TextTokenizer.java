@@ -0,0 +1,320 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into tokens for sequence example features, as the TensorFlow pipeline does for
+ * CodeableConcept.text and Coding.display values.
+ *
+ * <p>The simple word tokenizer replaces punctuation and symbols with whitespace, lowercases ASCII
+ * letters, and splits on whitespace; tokens may then be post-processed, e.g. replacing numbers or
+ * adding n-grams. The single token tokenizer returns the whole text as one token. Token offsets
+ * index the characters of the original text.
+ *
+ * <p>This class is immutable and thread-safe.
+ */
+public final class TextTokenizer {
+
+  static final String START_TOKEN = "<s>";
+  static final String END_TOKEN = "</s>";
+  static final String NUMERIC_TOKEN = "<N>";
+
+  /** A token, and the range of characters of the input it was taken from. */
+  public static final class Token {
+    private final String text;
+    private final int charStart;
+    private final int charEnd;
+
+    Token(String text, int charStart, int charEnd) {
+      this.text = text;
+      this.charStart = charStart;
+      this.charEnd = charEnd;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    public int getCharStart() {
+      return charStart;
+    }
+
+    public int getCharEnd() {
+      return charEnd;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Token)) {
+        return false;
+      }
+      Token token = (Token) other;
+      return text.equals(token.text) && charStart == token.charStart && charEnd == token.charEnd;
+    }
+
+    @Override
+    public int hashCode() {
+      return (text.hashCode() * 31 + charStart) * 31 + charEnd;
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  private static final Token START = new Token(START_TOKEN, 0, 0);
+
+  private final boolean singleToken;
+  private final boolean lowercase;
+  private final boolean replaceNumbers;
+  private final boolean includeStartAndEnd;
+  private final boolean unigrams;
+  private final boolean bigrams;
+  private final boolean trigrams;
+
+  private TextTokenizer(Builder builder) {
+    this.singleToken = builder.singleToken;
+    this.lowercase = builder.lowercase;
+    this.replaceNumbers = builder.replaceNumbers;
+    this.includeStartAndEnd = builder.includeStartAndEnd;
+    this.unigrams = builder.unigrams;
+    this.bigrams = builder.bigrams;
+    this.trigrams = builder.trigrams;
+  }
+
+  /** Returns a simple word tokenizer with the default settings, emitting lowercased unigrams. */
+  public static TextTokenizer simpleWordTokenizer() {
+    return newBuilder().build();
+  }
+
+  /** Returns a tokenizer which emits the whole input as a single token. */
+  public static TextTokenizer singleTokenTokenizer() {
+    return newBuilder().withSingleToken(true).build();
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Builder that can be used to obtain new instances of {@link TextTokenizer}. */
+  public static final class Builder {
+    private boolean singleToken = false;
+    private boolean lowercase = true;
+    private boolean replaceNumbers = false;
+    private boolean includeStartAndEnd = false;
+    private boolean unigrams = true;
+    private boolean bigrams = false;
+    private boolean trigrams = false;
+
+    private Builder() {}
+
+    /** Emits the whole input as a single token, ignoring all other settings. */
+    public Builder withSingleToken(boolean singleToken) {
+      this.singleToken = singleToken;
+      return this;
+    }
+
+    public Builder withLowercase(boolean lowercase) {
+      this.lowercase = lowercase;
+      return this;
+    }
+
+    /** Replaces tokens which are 32-bit integers with {@code <N>}, keeping their offsets. */
+    public Builder withReplaceNumbers(boolean replaceNumbers) {
+      this.replaceNumbers = replaceNumbers;
+      return this;
+    }
+
+    /** Wraps each tokenized text with {@code <s>} and {@code </s>} tokens. */
+    public Builder withStartAndEnd(boolean includeStartAndEnd) {
+      this.includeStartAndEnd = includeStartAndEnd;
+      return this;
+    }
+
+    public Builder withUnigrams(boolean unigrams) {
+      this.unigrams = unigrams;
+      return this;
+    }
+
+    public Builder withBigrams(boolean bigrams) {
+      this.bigrams = bigrams;
+      return this;
+    }
+
+    public Builder withTrigrams(boolean trigrams) {
+      this.trigrams = trigrams;
+      return this;
+    }
+
+    public TextTokenizer build() {
+      return new TextTokenizer(this);
+    }
+  }
+
+  /** Decomposes the text into tokens. */
+  public List<Token> tokenize(String text) {
+    if (singleToken) {
+      List<Token> result = new ArrayList<>(1);
+      result.add(new Token(text, 0, text.length()));
+      return result;
+    }
+    return processTokens(splitToWords(removePunctuation(text)));
+  }
+
+  /**
+   * Replaces each punctuation or symbol character with whitespace of the same length, so that
+   * offsets into the result are offsets into the input, and lowercases ASCII letters if requested.
+   */
+  private String removePunctuation(String text) {
+    char[] chars = text.toCharArray();
+    for (int i = 0; i < chars.length; ) {
+      int codePoint = Character.codePointAt(chars, i);
+      int length = Character.charCount(codePoint);
+      if (isPunctuationOrSymbol(codePoint)) {
+        for (int j = i; j < i + length; j++) {
+          chars[j] = ' ';
+        }
+      } else if (lowercase && codePoint >= 'A' && codePoint <= 'Z') {
+        chars[i] = (char) (codePoint - 'A' + 'a');
+      }
+      i += length;
+    }
+    return new String(chars);
+  }
+
+  private static boolean isPunctuationOrSymbol(int codePoint) {
+    switch (Character.getType(codePoint)) {
+      case Character.CONNECTOR_PUNCTUATION:
+      case Character.DASH_PUNCTUATION:
+      case Character.START_PUNCTUATION:
+      case Character.END_PUNCTUATION:
+      case Character.INITIAL_QUOTE_PUNCTUATION:
+      case Character.FINAL_QUOTE_PUNCTUATION:
+      case Character.OTHER_PUNCTUATION:
+      case Character.MATH_SYMBOL:
+      case Character.CURRENCY_SYMBOL:
+      case Character.MODIFIER_SYMBOL:
+      case Character.OTHER_SYMBOL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private List<Token> splitToWords(String text) {
+    List<Token> result = new ArrayList<>();
+    if (includeStartAndEnd) {
+      result.add(START);
+    }
+    int length = text.length();
+    int position = 0;
+    while (position < length) {
+      while (position < length && isWhitespace(text.charAt(position))) {
+        position++;
+      }
+      int start = position;
+      while (position < length && !isWhitespace(text.charAt(position))) {
+        position++;
+      }
+      if (position > start) {
+        result.add(new Token(text.substring(start, position), start, position));
+      }
+    }
+    if (includeStartAndEnd) {
+      result.add(new Token(END_TOKEN, length, length));
+    }
+    return result;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private List<Token> processTokens(List<Token> tokens) {
+    List<Token> words = tokens;
+    if (replaceNumbers) {
+      words = new ArrayList<>(tokens.size());
+      for (Token token : tokens) {
+        words.add(
+            isInteger(token.text)
+                ? new Token(NUMERIC_TOKEN, token.charStart, token.charEnd)
+                : token);
+      }
+    }
+    List<Token> result = new ArrayList<>();
+    if (unigrams) {
+      result.addAll(words);
+    }
+    if (bigrams && tokens.size() > 1) {
+      addBigrams(words, result);
+    }
+    if (trigrams && tokens.size() > 2) {
+      addTrigrams(words, result);
+    }
+    return result;
+  }
+
+  private static boolean isInteger(String text) {
+    try {
+      Integer.parseInt(text);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private void addBigrams(List<Token> tokens, List<Token> result) {
+    Token previous = START;
+    for (Token token : tokens) {
+      result.add(
+          new Token(previous.text + "_" + token.text, previous.charStart, token.charEnd));
+      previous = token;
+    }
+    if (includeStartAndEnd) {
+      result.add(
+          new Token(previous.text + "_" + previous.text, previous.charStart, previous.charEnd));
+    }
+  }
+
+  private void addTrigrams(List<Token> tokens, List<Token> result) {
+    Token previous = START;
+    Token older = START;
+    for (Token token : tokens) {
+      result.add(
+          new Token(
+              older.text + "_" + previous.text + "_" + token.text,
+              older.charStart,
+              token.charEnd));
+      older = previous;
+      previous = token;
+    }
+    if (includeStartAndEnd) {
+      result.add(
+          new Token(
+              older.text + "_" + previous.text + "_" + previous.text,
+              older.charStart,
+              previous.charEnd));
+      result.add(
+          new Token(
+              previous.text + "_" + previous.text + "_" + previous.text,
+              previous.charStart,
+              previous.charEnd));
+    }
+  }
+}
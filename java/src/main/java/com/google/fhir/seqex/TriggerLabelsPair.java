@@ -0,0 +1,139 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.google.EventLabel;
+import com.google.fhir.r4.google.EventTrigger;
+import com.google.fhir.wrappers.ExtensionWrapper;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A trigger, which is the time at which a prediction is made, and the labels to predict for it.
+ * Each pair becomes one sequence example.
+ */
+public final class TriggerLabelsPair {
+
+  private final EventTrigger trigger;
+  private final ImmutableList<EventLabel> labels;
+
+  public TriggerLabelsPair(EventTrigger trigger, List<EventLabel> labels) {
+    this.trigger = trigger;
+    this.labels = ImmutableList.copyOf(labels);
+  }
+
+  public EventTrigger getTrigger() {
+    return trigger;
+  }
+
+  public ImmutableList<EventLabel> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Returns the triggers of the given type, and the labels with the given names, recorded as
+   * EventTrigger and EventLabel extensions on the resources of the bundle. Triggers and labels are
+   * only paired within the same resource. A trigger is dropped if any of its labels happened
+   * before it, as the example would otherwise be trained on its own outcome.
+   */
+  public static List<TriggerLabelsPair> fromBundle(
+      Bundle bundle, Set<String> labelNames, String triggerEventName) {
+    List<TriggerLabelsPair> result = new ArrayList<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      if (!entry.hasResource()) {
+        continue;
+      }
+      Message resource = ResourceUtils.getContainedResource(entry.getResource());
+      if (resource == null) {
+        continue;
+      }
+      ExtensionWrapper extensions = ExtensionWrapper.fromExtensionsIn(resource);
+      List<EventTrigger> triggers =
+          extensions.getMatchingExtensions(EventTrigger.getDefaultInstance());
+      if (triggers.isEmpty()) {
+        continue;
+      }
+      List<EventLabel> labels = new ArrayList<>();
+      for (EventLabel label : extensions.getMatchingExtensions(EventLabel.getDefaultInstance())) {
+        if (labelNames.contains(label.getType().getCode().getValue())) {
+          labels.add(label);
+        }
+      }
+      for (EventTrigger trigger : triggers) {
+        if (!trigger.getType().getCode().getValue().equals(triggerEventName)) {
+          continue;
+        }
+        long triggerTime = trigger.getEventTime().getValueUs();
+        boolean keep = true;
+        for (EventLabel label : labels) {
+          if (label.hasEventTime() && label.getEventTime().getValueUs() < triggerTime) {
+            keep = false;
+            break;
+          }
+        }
+        if (keep) {
+          result.add(new TriggerLabelsPair(trigger, labels));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Groups labels of one patient by their event time, with one trigger at each time, e.g. for
+   * labels which were computed separately from the bundles.
+   *
+   * @throws IllegalArgumentException if the labels have no type, or belong to several patients
+   */
+  public static List<TriggerLabelsPair> fromInputLabels(List<EventLabel> inputLabels) {
+    Map<Long, EventTrigger> triggers = new LinkedHashMap<>();
+    Map<Long, List<EventLabel>> labelsByTime = new LinkedHashMap<>();
+    String patientId = null;
+    for (EventLabel label : inputLabels) {
+      String labelPatientId = label.getPatient().getPatientId().getValue();
+      if (labelPatientId.isEmpty() || !label.hasType()) {
+        throw new IllegalArgumentException("Label without patient or type: " + label);
+      }
+      if (patientId == null) {
+        patientId = labelPatientId;
+      } else if (!patientId.equals(labelPatientId)) {
+        throw new IllegalArgumentException(
+            "Labels for several patients: " + patientId + " and " + labelPatientId);
+      }
+      long time = label.getEventTime().getValueUs();
+      if (!triggers.containsKey(time)) {
+        EventTrigger.Builder trigger = EventTrigger.newBuilder().setEventTime(label.getEventTime());
+        if (label.hasSource()) {
+          trigger.setSource(label.getSource());
+        }
+        triggers.put(time, trigger.build());
+        labelsByTime.put(time, new ArrayList<>());
+      }
+      labelsByTime.get(time).add(label);
+    }
+    List<TriggerLabelsPair> result = new ArrayList<>(triggers.size());
+    for (Map.Entry<Long, EventTrigger> trigger : triggers.entrySet()) {
+      result.add(new TriggerLabelsPair(trigger.getValue(), labelsByTime.get(trigger.getKey())));
+    }
+    return result;
+  }
+}
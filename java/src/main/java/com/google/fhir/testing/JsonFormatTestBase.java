@@ -86,6 +86,7 @@ public abstract class JsonFormatTestBase {
         System.err.println("Failed Parsing on: " + name);
         assertThat(testProto.build().toString()).isEqualTo(goldenProto.build().toString());
       }
+      assertParsesToWireFormat(goldenJson, testProto);
 
       // Test printer
       boolean goldenIsNdJson = goldenJson.indexOf("\n") == -1;
@@ -111,6 +112,9 @@ public abstract class JsonFormatTestBase {
           }
         }
       }
+
+      // Test printing directly from the wire format.
+      assertPrintsSerialized(goldenIsNdJson ? ndjsonPrinter : jsonPrinter, goldenProto, testJson);
     } catch (Exception e) {
       System.out.println("Failed with Exception on " + name);
       throw e;
@@ -129,6 +133,15 @@ public abstract class JsonFormatTestBase {
       System.out.println("Failed Parsing on: " + name);
       assertThat(jsonBuilder.build().toString()).isEqualTo(textBuilder.build().toString());
     }
+    assertParsesToWireFormat(
+        loadJson("spec/" + examplesDir + "/package/" + name + ".json"), jsonBuilder);
+  }
+
+  /** Checks that parsing json to the wire format gives the same bytes as serializing the parse. */
+  protected void assertParsesToWireFormat(String json, Builder parsed) throws IOException {
+    Message message = parsed.build();
+    assertThat(jsonParser.mergeToWireFormat(json, message.getDefaultInstanceForType()))
+        .isEqualTo(message.toByteString());
   }
 
   protected JsonElement canonicalize(JsonElement element) {
@@ -173,6 +186,16 @@ public abstract class JsonFormatTestBase {
       System.out.println("Failed Printing on: " + name);
       assertThat(testJson).isEqualTo(jsonGolden);
     }
+    assertPrintsSerialized(jsonPrinter, textBuilder, testJson);
+  }
+
+  /** Checks that printing the serialized message gives the same output as printing the message. */
+  protected void assertPrintsSerialized(
+      JsonFormat.Printer printer, Builder builder, String expected) throws IOException {
+    Message message = builder.build();
+    String serializedJson =
+        printer.printSerialized(message.getDefaultInstanceForType(), message.toByteString());
+    assertThat(serializedJson).isEqualTo(expected);
   }
 
   protected void testConvertForAnalytics(String name, Builder builder) throws IOException {
@@ -184,6 +207,7 @@ public abstract class JsonFormatTestBase {
     // Print and compare.
     String analyticsTest = jsonPrinter.forAnalytics().print(jsonBuilder);
     assertThat(analyticsTest.trim()).isEqualTo(analyticsGolden.trim());
+    assertPrintsSerialized(jsonPrinter.forAnalytics(), jsonBuilder, analyticsTest);
   }
 
   public void setUpParser() throws IOException {
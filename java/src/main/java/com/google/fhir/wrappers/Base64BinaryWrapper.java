@@ -14,6 +14,7 @@
 
 package com.google.fhir.wrappers;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.BaseEncoding;
 import com.google.fhir.common.AnnotationUtils;
 import com.google.fhir.common.ProtoUtils;
@@ -21,10 +22,9 @@ import com.google.fhir.r4.core.Base64Binary;
 import com.google.fhir.r4.core.PositiveInt;
 import com.google.fhir.r4.google.Base64BinarySeparatorStride;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
-import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /** A wrapper around the Base64Binary FHIR primitive type. */
@@ -39,6 +39,11 @@ public class Base64BinaryWrapper extends PrimitiveWrapper<Base64Binary> {
     return REGEX_PATTERN;
   }
 
+  private static final ImmutableSet<String> INTERNAL_EXTENSION_URLS =
+      ImmutableSet.of(
+          ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL,
+          ExtensionScanner.BASE64_BINARY_SEPARATOR_STRIDE_URL);
+
   private static final Base64Binary NULL_BASE64_BINARY =
       Base64Binary.newBuilder().addExtension(getNoValueExtension()).build();
 
@@ -98,10 +103,12 @@ public class Base64BinaryWrapper extends PrimitiveWrapper<Base64Binary> {
   @Override
   protected String printValue() {
     BaseEncoding encoding = BaseEncoding.base64();
-    List<Base64BinarySeparatorStride> strideExtension =
-        ExtensionWrapper.fromExtensionsIn(getWrapped())
-            .getMatchingExtensions(Base64BinarySeparatorStride.getDefaultInstance());
-    if (!strideExtension.isEmpty()) {
+    // Only decode the stride extension if it is actually present.
+    if (ExtensionScanner.hasExtension(
+        getWrapped(), ExtensionScanner.BASE64_BINARY_SEPARATOR_STRIDE_URL)) {
+      List<Base64BinarySeparatorStride> strideExtension =
+          ExtensionWrapper.fromExtensionsIn(getWrapped())
+              .getMatchingExtensions(Base64BinarySeparatorStride.getDefaultInstance());
       encoding =
           encoding.withSeparator(
               strideExtension.get(0).getSeparator().getValue(),
@@ -111,7 +118,7 @@ public class Base64BinaryWrapper extends PrimitiveWrapper<Base64Binary> {
   }
 
   @Override
-  protected List<Message> getInternalExtensions() {
-    return Collections.singletonList(Base64BinarySeparatorStride.getDefaultInstance());
+  protected Set<String> getInternalExtensionUrls() {
+    return INTERNAL_EXTENSION_URLS;
   }
 }
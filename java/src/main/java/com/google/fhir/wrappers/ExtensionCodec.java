@@ -0,0 +1,377 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.wrappers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.common.AnnotationUtils;
+import com.google.fhir.common.ProtoUtils;
+import com.google.fhir.proto.Annotations;
+import com.google.fhir.r4.core.Extension;
+import com.google.fhir.r4.core.Uri;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Converts between generic FHIR Extensions and profiled extension messages.
+ *
+ * <p>The shape of each message type (value fields, single vs. complex extension, choice fields,
+ * fields by json name) is computed once per Descriptor and cached, so bulk conversion does not
+ * repeat the reflection for every extension.
+ */
+public final class ExtensionCodec {
+
+  private static final ConcurrentMap<Descriptor, ExtensionCodec> CODECS =
+      new ConcurrentHashMap<>();
+
+  private static final OneofDescriptor EXTENSION_VALUE_ONEOF =
+      Extension.ValueX.getDescriptor().getOneofs().get(0);
+
+  private final Descriptor descriptor;
+  private final boolean isExtensionProfile;
+  private final String url;
+  private final FieldDescriptor idField;
+  private final ImmutableList<FieldDescriptor> valueFields;
+  private final ImmutableMap<String, FieldDescriptor> fieldsByJsonName;
+  private final ImmutableSet<FieldDescriptor> choiceFields;
+  // For choice types, the fields keyed by the structure definition url of their type.
+  private final ImmutableMap<String, FieldDescriptor> choiceFieldsByFhirType;
+  private final boolean isSingleValueExtension;
+
+  private ExtensionCodec(Descriptor descriptor) {
+    this.descriptor = descriptor;
+    this.isExtensionProfile = AnnotationUtils.isProfileOf(Extension.getDescriptor(), descriptor);
+    this.url =
+        descriptor.getOptions().hasExtension(Annotations.fhirStructureDefinitionUrl)
+            ? descriptor.getOptions().getExtension(Annotations.fhirStructureDefinitionUrl)
+            : null;
+    this.idField = descriptor.findFieldByName("id");
+    this.valueFields =
+        descriptor.getFields().stream()
+            .filter(field -> !field.getName().equals("extension") && !field.getName().equals("id"))
+            .collect(ImmutableList.toImmutableList());
+    this.fieldsByJsonName =
+        descriptor.getFields().stream()
+            .collect(ImmutableMap.toImmutableMap(FieldDescriptor::getJsonName, f -> f));
+    this.choiceFields =
+        descriptor.getFields().stream()
+            .filter(AnnotationUtils::isChoiceType)
+            .collect(ImmutableSet.toImmutableSet());
+    Map<String, FieldDescriptor> byFhirType = new HashMap<>();
+    if (AnnotationUtils.isChoiceType(descriptor)) {
+      for (FieldDescriptor field : descriptor.getFields()) {
+        if (field.getType() == FieldDescriptor.Type.MESSAGE) {
+          byFhirType.putIfAbsent(
+              AnnotationUtils.getStructureDefinitionUrl(field.getMessageType()), field);
+        }
+      }
+    }
+    this.choiceFieldsByFhirType = ImmutableMap.copyOf(byFhirType);
+    this.isSingleValueExtension =
+        valueFields.size() == 1
+            && !valueFields.get(0).isRepeated()
+            && valueFields.get(0).getType() == FieldDescriptor.Type.MESSAGE
+            && AnnotationUtils.isPrimitiveType(valueFields.get(0).getMessageType());
+  }
+
+  private static ExtensionCodec of(Descriptor descriptor) {
+    ExtensionCodec codec = CODECS.get(descriptor);
+    if (codec == null) {
+      codec = CODECS.computeIfAbsent(descriptor, ExtensionCodec::new);
+    }
+    return codec;
+  }
+
+  /**
+   * Returns the codec for the given profiled extension type, throwing an IllegalArgumentException
+   * if it is not a valid FHIR extension.
+   */
+  public static ExtensionCodec forExtension(Descriptor descriptor) {
+    ExtensionCodec codec = of(descriptor);
+    if (!codec.isExtensionProfile) {
+      throw new IllegalArgumentException(
+          "Message type " + descriptor.getFullName() + " is not a FHIR extension.");
+    }
+    if (codec.url == null) {
+      throw new IllegalArgumentException(
+          "Message type "
+              + descriptor.getFullName()
+              + " is an invalid FHIR extension: Missing fhir_structure_definition_url annotation.");
+    }
+    return codec;
+  }
+
+  /** The structure definition url of the extension, as used in Extension.url. */
+  public String getUrl() {
+    return url;
+  }
+
+  /** Convert a message of this codec's type into a generic Extension. */
+  public Extension encode(MessageOrBuilder message) {
+    checkType(message.getDescriptorForType());
+    Extension.Builder extension = Extension.newBuilder().setUrl(Uri.newBuilder().setValue(url));
+    // Copy the id field if present.
+    if (idField != null && message.hasField(idField)) {
+      ProtoUtils.fieldWiseCopy((Message) message.getField(idField), extension.getIdBuilder());
+    }
+    if (isSingleValueExtension) {
+      FieldDescriptor valueField = valueFields.get(0);
+      if (message.hasField(valueField)) {
+        addValueToExtension(
+            (MessageOrBuilder) message.getField(valueField),
+            extension,
+            choiceFields.contains(valueField));
+      }
+    } else {
+      addMessageToExtension(message, extension);
+    }
+    return extension.build();
+  }
+
+  /** Merge a generic Extension into a builder of this codec's type. */
+  public <B extends Message.Builder> B decode(Extension extension, B builder) {
+    checkType(builder.getDescriptorForType());
+    addExtensionToMessage(extension, builder);
+    return builder;
+  }
+
+  private void checkType(Descriptor type) {
+    if (!type.equals(descriptor)) {
+      throw new IllegalArgumentException(
+          "Codec for " + descriptor.getFullName() + " can not handle " + type.getFullName());
+    }
+  }
+
+  // Internal implementation details from here on.
+
+  private static FieldDescriptor checkIsMessage(FieldDescriptor field) {
+    if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+      throw new IllegalArgumentException(
+          "Encountered unexpected proto primitive: "
+              + field.getFullName()
+              + ".  Should be FHIR type.");
+    }
+    return field;
+  }
+
+  private static final Map<Descriptor, FieldDescriptor> EXTENSION_VALUE_FIELDS_BY_TYPE =
+      buildExtensionValueFieldMap();
+
+  private static Map<Descriptor, FieldDescriptor> buildExtensionValueFieldMap() {
+
+    Map<String, FieldDescriptor> fieldNameToR4Field =
+        EXTENSION_VALUE_ONEOF.getFields().stream()
+            .collect(Collectors.toMap(f -> f.getName(), f -> f));
+
+    Map<Descriptor, FieldDescriptor> fieldsMap =
+        com.google.fhir.stu3.proto.Extension.ValueX.getDescriptor()
+            .getOneofs()
+            .get(0)
+            .getFields()
+            .stream()
+            .filter(f -> fieldNameToR4Field.containsKey(f.getName()))
+            .collect(
+                Collectors.toMap(
+                    f -> f.getMessageType(), f -> fieldNameToR4Field.get(f.getName())));
+
+    fieldsMap.putAll(
+        EXTENSION_VALUE_ONEOF.getFields().stream()
+            .collect(Collectors.toMap(FieldDescriptor::getMessageType, f -> f)));
+    return fieldsMap;
+  }
+
+  private static void addValueToExtension(
+      MessageOrBuilder value, Extension.Builder result, boolean isChoiceType) {
+    Descriptor valueDescriptor = value.getDescriptorForType();
+    if (isChoiceType) {
+      List<OneofDescriptor> oneofs = valueDescriptor.getOneofs();
+      if (oneofs.isEmpty()) {
+        throw new IllegalArgumentException(
+            "Choice type is missing a oneof: " + valueDescriptor.getFullName());
+      }
+      FieldDescriptor valueField = value.getOneofFieldDescriptor(oneofs.get(0));
+      if (valueField == null) {
+        throw new IllegalArgumentException(
+            "Choice type has no value set: " + valueDescriptor.getFullName());
+      }
+      checkIsMessage(valueField);
+      addValueToExtension((Message) value.getField(valueField), result, false);
+      return;
+    }
+    FieldDescriptor valueFieldForType = EXTENSION_VALUE_FIELDS_BY_TYPE.get(valueDescriptor);
+    if (valueFieldForType != null) {
+      Extension.ValueX.Builder valueBuilder = result.getValueBuilder();
+      ProtoUtils.fieldWiseCopy(value, valueBuilder.getFieldBuilder(valueFieldForType));
+      return;
+    }
+    if (AnnotationUtils.isPrimitiveType(valueDescriptor)) {
+      throw new IllegalArgumentException(
+          "Unrecognized primitive type: " + valueDescriptor.getFullName());
+    }
+    // TODO: handle stu3 meta field, which is absent on r4 extension.
+    // Fall back to adding the value as a message.
+    addMessageToExtension(value, result);
+  }
+
+  private static void addFieldToExtension(
+      String fieldName,
+      MessageOrBuilder fieldValue,
+      Extension.Builder result,
+      boolean isChoiceType) {
+    Extension.Builder subBuilder = Extension.newBuilder();
+    subBuilder.setUrl(Uri.newBuilder().setValue(fieldName));
+    addValueToExtension(fieldValue, subBuilder, isChoiceType);
+    result.addExtension(subBuilder);
+  }
+
+  private static void addMessageToExtension(MessageOrBuilder message, Extension.Builder result) {
+    ExtensionCodec codec = of(message.getDescriptorForType());
+    for (Map.Entry<FieldDescriptor, Object> entry : message.getAllFields().entrySet()) {
+      FieldDescriptor field = checkIsMessage(entry.getKey());
+      boolean isChoiceType = codec.choiceFields.contains(field);
+      if (field.isRepeated()) {
+        for (Object o : (List) entry.getValue()) {
+          addFieldToExtension(field.getJsonName(), (MessageOrBuilder) o, result, isChoiceType);
+        }
+      } else {
+        addFieldToExtension(
+            field.getJsonName(), (MessageOrBuilder) entry.getValue(), result, isChoiceType);
+      }
+    }
+  }
+
+  // TODO: This should handle the extension fields.
+  private static void addExtensionToMessage(Extension extension, Message.Builder builder) {
+    ExtensionCodec codec = of(builder.getDescriptorForType());
+    // Copy the id field if present.
+    if (extension.hasId()) {
+      // TODO: handle copying the id field for all kinds of extensions.
+      if (codec.idField != null) {
+        ProtoUtils.fieldWiseCopy(extension.getId(), builder.getFieldBuilder(codec.idField));
+      }
+    }
+
+    if (extension.hasValue()) {
+      FieldDescriptor extensionValueField =
+          checkIsMessage(extension.getValue().getOneofFieldDescriptor(EXTENSION_VALUE_ONEOF));
+      // We only hit this case for simple extensions. The output type had better have just one
+      // field other than extension and id, and it had better be of the right type.
+      if (codec.valueFields.size() == 1) {
+        FieldDescriptor targetField = checkIsMessage(codec.valueFields.get(0));
+        if (codec.choiceFields.contains(targetField)) {
+          Message.Builder targetFieldBuilder = builder.newBuilderForField(targetField);
+          addValueToChoiceType(extension.getValue(), targetFieldBuilder);
+          ProtoUtils.fieldWiseCopy(targetFieldBuilder, builder.getFieldBuilder(targetField));
+          return;
+        } else if (AnnotationUtils.sameFhirType(
+            extensionValueField.getMessageType(), targetField.getMessageType())) {
+          ProtoUtils.fieldWiseCopy(
+              (Message) extension.getValue().getField(extensionValueField),
+              builder.getFieldBuilder(targetField));
+          return;
+        } else {
+          throw new IllegalArgumentException(
+              "Unable to find field of type "
+                  + extensionValueField.getMessageType().getName()
+                  + " in "
+                  + builder.getDescriptorForType().getFullName());
+        }
+      }
+      throw new IllegalArgumentException(
+          "Invalid extension proto " + builder.getDescriptorForType().getFullName());
+
+    } else {
+      for (Extension inner : extension.getExtensionList()) {
+        String fieldName = inner.getUrl().getValue();
+        FieldDescriptor field = codec.fieldsByJsonName.get(fieldName);
+        if (field == null) {
+          throw new IllegalArgumentException(
+              "Message "
+                  + builder.getDescriptorForType().getFullName()
+                  + " has no field named "
+                  + fieldName);
+        }
+        if (field.getType() != FieldDescriptor.Type.MESSAGE) {
+          throw new IllegalArgumentException(
+              "Field "
+                  + fieldName
+                  + " in Message "
+                  + builder.getDescriptorForType().getFullName()
+                  + " is of invalid type");
+        }
+        Message.Builder subBuilder = builder.newBuilderForField(field);
+        if (inner.hasValue()) {
+          // TODO: handle ids on inner extensions
+          if (inner.getExtensionCount() > 0) {
+            throw new IllegalArgumentException(
+                "Extension holds both a value and sub-extensions: " + inner);
+          }
+          if (codec.choiceFields.contains(field)) {
+            addValueToChoiceType(inner.getValue(), subBuilder);
+          } else {
+            addValueToMessage(inner.getValue(), subBuilder);
+          }
+        } else {
+          addExtensionToMessage(inner, subBuilder);
+        }
+        setOrAddField(builder, field, subBuilder.build());
+      }
+    }
+  }
+
+  private static void addValueToChoiceType(
+      Extension.ValueX value, Message.Builder choiceTypeBuilder) {
+    Descriptor choiceDescriptor = choiceTypeBuilder.getDescriptorForType();
+    FieldDescriptor extensionValueField =
+        checkIsMessage(value.getOneofFieldDescriptor(EXTENSION_VALUE_ONEOF));
+    FieldDescriptor choiceField =
+        of(choiceDescriptor)
+            .choiceFieldsByFhirType
+            .get(AnnotationUtils.getStructureDefinitionUrl(extensionValueField.getMessageType()));
+    if (choiceField != null) {
+      addValueToMessage(value, choiceTypeBuilder.getFieldBuilder(choiceField));
+      return;
+    }
+    throw new IllegalArgumentException(
+        "Unable to add value to choice type.\nValue: "
+            + value
+            + "\nChoice Type: "
+            + choiceDescriptor.getFullName());
+  }
+
+  private static void addValueToMessage(Extension.ValueX value, Message.Builder builder) {
+    FieldDescriptor valueField =
+        checkIsMessage(value.getOneofFieldDescriptor(EXTENSION_VALUE_ONEOF));
+    ProtoUtils.fieldWiseCopy((Message) value.getField(valueField), builder);
+  }
+
+  private static void setOrAddField(Message.Builder builder, FieldDescriptor field, Object value) {
+    if (field.isRepeated()) {
+      builder.addRepeatedField(field, value);
+    } else {
+      builder.setField(field, value);
+    }
+  }
+}
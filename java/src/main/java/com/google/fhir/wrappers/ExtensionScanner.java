@@ -0,0 +1,178 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.wrappers;
+
+import com.google.fhir.common.AnnotationUtils;
+import com.google.fhir.common.ProtoUtils;
+import com.google.fhir.r4.core.Extension;
+import com.google.fhir.r4.google.Base64BinarySeparatorStride;
+import com.google.fhir.r4.google.PrimitiveHasNoValue;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Allocation-free lookups over the extension field of FHIR messages.
+ *
+ * <p>Unlike {@link ExtensionWrapper}, this never copies the extension list or converts matches
+ * into profiled messages; it reads urls directly from the repeated field of the input. This makes
+ * it suitable for hot paths such as checking every printed primitive for PrimitiveHasNoValue.
+ */
+public final class ExtensionScanner {
+
+  /** Url of the PrimitiveHasNoValue extension, shared by STU3 and R4. */
+  public static final String PRIMITIVE_HAS_NO_VALUE_URL =
+      urlOf(PrimitiveHasNoValue.getDescriptor());
+
+  /** Url of the Base64BinarySeparatorStride extension, shared by STU3 and R4. */
+  public static final String BASE64_BINARY_SEPARATOR_STRIDE_URL =
+      urlOf(Base64BinarySeparatorStride.getDescriptor());
+
+  private ExtensionScanner() {}
+
+  private static String urlOf(Descriptor extensionType) {
+    return AnnotationUtils.getStructureDefinitionUrl(extensionType).intern();
+  }
+
+  /**
+   * Returns the extension field of the input, throwing an IllegalArgumentException if the message
+   * type does not have a valid one.
+   */
+  static FieldDescriptor getExtensionField(MessageOrBuilder input) {
+    FieldDescriptor field = input.getDescriptorForType().findFieldByName("extension");
+    if (field == null || !field.isRepeated() || field.getType() != FieldDescriptor.Type.MESSAGE) {
+      throw new IllegalArgumentException(
+          "Message type "
+              + input.getDescriptorForType().getFullName()
+              + " is not a valid FHIR type with extensions");
+    }
+    return field;
+  }
+
+  /** Returns the url of the extension at the given index of the input's extension field. */
+  public static String getUrlAt(MessageOrBuilder input, FieldDescriptor extensionField, int index) {
+    Object extension = input.getRepeatedField(extensionField, index);
+    if (extension instanceof Extension) {
+      return ((Extension) extension).getUrl().getValue();
+    }
+    if (extension instanceof com.google.fhir.stu3.proto.Extension) {
+      return ((com.google.fhir.stu3.proto.Extension) extension).getUrl().getValue();
+    }
+    throw new IllegalArgumentException("Invalid Extension field: " + extensionField.getFullName());
+  }
+
+  /**
+   * Returns the index of the first extension at or after {@code fromIndex} with the given url, or
+   * -1 if there is none.
+   */
+  public static int indexOf(MessageOrBuilder input, String url, int fromIndex) {
+    FieldDescriptor field = getExtensionField(input);
+    int count = input.getRepeatedFieldCount(field);
+    for (int i = fromIndex; i < count; i++) {
+      if (url.equals(getUrlAt(input, field, i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** True if the input has at least one extension with the given url. */
+  public static boolean hasExtension(MessageOrBuilder input, String url) {
+    return indexOf(input, url, 0) != -1;
+  }
+
+  /** Returns the number of extensions on the input whose url is not in {@code excludedUrls}. */
+  public static int countExtensionsExcluding(MessageOrBuilder input, Set<String> excludedUrls) {
+    FieldDescriptor field = getExtensionField(input);
+    int count = input.getRepeatedFieldCount(field);
+    int result = 0;
+    for (int i = 0; i < count; i++) {
+      if (!excludedUrls.contains(getUrlAt(input, field, i))) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Calls {@code consumer} with each extension on the input whose url is not in {@code
+   * excludedUrls}, converting STU3 extensions to R4 as needed.
+   */
+  public static void forEachExtensionExcluding(
+      MessageOrBuilder input, Set<String> excludedUrls, Consumer<Extension> consumer) {
+    FieldDescriptor field = getExtensionField(input);
+    int count = input.getRepeatedFieldCount(field);
+    for (int i = 0; i < count; i++) {
+      if (!excludedUrls.contains(getUrlAt(input, field, i))) {
+        consumer.accept(toR4(input.getRepeatedField(field, i)));
+      }
+    }
+  }
+
+  /**
+   * Calls {@code consumer} with each extension on the input with the given url, converting STU3
+   * extensions to R4 as needed.
+   */
+  public static void forEachMatchingExtension(
+      MessageOrBuilder input, String url, Consumer<Extension> consumer) {
+    FieldDescriptor field = getExtensionField(input);
+    int count = input.getRepeatedFieldCount(field);
+    for (int i = 0; i < count; i++) {
+      if (url.equals(getUrlAt(input, field, i))) {
+        consumer.accept(toR4(input.getRepeatedField(field, i)));
+      }
+    }
+  }
+
+  /**
+   * True if the input carries a PrimitiveHasNoValue extension with a value of true, i.e., the
+   * primitive is purely defined by its extensions.
+   */
+  public static boolean hasPrimitiveHasNoValue(MessageOrBuilder input) {
+    FieldDescriptor field = getExtensionField(input);
+    int count = input.getRepeatedFieldCount(field);
+    for (int i = 0; i < count; i++) {
+      Object extension = input.getRepeatedField(field, i);
+      if (extension instanceof Extension) {
+        Extension r4Extension = (Extension) extension;
+        if (PRIMITIVE_HAS_NO_VALUE_URL.equals(r4Extension.getUrl().getValue())
+            && r4Extension.getValue().getBoolean().getValue()) {
+          return true;
+        }
+      } else if (extension instanceof com.google.fhir.stu3.proto.Extension) {
+        com.google.fhir.stu3.proto.Extension stu3Extension =
+            (com.google.fhir.stu3.proto.Extension) extension;
+        if (PRIMITIVE_HAS_NO_VALUE_URL.equals(stu3Extension.getUrl().getValue())
+            && stu3Extension.getValue().getBoolean().getValue()) {
+          return true;
+        }
+      } else {
+        throw new IllegalArgumentException("Invalid Extension field: " + field.getFullName());
+      }
+    }
+    return false;
+  }
+
+  private static Extension toR4(Object extension) {
+    if (extension instanceof Extension) {
+      return (Extension) extension;
+    }
+    return ProtoUtils.fieldWiseCopy(
+            (com.google.fhir.stu3.proto.Extension) extension, Extension.newBuilder())
+        .build();
+  }
+}
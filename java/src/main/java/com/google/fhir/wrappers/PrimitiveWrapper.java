@@ -26,8 +26,7 @@ import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 import com.google.protobuf.MessageOrBuilder;
 import java.time.OffsetDateTime;
-import java.util.Collections;
-import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -40,8 +39,15 @@ public abstract class PrimitiveWrapper<T extends Message> {
   private static final PrimitiveHasNoValue PRIMITIVE_HAS_NO_VALUE =
       PrimitiveHasNoValue.newBuilder().setValueBoolean(Boolean.newBuilder().setValue(true)).build();
 
+  private static final Extension NO_VALUE_EXTENSION =
+      ExtensionWrapper.of().add(PRIMITIVE_HAS_NO_VALUE).build().get(0);
+
+  // Extensions which are used internally by every primitive, and never printed.
+  private static final ImmutableSet<String> INTERNAL_EXTENSION_URLS =
+      ImmutableSet.of(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL);
+
   protected static com.google.fhir.r4.core.Extension getNoValueExtension() {
-    return ExtensionWrapper.of().add(PRIMITIVE_HAS_NO_VALUE).build().get(0);
+    return NO_VALUE_EXTENSION;
   }
 
   protected static void validateUsingPattern(Pattern pattern, String input) {
@@ -102,14 +108,7 @@ public abstract class PrimitiveWrapper<T extends Message> {
   }
 
   public static boolean hasValue(MessageOrBuilder message) {
-    List<PrimitiveHasNoValue> extensions =
-        ExtensionWrapper.fromExtensionsIn(message).getMatchingExtensions(PRIMITIVE_HAS_NO_VALUE);
-    for (PrimitiveHasNoValue e : extensions) {
-      if (e.getValueBoolean().getValue()) {
-        return false;
-      }
-    }
-    return true;
+    return !ExtensionScanner.hasPrimitiveHasNoValue(message);
   }
 
   public T getWrapped() {
@@ -150,29 +149,29 @@ public abstract class PrimitiveWrapper<T extends Message> {
     return new JsonPrimitive(toString());
   }
 
-  protected List<Message> getInternalExtensions() {
-    return Collections.<Message>emptyList();
+  /**
+   * Urls of the extensions used internally to represent this primitive, which are not part of its
+   * publicly visible Element. Must include the PrimitiveHasNoValue url.
+   */
+  protected Set<String> getInternalExtensionUrls() {
+    return INTERNAL_EXTENSION_URLS;
   }
 
   /** Get the Element part of this primitive, including any publicly visible extensions. */
   public Element getElement() {
     Descriptor descriptor = wrapped.getDescriptorForType();
     FieldDescriptor idField = descriptor.findFieldByName("id");
-    ExtensionWrapper extensionWrapper =
-        ExtensionWrapper.fromExtensionsIn(wrapped).clearMatchingExtensions(PRIMITIVE_HAS_NO_VALUE);
-    for (Message template : getInternalExtensions()) {
-      extensionWrapper = extensionWrapper.clearMatchingExtensions(template);
-    }
-    List<Extension> extensions = extensionWrapper.build();
-    if (!wrapped.hasField(idField) && extensions.isEmpty()) {
+    Set<String> internalUrls = getInternalExtensionUrls();
+    boolean hasExtensions = ExtensionScanner.countExtensionsExcluding(wrapped, internalUrls) > 0;
+    if (!wrapped.hasField(idField) && !hasExtensions) {
       return null;
     }
     Element.Builder builder = Element.newBuilder();
     if (wrapped.hasField(idField)) {
       ProtoUtils.fieldWiseCopy((Message) wrapped.getField(idField), builder.getIdBuilder());
     }
-    if (!extensions.isEmpty()) {
-      builder.addAllExtension(extensions);
+    if (hasExtensions) {
+      ExtensionScanner.forEachExtensionExcluding(wrapped, internalUrls, builder::addExtension);
     }
     return builder.build();
   }
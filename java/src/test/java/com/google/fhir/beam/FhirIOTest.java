@@ -0,0 +1,184 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+
+package com.google.fhir.beam;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.fhir.common.BigQuerySchema;
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.common.ResourceUtils;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.fhir.r4.core.Patient;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.io.FileIO;
+import org.apache.beam.sdk.io.TextIO;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.MapElements;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TypeDescriptors;
+import org.apache.beam.sdk.values.ValueInSingleWindow;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link FhirIO}, {@link ParseFhir}, {@link ValidateFhir} and {@link
+ * WriteByResourceType}, running pipelines on the DirectRunner.
+ */
+@RunWith(JUnit4.class)
+public final class FhirIOTest {
+
+  private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"p1\"}";
+  private static final String OBSERVATION =
+      "{\"resourceType\":\"Observation\",\"id\":\"o1\",\"status\":\"final\","
+          + "\"code\":{\"text\":\"glucose\"}}";
+  // Observation.status is required.
+  private static final String INVALID_OBSERVATION =
+      "{\"resourceType\":\"Observation\",\"id\":\"o2\",\"code\":{\"text\":\"glucose\"}}";
+
+  private Path directory;
+  private Pipeline pipeline;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("fhir-io-test");
+    pipeline = Pipeline.create(PipelineOptionsFactory.create());
+  }
+
+  /** Returns the lines of the files in the directory whose names start with the prefix, sorted. */
+  private static List<String> readOutput(Path directory, String prefix) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+      for (Path file : files) {
+        lines.addAll(Files.readAllLines(file, UTF_8));
+      }
+    }
+    Collections.sort(lines);
+    return lines;
+  }
+
+  private static String print(String json) throws IOException {
+    ContainedResource.Builder builder = ContainedResource.newBuilder();
+    JsonFormat.getParser().merge(json, builder);
+    return JsonFormat.getPrinter()
+        .omittingInsignificantWhitespace()
+        .print(ResourceUtils.getContainedResource(builder.build()));
+  }
+
+  @Test
+  public void readNdjsonInSplits() throws Exception {
+    List<String> expected = new ArrayList<>();
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      String line = "{\"resourceType\":\"Patient\",\"id\":\"" + i + "\"}";
+      expected.add(line);
+      // Vary the line terminators, and add blank lines, which are skipped.
+      input.append(line).append(i % 3 == 0 ? "\r\n" : "\n").append(i % 100 == 0 ? "\n" : "");
+    }
+    Path file = directory.resolve("input.ndjson");
+    Files.write(file, input.toString().getBytes(UTF_8));
+
+    // Each split holds a few lines, and most start or end in the middle of a line.
+    pipeline
+        .apply(FhirIO.readNdjson().from(file.toString()).withDesiredSplitSize(97))
+        .apply(TextIO.write().to(directory.resolve("lines").toString()));
+    pipeline.run().waitUntilFinish();
+
+    Collections.sort(expected);
+    assertThat(readOutput(directory, "lines")).isEqualTo(expected);
+  }
+
+  @Test
+  public void parseValidateAndWriteByResourceType() throws Exception {
+    Path file = directory.resolve("input.ndjson");
+    Files.write(file, Arrays.asList(PATIENT, OBSERVATION, INVALID_OBSERVATION), UTF_8);
+
+    PCollectionTuple validated =
+        pipeline
+            .apply(FhirIO.readNdjson().from(file.toString()))
+            .apply(ParseFhir.resources())
+            .apply(ValidateFhir.create());
+    validated
+        .get(ValidateFhir.VALID)
+        .apply(WriteByResourceType.toFiles(directory.resolve("output").toString()));
+    validated
+        .get(ValidateFhir.INVALID)
+        .apply(
+            MapElements.into(TypeDescriptors.strings())
+                .via((KV<ContainedResource, String> invalid) -> invalid.getValue()))
+        .apply(TextIO.write().to(directory.resolve("invalid").toString()));
+    pipeline.run().waitUntilFinish();
+
+    Path output = directory.resolve("output");
+    assertThat(readOutput(output, "Patient-")).containsExactly(print(PATIENT));
+    assertThat(readOutput(output, "Observation-")).containsExactly(print(OBSERVATION));
+    assertThat(readOutput(directory, "invalid")).containsExactly("missing-Observation.status");
+  }
+
+  @Test
+  public void parseBundles() throws Exception {
+    Path file = directory.resolve("bundle.json");
+    Files.write(
+        file,
+        ("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["
+                + "{\"fullUrl\":\"urn:uuid:1\",\"resource\":" + PATIENT + "},"
+                + "{\"resource\":" + OBSERVATION + "}]}")
+            .getBytes(UTF_8));
+
+    pipeline
+        .apply(FileIO.match().filepattern(file.toString()))
+        .apply(FileIO.readMatches())
+        .apply(ParseFhir.bundles())
+        .apply(WriteByResourceType.toFiles(directory.resolve("output").toString()));
+    pipeline.run().waitUntilFinish();
+
+    Path output = directory.resolve("output");
+    assertThat(readOutput(output, "Patient-")).containsExactly(print(PATIENT));
+    assertThat(readOutput(output, "Observation-")).containsExactly(print(OBSERVATION));
+  }
+
+  @Test
+  public void bigQueryDestinations() throws Exception {
+    ContainedResource patient =
+        ContainedResource.newBuilder().setPatient(Patient.getDefaultInstance()).build();
+    WriteByResourceType.ResourceTypeDestinations destinations =
+        new WriteByResourceType.ResourceTypeDestinations("project:dataset");
+
+    String destination =
+        destinations.getDestination(
+            ValueInSingleWindow.of(
+                patient, new Instant(0), GlobalWindow.INSTANCE, PaneInfo.NO_FIRING));
+    assertThat(destination).isEqualTo("Patient");
+    assertThat(destinations.getTable(destination).getTableSpec())
+        .isEqualTo("project:dataset.Patient");
+    assertThat(destinations.getSchema(destination))
+        .isEqualTo(BigQuerySchema.fromDescriptor(Patient.getDescriptor()));
+  }
+}
@@ -0,0 +1,167 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.io.Files;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.protobuf.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.ZoneId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AnalyticJsonTranscoder}, against the analytic printer. */
+@RunWith(JUnit4.class)
+public final class AnalyticJsonTranscoderTest {
+
+  private static final ZoneId TIME_ZONE = ZoneId.of("Australia/Sydney");
+
+  private Runfiles runfiles;
+  private JsonFormat.Parser parser;
+  private JsonFormat.Printer printer;
+
+  @Before
+  public void setUp() throws IOException {
+    runfiles = Runfiles.create();
+    parser = JsonFormat.Parser.withDefaultTimeZone(TIME_ZONE);
+    printer =
+        JsonFormat.getPrinter()
+            .withDefaultTimeZone(TIME_ZONE)
+            .omittingInsignificantWhitespace()
+            .forAnalytics();
+  }
+
+  private String load(String filename) throws IOException {
+    File file = new File(runfiles.rlocation("com_google_fhir/" + filename));
+    return Files.asCharSource(file, UTF_8).read();
+  }
+
+  private void testTranscode(String filename, Message.Builder builder) throws IOException {
+    String input = load(filename);
+    parser.merge(input, builder);
+    AnalyticJsonTranscoder transcoder =
+        AnalyticJsonTranscoder.forType(builder.getDescriptorForType())
+            .withDefaultTimeZone(TIME_ZONE);
+    assertThat(transcoder.transcode(input)).isEqualTo(printer.print(builder));
+  }
+
+  @Test
+  public void transcodeStu3() throws Exception {
+    String spec = "spec/hl7.fhir.core/3.0.1/package/";
+    testTranscode(
+        spec + "Bundle-ussg-fht.json", com.google.fhir.stu3.proto.Bundle.newBuilder());
+    testTranscode(
+        spec + "CarePlan-example.json", com.google.fhir.stu3.proto.CarePlan.newBuilder());
+    testTranscode(
+        spec + "Composition-example.json", com.google.fhir.stu3.proto.Composition.newBuilder());
+    testTranscode(
+        spec + "Encounter-home.json", com.google.fhir.stu3.proto.Encounter.newBuilder());
+    testTranscode(
+        spec + "Observation-example-genetics-1.json",
+        com.google.fhir.stu3.proto.Observation.newBuilder());
+    testTranscode(
+        spec + "patient-example.json", com.google.fhir.stu3.proto.Patient.newBuilder());
+  }
+
+  @Test
+  public void transcodeR4() throws Exception {
+    String spec = "spec/hl7.fhir.r4.examples/4.0.1/package/";
+    testTranscode(
+        spec + "AuditEvent-example-error.json", com.google.fhir.r4.core.AuditEvent.newBuilder());
+    testTranscode(
+        spec + "CarePlan-example.json", com.google.fhir.r4.core.CarePlan.newBuilder());
+    testTranscode(
+        spec + "Composition-example.json", com.google.fhir.r4.core.Composition.newBuilder());
+    testTranscode(
+        spec + "Encounter-home.json", com.google.fhir.r4.core.Encounter.newBuilder());
+    testTranscode(
+        spec + "Observation-example-genetics-1.json",
+        com.google.fhir.r4.core.Observation.newBuilder());
+    testTranscode(
+        spec + "Patient-example.json", com.google.fhir.r4.core.Patient.newBuilder());
+  }
+
+  @Test
+  public void transcodeNdjsonOfMixedTypes() throws Exception {
+    String ndjson =
+        "{\"resourceType\": \"Patient\", \"id\": \"p1\", \"birthDate\": \"1970-01-02\","
+            + " \"_birthDate\": {\"id\": \"b\"}}\n"
+            + "{\"resourceType\": \"Observation\", \"valueQuantity\": {\"value\": 1.50},"
+            + " \"subject\": {\"reference\": \"Patient/p1/_history/2\"}, \"status\": \"final\"}\n";
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    AnalyticJsonTranscoder.forType(com.google.fhir.r4.core.ContainedResource.getDescriptor())
+        .transcodeNdjson(new ByteArrayInputStream(ndjson.getBytes(UTF_8)), output);
+    assertThat(new String(output.toByteArray(), UTF_8))
+        .isEqualTo(
+            "{\"id\":\"p1\",\"birthDate\":\"1970-01-02\"}\n"
+                + "{\"status\":\"final\",\"subject\":{\"patientId\":\"p1\"},"
+                + "\"value\":{\"quantity\":{\"value\":1.50}}}\n");
+  }
+
+  @Test
+  public void transcodeDecimalsInPlainNotation() throws Exception {
+    String input =
+        "{\"resourceType\": \"Observation\", \"status\": \"final\","
+            + " \"component\": [{\"valueQuantity\": {\"value\": 1E-7}},"
+            + " {\"valueQuantity\": {\"value\": 2.50e+3}}]}";
+    AnalyticJsonTranscoder transcoder =
+        AnalyticJsonTranscoder.forType(com.google.fhir.r4.core.Observation.getDescriptor());
+
+    assertThat(transcoder.transcode(input))
+        .isEqualTo(
+            "{\"status\":\"final\",\"component\":["
+                + "{\"value\":{\"quantity\":{\"value\":0.0000001}}},"
+                + "{\"value\":{\"quantity\":{\"value\":2500}}}]}");
+  }
+
+  @Test
+  public void transcodeMaxRecursionDepth() throws Exception {
+    String input =
+        "{\"resourceType\": \"Composition\", \"section\": [{\"title\": \"a\", "
+            + "\"section\": [{\"title\": \"b\", \"section\": [{\"title\": \"c\"}]}]}]}";
+    AnalyticJsonTranscoder transcoder =
+        AnalyticJsonTranscoder.forType(com.google.fhir.stu3.proto.Composition.getDescriptor());
+
+    assertThat(transcoder.transcode(input))
+        .isEqualTo(
+            "{\"section\":[{\"title\":\"a\",\"section\":[{\"title\":\"b\","
+                + "\"section\":[{\"title\":\"c\"}]}]}]}");
+    assertThat(transcoder.withMaxRecursionDepth(0).transcode(input))
+        .isEqualTo("{\"section\":[{\"title\":\"a\"}]}");
+    assertThat(transcoder.withMaxRecursionDepth(1).transcode(input))
+        .isEqualTo("{\"section\":[{\"title\":\"a\",\"section\":[{\"title\":\"b\"}]}]}");
+  }
+
+  @Test
+  public void transcodeRejectsUnknownFields() {
+    AnalyticJsonTranscoder transcoder =
+        AnalyticJsonTranscoder.forType(com.google.fhir.r4.core.Patient.getDescriptor());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> transcoder.transcode("{\"resourceType\": \"Patient\", \"colour\": \"blue\"}"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> transcoder.transcode("{\"resourceType\": \"Observation\"}"));
+  }
+}
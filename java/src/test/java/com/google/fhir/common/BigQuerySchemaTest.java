@@ -19,9 +19,11 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 import com.google.devtools.build.runfiles.Runfiles;
 import com.google.fhir.stu3.proto.Composition;
+import com.google.fhir.stu3.proto.ContainedResource;
 import com.google.fhir.stu3.proto.Encounter;
 import com.google.fhir.stu3.proto.Observation;
 import com.google.fhir.stu3.proto.Patient;
@@ -30,6 +32,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -98,4 +101,38 @@ public final class BigQuerySchemaTest {
   public void testEncounter() throws Exception {
     testSchema(Encounter.getDescriptor());
   }
+
+  @Test
+  public void testFromContainedResource() throws Exception {
+    ImmutableMap<String, TableSchema> schemas =
+        BigQuerySchema.fromContainedResource(ContainedResource.getDescriptor());
+    assertThat(schemas).hasSize(ContainedResource.getDescriptor().getFields().size());
+    assertThat(schemas.get("Patient")).isEqualTo(readSchema("Patient.schema.json"));
+    // Sub-schemas are generated once and shared.
+    assertThat(BigQuerySchema.fromDescriptor(Patient.getDescriptor()).getFields())
+        .isSameAs(schemas.get("Patient").getFields());
+  }
+
+  private static TableFieldSchema getField(List<TableFieldSchema> fields, String name) {
+    for (TableFieldSchema field : fields) {
+      if (field.getName().equals(name)) {
+        return field;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testMaxRecursionDepth() throws Exception {
+    TableFieldSchema section =
+        getField(BigQuerySchema.fromDescriptor(Composition.getDescriptor()).getFields(), "section");
+    assertThat(getField(section.getFields(), "section")).isNull();
+
+    section =
+        getField(
+            BigQuerySchema.fromDescriptor(Composition.getDescriptor(), 1).getFields(), "section");
+    TableFieldSchema nestedSection = getField(section.getFields(), "section");
+    assertThat(nestedSection).isNotNull();
+    assertThat(getField(nestedSection.getFields(), "section")).isNull();
+  }
 }
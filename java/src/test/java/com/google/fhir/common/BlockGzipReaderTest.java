@@ -0,0 +1,191 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BlockGzipReader} and {@link BlockGzipOutputStream}. */
+@RunWith(JUnit4.class)
+public final class BlockGzipReaderTest {
+
+  private ExecutorService executor;
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newFixedThreadPool(4);
+    file = Files.createTempFile("block-gzip-test", ".ndjson.gz");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdown();
+    Files.delete(file);
+  }
+
+  /** Returns lines of various lengths, some longer than a block, and some incompressible. */
+  private static List<String> createLines() {
+    Random random = new Random(42);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      int length = i % 500 == 0 ? 3 * BlockGzip.MAX_BLOCK_SIZE : random.nextInt(400);
+      StringBuilder line = new StringBuilder("{\"id\":\"" + i + "\",\"text\":\"");
+      for (int j = 0; j < length; j++) {
+        line.append((char) ('a' + (i % 3 == 0 ? random.nextInt(26) : j % 26)));
+      }
+      lines.add(line.append("\"}").toString());
+    }
+    return lines;
+  }
+
+  private static byte[] join(List<String> lines) {
+    return (String.join("\n", lines) + "\n").getBytes(UTF_8);
+  }
+
+  private void writeBlockGzip(byte[] data, ExecutorService executor) throws IOException {
+    try (OutputStream output =
+        new BlockGzipOutputStream(Files.newOutputStream(file), executor, 4)) {
+      // Write in odd-sized pieces, so batches end in the middle of lines.
+      for (int offset = 0; offset < data.length; offset += 10007) {
+        output.write(data, offset, Math.min(10007, data.length - offset));
+      }
+    }
+  }
+
+  private List<String> readAllChunks(BlockGzipReader reader, int count) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (BlockGzipReader.Chunk chunk : reader.split(count)) {
+      lines.addAll(reader.readLines(chunk));
+    }
+    return lines;
+  }
+
+  @Test
+  public void writeAndReadBlocks() throws Exception {
+    List<String> lines = createLines();
+    byte[] data = join(lines);
+    writeBlockGzip(data, executor);
+
+    // The output is a valid gzip file.
+    try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+      assertThat(ByteStreams.toByteArray(input)).isEqualTo(data);
+    }
+    assertThat(BlockGzipReader.isBlockCompressed(file)).isTrue();
+    try (BlockGzipReader reader = BlockGzipReader.open(file)) {
+      assertThat(reader.getBlocks().size()).isGreaterThan(10);
+      assertThat(reader.getUncompressedSize()).isEqualTo(data.length);
+      for (BlockGzipReader.Block block : reader.getBlocks()) {
+        assertThat(block.getCompressedSize()).isAtMost(BlockGzip.MAX_BLOCK_SIZE);
+      }
+      try (InputStream input = reader.newInputStream(executor, 4)) {
+        assertThat(ByteStreams.toByteArray(input)).isEqualTo(data);
+      }
+      for (int count : new int[] {1, 3, 7, 1000}) {
+        assertThat(readAllChunks(reader, count)).containsExactlyElementsIn(lines).inOrder();
+      }
+      assertThat(reader.split(7)).hasSize(7);
+    }
+  }
+
+  @Test
+  public void writeOnCallingThread() throws Exception {
+    byte[] data = join(createLines());
+    writeBlockGzip(data, null);
+    try (InputStream input = BlockGzipReader.newInputStream(file, executor, 4)) {
+      assertThat(ByteStreams.toByteArray(input)).isEqualTo(data);
+    }
+  }
+
+  @Test
+  public void readConcatenatedGzipMembers() throws Exception {
+    List<String> lines = createLines();
+    byte[] data = join(lines);
+    // Plain gzip members, cut in the middle of lines.
+    ByteArrayOutputStream members = new ByteArrayOutputStream();
+    for (int offset = 0; offset < data.length; offset += 100_003) {
+      try (GZIPOutputStream member = new GZIPOutputStream(new NonClosingStream(members))) {
+        member.write(data, offset, Math.min(100_003, data.length - offset));
+      }
+    }
+    Files.write(file, members.toByteArray());
+
+    assertThat(BlockGzipReader.isBlockCompressed(file)).isFalse();
+    try (BlockGzipReader reader = BlockGzipReader.open(file)) {
+      assertThat(reader.getBlocks().size()).isEqualTo((data.length + 100_002) / 100_003);
+      assertThat(readAllChunks(reader, 4)).containsExactlyElementsIn(lines).inOrder();
+    }
+    try (InputStream input = BlockGzipReader.newInputStream(file, executor, 4)) {
+      assertThat(ByteStreams.toByteArray(input)).isEqualTo(data);
+    }
+  }
+
+  @Test
+  public void readLinesWithoutFinalNewline() throws Exception {
+    Files.write(file, BlockGzip.compress("a\r\nb\nc".getBytes(UTF_8), 0, 6));
+    try (BlockGzipReader reader = BlockGzipReader.open(file)) {
+      assertThat(readAllChunks(reader, 2)).isEqualTo(Arrays.asList("a", "b", "c"));
+    }
+  }
+
+  @Test
+  public void readEmptyFile() throws Exception {
+    new BlockGzipOutputStream(Files.newOutputStream(file)).close();
+    try (BlockGzipReader reader = BlockGzipReader.open(file)) {
+      assertThat(reader.getUncompressedSize()).isEqualTo(0);
+      assertThat(readAllChunks(reader, 3)).isEmpty();
+    }
+  }
+
+  /** Keeps the underlying stream open when closing a gzip member. */
+  private static final class NonClosingStream extends OutputStream {
+    private final OutputStream output;
+
+    NonClosingStream(OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      output.write(b);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      output.write(data, offset, length);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CheckpointManifest}. */
+@RunWith(JUnit4.class)
+public final class CheckpointManifestTest {
+
+  @Test
+  public void recordAndReopen() throws Exception {
+    Path file = Files.createTempDirectory("manifest-test").resolve("manifest");
+    try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+      assertThat(manifest.getEntries()).isEmpty();
+      CheckpointManifest.Entry entry =
+          new CheckpointManifest.Entry("Patient.ndjson", 0, 100, 40, "Patient-00000.pb", 30);
+      manifest.record(entry);
+      manifest.record(
+          new CheckpointManifest.Entry("Patient.ndjson", 100, 200, 200, "Patient-00001.pb", 70));
+      manifest.record(entry.withProgress(80, 60));
+    }
+
+    try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+      assertThat(manifest.getEntries()).hasSize(2);
+      CheckpointManifest.Entry first = manifest.get("Patient.ndjson", 0);
+      assertThat(first.getEnd()).isEqualTo(100);
+      assertThat(first.getPosition()).isEqualTo(80);
+      assertThat(first.getShard()).isEqualTo("Patient-00000.pb");
+      assertThat(first.getShardSize()).isEqualTo(60);
+      assertThat(first.isDone()).isFalse();
+      assertThat(manifest.get("Patient.ndjson", 100).isDone()).isTrue();
+      assertThat(manifest.get("Patient.ndjson", 200)).isNull();
+    }
+  }
+
+  @Test
+  public void incompleteEntryIsDropped() throws Exception {
+    Path file = Files.createTempDirectory("manifest-test").resolve("manifest");
+    try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+      manifest.record(new CheckpointManifest.Entry("a.ndjson", 0, 10, 5, "a-00000.pb", 3));
+    }
+    // A crash while writing an entry leaves an incomplete line.
+    Files.write(file, "a.ndjson\t0\t10\t10".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+    try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+      assertThat(manifest.get("a.ndjson", 0).getPosition()).isEqualTo(5);
+      manifest.record(new CheckpointManifest.Entry("a.ndjson", 0, 10, 10, "a-00000.pb", 6));
+    }
+    try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+      assertThat(manifest.get("a.ndjson", 0).isDone()).isTrue();
+    }
+    assertThat(Files.readAllLines(file, UTF_8)).hasSize(2);
+  }
+
+  @Test
+  public void corruptManifest() throws Exception {
+    Path file = Files.createTempDirectory("manifest-test").resolve("manifest");
+    Files.write(file, "a.ndjson\t0\n".getBytes(UTF_8));
+    assertThrows(IOException.class, () -> CheckpointManifest.open(file));
+  }
+
+  @Test
+  public void invalidEntry() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new CheckpointManifest.Entry("a.ndjson", 0, 10, 11, "a-00000.pb", 0));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new CheckpointManifest.Entry("a\tb.ndjson", 0, 10, 0, "a-00000.pb", 0));
+  }
+}
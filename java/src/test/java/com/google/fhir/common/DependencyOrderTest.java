@@ -0,0 +1,84 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.r4.core.Bundle;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DependencyOrder}. */
+@RunWith(JUnit4.class)
+public final class DependencyOrderTest {
+
+  private static String observation(String id, String references) {
+    return "{\"resource\": {\"resourceType\": \"Observation\", \"id\": \""
+        + id
+        + "\", \"status\": \"final\", \"code\": {\"text\": \"test\"}, "
+        + references
+        + "}}";
+  }
+
+  private static Bundle parseBundle(String... entries) {
+    return JsonFormat.getParser()
+        .merge(
+            "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+                + String.join(",", entries)
+                + "]}",
+            Bundle.newBuilder())
+        .build();
+  }
+
+  private static List<String> ids(List<Bundle.Entry> entries) {
+    return entries.stream()
+        .map(
+            entry ->
+                ResourceUtils.getResourceId(
+                    ResourceUtils.getContainedResource(entry.getResource())))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void referencedResourcesComeFirst() {
+    Bundle bundle =
+        parseBundle(
+            observation(
+                "o1",
+                "\"subject\": {\"reference\": \"Patient/p1\"}, "
+                    + "\"hasMember\": [{\"reference\": \"Observation/o2\"}]"),
+            observation("o2", "\"subject\": {\"reference\": \"Patient/p1\"}"),
+            "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}}");
+    DependencyOrder<Bundle.Entry> order = DependencyOrder.of(bundle);
+    assertThat(order.hasCycles()).isFalse();
+    assertThat(ids(order.getOrdered())).containsExactly("p1", "o2", "o1").inOrder();
+  }
+
+  @Test
+  public void cyclesAreReported() {
+    Bundle bundle =
+        parseBundle(
+            observation("o1", "\"hasMember\": [{\"reference\": \"Observation/o2\"}]"),
+            observation("o2", "\"hasMember\": [{\"reference\": \"Observation/o1\"}]"),
+            "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}}");
+    DependencyOrder<Bundle.Entry> order = DependencyOrder.of(bundle);
+    assertThat(order.hasCycles()).isTrue();
+    assertThat(ids(order.getCyclic())).containsExactly("o1", "o2").inOrder();
+    assertThat(ids(order.getOrdered())).containsExactly("p1", "o1", "o2").inOrder();
+  }
+}
@@ -0,0 +1,113 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.io.Files;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.fhir.r4.core.Observation;
+import com.google.fhir.r4.core.Patient;
+import com.google.gson.JsonSyntaxException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.io.File;
+import java.io.IOException;
+import java.time.ZoneId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link LazyResource}. */
+@RunWith(JUnit4.class)
+public final class LazyResourceTest {
+
+  private Runfiles runfiles;
+  private JsonFormat.Parser parser;
+
+  @Before
+  public void setUp() throws IOException {
+    runfiles = Runfiles.create();
+    parser = JsonFormat.Parser.withDefaultTimeZone(ZoneId.of("Australia/Sydney"));
+  }
+
+  private byte[] load(String name) throws IOException {
+    File file =
+        new File(
+            runfiles.rlocation("com_google_fhir/spec/hl7.fhir.r4.examples/4.0.1/package/" + name));
+    return Files.toByteArray(file);
+  }
+
+  /** Checks that every field of the lazy resource has the same value as in the parsed resource. */
+  private void testFields(byte[] json, Message prototype, Message.Builder builder) {
+    Message expected = parser.merge(new String(json, UTF_8), builder).build();
+    LazyResource resource = LazyResource.create(json, prototype, parser);
+    assertThat(resource.getDescriptorForType()).isEqualTo(expected.getDescriptorForType());
+    for (FieldDescriptor field : expected.getDescriptorForType().getFields()) {
+      boolean present =
+          field.isRepeated() ? expected.getRepeatedFieldCount(field) > 0 : expected.hasField(field);
+      assertThat(resource.hasField(field)).isEqualTo(present);
+      assertThat(resource.getField(field)).isEqualTo(expected.getField(field));
+    }
+    assertThat(resource.toMessage()).isEqualTo(expected);
+  }
+
+  @Test
+  public void readFields() throws Exception {
+    testFields(load("Patient-example.json"), Patient.getDefaultInstance(), Patient.newBuilder());
+    testFields(
+        load("Observation-example-genetics-1.json"),
+        Observation.getDefaultInstance(),
+        Observation.newBuilder());
+  }
+
+  @Test
+  public void readContainedResource() throws Exception {
+    byte[] json = load("Observation-example-genetics-1.json");
+    LazyResource resource =
+        LazyResource.create(json, ContainedResource.getDefaultInstance(), parser);
+    assertThat(resource.getDescriptorForType()).isEqualTo(Observation.getDescriptor());
+    Observation expected = parser.merge(new String(json, UTF_8), Observation.newBuilder()).build();
+    assertThat(resource.getField("value")).isEqualTo(expected.getValue());
+    assertThat(resource.getField("subject")).isEqualTo(expected.getSubject());
+  }
+
+  @Test
+  public void primitiveExtensionsAndEscapes() {
+    byte[] json =
+        ("{ \"resourceType\" : \"Patient\", \"birthDate\": \"1970-01-02\","
+                + " \"_birthDate\": {\"id\": \"b\"}, \"name\": [{\"text\": \"a \\\"}] \\u00e9\"}]}")
+            .getBytes(UTF_8);
+    testFields(json, Patient.getDefaultInstance(), Patient.newBuilder());
+  }
+
+  @Test
+  public void invalidInput() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            LazyResource.create(
+                "{\"colour\": \"blue\"}".getBytes(UTF_8), Patient.getDefaultInstance(), parser));
+    assertThrows(
+        JsonSyntaxException.class,
+        () ->
+            LazyResource.create(
+                "{\"id\": \"p1\"".getBytes(UTF_8), Patient.getDefaultInstance(), parser));
+  }
+}
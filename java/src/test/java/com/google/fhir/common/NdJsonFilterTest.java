@@ -0,0 +1,87 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link NdJsonFilter}. */
+@RunWith(JUnit4.class)
+public final class NdJsonFilterTest {
+
+  private static final String LOINC = "http://loinc.org";
+
+  private static final String GLUCOSE =
+      "{\"resourceType\":\"Observation\",\"id\":\"o1\",\"status\":\"final\","
+          + "\"code\":{\"coding\":[{\"system\":\"http:\\/\\/loinc.org\",\"code\":\"15074-8\"}]},"
+          + "\"subject\":{\"reference\":\"Patient/p1/_history/3\"}}";
+  private static final String HEART_RATE =
+      "{\"resourceType\":\"Observation\",\"id\":\"o2\","
+          + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8867-4\"}]},"
+          + "\"subject\":{\"reference\":\"Patient/p2\"}}";
+  private static final String PATIENT =
+      "{\"resourceType\":\"Patient\",\"id\":\"p1\",\"text\":{\"div\":\"15074-8 Observation\"}}";
+
+  @Test
+  public void acceptingAll() {
+    NdJsonFilter filter = NdJsonFilter.acceptingAll();
+    assertThat(filter.acceptsAll()).isTrue();
+    assertThat(filter.matches(PATIENT)).isTrue();
+    assertThat(filter.getAcceptedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void matchesCode() {
+    NdJsonFilter filter =
+        NdJsonFilter.acceptingAll()
+            .withResourceTypes(ImmutableList.of("Observation"))
+            .withCode(LOINC, "15074-8");
+    assertThat(filter.matches(GLUCOSE)).isTrue();
+    assertThat(filter.matches(HEART_RATE)).isFalse();
+    // The patient contains the code and the type, but not in the fields we are looking for.
+    assertThat(filter.matches(PATIENT)).isFalse();
+
+    assertThat(filter.getAcceptedCount()).isEqualTo(1);
+    assertThat(filter.getSkippedByPrecheckCount()).isEqualTo(1);
+    assertThat(filter.getSkippedByScanCount()).isEqualTo(1);
+    assertThat(filter.getSkippedCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void matchesIdAndSubject() {
+    NdJsonFilter filter =
+        NdJsonFilter.acceptingAll()
+            .withIds(ImmutableList.of("o1", "o2"))
+            .withSubjects(ImmutableList.of("Patient/p1"));
+    assertThat(filter.matches(GLUCOSE)).isTrue();
+    assertThat(filter.matches(HEART_RATE)).isFalse();
+    assertThat(filter.matches(PATIENT)).isFalse();
+  }
+
+  @Test
+  public void matchesBytes() {
+    NdJsonFilter filter = NdJsonFilter.acceptingAll().withCode(LOINC, "8867-4");
+    byte[] lines = (GLUCOSE + "\n" + HEART_RATE).getBytes(UTF_8);
+    int newline = GLUCOSE.length();
+    assertThat(filter.matches(lines, 0, newline)).isFalse();
+    assertThat(filter.matches(lines, newline + 1, lines.length - newline - 1)).isTrue();
+    assertThat(filter.getSkippedByPrecheckCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,206 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link NdJsonHashJoin}. */
+@RunWith(JUnit4.class)
+public final class NdJsonHashJoinTest {
+
+  private static final ImmutableList<String> PATIENTS =
+      ImmutableList.of(
+          "{\"id\":\"p1\",\"gender\":\"female\",\"birthDate\":\"1970-01-01\"}",
+          "{\"id\":\"p2\",\"gender\":\"male\"}",
+          "",
+          "{\"gender\":\"unknown\"}");
+
+  private static final ImmutableList<String> OBSERVATIONS =
+      ImmutableList.of(
+          "{\"id\":\"o1\",\"subject\":{\"patientId\":\"p1\"}}",
+          "{\"id\":\"o2\",\"subject\":{\"patientId\":\"p3\"}}",
+          "{\"id\":\"o3\"}",
+          "{\"id\":\"o4\",\"subject\":{\"patientId\":\"p2\"}}");
+
+  private static List<String> join(NdJsonHashJoin join, List<String> build, List<String> probe)
+      throws Exception {
+    StringWriter output = new StringWriter();
+    join.join(build.iterator(), probe.iterator(), output);
+    return Arrays.asList(output.toString().split("\n"));
+  }
+
+  @Test
+  public void leftJoinInProbeOrder() throws Exception {
+    NdJsonHashJoin join =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withFields(ImmutableList.of("gender"))
+            .build();
+    StringWriter output = new StringWriter();
+    NdJsonHashJoin.Result result =
+        join.join(PATIENTS.iterator(), OBSERVATIONS.iterator(), output);
+
+    assertThat(output.toString().split("\n"))
+        .asList()
+        .containsExactly(
+            "{\"id\":\"o1\",\"subject\":{\"patientId\":\"p1\"},"
+                + "\"patient\":{\"gender\":\"female\"}}",
+            "{\"id\":\"o2\",\"subject\":{\"patientId\":\"p3\"}}",
+            "{\"id\":\"o3\"}",
+            "{\"id\":\"o4\",\"subject\":{\"patientId\":\"p2\"},"
+                + "\"patient\":{\"gender\":\"male\"}}")
+        .inOrder();
+    assertThat(result.getBuildRows()).isEqualTo(3);
+    assertThat(result.getProbeRows()).isEqualTo(4);
+    assertThat(result.getProbeRowsWithoutKey()).isEqualTo(1);
+    assertThat(result.getMatchedRows()).isEqualTo(2);
+    assertThat(result.getOutputRows()).isEqualTo(4);
+    assertThat(result.getSpilledPartitions()).isEqualTo(0);
+  }
+
+  @Test
+  public void joinWithLookup() throws Exception {
+    NdJsonHashJoin join =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withFields(ImmutableList.of("gender"))
+            .build();
+    List<String> lookups = new ArrayList<>();
+    StringWriter output = new StringWriter();
+    NdJsonHashJoin.Result result =
+        join.join(
+            key -> {
+              lookups.add(key);
+              return key.equals("p1") ? PATIENTS.get(0) : null;
+            },
+            OBSERVATIONS.iterator(),
+            output);
+
+    assertThat(output.toString().split("\n"))
+        .asList()
+        .containsExactly(
+            "{\"id\":\"o1\",\"subject\":{\"patientId\":\"p1\"},"
+                + "\"patient\":{\"gender\":\"female\"}}",
+            "{\"id\":\"o2\",\"subject\":{\"patientId\":\"p3\"}}",
+            "{\"id\":\"o3\"}",
+            "{\"id\":\"o4\",\"subject\":{\"patientId\":\"p2\"}}")
+        .inOrder();
+    assertThat(lookups).containsExactly("p1", "p3", "p2").inOrder();
+    assertThat(result.getBuildRows()).isEqualTo(1);
+    assertThat(result.getProbeRows()).isEqualTo(4);
+    assertThat(result.getProbeRowsWithoutKey()).isEqualTo(1);
+    assertThat(result.getMatchedRows()).isEqualTo(1);
+  }
+
+  @Test
+  public void innerJoinWithAllFields() throws Exception {
+    NdJsonHashJoin join =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withInnerJoin(true)
+            .build();
+    assertThat(join(join, PATIENTS, OBSERVATIONS))
+        .containsExactly(
+            "{\"id\":\"o1\",\"subject\":{\"patientId\":\"p1\"},\"patient\":"
+                + PATIENTS.get(0)
+                + "}",
+            "{\"id\":\"o4\",\"subject\":{\"patientId\":\"p2\"},\"patient\":"
+                + PATIENTS.get(1)
+                + "}")
+        .inOrder();
+  }
+
+  @Test
+  public void lastDuplicateWins() throws Exception {
+    NdJsonHashJoin join =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withFields(ImmutableList.of("gender"))
+            .build();
+    List<String> patients = new ArrayList<>(PATIENTS);
+    patients.add("{\"id\":\"p1\",\"gender\":\"other\"}");
+    assertThat(join(join, patients, OBSERVATIONS).get(0))
+        .isEqualTo(
+            "{\"id\":\"o1\",\"subject\":{\"patientId\":\"p1\"},"
+                + "\"patient\":{\"gender\":\"other\"}}");
+  }
+
+  @Test
+  public void unwrapValueObjects() throws Exception {
+    // Ids and references as printed by the protobuf JsonFormat.
+    NdJsonHashJoin join =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withFields(ImmutableList.of("gender"))
+            .build();
+    StringWriter output = new StringWriter();
+    NdJsonHashJoin.Result result =
+        join.join(
+            ImmutableList.of("{\"id\":{\"value\":\"p1\"},\"gender\":{\"value\":\"FEMALE\"}}")
+                .iterator(),
+            ImmutableList.of("{\"subject\":{\"patientId\":{\"value\":\"p1\"}}}").iterator(),
+            output);
+
+    assertThat(output.toString())
+        .isEqualTo(
+            "{\"subject\":{\"patientId\":{\"value\":\"p1\"}},"
+                + "\"patient\":{\"gender\":{\"value\":\"FEMALE\"}}}\n");
+    assertThat(result.getProbeRowsWithoutKey()).isEqualTo(0);
+    assertThat(result.getMatchedRows()).isEqualTo(1);
+  }
+
+  @Test
+  public void spillsToDisk() throws Exception {
+    List<String> patients = new ArrayList<>();
+    List<String> observations = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      patients.add("{\"id\":\"p" + i + "\",\"gender\":\"g" + i + "\"}");
+    }
+    for (int i = 0; i < 5000; i++) {
+      observations.add("{\"id\":\"o" + i + "\",\"subject\":{\"patientId\":\"p" + i % 1500 + "\"}}");
+    }
+    NdJsonHashJoin.Builder builder =
+        NdJsonHashJoin.newBuilder("id", "subject.patientId", "patient")
+            .withFields(ImmutableList.of("gender"));
+    List<String> inMemory = join(builder.build(), patients, observations);
+
+    Path tempDirectory = Files.createTempDirectory("hash-join-test");
+    NdJsonHashJoin spilling =
+        builder.withMaxBuildBytes(2000).withPartitions(4).withTempDirectory(tempDirectory).build();
+    StringWriter output = new StringWriter();
+    NdJsonHashJoin.Result result =
+        spilling.join(patients.iterator(), observations.iterator(), output);
+
+    assertThat(result.getSpilledPartitions()).isGreaterThan(4);
+    assertThat(result.getMatchedRows()).isEqualTo(3500);
+    assertThat(output.toString().split("\n")).asList().containsExactlyElementsIn(inMemory);
+    // The partition files have been removed.
+    assertThat(tempDirectory.toFile().list()).isEmpty();
+  }
+
+  @Test
+  public void targetFieldMustBeNew() throws Exception {
+    NdJsonHashJoin join = NdJsonHashJoin.newBuilder("id", "subject.patientId", "subject").build();
+    assertThrows(
+        IllegalArgumentException.class, () -> join(join, PATIENTS, OBSERVATIONS.subList(0, 1)));
+  }
+}
@@ -0,0 +1,126 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.fhir.r4.core.Patient;
+import com.google.fhir.r4.core.QuestionnaireResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ParquetAnalyticWriter}. */
+@RunWith(JUnit4.class)
+public final class ParquetAnalyticWriterTest {
+
+  private static Patient parsePatient(String id, String family, boolean active) {
+    return JsonFormat.getParser()
+        .merge(
+            "{\"resourceType\": \"Patient\", \"id\": \""
+                + id
+                + "\", \"active\": "
+                + active
+                + ", \"name\": [{\"family\": \""
+                + family
+                + "\", \"given\": [\"A\", \"B\"]}], \"birthDate\": \"1970-01-02\"}",
+            Patient.newBuilder())
+        .build();
+  }
+
+  private static List<Group> readAll(Path file) throws IOException {
+    List<Group> groups = new ArrayList<>();
+    try (ParquetReader<Group> reader =
+        ParquetReader.builder(
+                new GroupReadSupport(), new org.apache.hadoop.fs.Path(file.toUri()))
+            .build()) {
+      for (Group group = reader.read(); group != null; group = reader.read()) {
+        groups.add(group);
+      }
+    }
+    return groups;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    Path directory = Files.createTempDirectory("parquet-test");
+    // Roll over to a new file after two rows.
+    try (ParquetAnalyticWriter writer =
+        new ParquetAnalyticWriter(
+            directory,
+            TableRowConverter.getInstance().withDefaultTimeZone(ZoneOffset.UTC),
+            CompressionCodecName.GZIP,
+            ParquetAnalyticWriter.DEFAULT_ROW_GROUP_SIZE,
+            2)) {
+      writer.write(parsePatient("p1", "Smith", true));
+      writer.write(parsePatient("p2", "Jones", false));
+      writer.write(parsePatient("p3", "Brown", true));
+    }
+
+    List<Group> first = readAll(directory.resolve("Patient-00000.parquet"));
+    List<Group> second = readAll(directory.resolve("Patient-00001.parquet"));
+    assertThat(first).hasSize(2);
+    assertThat(second).hasSize(1);
+
+    Group patient = first.get(1);
+    assertThat(patient.getString("id", 0)).isEqualTo("p2");
+    assertThat(patient.getBoolean("active", 0)).isFalse();
+    assertThat(patient.getString("birthDate", 0)).isEqualTo("1970-01-02");
+    Group name = patient.getGroup("name", 0);
+    assertThat(name.getString("family", 0)).isEqualTo("Jones");
+    assertThat(name.getFieldRepetitionCount("given")).isEqualTo(2);
+    assertThat(name.getString("given", 1)).isEqualTo("B");
+    assertThat(second.get(0).getString("id", 0)).isEqualTo("p3");
+  }
+
+  @Test
+  public void schemaFollowsConverterRecursionDepth() throws Exception {
+    Path directory = Files.createTempDirectory("parquet-test");
+    QuestionnaireResponse response =
+        JsonFormat.getParser()
+            .merge(
+                "{\"resourceType\": \"QuestionnaireResponse\", \"id\": \"q1\","
+                    + " \"status\": \"completed\","
+                    + " \"item\": [{\"linkId\": \"1\", \"item\": [{\"linkId\": \"1.1\"}]}]}",
+                QuestionnaireResponse.newBuilder())
+            .build();
+    // Nested items are only kept with a recursion depth of at least one.
+    try (ParquetAnalyticWriter writer =
+        new ParquetAnalyticWriter(
+            directory,
+            TableRowConverter.getInstance().withMaxRecursionDepth(1),
+            CompressionCodecName.GZIP,
+            ParquetAnalyticWriter.DEFAULT_ROW_GROUP_SIZE,
+            ParquetAnalyticWriter.DEFAULT_MAX_ROWS_PER_FILE)) {
+      writer.write(response);
+    }
+
+    List<Group> rows = readAll(directory.resolve("QuestionnaireResponse-00000.parquet"));
+    assertThat(rows).hasSize(1);
+    Group item = rows.get(0).getGroup("item", 0);
+    assertThat(item.getString("linkId", 0)).isEqualTo("1");
+    assertThat(item.getGroup("item", 0).getString("linkId", 0)).isEqualTo("1.1");
+  }
+}
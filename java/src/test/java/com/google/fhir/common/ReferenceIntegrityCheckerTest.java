@@ -0,0 +1,124 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.core.Observation;
+import com.google.fhir.r4.core.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ReferenceIntegrityChecker}. */
+@RunWith(JUnit4.class)
+public final class ReferenceIntegrityCheckerTest {
+
+  private static final String BUNDLE =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+          + "{\"fullUrl\": \"urn:uuid:1234\","
+          + " \"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}},"
+          + "{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"o1\","
+          + " \"status\": \"final\", \"code\": {\"text\": \"test\"},"
+          + " \"subject\": {\"reference\": \"Patient/p1\"},"
+          + " \"performer\": ["
+          + "   {\"reference\": \"urn:uuid:1234\"},"
+          + "   {\"reference\": \"urn:uuid:5678\"},"
+          + "   {\"reference\": \"Practitioner/missing\"},"
+          + "   {\"reference\": \"#nope\"},"
+          + "   {\"reference\": \"http://example.com/fhir/Practitioner/1\"},"
+          + "   {\"display\": \"Dr. Nobody\"}]}}]}";
+
+  @Test
+  public void checkBundle() {
+    Bundle bundle = JsonFormat.getParser().merge(BUNDLE, Bundle.newBuilder()).build();
+    List<String> unresolved =
+        ReferenceIntegrityChecker.check(bundle).stream()
+            .map(ReferenceIntegrityChecker.UnresolvedReference::toString)
+            .collect(Collectors.toList());
+    assertThat(unresolved)
+        .containsExactly(
+            "Observation/o1 -> urn:uuid:5678",
+            "Observation/o1 -> Practitioner/missing",
+            "Observation/o1 -> #nope")
+        .inOrder();
+  }
+
+  @Test
+  public void checkRelativeUris() {
+    Bundle.Builder bundle = JsonFormat.getParser().merge(BUNDLE, Bundle.newBuilder());
+    Observation.Builder observation =
+        bundle.getEntryBuilder(1).getResourceBuilder().getObservationBuilder();
+    observation.clearPerformer();
+    for (String uri : ImmutableList.of("Patient/p1", "Practitioner/absent", "#gone", "Foo/1")) {
+      observation.addPerformer(
+          Reference.newBuilder().setUri(com.google.fhir.r4.core.String.newBuilder().setValue(uri)));
+    }
+    List<String> unresolved =
+        ReferenceIntegrityChecker.check(bundle.build()).stream()
+            .map(ReferenceIntegrityChecker.UnresolvedReference::toString)
+            .collect(Collectors.toList());
+    // Uris which were not split at parsing are split during the check.
+    assertThat(unresolved)
+        .containsExactly(
+            "Observation/o1 -> Practitioner/absent",
+            "Observation/o1 -> #gone",
+            "Observation/o1 -> Foo/1")
+        .inOrder();
+  }
+
+  @Test
+  public void checkNdJson() throws Exception {
+    Path directory = Files.createTempDirectory("reference-integrity-test");
+    Path patients = directory.resolve("Patient.ndjson");
+    Files.write(
+        patients,
+        ImmutableList.of(
+            "{\"resourceType\": \"Patient\", \"id\": \"p1\","
+                + " \"managingOrganization\": {\"reference\": \"#org1\"},"
+                + " \"contained\": [{\"resourceType\": \"Organization\", \"id\": \"org1\","
+                + " \"partOf\": {\"reference\": \"Organization/missing\"}}]}",
+            ""),
+        UTF_8);
+    Path observations = directory.resolve("Observation.ndjson");
+    Files.write(
+        observations,
+        ImmutableList.of(
+            "{\"resourceType\": \"Observation\", \"id\": \"o1\", \"status\": \"final\","
+                + " \"code\": {\"text\": \"test\"},"
+                + " \"subject\": {\"reference\": \"Patient/p1\"},"
+                + " \"performer\": [{\"reference\": \"Practitioner/gone\"}]}"),
+        UTF_8);
+
+    List<String> unresolved =
+        ReferenceIntegrityChecker.checkNdJson(
+                ImmutableList.of(patients, observations), JsonFormat.getParser())
+            .stream()
+            .map(ReferenceIntegrityChecker.UnresolvedReference::toString)
+            .collect(Collectors.toList());
+    // References held by contained resources are checked too.
+    assertThat(unresolved)
+        .containsExactly(
+            "Patient/p1 -> Organization/missing", "Observation/o1 -> Practitioner/gone")
+        .inOrder();
+  }
+}
@@ -0,0 +1,202 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Observation;
+import com.google.fhir.r4.core.Patient;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.StreamSupport;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ResourceArchive} and {@link ResourceArchiveWriter}. */
+@RunWith(JUnit4.class)
+public final class ResourceArchiveTest {
+
+  private static ContainedResource patient(String id, boolean active) {
+    Patient.Builder patient = Patient.newBuilder();
+    if (!id.isEmpty()) {
+      patient.setId(Id.newBuilder().setValue(id));
+    }
+    patient.getActiveBuilder().setValue(active);
+    return ContainedResource.newBuilder().setPatient(patient).build();
+  }
+
+  private static ContainedResource observation(String id) {
+    return ContainedResource.newBuilder()
+        .setObservation(Observation.newBuilder().setId(Id.newBuilder().setValue(id)))
+        .build();
+  }
+
+  private static ResourceArchive open(Path file) throws IOException {
+    return ResourceArchive.open(file, ContainedResource.getDefaultInstance());
+  }
+
+  private static ContainedResource parse(ByteString record) throws IOException {
+    return ContainedResource.parseFrom(record);
+  }
+
+  @Test
+  public void lookupById() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      for (int i = 0; i < 1000; i++) {
+        writer.append(patient("p" + i, i % 2 == 0));
+        writer.append(observation("o" + i));
+      }
+      writer.append(patient("", false));
+    }
+    // The temporary files have been removed.
+    assertThat(file.getParent().toFile().list()).asList().containsExactly("resources.arc");
+
+    try (ResourceArchive archive = open(file)) {
+      // Types are ordered by ContainedResource field number.
+      assertThat(archive.getResourceTypes()).containsExactly("Observation", "Patient").inOrder();
+      assertThat(archive.getRecordCount()).isEqualTo(2001);
+      assertThat(archive.getRecordCount("Patient")).isEqualTo(1001);
+      assertThat(archive.getRecordCount("Encounter")).isEqualTo(0);
+      for (int i = 0; i < 1000; i++) {
+        assertThat(parse(archive.get("Patient", "p" + i))).isEqualTo(patient("p" + i, i % 2 == 0));
+        assertThat(parse(archive.get("Observation", "o" + i))).isEqualTo(observation("o" + i));
+      }
+      assertThat(archive.get("Patient", "o1")).isNull();
+      assertThat(archive.get("Patient", "p1000")).isNull();
+      assertThat(archive.get("Encounter", "p1")).isNull();
+      assertThat(parse(archive.getRecord(0))).isEqualTo(observation("o0"));
+      assertThrows(IndexOutOfBoundsException.class, () -> archive.getRecord(2001));
+    }
+  }
+
+  @Test
+  public void lastDuplicateWins() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      writer.append(patient("p1", false));
+      writer.append(patient("p2", false));
+      writer.append(patient("p1", true));
+    }
+    try (ResourceArchive archive = open(file)) {
+      assertThat(archive.getRecordCount()).isEqualTo(3);
+      assertThat(parse(archive.get("Patient", "p1"))).isEqualTo(patient("p1", true));
+    }
+  }
+
+  @Test
+  public void appendSerialized() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    ResourceHeaderScanner scanner =
+        new ResourceHeaderScanner(ContainedResource.getDefaultInstance());
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      ByteString record = patient("p1", true).toByteString();
+      writer.append(record, scanner.scan(record));
+      writer.append(observation("o1"));
+    }
+    try (ResourceArchive archive = open(file)) {
+      assertThat(parse(archive.get("Patient", "p1"))).isEqualTo(patient("p1", true));
+      assertThat(parse(archive.get("Observation", "o1"))).isEqualTo(observation("o1"));
+    }
+  }
+
+  @Test
+  public void parallelStream() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      for (int i = 0; i < 5000; i++) {
+        writer.append(i % 5 == 0 ? observation("o" + i) : patient("p" + i, true));
+      }
+    }
+    try (ResourceArchive archive = open(file)) {
+      assertThat(archive.stream(true).map(ResourceArchiveTest::parseUnchecked).distinct().count())
+          .isEqualTo(5000);
+      assertThat(
+              StreamSupport.stream(archive.spliterator("Observation"), true)
+                  .map(ResourceArchiveTest::parseUnchecked)
+                  .allMatch(ContainedResource::hasObservation))
+          .isTrue();
+      assertThat(archive.spliterator("Observation").estimateSize()).isEqualTo(1000);
+    }
+  }
+
+  private static ContainedResource parseUnchecked(ByteString record) {
+    try {
+      return parse(record);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void recordsStraddleSegments() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    List<ContainedResource> resources = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      // Every tenth id is longer than the overlap, so that its record and id are copied.
+      StringBuilder id = new StringBuilder("p" + i);
+      for (int j = 0; i % 10 == 0 && j < 100; j++) {
+        id.append('x');
+      }
+      resources.add(patient(id.toString(), i % 2 == 0));
+    }
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      for (ContainedResource resource : resources) {
+        writer.append(resource);
+      }
+    }
+
+    // Small segments, so that records, entries and slot tables cross their boundaries.
+    try (ResourceArchive archive =
+        ResourceArchive.open(file, ContainedResource.getDefaultInstance(), 256, 64)) {
+      assertThat(archive.getRecordCount()).isEqualTo(resources.size());
+      for (int i = 0; i < resources.size(); i++) {
+        ContainedResource resource = resources.get(i);
+        assertThat(parse(archive.getRecord(i))).isEqualTo(resource);
+        assertThat(parse(archive.get("Patient", resource.getPatient().getId().getValue())))
+            .isEqualTo(resource);
+      }
+      assertThat(archive.get("Patient", "p1xxx")).isNull();
+    }
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ResourceArchive.open(file, ContainedResource.getDefaultInstance(), 256, 4));
+  }
+
+  @Test
+  public void emptyContainedResourceIsRejected() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    try (ResourceArchiveWriter writer = new ResourceArchiveWriter(file)) {
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> writer.append(ContainedResource.getDefaultInstance()));
+    }
+  }
+
+  @Test
+  public void notAnArchive() throws Exception {
+    Path file = Files.createTempDirectory("archive-test").resolve("resources.arc");
+    Files.write(file, new byte[100]);
+    assertThrows(IOException.class, () -> open(file));
+  }
+}
@@ -0,0 +1,153 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.fhir.r4.core.Boolean;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.fhir.r4.core.Encounter;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Patient;
+import com.google.fhir.r4.core.Reference;
+import com.google.fhir.r4.core.ReferenceId;
+import com.google.fhir.r4.core.Uri;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ResourceCache}. */
+@RunWith(JUnit4.class)
+public final class ResourceCacheTest {
+
+  private static ContainedResource patient(String id) {
+    return ContainedResource.newBuilder()
+        .setPatient(
+            Patient.newBuilder()
+                .setId(Id.newBuilder().setValue(id))
+                .setActive(Boolean.newBuilder().setValue(true)))
+        .build();
+  }
+
+  private static ContainedResource encounter(String id) {
+    return ContainedResource.newBuilder()
+        .setEncounter(Encounter.newBuilder().setId(Id.newBuilder().setValue(id)))
+        .build();
+  }
+
+  private static ResourceCache.Builder newCache() {
+    return ResourceCache.newBuilder(ContainedResource.getDefaultInstance());
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    ResourceCache cache = newCache().withCapacityBytes(1 << 20).build();
+    cache.put(patient("p1"));
+    cache.put(encounter("p1").toByteString());
+
+    assertThat(cache.get("Patient", "p1")).isEqualTo(patient("p1"));
+    assertThat(cache.get("Encounter", "p1")).isEqualTo(encounter("p1"));
+    assertThat(cache.get("Patient", "p2")).isNull();
+    assertThat(cache.getSerialized("Patient", "p1")).isEqualTo(patient("p1").toByteString());
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(3);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+
+    cache.invalidate("Patient", "p1");
+    assertThat(cache.get("Patient", "p1")).isNull();
+  }
+
+  @Test
+  public void loadOnMiss() throws Exception {
+    ResourceCache cache = newCache().build();
+    Map<String, Integer> loads = new HashMap<>();
+    ResourceCache.Loader loader =
+        (resourceType, id) -> {
+          loads.merge(id, 1, Integer::sum);
+          return id.startsWith("p") ? patient(id).toByteString() : null;
+        };
+    assertThat(cache.get("Patient", "p1", loader)).isEqualTo(patient("p1"));
+    assertThat(cache.get("Patient", "p1", loader)).isEqualTo(patient("p1"));
+    assertThat(cache.get("Patient", "x1", loader)).isNull();
+    assertThat(loads).containsExactly("p1", 1, "x1", 1);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void getReferenced() throws Exception {
+    ResourceCache cache = newCache().build();
+    cache.put(patient("p1"));
+    ResourceCache.Loader noLoader =
+        (resourceType, id) -> {
+          throw new AssertionError("Unexpected load of " + resourceType + "/" + id);
+        };
+    Reference reference =
+        Reference.newBuilder().setPatientId(ReferenceId.newBuilder().setValue("p1")).build();
+    assertThat(cache.getReferenced(reference, noLoader)).isEqualTo(patient("p1"));
+    assertThat(cache.getReferenced(Reference.getDefaultInstance(), noLoader)).isNull();
+
+    // Untyped ids are only resolved through the type of the reference.
+    Reference untyped =
+        Reference.newBuilder().setResourceId(ReferenceId.newBuilder().setValue("p1")).build();
+    assertThat(cache.getReferenced(untyped, noLoader)).isNull();
+    assertThat(
+            cache.getReferenced(
+                untyped.toBuilder().setType(Uri.newBuilder().setValue("Patient")).build(),
+                noLoader))
+        .isEqualTo(patient("p1"));
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvicted() throws Exception {
+    int size = patient("p0").getSerializedSize();
+    // A single stripe with room for three resources.
+    ResourceCache cache =
+        newCache().withStripes(1).withBlockSize(size).withCapacityBytes(3L * size).build();
+    cache.put(patient("p0"));
+    cache.put(patient("p1"));
+    cache.put(patient("p2"));
+    assertThat(cache.get("Patient", "p0")).isNotNull();
+    cache.put(patient("p3"));
+
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+    assertThat(cache.getEntryCount()).isEqualTo(3);
+    assertThat(cache.get("Patient", "p1")).isNull();
+    assertThat(cache.get("Patient", "p0")).isEqualTo(patient("p0"));
+    assertThat(cache.get("Patient", "p3")).isEqualTo(patient("p3"));
+  }
+
+  @Test
+  public void resourcesLargerThanAStripeAreNotCached() throws Exception {
+    ResourceCache cache = newCache().withStripes(1).withBlockSize(4).withCapacityBytes(8).build();
+    cache.put(patient("p1"));
+    assertThat(cache.getEntryCount()).isEqualTo(0);
+    assertThat(cache.get("Patient", "p1")).isNull();
+  }
+
+  @Test
+  public void invalidCapacity() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> newCache().withStripes(4).withBlockSize(512).withCapacityBytes(1024).build());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> newCache().withStripes(1).withCapacityBytes(1L << 32).build());
+    assertThrows(IllegalArgumentException.class, () -> newCache().withCapacityBytes(0));
+  }
+}
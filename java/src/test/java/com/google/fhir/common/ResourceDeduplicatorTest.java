@@ -0,0 +1,136 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.common.ResourceDeduplicator.Outcome;
+import com.google.fhir.r4.core.Boolean;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Patient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ResourceDeduplicator}. */
+@RunWith(JUnit4.class)
+public final class ResourceDeduplicatorTest {
+
+  private static Patient patient(String id, boolean active) {
+    return Patient.newBuilder()
+        .setId(Id.newBuilder().setValue(id))
+        .setActive(Boolean.newBuilder().setValue(active))
+        .build();
+  }
+
+  @Test
+  public void detectsDuplicatesAndConflicts() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("dedup-test");
+    try (ResourceDeduplicator deduplicator = new ResourceDeduplicator(spillDirectory, 100, 1)) {
+      for (int i = 0; i < 50; i++) {
+        assertThat(deduplicator.add(patient("p" + i, true))).isEqualTo(Outcome.NEW);
+      }
+      for (int i = 0; i < 50; i++) {
+        assertThat(deduplicator.add(patient("p" + i, true))).isEqualTo(Outcome.DUPLICATE);
+      }
+      assertThat(deduplicator.add(patient("p7", false))).isEqualTo(Outcome.CONFLICTING_VERSION);
+      assertThat(deduplicator.add(patient("p7", false))).isEqualTo(Outcome.DUPLICATE);
+      assertThat(deduplicator.add(Patient.getDefaultInstance())).isEqualTo(Outcome.NEW);
+
+      assertThat(deduplicator.getDuplicateCounts()).isEqualTo(ImmutableMap.of("Patient", 51L));
+      assertThat(deduplicator.getConflictingVersionCounts())
+          .isEqualTo(ImmutableMap.of("Patient", 1L));
+    }
+    assertThat(Files.exists(spillDirectory)).isFalse();
+  }
+
+  @Test
+  public void reloadsSpilledPartitions() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("dedup-test");
+    // Keep a single partition resident, and write every entry to disk immediately, so that
+    // confirmations have to read the partitions back from their spill files.
+    try (ResourceDeduplicator deduplicator =
+        new ResourceDeduplicator(spillDirectory, 2000, 1, 1)) {
+      for (int i = 0; i < 2000; i++) {
+        assertThat(deduplicator.add(patient("p" + i, true))).isEqualTo(Outcome.NEW);
+      }
+      try (Stream<Path> files = Files.list(spillDirectory)) {
+        assertThat(files.count()).isGreaterThan(1L);
+      }
+      for (int i = 0; i < 2000; i++) {
+        assertThat(deduplicator.add(patient("p" + i, i % 10 != 0)))
+            .isEqualTo(i % 10 != 0 ? Outcome.DUPLICATE : Outcome.CONFLICTING_VERSION);
+      }
+      // Conflicting versions are recorded too, in partitions which have since been evicted.
+      for (int i = 0; i < 2000; i += 10) {
+        assertThat(deduplicator.add(patient("p" + i, false))).isEqualTo(Outcome.DUPLICATE);
+      }
+
+      assertThat(deduplicator.getDuplicateCounts()).isEqualTo(ImmutableMap.of("Patient", 2000L));
+      assertThat(deduplicator.getConflictingVersionCounts())
+          .isEqualTo(ImmutableMap.of("Patient", 200L));
+    }
+    assertThat(Files.exists(spillDirectory)).isFalse();
+  }
+
+  @Test
+  public void concurrentAdds() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("dedup-test");
+    AtomicLong newCount = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try (ResourceDeduplicator deduplicator =
+        new ResourceDeduplicator(spillDirectory, 1000, 4, 16)) {
+      // Every thread adds the same resources, each of which is only new to one of them.
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 1000; i++) {
+                    if (deduplicator.add(patient("p" + i, true)) == Outcome.NEW) {
+                      newCount.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      assertThat(newCount.get()).isEqualTo(1000L);
+      assertThat(deduplicator.getDuplicateCounts()).isEqualTo(ImmutableMap.of("Patient", 7000L));
+      assertThat(deduplicator.getConflictingVersionCounts()).isEmpty();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void residentPartitionsMustBePositive() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("dedup-test");
+    assertThrows(
+        IllegalArgumentException.class, () -> new ResourceDeduplicator(spillDirectory, 100, 0));
+  }
+}
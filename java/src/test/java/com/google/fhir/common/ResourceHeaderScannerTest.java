@@ -0,0 +1,114 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.fhir.r4.core.Boolean;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.fhir.r4.core.Id;
+import com.google.fhir.r4.core.Instant;
+import com.google.fhir.r4.core.Meta;
+import com.google.fhir.r4.core.Observation;
+import com.google.fhir.r4.core.Patient;
+import com.google.fhir.r4.core.Uri;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ResourceHeaderScanner}. */
+@RunWith(JUnit4.class)
+public final class ResourceHeaderScannerTest {
+
+  private static final ContainedResource PATIENT =
+      ContainedResource.newBuilder()
+          .setPatient(
+              Patient.newBuilder()
+                  .setId(Id.newBuilder().setValue("p1"))
+                  .setMeta(
+                      Meta.newBuilder()
+                          .setVersionId(Id.newBuilder().setValue("3"))
+                          .setLastUpdated(
+                              Instant.newBuilder()
+                                  .setValueUs(1546300800000000L)
+                                  .setTimezone("Z")
+                                  .setPrecision(Instant.Precision.SECOND)))
+                  .setActive(Boolean.newBuilder().setValue(true))
+                  .setImplicitRules(Uri.newBuilder().setValue("http://example.com/rules")))
+          .build();
+
+  private static final ContainedResource OBSERVATION =
+      ContainedResource.newBuilder()
+          .setObservation(
+              Observation.newBuilder()
+                  .setMeta(Meta.newBuilder().setVersionId(Id.newBuilder().setValue("1"))))
+          .build();
+
+  private final ResourceHeaderScanner scanner =
+      new ResourceHeaderScanner(ContainedResource.getDefaultInstance());
+
+  @Test
+  public void scanRecord() throws Exception {
+    ResourceHeaderScanner.Header header = scanner.scan(PATIENT.toByteString());
+    assertThat(header.getResourceType()).isEqualTo("Patient");
+    assertThat(header.getFieldNumber()).isEqualTo(ContainedResource.PATIENT_FIELD_NUMBER);
+    assertThat(header.getId()).isEqualTo("p1");
+    assertThat(header.hasLastUpdated()).isTrue();
+    assertThat(header.getLastUpdatedMicros()).isEqualTo(1546300800000000L);
+    assertThat(header.getLastUpdatedTimezone()).isEqualTo("Z");
+  }
+
+  @Test
+  public void missingFields() throws Exception {
+    ResourceHeaderScanner.Header header = scanner.scan(OBSERVATION.toByteString());
+    assertThat(header.getResourceType()).isEqualTo("Observation");
+    assertThat(header.getId()).isEmpty();
+    assertThat(header.hasLastUpdated()).isFalse();
+    assertThat(header.getLastUpdatedMicros()).isEqualTo(0);
+  }
+
+  @Test
+  public void scanDelimited() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (int i = 0; i < 100; i++) {
+      (i % 2 == 0 ? PATIENT : OBSERVATION).writeDelimitedTo(output);
+    }
+    List<String> types = new ArrayList<>();
+    long count =
+        scanner.scanDelimited(
+            new ByteArrayInputStream(output.toByteArray()),
+            header -> types.add(header.getResourceType()));
+    assertThat(count).isEqualTo(100);
+    assertThat(types).hasSize(100);
+    assertThat(types.get(0)).isEqualTo("Patient");
+    assertThat(types.get(99)).isEqualTo("Observation");
+  }
+
+  @Test
+  public void invalidRecords() throws Exception {
+    assertThrows(
+        InvalidProtocolBufferException.class,
+        () -> scanner.scan(ContainedResource.getDefaultInstance().toByteString()));
+    ByteString truncated = PATIENT.toByteString().substring(0, PATIENT.getSerializedSize() - 4);
+    assertThrows(InvalidProtocolBufferException.class, () -> scanner.scan(truncated));
+  }
+}
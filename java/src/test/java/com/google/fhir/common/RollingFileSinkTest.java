@@ -0,0 +1,142 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RollingFileSink}. */
+@RunWith(JUnit4.class)
+public final class RollingFileSinkTest {
+
+  private static String readGzip(Path file) throws IOException {
+    try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+      return new String(ByteStreams.toByteArray(input), UTF_8);
+    }
+  }
+
+  @Test
+  public void writeUncompressed() throws Exception {
+    Path directory = Files.createTempDirectory("sink-test");
+    try (RollingFileSink sink = RollingFileSink.newBuilder(directory, ".ndjson").build()) {
+      sink.append("Patient", "{\"id\":\"p1\"}\n");
+      sink.append("Observation", "{\"id\":\"o1\"}\n");
+      sink.append("Patient", "{\"id\":\"p2\"}\n");
+    }
+    assertThat(new String(Files.readAllBytes(directory.resolve("Patient.ndjson")), UTF_8))
+        .isEqualTo("{\"id\":\"p1\"}\n{\"id\":\"p2\"}\n");
+    assertThat(new String(Files.readAllBytes(directory.resolve("Observation.ndjson")), UTF_8))
+        .isEqualTo("{\"id\":\"o1\"}\n");
+  }
+
+  @Test
+  public void rollCompressedFilesWithFewHandles() throws Exception {
+    Path directory = Files.createTempDirectory("sink-test");
+    // A single open file, with files rolled over every few records.
+    try (RollingFileSink sink =
+        RollingFileSink.newBuilder(directory, ".ndjson")
+            .withCompression(RollingFileSink.Compression.GZIP)
+            .withMaxRecordsPerFile(3)
+            .withMaxOpenFiles(1)
+            .withBlockSize(8)
+            .withThreads(4)
+            .build()) {
+      for (int i = 0; i < 7; i++) {
+        sink.append("Patient", "p" + i + "\n");
+        sink.append("Observation", "o" + i + "\n");
+      }
+    }
+    assertThat(readGzip(directory.resolve("Patient-00000.ndjson.gz"))).isEqualTo("p0\np1\np2\n");
+    assertThat(readGzip(directory.resolve("Patient-00001.ndjson.gz"))).isEqualTo("p3\np4\np5\n");
+    assertThat(readGzip(directory.resolve("Patient-00002.ndjson.gz"))).isEqualTo("p6\n");
+    assertThat(readGzip(directory.resolve("Observation-00002.ndjson.gz"))).isEqualTo("o6\n");
+    assertThat(Files.exists(directory.resolve("Patient-00003.ndjson.gz"))).isFalse();
+  }
+
+  /** Counts the gzip members of a BGZF file, each of which starts with the same four bytes. */
+  private static int countGzipMembers(Path file) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    int members = 0;
+    for (int i = 0; i + 3 < bytes.length; i++) {
+      if (bytes[i] == 0x1f
+          && bytes[i + 1] == (byte) 0x8b
+          && bytes[i + 2] == 8
+          && bytes[i + 3] == 4) {
+        members++;
+      }
+    }
+    return members;
+  }
+
+  @Test
+  public void reopenEvictedFilesForAppending() throws Exception {
+    Path directory = Files.createTempDirectory("sink-test");
+    String[] types = {"Patient", "Observation", "Encounter"};
+    StringBuilder[] expected = new StringBuilder[types.length];
+    // Without rolling, each file stays current, so interleaved streams keep evicting each other's
+    // open file, which is then reopened to append further gzip members.
+    try (RollingFileSink sink =
+        RollingFileSink.newBuilder(directory, ".ndjson")
+            .withCompression(RollingFileSink.Compression.GZIP)
+            .withMaxOpenFiles(1)
+            .withBlockSize(16)
+            .withThreads(4)
+            .build()) {
+      for (int t = 0; t < types.length; t++) {
+        expected[t] = new StringBuilder();
+      }
+      for (int i = 0; i < 100; i++) {
+        for (int t = 0; t < types.length; t++) {
+          String record = "{\"id\":\"" + types[t] + i + "\"}\n";
+          sink.append(types[t], record);
+          expected[t].append(record);
+        }
+      }
+    }
+    for (int t = 0; t < types.length; t++) {
+      Path file = directory.resolve(types[t] + ".ndjson.gz");
+      assertThat(countGzipMembers(file)).isGreaterThan(10);
+      assertThat(readGzip(file)).isEqualTo(expected[t].toString());
+    }
+  }
+
+  @Test
+  public void rollBySize() throws Exception {
+    Path directory = Files.createTempDirectory("sink-test");
+    try (RollingFileSink sink =
+        RollingFileSink.newBuilder(directory, ".txt").withMaxBytesPerFile(5).build()) {
+      sink.append("a", "12\n");
+      sink.append("a", "34\n");
+      sink.append("a", "567890\n");
+    }
+    assertThat(new String(Files.readAllBytes(directory.resolve("a-00000.txt")), UTF_8))
+        .isEqualTo("12\n");
+    assertThat(new String(Files.readAllBytes(directory.resolve("a-00001.txt")), UTF_8))
+        .isEqualTo("34\n");
+    // Records larger than the limit get a file of their own.
+    assertThat(new String(Files.readAllBytes(directory.resolve("a-00002.txt")), UTF_8))
+        .isEqualTo("567890\n");
+  }
+}
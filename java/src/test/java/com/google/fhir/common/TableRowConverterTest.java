@@ -0,0 +1,107 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.common.io.Files;
+import com.google.devtools.build.runfiles.Runfiles;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.protobuf.Message;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TableRowConverter}, against the analytic JSON goldens. */
+@RunWith(JUnit4.class)
+public final class TableRowConverterTest {
+
+  private static final ZoneId TIME_ZONE = ZoneId.of("Australia/Sydney");
+
+  private Runfiles runfiles;
+  private JsonFormat.Parser parser;
+  private TableRowConverter converter;
+
+  @Before
+  public void setUp() throws IOException {
+    runfiles = Runfiles.create();
+    parser = JsonFormat.Parser.withDefaultTimeZone(TIME_ZONE);
+    converter = TableRowConverter.getInstance().withDefaultTimeZone(TIME_ZONE);
+  }
+
+  private String load(String filename) throws IOException {
+    File file = new File(runfiles.rlocation("com_google_fhir/" + filename));
+    return Files.asCharSource(file, StandardCharsets.UTF_8).read();
+  }
+
+  private void testConvert(String input, String golden, Message.Builder builder)
+      throws IOException {
+    parser.merge(load(input), builder);
+    TableRow row = converter.convert(builder);
+    row.setFactory(new GsonFactory());
+    JsonElement expected = new JsonParser().parse(load(golden));
+    assertThat(new JsonParser().parse(row.toString())).isEqualTo(expected);
+  }
+
+  @Test
+  public void convertStu3() throws Exception {
+    String spec = "spec/hl7.fhir.core/3.0.1/package/";
+    testConvert(
+        spec + "Composition-example.json",
+        "testdata/stu3/bigquery/Composition-example.json",
+        com.google.fhir.stu3.proto.Composition.newBuilder());
+    testConvert(
+        spec + "Encounter-home.json",
+        "testdata/stu3/bigquery/Encounter-home.json",
+        com.google.fhir.stu3.proto.Encounter.newBuilder());
+    testConvert(
+        spec + "Observation-example-genetics-1.json",
+        "testdata/stu3/bigquery/Observation-example-genetics-1.json",
+        com.google.fhir.stu3.proto.Observation.newBuilder());
+    testConvert(
+        spec + "patient-example.json",
+        "testdata/stu3/bigquery/patient-example.json",
+        com.google.fhir.stu3.proto.Patient.newBuilder());
+  }
+
+  @Test
+  public void convertR4() throws Exception {
+    String spec = "spec/hl7.fhir.r4.examples/4.0.1/package/";
+    testConvert(
+        spec + "Composition-example.json",
+        "testdata/r4/bigquery/Composition-example.json",
+        com.google.fhir.r4.core.Composition.newBuilder());
+    testConvert(
+        spec + "Encounter-home.json",
+        "testdata/r4/bigquery/Encounter-home.json",
+        com.google.fhir.r4.core.Encounter.newBuilder());
+    testConvert(
+        spec + "Observation-example-genetics-1.json",
+        "testdata/r4/bigquery/Observation-example-genetics-1.json",
+        com.google.fhir.r4.core.Observation.newBuilder());
+    testConvert(
+        spec + "Patient-example.json",
+        "testdata/r4/bigquery/Patient-example.json",
+        com.google.fhir.r4.core.Patient.newBuilder());
+  }
+}
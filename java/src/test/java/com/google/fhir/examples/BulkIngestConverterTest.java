@@ -0,0 +1,250 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.examples;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.fhir.common.BlockGzipOutputStream;
+import com.google.fhir.common.JsonFormat.Parser;
+import com.google.fhir.r4.core.ContainedResource;
+import com.google.protobuf.CodedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BulkIngestConverter}. */
+@RunWith(JUnit4.class)
+public final class BulkIngestConverterTest {
+
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int LINES = 5000;
+
+  private Path inputDirectory;
+  private Path outputDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    inputDirectory = Files.createTempDirectory("bulk-ingest-input");
+    outputDirectory = Files.createTempDirectory("bulk-ingest-output");
+  }
+
+  private BulkIngestConverter newConverter(boolean restart) throws IOException {
+    return new BulkIngestConverter(
+        outputDirectory,
+        CHUNK_SIZE,
+        CHUNK_SIZE / 4,
+        Parser.withDefaultTimeZone(ZoneId.of("UTC")),
+        restart);
+  }
+
+  /** Returns ndjson Patients with ids made of the prefix and their line number. */
+  private static byte[] patients(String prefix) {
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      ndjson.append("{\"resourceType\":\"Patient\",\"id\":\"").append(prefix + i).append("\"}\n");
+    }
+    return ndjson.toString().getBytes(UTF_8);
+  }
+
+  private static List<String> expectedIds(String prefix) {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < LINES; i++) {
+      ids.add(prefix + i);
+    }
+    return ids;
+  }
+
+  private Path write(String name, byte[] data) throws IOException {
+    Path file = inputDirectory.resolve(name);
+    Files.write(file, data);
+    return file;
+  }
+
+  private Path writeBlockGzip(String name, byte[] data) throws IOException {
+    Path file = inputDirectory.resolve(name);
+    try (OutputStream output = new BlockGzipOutputStream(Files.newOutputStream(file))) {
+      output.write(data);
+    }
+    return file;
+  }
+
+  /** Writes a gzip file of two members, as produced by concatenating gzip files. */
+  private Path writeGzip(String name, byte[] data) throws IOException {
+    Path file = inputDirectory.resolve(name);
+    try (OutputStream output = Files.newOutputStream(file)) {
+      int half = data.length / 2;
+      for (byte[] member :
+          Arrays.asList(
+              Arrays.copyOfRange(data, 0, half), Arrays.copyOfRange(data, half, data.length))) {
+        GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(member);
+        gzip.finish();
+      }
+    }
+    return file;
+  }
+
+  /** Returns the ids of the Patients in the shards of the ranges, in order. */
+  private List<String> readIds(List<BulkIngestConverter.Range> ranges) throws IOException {
+    List<String> ids = new ArrayList<>();
+    for (BulkIngestConverter.Range range : ranges) {
+      try (InputStream input = Files.newInputStream(outputDirectory.resolve(range.getShard()))) {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        while (!codedInput.isAtEnd()) {
+          codedInput.resetSizeCounter();
+          ids.add(
+              ContainedResource.parseFrom(codedInput.readBytes()).getPatient().getId().getValue());
+        }
+      }
+    }
+    return ids;
+  }
+
+  private static List<BulkIngestConverter.Range> getRanges(
+      List<BulkIngestConverter.Range> ranges, Path file) {
+    List<BulkIngestConverter.Range> matching = new ArrayList<>();
+    for (BulkIngestConverter.Range range : ranges) {
+      if (range.getInput().equals(file.getFileName().toString())) {
+        matching.add(range);
+      }
+    }
+    return matching;
+  }
+
+  @Test
+  public void convertPlainBlockGzipAndGzip() throws Exception {
+    Path plain = write("Patient-1.ndjson", patients("a"));
+    Path blockGzip = writeBlockGzip("Patient-2.ndjson.gz", patients("b"));
+    Path gzip = writeGzip("Patient-3.ndjson.gz", patients("c"));
+
+    try (BulkIngestConverter converter = newConverter(false)) {
+      List<BulkIngestConverter.Range> ranges =
+          converter.split(Arrays.asList(plain, blockGzip, gzip));
+      // Plain and BGZF files are split into chunks, other gzip files are never split.
+      assertThat(getRanges(ranges, plain).size()).isGreaterThan(1);
+      assertThat(getRanges(ranges, blockGzip).size()).isGreaterThan(1);
+      assertThat(getRanges(ranges, gzip)).hasSize(1);
+      for (BulkIngestConverter.Range range : ranges) {
+        converter.convert(range);
+      }
+
+      assertThat(converter.getCounts()).isEqualTo(ImmutableMap.of("Patient", 3L * LINES));
+      assertThat(converter.getErrors()).isEmpty();
+      assertThat(converter.getBytesRead()).isEqualTo(3L * patients("a").length);
+      assertThat(readIds(getRanges(ranges, plain)))
+          .containsExactlyElementsIn(expectedIds("a"))
+          .inOrder();
+      assertThat(readIds(getRanges(ranges, blockGzip)))
+          .containsExactlyElementsIn(expectedIds("b"))
+          .inOrder();
+      assertThat(readIds(getRanges(ranges, gzip)))
+          .containsExactlyElementsIn(expectedIds("c"))
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void resumeAfterPartialRun() throws Exception {
+    Path plain = write("Patient-1.ndjson", patients("a"));
+    Path blockGzip = writeBlockGzip("Patient-2.ndjson.gz", patients("b"));
+    Path gzip = writeGzip("Patient-3.ndjson.gz", patients("c"));
+    List<Path> inputs = Arrays.asList(plain, blockGzip, gzip);
+
+    List<BulkIngestConverter.Range> ranges;
+    try (BulkIngestConverter converter = newConverter(false)) {
+      ranges = converter.split(inputs);
+      // Convert every other range, as if the run had been interrupted.
+      for (int i = 0; i < ranges.size(); i += 2) {
+        converter.convert(ranges.get(i));
+      }
+    }
+    // Output written after the last checkpoint of a range is dropped when it is converted again.
+    for (int i = 1; i < ranges.size(); i += 2) {
+      Files.write(
+          outputDirectory.resolve(ranges.get(i).getShard()),
+          "partial".getBytes(UTF_8),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    }
+
+    try (BulkIngestConverter converter = newConverter(false)) {
+      List<BulkIngestConverter.Range> resumed = converter.split(inputs);
+      assertThat(resumed).hasSize(ranges.size());
+      converter.checkManifest(resumed);
+      for (BulkIngestConverter.Range range : resumed) {
+        converter.convert(range);
+      }
+      assertThat(converter.getRangesSkipped()).isEqualTo((ranges.size() + 1) / 2);
+      List<String> expected = new ArrayList<>(expectedIds("a"));
+      expected.addAll(expectedIds("b"));
+      expected.addAll(expectedIds("c"));
+      assertThat(readIds(resumed)).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void convertEmptyFiles() throws Exception {
+    Path plain = write("Patient-1.ndjson", new byte[0]);
+    Path gzip = write("Patient-2.ndjson.gz", new byte[0]);
+
+    try (BulkIngestConverter converter = newConverter(false)) {
+      List<BulkIngestConverter.Range> ranges = converter.split(Arrays.asList(plain, gzip));
+      for (BulkIngestConverter.Range range : ranges) {
+        converter.convert(range);
+      }
+      assertThat(converter.getCounts()).isEmpty();
+      assertThat(converter.getErrors()).isEmpty();
+      assertThat(readIds(ranges)).isEmpty();
+    }
+  }
+
+  @Test
+  public void countErrorsByFileResourceType() throws Exception {
+    Path observations =
+        write(
+            "Observation.ndjson",
+            ("{\"resourceType\":\"Patient\",\"id\":\"p1\"}\n"
+                    + "not json\n"
+                    + "\n"
+                    + "{}\n"
+                    + "{\"resourceType\":\"Patient\",\"id\":\"p2\"}\r\n")
+                .getBytes(UTF_8));
+
+    try (BulkIngestConverter converter = newConverter(false)) {
+      List<BulkIngestConverter.Range> ranges = converter.split(Arrays.asList(observations));
+      for (BulkIngestConverter.Range range : ranges) {
+        converter.convert(range);
+      }
+      // Resources are counted by their own type, errors by the type named by the file.
+      assertThat(converter.getCounts()).isEqualTo(ImmutableMap.of("Patient", 2L));
+      assertThat(converter.getErrors()).isEqualTo(ImmutableMap.of("Observation", 2L));
+      assertThat(readIds(ranges)).containsExactly("p1", "p2").inOrder();
+    }
+  }
+}
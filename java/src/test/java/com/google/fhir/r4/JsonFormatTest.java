@@ -14,7 +14,10 @@
 
 package com.google.fhir.r4;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import com.google.common.io.Files;
+import com.google.fhir.common.JsonFormat;
 import com.google.fhir.r4.core.Account;
 import com.google.fhir.r4.core.ActivityDefinition;
 import com.google.fhir.r4.core.AdverseEvent;
@@ -42,6 +45,7 @@ import com.google.fhir.r4.core.CompartmentDefinition;
 import com.google.fhir.r4.core.Composition;
 import com.google.fhir.r4.core.Condition;
 import com.google.fhir.r4.core.Consent;
+import com.google.fhir.r4.core.ContainedResource;
 import com.google.fhir.r4.core.Contract;
 import com.google.fhir.r4.core.Coverage;
 import com.google.fhir.r4.core.CoverageEligibilityRequest;
@@ -151,10 +155,14 @@ import com.google.fhir.r4.core.TestScript;
 import com.google.fhir.r4.core.VerificationResult;
 import com.google.fhir.r4.core.VisionPrescription;
 import com.google.fhir.testing.JsonFormatTestBase;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -208,6 +216,69 @@ public class JsonFormatTest extends JsonFormatTestBase {
     testConvertForAnalytics("Patient-example", Patient.newBuilder());
   }
 
+  /** Test parsing with a field mask. */
+  @Test
+  public void parseWithFieldMask() throws Exception {
+    String json =
+        loadJson("spec/hl7.fhir.r4.examples/4.0.1/package/Observation-example-genetics-1.json");
+    Observation full = jsonParser.merge(json, Observation.newBuilder()).build();
+    JsonFormat.Parser projectingParser =
+        jsonParser.withFieldMask(
+            Observation.getDescriptor(),
+            FieldMask.newBuilder()
+                .addPaths("code")
+                .addPaths("subject")
+                .addPaths("value.codeable_concept.coding")
+                .build());
+
+    Observation projected = projectingParser.merge(json, Observation.newBuilder()).build();
+    Observation.Builder expected =
+        Observation.newBuilder().setCode(full.getCode()).setSubject(full.getSubject());
+    expected
+        .getValueBuilder()
+        .getCodeableConceptBuilder()
+        .addAllCoding(full.getValue().getCodeableConcept().getCodingList());
+    assertThat(projected).isEqualTo(expected.build());
+    assertThat(projectingParser.mergeToWireFormat(json, Observation.getDefaultInstance()))
+        .isEqualTo(projected.toByteString());
+
+    // Unselected fields are skipped without being parsed, wherever the resources appear.
+    String bundle =
+        "{\"resourceType\": \"Bundle\", \"entry\": ["
+            + "{\"resource\": {\"resourceType\": \"Observation\", \"id\": \"o1\","
+            + " \"status\": \"final\", \"text\": {\"unknown\": [1, 2]}}},"
+            + "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}}]}";
+    Bundle parsed =
+        jsonParser
+            .withFieldMask(
+                Observation.getDescriptor(), FieldMask.newBuilder().addPaths("status").build())
+            .merge(bundle, Bundle.newBuilder())
+            .build();
+    Observation observation = parsed.getEntry(0).getResource().getObservation();
+    assertThat(observation.hasId()).isFalse();
+    assertThat(observation.hasStatus()).isTrue();
+    assertThat(observation.hasText()).isFalse();
+    assertThat(parsed.getEntry(1).getResource().getPatient().getId().getValue()).isEqualTo("p1");
+  }
+
+  /** Test parsing the entries of a bundle one at a time. */
+  @Test
+  public void parseBundleEntries() throws Exception {
+    String json = loadJson("spec/hl7.fhir.r4.examples/4.0.1/package/Bundle-bundle-example.json");
+    Bundle bundle = jsonParser.merge(json, Bundle.newBuilder()).build();
+    List<ContainedResource> expected = new ArrayList<>();
+    for (Bundle.Entry entry : bundle.getEntryList()) {
+      if (entry.hasResource()) {
+        expected.add(entry.getResource());
+      }
+    }
+
+    List<Message> entries = new ArrayList<>();
+    jsonParser.mergeBundleEntries(
+        new StringReader(json), ContainedResource.getDefaultInstance(), entries::add);
+    assertThat(entries).containsExactlyElementsIn(expected).inOrder();
+  }
+
   @Test
   public void testAccount() throws IOException {
     String[] files = {"Account-ewg", "Account-example"};
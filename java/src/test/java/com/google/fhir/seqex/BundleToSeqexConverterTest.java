@@ -0,0 +1,279 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.fhir.common.JsonFormat;
+import com.google.fhir.proto.VersionConfigOuterClass.ResourceConfig;
+import com.google.fhir.proto.VersionConfigOuterClass.ResourceConfig.TimestampOverride;
+import com.google.fhir.proto.VersionConfigOuterClass.VersionConfig;
+import com.google.fhir.r4.core.Bundle;
+import com.google.fhir.r4.core.Code;
+import com.google.fhir.r4.core.Coding;
+import com.google.fhir.r4.core.DateTime;
+import com.google.fhir.r4.core.Reference;
+import com.google.fhir.r4.core.ReferenceId;
+import com.google.fhir.r4.google.EventLabel;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.tensorflow.example.Feature;
+import org.tensorflow.example.FeatureList;
+import org.tensorflow.example.SequenceExample;
+
+/** Unit tests for {@link BundleToSeqexConverter}. */
+@RunWith(JUnit4.class)
+public final class BundleToSeqexConverterTest {
+
+  private static final long ENCOUNTER_START = 1518393600L; // 2018-02-12T00:00:00Z
+  private static final long FIRST_OBSERVATION = 1518429600L; // 2018-02-12T10:00:00Z
+  private static final long SECOND_OBSERVATION = 1518436800L; // 2018-02-12T12:00:00Z
+
+  private static final VersionConfig VERSION_CONFIG =
+      VersionConfig.newBuilder()
+          .putResourceConfig(
+              "Encounter",
+              ResourceConfig.newBuilder()
+                  .addDefaultTimestampFields("Encounter.period.start")
+                  .addTimestampOverride(
+                      TimestampOverride.newBuilder()
+                          .setTimestampField("Encounter.period.end")
+                          .addResourceField("Encounter.period.end"))
+                  .build())
+          .putResourceConfig(
+              "Observation",
+              ResourceConfig.newBuilder()
+                  .addDefaultTimestampFields("Observation.effective.dateTime")
+                  .build())
+          .build();
+
+  private static final String BUNDLE =
+      "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["
+          + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"14\",\"gender\":\"female\"}},"
+          + "{\"resource\":{\"resourceType\":\"Encounter\",\"id\":\"1\",\"status\":\"finished\","
+          + "\"class\":{\"system\":\"http://terminology.hl7.org/CodeSystem/v3-ActCode\","
+          + "\"code\":\"IMP\"},"
+          + "\"period\":{\"start\":\"2018-02-12T00:00:00Z\",\"end\":\"2018-02-13T00:00:00Z\"}}},"
+          + observation("2", "2018-02-12T10:00:00Z")
+          + ","
+          + observation("3", "2018-02-12T12:00:00Z")
+          + "]}";
+
+  private Bundle bundle;
+
+  private static String observation(String id, String time) {
+    return "{\"resource\":{\"resourceType\":\"Observation\",\"id\":\""
+        + id
+        + "\",\"status\":\"final\","
+        + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8480-6\"}],"
+        + "\"text\":\"Systolic blood pressure\"},"
+        + "\"effectiveDateTime\":\""
+        + time
+        + "\"}}";
+  }
+
+  private static List<TriggerLabelsPair> getLabels(long eventTimeSeconds) {
+    EventLabel label =
+        EventLabel.newBuilder()
+            .setPatient(
+                Reference.newBuilder().setPatientId(ReferenceId.newBuilder().setValue("14")))
+            .setType(Coding.newBuilder().setCode(Code.newBuilder().setValue("test")))
+            .setEventTime(
+                DateTime.newBuilder()
+                    .setValueUs(eventTimeSeconds * 1_000_000L)
+                    .setTimezone("Z")
+                    .setPrecision(DateTime.Precision.SECOND))
+            .addLabel(
+                EventLabel.Label.newBuilder()
+                    .setClassName(Coding.newBuilder().setCode(Code.newBuilder().setValue("yes"))))
+            .build();
+    return TriggerLabelsPair.fromInputLabels(ImmutableList.of(label));
+  }
+
+  private static long getInt64(Feature feature) {
+    return Iterables.getOnlyElement(feature.getInt64List().getValueList());
+  }
+
+  private static ByteString getBytes(Feature feature) {
+    return Iterables.getOnlyElement(feature.getBytesList().getValueList());
+  }
+
+  @Before
+  public void setUp() {
+    bundle = JsonFormat.getParser().merge(BUNDLE, Bundle.newBuilder()).build();
+  }
+
+  @Test
+  public void convert() {
+    BundleToSeqexConverter converter = BundleToSeqexConverter.newBuilder(VERSION_CONFIG).build();
+    Map<ExampleKey, SequenceExample> result =
+        converter.convert(bundle, getLabels(SECOND_OBSERVATION));
+
+    ExampleKey key = Iterables.getOnlyElement(result.keySet());
+    assertThat(key.getPatientId()).isEqualTo("Patient/14");
+    assertThat(key.getTriggerTimeMicros()).isEqualTo(SECOND_OBSERVATION * 1_000_000L);
+    // The encounter start and both observations, but not the encounter end.
+    assertThat(key.getStart()).isEqualTo(0);
+    assertThat(key.getEnd()).isEqualTo(3);
+
+    SequenceExample example = result.get(key);
+    Map<String, Feature> context = example.getContext().getFeatureMap();
+    assertThat(getBytes(context.get("patientId")).toStringUtf8()).isEqualTo("Patient/14");
+    assertThat(getBytes(context.get("Patient.gender")).toStringUtf8()).isEqualTo("female");
+    assertThat(getInt64(context.get("timestamp"))).isEqualTo(SECOND_OBSERVATION);
+    assertThat(getInt64(context.get("currentEncounterId"))).isEqualTo(ENCOUNTER_START);
+    assertThat(getInt64(context.get("sequenceLength"))).isEqualTo(3);
+    assertThat(getBytes(context.get("label.test.class")).toStringUtf8()).isEqualTo("yes");
+    assertThat(getInt64(context.get("label.test.timestamp_secs"))).isEqualTo(SECOND_OBSERVATION);
+
+    Map<String, FeatureList> sequence = example.getFeatureLists().getFeatureListMap();
+    FeatureList eventIds = sequence.get("eventId");
+    assertThat(eventIds.getFeatureCount()).isEqualTo(3);
+    assertThat(getInt64(eventIds.getFeature(0))).isEqualTo(ENCOUNTER_START);
+    assertThat(getInt64(eventIds.getFeature(1))).isEqualTo(FIRST_OBSERVATION);
+    assertThat(getInt64(eventIds.getFeature(2))).isEqualTo(SECOND_OBSERVATION);
+    assertThat(getInt64(sequence.get("encounterId").getFeature(2))).isEqualTo(ENCOUNTER_START);
+
+    FeatureList codes = sequence.get("Observation.code.http-loinc-org");
+    // The encounter has no code, which is represented by an empty value of the same kind.
+    assertThat(codes.getFeature(0).hasBytesList()).isTrue();
+    assertThat(codes.getFeature(0).getBytesList().getValueCount()).isEqualTo(0);
+    assertThat(getBytes(codes.getFeature(1)).toStringUtf8()).isEqualTo("8480-6");
+    assertThat(
+            sequence.get("Observation.code.text.tokenized").getFeature(1).getBytesList()
+                .getValueList())
+        .containsExactly(
+            ByteString.copyFromUtf8("systolic"),
+            ByteString.copyFromUtf8("blood"),
+            ByteString.copyFromUtf8("pressure"))
+        .inOrder();
+  }
+
+  @Test
+  public void maxSequenceLength() {
+    BundleToSeqexConverter converter =
+        BundleToSeqexConverter.newBuilder(VERSION_CONFIG).withMaxSequenceLength(2).build();
+    Map<ExampleKey, SequenceExample> result =
+        converter.convert(bundle, getLabels(SECOND_OBSERVATION));
+
+    ExampleKey key = Iterables.getOnlyElement(result.keySet());
+    assertThat(key.getStart()).isEqualTo(1);
+    assertThat(key.getEnd()).isEqualTo(3);
+    SequenceExample example = result.get(key);
+    assertThat(getInt64(example.getContext().getFeatureMap().get("sequenceLength"))).isEqualTo(2);
+    FeatureList eventIds = example.getFeatureLists().getFeatureListMap().get("eventId");
+    assertThat(eventIds.getFeatureCount()).isEqualTo(2);
+    assertThat(getInt64(eventIds.getFeature(0))).isEqualTo(FIRST_OBSERVATION);
+  }
+
+  @Test
+  public void triggerTimeRedactedFeatures() {
+    BundleToSeqexConverter converter =
+        BundleToSeqexConverter.newBuilder(VERSION_CONFIG)
+            .withTriggerTimeRedactedFeatures(ImmutableSet.of("Observation.code"))
+            .build();
+    SequenceExample example =
+        Iterables.getOnlyElement(converter.convert(bundle, getLabels(SECOND_OBSERVATION)).values());
+
+    Map<String, FeatureList> sequence = example.getFeatureLists().getFeatureListMap();
+    FeatureList codes = sequence.get("Observation.code.http-loinc-org");
+    // The code of the observation before the trigger is kept, the one at the trigger is not.
+    assertThat(getBytes(codes.getFeature(1)).toStringUtf8()).isEqualTo("8480-6");
+    assertThat(codes.getFeature(2).getBytesList().getValueCount()).isEqualTo(0);
+    assertThat(
+            sequence.get("Observation.code.text.tokenized").getFeature(2).getBytesList()
+                .getValueCount())
+        .isEqualTo(0);
+    assertThat(getBytes(sequence.get("Observation.status").getFeature(2)).toStringUtf8())
+        .isEqualTo("final");
+  }
+
+  @Test
+  public void fullyRedactedEventIsDropped() {
+    BundleToSeqexConverter converter =
+        BundleToSeqexConverter.newBuilder(VERSION_CONFIG)
+            .withTriggerTimeRedactedFeatures(ImmutableSet.of("Observation"))
+            .build();
+    SequenceExample example =
+        Iterables.getOnlyElement(converter.convert(bundle, getLabels(SECOND_OBSERVATION)).values());
+
+    assertThat(getInt64(example.getContext().getFeatureMap().get("sequenceLength"))).isEqualTo(2);
+    FeatureList eventIds = example.getFeatureLists().getFeatureListMap().get("eventId");
+    assertThat(eventIds.getFeatureCount()).isEqualTo(2);
+    assertThat(getInt64(eventIds.getFeature(1))).isEqualTo(FIRST_OBSERVATION);
+  }
+
+  @Test
+  public void encounterEndIsIncludedAfterDischarge() {
+    BundleToSeqexConverter converter = BundleToSeqexConverter.newBuilder(VERSION_CONFIG).build();
+    long trigger = 1518480000L; // 2018-02-13T00:00:00Z
+    ExampleKey key =
+        Iterables.getOnlyElement(converter.convert(bundle, getLabels(trigger)).keySet());
+    assertThat(key.getEnd()).isEqualTo(4);
+  }
+
+  @Test
+  public void encounterStartingBeforeEarliestEvent() {
+    // Without versioning Encounters, the inpatient encounter starts before the first event.
+    VersionConfig config =
+        VersionConfig.newBuilder()
+            .putResourceConfig(
+                "Observation", VERSION_CONFIG.getResourceConfigOrThrow("Observation"))
+            .build();
+    BundleToSeqexConverter converter = BundleToSeqexConverter.newBuilder(config).build();
+    SequenceExample example =
+        Iterables.getOnlyElement(converter.convert(bundle, getLabels(SECOND_OBSERVATION)).values());
+
+    assertThat(getInt64(example.getContext().getFeatureMap().get("currentEncounterId")))
+        .isEqualTo(ENCOUNTER_START);
+    FeatureList encounterIds = example.getFeatureLists().getFeatureListMap().get("encounterId");
+    assertThat(encounterIds.getFeatureCount()).isEqualTo(2);
+    assertThat(getInt64(encounterIds.getFeature(0))).isEqualTo(ENCOUNTER_START);
+    assertThat(getInt64(encounterIds.getFeature(1))).isEqualTo(ENCOUNTER_START);
+  }
+
+  @Test
+  public void noTriggers() {
+    BundleToSeqexConverter converter = BundleToSeqexConverter.newBuilder(VERSION_CONFIG).build();
+    assertThat(converter.convert(bundle, ImmutableList.of())).isEmpty();
+  }
+
+  @Test
+  public void missingPatient() {
+    BundleToSeqexConverter converter = BundleToSeqexConverter.newBuilder(VERSION_CONFIG).build();
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> converter.convert(Bundle.getDefaultInstance(), getLabels(SECOND_OBSERVATION)));
+  }
+
+  @Test
+  public void referenceToString() {
+    assertThat(
+            BundleToSeqexConverter.referenceToString(
+                Reference.newBuilder()
+                    .setEncounterId(ReferenceId.newBuilder().setValue("1"))
+                    .build()))
+        .isEqualTo("Encounter/1");
+  }
+}
@@ -0,0 +1,81 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.seqex;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TextTokenizer}. */
+@RunWith(JUnit4.class)
+public final class TextTokenizerTest {
+
+  private static List<String> getText(List<TextTokenizer.Token> tokens) {
+    List<String> result = new ArrayList<>();
+    for (TextTokenizer.Token token : tokens) {
+      result.add(token.getText());
+    }
+    return result;
+  }
+
+  @Test
+  public void simpleWordTokenizer() {
+    List<TextTokenizer.Token> tokens =
+        TextTokenizer.simpleWordTokenizer().tokenize("Blood-Pressure, 120 mmHg!");
+    assertThat(getText(tokens)).containsExactly("blood", "pressure", "120", "mmhg").inOrder();
+    // Offsets point into the original text.
+    assertThat(tokens.get(1).getCharStart()).isEqualTo(6);
+    assertThat(tokens.get(1).getCharEnd()).isEqualTo(14);
+    assertThat(tokens.get(3).getCharStart()).isEqualTo(20);
+    assertThat(tokens.get(3).getCharEnd()).isEqualTo(24);
+  }
+
+  @Test
+  public void emptyText() {
+    assertThat(TextTokenizer.simpleWordTokenizer().tokenize(" ... ")).isEmpty();
+  }
+
+  @Test
+  public void singleTokenTokenizer() {
+    assertThat(getText(TextTokenizer.singleTokenTokenizer().tokenize("Blood Pressure")))
+        .containsExactly("Blood Pressure");
+  }
+
+  @Test
+  public void startAndEnd() {
+    TextTokenizer tokenizer = TextTokenizer.newBuilder().withStartAndEnd(true).build();
+    assertThat(getText(tokenizer.tokenize("a b")))
+        .containsExactly("<s>", "a", "b", "</s>")
+        .inOrder();
+  }
+
+  @Test
+  public void bigramsWithNumbers() {
+    TextTokenizer tokenizer =
+        TextTokenizer.newBuilder()
+            .withReplaceNumbers(true)
+            .withUnigrams(false)
+            .withBigrams(true)
+            .build();
+    List<TextTokenizer.Token> tokens = tokenizer.tokenize("BP 120 high");
+    assertThat(getText(tokens)).containsExactly("<s>_bp", "bp_<N>", "<N>_high").inOrder();
+    assertThat(tokens.get(2).getCharStart()).isEqualTo(3);
+    assertThat(tokens.get(2).getCharEnd()).isEqualTo(11);
+  }
+}
@@ -16,6 +16,7 @@ package com.google.fhir.stu3;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.fhir.common.JsonFormat;
 import com.google.fhir.stu3.proto.Account;
 import com.google.fhir.stu3.proto.ActivityDefinition;
 import com.google.fhir.stu3.proto.AdverseEvent;
@@ -181,6 +182,31 @@ public class JsonFormatTest extends JsonFormatTestBase {
     testConvertForAnalytics("patient-example", Patient.newBuilder());
   }
 
+  /** Test that analytic output is only cut at a given maximum recursion depth. */
+  @Test
+  public void convertForAnalyticsMaxRecursionDepth() throws Exception {
+    Composition.Builder composition = Composition.newBuilder();
+    JsonFormat.getParser()
+        .merge(
+            "{\"resourceType\": \"Composition\", \"section\": [{\"title\": \"a\", "
+                + "\"section\": [{\"title\": \"b\", \"section\": [{\"title\": \"c\"}]}]}]}",
+            composition);
+    JsonFormat.Printer printer = JsonFormat.getPrinter().omittingInsignificantWhitespace();
+
+    String analytic = printer.forAnalytics().print(composition);
+    assertThat(analytic)
+        .isEqualTo(
+            "{\"section\":[{\"title\":\"a\",\"section\":[{\"title\":\"b\","
+                + "\"section\":[{\"title\":\"c\"}]}]}]}");
+
+    analytic = printer.forAnalytics(0).print(composition);
+    assertThat(analytic).isEqualTo("{\"section\":[{\"title\":\"a\"}]}");
+
+    analytic = printer.forAnalytics(1).print(composition);
+    assertThat(analytic)
+        .isEqualTo("{\"section\":[{\"title\":\"a\",\"section\":[{\"title\":\"b\"}]}]}");
+  }
+
   /** Test parsing to a profile */
   // TODO: Profiles aren't supported yet in Java.
   //   @Test
@@ -0,0 +1,121 @@
+//    Copyright 2019 Google Inc.
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        https://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+
+package com.google.fhir.wrappers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.fhir.r4.core.Boolean;
+import com.google.fhir.r4.core.Code;
+import com.google.fhir.r4.core.Element;
+import com.google.fhir.r4.core.Extension;
+import com.google.fhir.r4.core.Uri;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ExtensionScanner}. */
+@RunWith(JUnit4.class)
+public final class ExtensionScannerTest {
+
+  private static final java.lang.String OTHER_URL = "http://example.com/other";
+
+  private static Extension extension(java.lang.String url, boolean value) {
+    Extension.Builder extension = Extension.newBuilder().setUrl(Uri.newBuilder().setValue(url));
+    extension.getValueBuilder().setBoolean(Boolean.newBuilder().setValue(value));
+    return extension.build();
+  }
+
+  @Test
+  public void hasExtension() {
+    Code code =
+        Code.newBuilder()
+            .addExtension(extension(OTHER_URL, true))
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, true))
+            .build();
+    assertThat(ExtensionScanner.hasExtension(code, OTHER_URL)).isTrue();
+    assertThat(ExtensionScanner.hasExtension(code, ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL))
+        .isTrue();
+    assertThat(
+            ExtensionScanner.hasExtension(
+                code, ExtensionScanner.BASE64_BINARY_SEPARATOR_STRIDE_URL))
+        .isFalse();
+    assertThat(ExtensionScanner.indexOf(code, OTHER_URL, 1)).isEqualTo(-1);
+  }
+
+  @Test
+  public void countAndIterateExcluding() {
+    Code code =
+        Code.newBuilder()
+            .addExtension(extension(OTHER_URL, true))
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, true))
+            .addExtension(extension(OTHER_URL, false))
+            .build();
+    ImmutableSet<java.lang.String> internal =
+        ImmutableSet.of(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL);
+    assertThat(ExtensionScanner.countExtensionsExcluding(code, internal)).isEqualTo(2);
+
+    List<Extension> visited = new ArrayList<>();
+    ExtensionScanner.forEachExtensionExcluding(code, internal, visited::add);
+    assertThat(visited)
+        .containsExactly(extension(OTHER_URL, true), extension(OTHER_URL, false))
+        .inOrder();
+
+    visited.clear();
+    ExtensionScanner.forEachMatchingExtension(
+        code, ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, visited::add);
+    assertThat(visited)
+        .containsExactly(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, true));
+  }
+
+  @Test
+  public void primitiveHasNoValue() {
+    Code withoutValue =
+        Code.newBuilder()
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, true))
+            .addExtension(extension(OTHER_URL, true))
+            .build();
+    Code withFalseFlag =
+        Code.newBuilder()
+            .setValue("abc")
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, false))
+            .build();
+    assertThat(ExtensionScanner.hasPrimitiveHasNoValue(withoutValue)).isTrue();
+    assertThat(PrimitiveWrapper.hasValue(withoutValue)).isFalse();
+    assertThat(ExtensionScanner.hasPrimitiveHasNoValue(withFalseFlag)).isFalse();
+    assertThat(PrimitiveWrapper.hasValue(withFalseFlag)).isTrue();
+  }
+
+  @Test
+  public void elementSkipsInternalExtensions() {
+    Code withoutValue =
+        Code.newBuilder()
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, true))
+            .addExtension(extension(OTHER_URL, true))
+            .build();
+    Element element = new CodeWrapper(withoutValue).getElement();
+    assertThat(element)
+        .isEqualTo(Element.newBuilder().addExtension(extension(OTHER_URL, true)).build());
+
+    Code onlyInternal =
+        Code.newBuilder()
+            .setValue("abc")
+            .addExtension(extension(ExtensionScanner.PRIMITIVE_HAS_NO_VALUE_URL, false))
+            .build();
+    assertThat(new CodeWrapper(onlyInternal).getElement()).isNull();
+  }
+}
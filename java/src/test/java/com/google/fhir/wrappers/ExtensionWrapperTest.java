@@ -113,4 +113,17 @@ public final class ExtensionWrapperTest {
   public void expandEventLabel() throws Exception {
     testExpand("label", EventLabel.newBuilder());
   }
+
+  /** Test that codecs are compiled once and round-trip a complex extension. */
+  @Test
+  public void codecRoundTrip() throws Exception {
+    ExtensionCodec codec = ExtensionCodec.forExtension(EventTrigger.getDescriptor());
+    assertThat(ExtensionCodec.forExtension(EventTrigger.getDescriptor())).isSameAs(codec);
+
+    EventTrigger.Builder trigger = EventTrigger.newBuilder();
+    mergeText("trigger.message.prototxt", trigger);
+    Extension extension = codec.encode(trigger);
+    assertThat(codec.decode(extension, EventTrigger.newBuilder()).build())
+        .isEqualTo(trigger.build());
+  }
 }